@@ -1,6 +1,7 @@
 import paho.mqtt.client as mqtt
 import time
 import json
+import struct
 import random
 import sys
 
@@ -18,6 +19,10 @@ MQTT_PASS = ""
 DEVICE_ID = "DHT22-ARDUINO-FAKE"
 
 TOPIC_PUBLISH = f"sensor/{DEVICE_ID}/data"
+TOPIC_PUBLISH_BIN = f"sensor/{DEVICE_ID}/bin"
+
+# "json" (mặc định) hoặc "bin" (frame nhị phân gọn, xem encode_binary_payload)
+PAYLOAD_FORMAT = "json"
 TOPIC_SUBSCRIBE = f"device/{DEVICE_ID}/control"
 TOPIC_STATUS = f"device/{DEVICE_ID}/status"
 
@@ -60,6 +65,28 @@ def callback(client, userdata, msg):
     except Exception as e:
         print("Lỗi đọc JSON:", e)
 
+# Encoder tham chiếu cho frame nhị phân phiên bản 1 (SensorBinaryCodec ở backend)
+#   u8 version = 1
+#   u8 field bitmap: bit0 temperature, bit1 humidity, bit2 soilMoisture,
+#                    bit3 lightIntensity, bit4 soilPH, bit7 sensorType
+#   float32 little-endian cho mỗi trường được bật, theo thứ tự bit
+#   nếu bit7 bật: u8 độ dài + sensorType (ASCII)
+BINARY_FORMAT_VERSION = 1
+BINARY_FIELDS = ["temperature", "humidity", "soilMoisture", "lightIntensity", "soilPH"]
+
+def encode_binary_payload(values, sensor_type=None):
+    bitmap = 0
+    body = b""
+    for bit, name in enumerate(BINARY_FIELDS):
+        if values.get(name) is not None:
+            bitmap |= 1 << bit
+            body += struct.pack("<f", float(values[name]))
+    if sensor_type:
+        encoded = sensor_type.encode("ascii")
+        bitmap |= 1 << 7
+        body += struct.pack("<B", len(encoded)) + encoded
+    return struct.pack("<BB", BINARY_FORMAT_VERSION, bitmap) + body
+
 # ==========================================
 # SETUP & LOOP
 # ==========================================
@@ -127,6 +154,12 @@ def loop():
             "humidity": hum,
             "timestamp": int(time.time()*1000)
         }
+        if PAYLOAD_FORMAT == "bin":
+            frame = encode_binary_payload(payload, payload["sensorType"])
+            print(f"📤 Gửi dữ liệu (bin, {len(frame)} bytes): {frame.hex()}")
+            client.publish(TOPIC_PUBLISH_BIN, frame)
+            return
+
         payload_json = json.dumps(payload)
         
         print(f"📤 Gửi dữ liệu: {payload_json}")
@@ -9,6 +9,7 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.WriteOptions;
 import com.influxdb.client.WriteApiBlocking;
 
 @Configuration
@@ -26,6 +27,33 @@ public class InfluxDBConfig {
     @Value("${influxdb.bucket}")
     private String bucket;
 
+    // Tham số batching của WriteApi bất đồng bộ, chỉnh theo profile
+    // (application-{profile}.properties hoặc biến môi trường)
+    @Value("${influxdb.write.batch-size:5000}")
+    private int batchSize;
+
+    @Value("${influxdb.write.flush-interval-ms:1000}")
+    private int flushIntervalMs;
+
+    @Value("${influxdb.write.jitter-interval-ms:0}")
+    private int jitterIntervalMs;
+
+    @Value("${influxdb.write.retry-interval-ms:5000}")
+    private int retryIntervalMs;
+
+    @Value("${influxdb.write.max-retries:5}")
+    private int maxRetries;
+
+    @Value("${influxdb.write.max-retry-delay-ms:125000}")
+    private int maxRetryDelayMs;
+
+    @Value("${influxdb.write.exponential-base:2}")
+    private int exponentialBase;
+
+    // Số point tối đa giữ trong retry buffer; vượt quá thì WriteApi phát BackpressureEvent
+    @Value("${influxdb.write.buffer-limit:10000}")
+    private int bufferLimit;
+
     @Bean
     public InfluxDBClient influxDBClient() {
         return InfluxDBClientFactory.create(url, token.toCharArray(), org, bucket);
@@ -53,10 +81,29 @@ public class InfluxDBConfig {
         return bucket;
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getBufferLimit() {
+        return bufferLimit;
+    }
+
 // [FIX 3]: Thêm Bean ghi bất đồng bộ
+    // Sự kiện của WriteApi được đưa vào Micrometer bởi InfluxWriteMonitor
     @Bean
     public com.influxdb.client.WriteApi writeApiAsync(InfluxDBClient influxDBClient) {
-        return influxDBClient.makeWriteApi(); 
+        WriteOptions options = WriteOptions.builder()
+                .batchSize(batchSize)
+                .flushInterval(flushIntervalMs)
+                .jitterInterval(jitterIntervalMs)
+                .retryInterval(retryIntervalMs)
+                .maxRetries(maxRetries)
+                .maxRetryDelay(maxRetryDelayMs)
+                .exponentialBase(exponentialBase)
+                .bufferLimit(bufferLimit)
+                .build();
+        return influxDBClient.makeWriteApi(options);
     }
 
 }
@@ -15,7 +15,10 @@ import org.springframework.integration.mqtt.support.DefaultPahoMessageConverter;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
 
+import lombok.extern.slf4j.Slf4j;
+
 @Configuration
+@Slf4j
 public class MqttConfig {
 
     @Value("${mqtt.broker-url}")
@@ -30,6 +33,20 @@ public class MqttConfig {
     @Value("${mqtt.password:}")
     private String password;
 
+    // false: broker giữ session và gửi lại message QoS 1 chưa ack sau khi reconnect
+    @Value("${mqtt.clean-session:true}")
+    private boolean cleanSession;
+
+    // true: chỉ ack (PUBACK) sau khi worker đã ghi dữ liệu vào SensorJournal.
+    // Chỉ có tác dụng khi mqtt.clean-session=false (với clean session, message
+    // chưa ack bị broker bỏ khi mất kết nối nên ack muộn không bảo vệ được gì).
+    // Lưu ý: số message QoS 1 chưa ack bị giới hạn bởi broker (Mosquitto:
+    // max_inflight_messages, mặc định 20), và đó trở thành trần throughput
+    // ingest: cần tăng max_inflight_messages (và max_queued_messages) phía
+    // broker tương ứng với ingest.pipeline.* trước khi bật.
+    @Value("${mqtt.manual-acks:false}")
+    private boolean manualAcks;
+
     @Bean
     public MqttPahoClientFactory mqttClientFactory() {
         DefaultMqttPahoClientFactory factory = new DefaultMqttPahoClientFactory();
@@ -41,7 +58,7 @@ public class MqttConfig {
             options.setPassword(password.toCharArray());
         }
 
-        options.setCleanSession(true);
+        options.setCleanSession(cleanSession);
         options.setAutomaticReconnect(true);
         options.setConnectionTimeout(10);
         options.setKeepAliveInterval(60);
@@ -50,6 +67,8 @@ public class MqttConfig {
         return factory;
     }
 
+    // Giữ DirectChannel: MqttMessageHandler chỉ đẩy message vào IngestPipeline
+    // (phân vùng theo deviceId) nên thread Paho không bị chặn bởi xử lý nặng.
     @Bean
     public MessageChannel mqttInputChannel() {
         return new DirectChannel();
@@ -62,17 +81,33 @@ public class MqttConfig {
                 clientId + "_inbound",
                 mqttClientFactory(),
                 "sensor/+/data", // Subscribe to all sensor data
+                "sensor/+/bin", // Dữ liệu cảm biến dạng nhị phân (SensorBinaryCodec)
+                "gateway/+/batch", // Gateway gom nhiều reading trong một message
                 "device/+/status" // Subscribe to device status
         );
 
         adapter.setCompletionTimeout(5000);
-        adapter.setConverter(new DefaultPahoMessageConverter());
+        // Giữ payload dạng byte[]: SensorPayloadDecoder đọc thẳng từ byte[] nên
+        // không cần tạo String trung gian cho mỗi message
+        DefaultPahoMessageConverter converter = new DefaultPahoMessageConverter();
+        converter.setPayloadAsBytes(true);
+        adapter.setConverter(converter);
         adapter.setQos(1);
+        // Manual ack: xem mqtt.manual-acks và MqttMessageHandler
+        adapter.setManualAcks(manualAcksEnabled());
         adapter.setOutputChannel(mqttInputChannel());
 
         return adapter;
     }
 
+    private boolean manualAcksEnabled() {
+        if (manualAcks && cleanSession) {
+            log.warn("mqtt.manual-acks bị bỏ qua vì mqtt.clean-session=true; dùng auto ack");
+            return false;
+        }
+        return manualAcks;
+    }
+
     //  THÊM: Outbound Channel để gửi message
     @Bean
     public MessageChannel mqttOutboundChannel() {
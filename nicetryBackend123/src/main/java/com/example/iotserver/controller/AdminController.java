@@ -17,6 +17,7 @@ import com.example.iotserver.repository.FarmRepository;
 import com.example.iotserver.repository.RuleRepository;
 import com.example.iotserver.repository.UserRepository;
 import com.example.iotserver.service.UserService;
+import com.example.iotserver.service.rollup.SensorRetentionService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
@@ -49,6 +50,7 @@ public class AdminController {
     private final FarmRepository farmRepository;
     private final DeviceRepository deviceRepository;
     private final RuleRepository ruleRepository;
+    private final SensorRetentionService sensorRetentionService;
 
     @GetMapping("/users")
     @Operation(summary = "Lấy danh sách tất cả người dùng (Phân trang & Tìm kiếm)")
@@ -123,6 +125,12 @@ public class AdminController {
         return ResponseEntity.ok(ApiResponse.success(deviceDtos));
     }
 
+    @GetMapping("/retention")
+    @Operation(summary = "Tiến độ retention/rollup dữ liệu cảm biến trên InfluxDB")
+    public ResponseEntity<ApiResponse<List<SensorRetentionService.RetentionStatus>>> getRetentionStatus() {
+        return ResponseEntity.ok(ApiResponse.success(sensorRetentionService.getStatus()));
+    }
+
     @PutMapping("/users/{id}")
     @Operation(summary = "Cập nhật thông tin người dùng (Admin)")
     public ResponseEntity<ApiResponse<AdminUserDTO>> updateUserAsAdmin(@PathVariable Long id,
@@ -24,10 +24,11 @@ public class AnalyticsController {
             @RequestParam List<String> fields,
             @RequestParam Instant start,
             @RequestParam Instant end,
-            @RequestParam(defaultValue = "1h") String window) {
+            @RequestParam(defaultValue = "1h") String window,
+            @RequestParam(required = false) Integer maxPoints) {
 
         Map<String, List<SensorDataDTO>> data = sensorDataService.getMultiSeriesData(deviceIds, fields, start, end,
-                window);
+                window, maxPoints);
         return ResponseEntity.ok(ApiResponse.success("Lấy dữ liệu lịch sử thành công", data));
     }
 }
\ No newline at end of file
@@ -171,18 +171,19 @@ public class DeviceController {
 
     /**
      * Get sensor data for time range
-     * GET /api/devices/{deviceId}/data?start=...&end=...
+     * GET /api/devices/{deviceId}/data?start=...&end=...[&maxPoints=...]
      */
     @GetMapping("/{deviceId}/data")
     @Operation(summary = "Lấy dữ liệu cảm biến theo khoảng thời gian")
     public ResponseEntity<ApiResponse<List<SensorDataDTO>>> getSensorDataRange(
             @PathVariable String deviceId,
             @Parameter(description = "Thời gian bắt đầu (ISO format)") @RequestParam String start,
-            @Parameter(description = "Thời gian kết thúc (ISO format)") @RequestParam String end) {
+            @Parameter(description = "Thời gian kết thúc (ISO format)") @RequestParam String end,
+            @Parameter(description = "Số điểm tối đa mỗi field (giảm điểm bằng LTTB cho biểu đồ)") @RequestParam(required = false) Integer maxPoints) {
         Instant startTime = Instant.parse(start);
         Instant endTime = Instant.parse(end);
 
-        List<SensorDataDTO> data = sensorDataService.getSensorDataRange(deviceId, startTime, endTime);
+        List<SensorDataDTO> data = sensorDataService.getSensorDataRange(deviceId, startTime, endTime, maxPoints);
         return ResponseEntity.ok(ApiResponse.success(data));
     }
 
@@ -55,6 +55,18 @@ public class ReportController {
         reportService.writeSensorDataToCsv(response, deviceId, start, end);
     }
 
+    @GetMapping("/export/json")
+    @Operation(summary = "Xuất dữ liệu cảm biến ra file JSON")
+    @PreAuthorize("isAuthenticated()") // Yêu cầu đăng nhập
+    public void exportSensorDataToJson(
+            HttpServletResponse response,
+            @Parameter(description = "ID của thiết bị", required = true) @RequestParam String deviceId,
+            @Parameter(description = "Thời gian bắt đầu (ISO 8601 format, e.g., 2023-10-27T00:00:00Z)", required = true) @RequestParam Instant start,
+            @Parameter(description = "Thời gian kết thúc (ISO 8601 format, e.g., 2023-10-28T00:00:00Z)", required = true) @RequestParam Instant end)
+            throws IOException {
+        reportService.writeSensorDataToJson(response, deviceId, start, end);
+    }
+
     // --- ENDPOINT MỚI CHO PDF ---
     @GetMapping("/export/pdf")
     @Operation(summary = "Xuất báo cáo dữ liệu cảm biến ra file PDF")
@@ -0,0 +1,117 @@
+package com.example.iotserver.dto;
+
+import com.example.iotserver.entity.Device;
+import com.example.iotserver.entity.Farm;
+import com.example.iotserver.entity.PlantProfile;
+import com.example.iotserver.entity.User;
+import com.example.iotserver.entity.Zone;
+import com.example.iotserver.enums.DeviceStatus;
+import com.example.iotserver.enums.DeviceType;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Ảnh chụp bất biến của một thiết bị, giữ trong DeviceRegistry cho các luồng
+ * nóng (ingest MQTT, rule engine) để không phải JOIN FETCH MySQL mỗi message.
+ */
+@Value
+@Builder(toBuilder = true)
+public class DeviceSnapshot {
+
+    Long id;
+    String deviceId;
+    String name;
+    DeviceType type;
+    DeviceStatus status;
+    String currentState;
+
+    // Farm + chủ sở hữu (null nếu thiết bị chưa được nhận vào nông trại)
+    Long farmId;
+    Long ownerId;
+    String ownerEmail;
+    String ownerFullName;
+
+    // Zone + hồ sơ cây trồng (có thể null)
+    Long zoneId;
+    String zoneName;
+    Long plantProfileId;
+
+    public static DeviceSnapshot fromEntity(Device device) {
+        DeviceSnapshotBuilder builder = DeviceSnapshot.builder()
+                .id(device.getId())
+                .deviceId(device.getDeviceId())
+                .name(device.getName())
+                .type(device.getType())
+                .status(device.getStatus())
+                .currentState(device.getCurrentState());
+
+        Farm farm = device.getFarm();
+        if (farm != null) {
+            builder.farmId(farm.getId());
+            User owner = farm.getOwner();
+            if (owner != null) {
+                builder.ownerId(owner.getId())
+                        .ownerEmail(owner.getEmail())
+                        .ownerFullName(owner.getFullName());
+            }
+        }
+
+        Zone zone = device.getZone();
+        if (zone != null) {
+            builder.zoneId(zone.getId()).zoneName(zone.getName());
+            if (zone.getPlantProfile() != null) {
+                builder.plantProfileId(zone.getPlantProfile().getId());
+            }
+        }
+
+        return builder.build();
+    }
+
+    public boolean isClaimed() {
+        return farmId != null;
+    }
+
+    /**
+     * Tạo một Device "detached" chỉ chứa id và các trường trong snapshot, đủ cho
+     * các service nhận entity (PlantHealthService, ConfigService,
+     * NotificationService) mà không cần truy vấn lại DB. Không được save đối
+     * tượng này.
+     */
+    public Device toDetachedDevice() {
+        Device device = new Device();
+        device.setId(id);
+        device.setDeviceId(deviceId);
+        device.setName(name);
+        device.setType(type);
+        device.setStatus(status);
+        device.setCurrentState(currentState);
+
+        if (farmId != null) {
+            Farm farm = new Farm();
+            farm.setId(farmId);
+            if (ownerId != null) {
+                User owner = new User();
+                owner.setId(ownerId);
+                owner.setEmail(ownerEmail);
+                owner.setFullName(ownerFullName);
+                farm.setOwner(owner);
+            }
+            device.setFarm(farm);
+        }
+
+        if (zoneId != null) {
+            Zone zone = new Zone();
+            zone.setId(zoneId);
+            zone.setName(zoneName);
+            if (plantProfileId != null) {
+                PlantProfile profile = new PlantProfile();
+                profile.setId(plantProfileId);
+                zone.setPlantProfile(profile);
+            }
+            device.setZone(zone);
+        }
+
+        return device;
+    }
+}
@@ -62,6 +62,7 @@ public class RuleDTO {
         private String deviceId; // DEV-ABC123
         private String logicalOperator; // AND, OR
         private Integer orderIndex;
+        private Integer maxDataAgeMinutes; // SENSOR_VALUE: ngưỡng độ tươi dữ liệu (phút), null = mặc định
     }
 
     // DTO con cho Hành động
@@ -1,6 +1,7 @@
 package com.example.iotserver.dto;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -22,6 +23,9 @@ public class SensorDataDTO implements Serializable { // <-- THÊM "implements Se
 
     private static final long serialVersionUID = 1L;
 
+    // Giá trị tag zone_id trong InfluxDB cho thiết bị chưa gán zone
+    public static final String NO_ZONE = "none";
+
     private String deviceId;
     private String deviceName;
     private String sensorType;
@@ -41,6 +45,7 @@ public class SensorDataDTO implements Serializable { // <-- THÊM "implements Se
 
     // Additional metadata
     private Long farmId;
+    private Long zoneId;
     private String farmName;
     private String location;
     private String unit;
@@ -55,6 +60,20 @@ public class SensorDataDTO implements Serializable { // <-- THÊM "implements Se
     @Builder.Default
     private Map<String, Object> additionalValues = new HashMap<>();
 
+    // Thời điểm riêng của từng field (tên field InfluxDB) khi các giá trị đến từ
+    // các reading khác nhau, VD dữ liệu mới nhất ghép theo field; field không có
+    // ở đây dùng timestamp
+    @JsonIgnore
+    private Map<String, Instant> fieldTimes;
+
+    /**
+     * Thời điểm của giá trị {@code field} (tên field InfluxDB, VD "soil_moisture").
+     */
+    public Instant fieldTime(String field) {
+        Instant time = fieldTimes != null ? fieldTimes.get(field) : null;
+        return time != null ? time : timestamp;
+    }
+
     // Helper method to create from MQTT payload
     public static SensorDataDTO fromMqttPayload(String deviceId, Map<String, Object> payload) {
         SensorDataDTOBuilder builder = SensorDataDTO.builder()
@@ -96,6 +115,9 @@ public class SensorDataDTO implements Serializable { // <-- THÊM "implements Se
         if (record.containsKey("farm_id")) {
             builder.farmId(Long.parseLong(record.get("farm_id").toString()));
         }
+        if (record.get("zone_id") != null && !NO_ZONE.equals(record.get("zone_id").toString())) {
+            builder.zoneId(Long.parseLong(record.get("zone_id").toString()));
+        }
         if (record.containsKey("_time")) {
             builder.timestamp(Instant.parse(record.get("_time").toString()));
         }
@@ -54,6 +54,11 @@ public class RuleCondition {
     @Builder.Default // <<<< THÊM
     private Integer orderIndex = 0;
 
+    // Chỉ cho SENSOR_VALUE: dữ liệu cũ hơn số phút này thì điều kiện là SAI
+    // (null: dùng rule.engine.max-data-age-minutes)
+    @Column(name = "max_data_age_minutes")
+    private Integer maxDataAgeMinutes;
+
     // Các enum
     public enum ConditionType {
         SENSOR_VALUE, // Kiểm tra giá trị cảm biến
@@ -0,0 +1,63 @@
+package com.example.iotserver.event;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Phát ra khi thông tin định danh của thiết bị thay đổi (tạo, sửa, xóa, nhận
+ * vào nông trại, đổi zone...) hoặc khi dữ liệu được chép vào DeviceSnapshot
+ * thay đổi (farm, thông tin chủ farm, hồ sơ cây trồng). DeviceRegistry lắng
+ * nghe sự kiện này sau khi transaction commit để cập nhật snapshot trong bộ nhớ.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class DeviceChangedEvent {
+
+    public enum Kind {
+        SAVED, // Thiết bị được tạo/cập nhật/nhận vào farm
+        DELETED, // Thiết bị bị xóa
+        ZONE_CHANGED, // Zone đổi tên/hồ sơ cây trồng hoặc bị xóa
+        FARM_DELETED, // Farm bị xóa cùng toàn bộ thiết bị
+        FARM_CHANGED, // Thông tin farm được sửa
+        OWNER_CHANGED, // Email/họ tên của người dùng (chủ farm) thay đổi
+        PLANT_PROFILE_CHANGED // Hồ sơ cây trồng được sửa hoặc bị xóa
+    }
+
+    private final Kind kind;
+    private final String deviceId;
+    private final Long zoneId;
+    private final Long farmId;
+    private final Long userId;
+    private final Long plantProfileId;
+
+    public static DeviceChangedEvent saved(String deviceId) {
+        return new DeviceChangedEvent(Kind.SAVED, deviceId, null, null, null, null);
+    }
+
+    public static DeviceChangedEvent deleted(String deviceId) {
+        return new DeviceChangedEvent(Kind.DELETED, deviceId, null, null, null, null);
+    }
+
+    public static DeviceChangedEvent zoneChanged(Long zoneId) {
+        return new DeviceChangedEvent(Kind.ZONE_CHANGED, null, zoneId, null, null, null);
+    }
+
+    public static DeviceChangedEvent farmDeleted(Long farmId) {
+        return new DeviceChangedEvent(Kind.FARM_DELETED, null, null, farmId, null, null);
+    }
+
+    public static DeviceChangedEvent farmChanged(Long farmId) {
+        return new DeviceChangedEvent(Kind.FARM_CHANGED, null, null, farmId, null, null);
+    }
+
+    public static DeviceChangedEvent ownerChanged(Long userId) {
+        return new DeviceChangedEvent(Kind.OWNER_CHANGED, null, null, null, userId, null);
+    }
+
+    public static DeviceChangedEvent plantProfileChanged(Long plantProfileId) {
+        return new DeviceChangedEvent(Kind.PLANT_PROFILE_CHANGED, null, null, null, null, plantProfileId);
+    }
+}
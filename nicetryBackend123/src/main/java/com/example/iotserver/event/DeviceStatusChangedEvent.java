@@ -0,0 +1,27 @@
+package com.example.iotserver.event;
+
+import com.example.iotserver.enums.DeviceStatus;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Phát ra khi trạng thái kết nối của thiết bị đổi ngoài luồng MQTT, VD: thiết
+ * bị bị đánh dấu OFFLINE vì không gửi dữ liệu (DeviceService.checkStaleDevices).
+ * RuleTriggerService lắng nghe sự kiện này để kiểm tra các quy tắc DEVICE_STATUS
+ * mà không cần DeviceService phụ thuộc vào nó.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class DeviceStatusChangedEvent {
+
+    private final String deviceId;
+    private final DeviceStatus status;
+
+    public static DeviceStatusChangedEvent offline(String deviceId) {
+        return new DeviceStatusChangedEvent(deviceId, DeviceStatus.OFFLINE);
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.iotserver.event;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Phát ra khi quy tắc tự động được tạo, sửa, bật/tắt hoặc xóa. RuleTriggerService
+ * lắng nghe sự kiện này sau khi transaction commit để dựng lại index
+ * (deviceId, field) -> quy tắc.
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public class RuleChangedEvent {
+
+    public enum Kind {
+        SAVED, // Quy tắc được tạo/cập nhật/bật/tắt
+        DELETED // Quy tắc bị xóa
+    }
+
+    private final Kind kind;
+    private final Long ruleId;
+
+    public static RuleChangedEvent saved(Long ruleId) {
+        return new RuleChangedEvent(Kind.SAVED, ruleId);
+    }
+
+    public static RuleChangedEvent deleted(Long ruleId) {
+        return new RuleChangedEvent(Kind.DELETED, ruleId);
+    }
+}
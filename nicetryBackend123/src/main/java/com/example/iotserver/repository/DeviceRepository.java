@@ -36,6 +36,29 @@ public interface DeviceRepository extends JpaRepository<Device, Long> {
             "WHERE d.deviceId = :deviceId")
     Optional<Device> findByDeviceIdWithFarmAndOwner(@Param("deviceId") String deviceId);
 
+    /**
+     * Nạp toàn bộ thiết bị kèm farm/owner/zone/plantProfile, dùng để khởi tạo
+     * DeviceRegistry.
+     */
+    @Query("SELECT DISTINCT d FROM Device d " +
+            "LEFT JOIN FETCH d.farm f " +
+            "LEFT JOIN FETCH f.owner " +
+            "LEFT JOIN FETCH d.zone z " +
+            "LEFT JOIN FETCH z.plantProfile")
+    List<Device> findAllWithFarmAndOwner();
+
+    /**
+     * Cập nhật trạng thái kết nối/hoạt động bằng một câu UPDATE, không cần SELECT
+     * + merge entity. Câu UPDATE bỏ qua @PreUpdate nên updatedAt được gán trực
+     * tiếp.
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE Device d SET d.status = :status, d.currentState = :currentState, d.lastSeen = :lastSeen, " +
+            "d.updatedAt = LOCAL DATETIME WHERE d.deviceId = :deviceId")
+    int updateConnectionState(@Param("deviceId") String deviceId, @Param("status") DeviceStatus status,
+            @Param("currentState") String currentState, @Param("lastSeen") LocalDateTime lastSeen);
+
     List<Device> findByFarmId(Long farmId);
 
     List<Device> findByFarmIdAndType(Long farmId, DeviceType type);
@@ -1,9 +1,13 @@
 package com.example.iotserver.repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import com.example.iotserver.entity.Rule;
@@ -25,6 +29,26 @@ public interface RuleRepository extends JpaRepository<Rule, Long> {
            "ORDER BY r.priority DESC")
     List<Rule> findAllEnabledRules();
 
+    // Quy tắc đang kích hoạt kèm điều kiện (để biên dịch vào CompiledRuleSet)
+    @Query("SELECT DISTINCT r FROM Rule r " +
+           "JOIN FETCH r.farm " +
+           "LEFT JOIN FETCH r.conditions " +
+           "WHERE r.enabled = true")
+    List<Rule> findAllEnabledRulesWithConditions();
+
+    // Id của các quy tắc còn tồn tại trong danh sách (lọc log của quy tắc vừa bị xóa)
+    @Query("SELECT r.id FROM Rule r WHERE r.id IN :ids")
+    List<Long> findExistingIds(@Param("ids") Collection<Long> ids);
+
+    /**
+     * Cập nhật thống kê chạy bằng một câu UPDATE, không cần SELECT + merge entity.
+     */
+    @Modifying
+    @Query("UPDATE Rule r SET r.lastExecutedAt = :executedAt, " +
+           "r.executionCount = COALESCE(r.executionCount, 0) + :count WHERE r.id = :ruleId")
+    int recordExecutions(@Param("ruleId") Long ruleId, @Param("executedAt") LocalDateTime executedAt,
+            @Param("count") long count);
+
     // Tìm quy tắc theo Farm và enabled, sắp xếp theo priority
     @Query("SELECT r FROM Rule r WHERE r.farm.id = :farmId AND r.enabled = true ORDER BY r.priority DESC")
     List<Rule> findEnabledRulesByFarmOrderByPriority(Long farmId);
@@ -2,11 +2,13 @@ package com.example.iotserver.scheduler;
 
 import java.time.LocalDateTime;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import com.example.iotserver.repository.RuleExecutionLogRepository;
 import com.example.iotserver.service.RuleEngineService;
+import com.example.iotserver.service.rule.RuleTriggerService;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -18,15 +20,30 @@ public class RuleScheduler {
 
     private final RuleEngineService ruleEngineService;
         private final RuleExecutionLogRepository ruleExecutionLogRepository;
+    private final RuleTriggerService ruleTriggerService;
 
+    // Khi quy tắc được kích hoạt theo sự kiện, chỉ quét toàn bộ với chu kỳ này
+    @Value("${rule.engine.sweep-interval-ms:300000}")
+    private long sweepIntervalMs;
+
+    private long lastSweep;
 
     /**
      * Chạy Rule Engine mỗi 30 giây
      * 
-     * fixedDelay = 30000 nghĩa là sau khi hoàn thành, đợi 30 giây rồi chạy lại
+     * fixedDelay = 30000 nghĩa là sau khi hoàn thành, đợi 30 giây rồi chạy lại.
+     * Khi bật rule.trigger.enabled, quy tắc chạy theo sự kiện (RuleTriggerService)
+     * và ở đây chỉ còn lần quét toàn bộ dự phòng mỗi rule.engine.sweep-interval-ms.
      */
     @Scheduled(fixedDelay = 30000, initialDelay = 10000)
     public void executeRules() {
+        if (ruleTriggerService.isEnabled()) {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < sweepIntervalMs) {
+                return;
+            }
+            lastSweep = now;
+        }
         log.debug(" Bắt đầu kiểm tra quy tắc tự động...");
 
         try {
@@ -0,0 +1,164 @@
+package com.example.iotserver.service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.iotserver.enums.DeviceStatus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Theo dõi lastSeen/status của thiết bị trong bộ nhớ (write-behind).
+ * <p>
+ * Luồng ingest chỉ cập nhật bộ nhớ; các dòng thay đổi được ghi xuống MySQL
+ * bằng một JDBC batch mỗi {@code device.presence.flush-interval-ms}. Nhiều
+ * message của cùng một thiết bị trong một chu kỳ chỉ tạo ra một câu UPDATE.
+ * Việc chuyển trạng thái ONLINE/OFFLINE được trả về ngay cho nơi gọi để gửi
+ * WebSocket, không phải chờ flush.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class DevicePresenceTracker {
+
+    private static final String UPDATE_SQL = "UPDATE devices SET last_seen = ?, status = ?, updated_at = ? WHERE device_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Presence> presences = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private Counter flushedRowsCounter;
+
+    /**
+     * Trạng thái hiện diện của một thiết bị tại một thời điểm.
+     */
+    public record Presence(LocalDateTime lastSeen, DeviceStatus status) {
+    }
+
+    @PostConstruct
+    public void init() {
+        flushedRowsCounter = Counter.builder("device.presence.flushed.rows")
+                .description("Số dòng lastSeen/status đã ghi xuống MySQL")
+                .register(meterRegistry);
+        Gauge.builder("device.presence.dirty", dirty, Set::size)
+                .description("Số thiết bị đang chờ ghi lastSeen/status")
+                .register(meterRegistry);
+
+        jdbcTemplate.query("SELECT device_id, status, last_seen FROM devices", rs -> {
+            Timestamp lastSeen = rs.getTimestamp("last_seen");
+            String status = rs.getString("status");
+            presences.put(rs.getString("device_id"), new Presence(
+                    lastSeen != null ? lastSeen.toLocalDateTime() : null,
+                    status != null ? DeviceStatus.valueOf(status) : DeviceStatus.OFFLINE));
+        });
+        log.info("Presence tracker đã nạp trạng thái của {} thiết bị", presences.size());
+    }
+
+    /**
+     * Ghi nhận thiết bị vừa gửi dữ liệu: cập nhật lastSeen và chuyển sang ONLINE.
+     *
+     * @return true nếu thiết bị vừa chuyển từ trạng thái khác sang ONLINE.
+     */
+    public boolean recordSeen(String deviceId) {
+        LocalDateTime now = LocalDateTime.now();
+        Presence previous = presences.put(deviceId, new Presence(now, DeviceStatus.ONLINE));
+        dirty.add(deviceId);
+        return previous == null || previous.status() != DeviceStatus.ONLINE;
+    }
+
+    /**
+     * Ghi nhận trạng thái do chính thiết bị báo về (topic device/+/status).
+     */
+    public void recordStatus(String deviceId, DeviceStatus status, LocalDateTime lastSeen) {
+        presences.put(deviceId, new Presence(lastSeen, status));
+        dirty.add(deviceId);
+    }
+
+    public Presence get(String deviceId) {
+        return presences.get(deviceId);
+    }
+
+    /**
+     * Chuyển các thiết bị ONLINE không gửi dữ liệu từ trước {@code threshold}
+     * sang OFFLINE.
+     *
+     * @return danh sách deviceId vừa chuyển sang OFFLINE.
+     */
+    public List<String> markStale(LocalDateTime threshold) {
+        List<String> transitioned = new ArrayList<>();
+        presences.forEach((deviceId, presence) -> {
+            if (presence.status() == DeviceStatus.ONLINE
+                    && (presence.lastSeen() == null || presence.lastSeen().isBefore(threshold))) {
+                Presence offline = new Presence(presence.lastSeen(), DeviceStatus.OFFLINE);
+                // replace() để không ghi đè một lần recordSeen xảy ra đồng thời
+                if (presences.replace(deviceId, presence, offline)) {
+                    dirty.add(deviceId);
+                    transitioned.add(deviceId);
+                }
+            }
+        });
+        return transitioned;
+    }
+
+    /**
+     * Bỏ theo dõi thiết bị đã bị xóa.
+     */
+    public void forget(String deviceId) {
+        presences.remove(deviceId);
+        dirty.remove(deviceId);
+    }
+
+    @Scheduled(fixedDelayString = "${device.presence.flush-interval-ms:5000}")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        List<Object[]> batch = new ArrayList<>(dirty.size());
+        for (String deviceId : dirty) {
+            // Xóa khỏi dirty TRƯỚC khi đọc giá trị: nếu có cập nhật mới xen vào, nó
+            // sẽ đánh dấu dirty lại và được ghi ở chu kỳ sau
+            dirty.remove(deviceId);
+            Presence presence = presences.get(deviceId);
+            if (presence == null) {
+                continue;
+            }
+            Timestamp lastSeen = presence.lastSeen() != null ? Timestamp.valueOf(presence.lastSeen()) : null;
+            batch.add(new Object[] { lastSeen, presence.status().name(), Timestamp.valueOf(LocalDateTime.now()),
+                    deviceId });
+        }
+
+        try {
+            jdbcTemplate.batchUpdate(UPDATE_SQL, batch);
+            flushedRowsCounter.increment(batch.size());
+            log.debug("Đã ghi lastSeen/status của {} thiết bị xuống MySQL", batch.size());
+        } catch (Exception e) {
+            // Đánh dấu lại để thử ở chu kỳ sau
+            batch.forEach(row -> dirty.add((String) row[3]));
+            log.error("Lỗi khi ghi lastSeen/status xuống MySQL: {}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+}
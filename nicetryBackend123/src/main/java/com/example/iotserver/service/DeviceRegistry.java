@@ -0,0 +1,149 @@
+package com.example.iotserver.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.enums.DeviceStatus;
+import com.example.iotserver.event.DeviceChangedEvent;
+import com.example.iotserver.repository.DeviceRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Registry trong bộ nhớ: deviceId -> {@link DeviceSnapshot}.
+ * <p>
+ * Nạp toàn bộ thiết bị khi khởi động, sau đó được giữ chính xác bằng
+ * {@link DeviceChangedEvent} (phát từ DeviceService/ZoneService/FarmService,
+ * UserServiceImpl và PlantProfileService cho dữ liệu được chép vào snapshot) và
+ * bằng các cập nhật trạng thái từ luồng MQTT. Khi không tìm thấy trong bộ nhớ
+ * (thiết bị được thêm trực tiếp vào DB), registry đọc lại từ MySQL một lần.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceRegistry {
+
+    private final DeviceRepository deviceRepository;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, DeviceSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    private Counter missCounter;
+
+    @PostConstruct
+    public void init() {
+        missCounter = Counter.builder("device.registry.misses")
+                .description("Số lần phải đọc thiết bị từ MySQL vì không có trong registry")
+                .register(meterRegistry);
+        Gauge.builder("device.registry.size", snapshots, Map::size).register(meterRegistry);
+        reloadAll();
+    }
+
+    public void reloadAll() {
+        Map<String, DeviceSnapshot> loaded = deviceRepository.findAllWithFarmAndOwner().stream()
+                .map(DeviceSnapshot::fromEntity)
+                .collect(Collectors.toMap(DeviceSnapshot::getDeviceId, s -> s, (a, b) -> b));
+        snapshots.putAll(loaded);
+        snapshots.keySet().retainAll(loaded.keySet());
+        log.info("Device registry đã nạp {} thiết bị", loaded.size());
+    }
+
+    /**
+     * Tra cứu thiết bị theo deviceId (đã chuẩn hóa chữ hoa).
+     */
+    public Optional<DeviceSnapshot> find(String deviceId) {
+        if (deviceId == null) {
+            return Optional.empty();
+        }
+        DeviceSnapshot snapshot = snapshots.get(deviceId);
+        if (snapshot != null) {
+            return Optional.of(snapshot);
+        }
+        missCounter.increment();
+        return reload(deviceId);
+    }
+
+    /**
+     * Như {@link #find} nhưng chỉ đọc bộ nhớ, không truy vấn MySQL khi không có.
+     */
+    public DeviceSnapshot peek(String deviceId) {
+        return deviceId != null ? snapshots.get(deviceId) : null;
+    }
+
+    public List<DeviceSnapshot> findAll() {
+        return List.copyOf(snapshots.values());
+    }
+
+    public List<DeviceSnapshot> findByFarm(Long farmId) {
+        return snapshots.values().stream()
+                .filter(s -> farmId.equals(s.getFarmId()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Cập nhật trạng thái kết nối sau khi luồng MQTT hoặc scheduler đã ghi xuống
+     * DB.
+     */
+    public void updateStatus(String deviceId, DeviceStatus status) {
+        snapshots.computeIfPresent(deviceId, (id, s) -> s.toBuilder().status(status).build());
+    }
+
+    /**
+     * Cập nhật cả trạng thái kết nối và trạng thái hoạt động (ON/OFF, null nếu
+     * không xác định).
+     */
+    public void updateState(String deviceId, DeviceStatus status, String currentState) {
+        snapshots.computeIfPresent(deviceId,
+                (id, s) -> s.toBuilder().status(status).currentState(currentState).build());
+    }
+
+    // Chạy trước các listener đọc lại registry (VD LatestValueStore)
+    @TransactionalEventListener(fallbackExecution = true)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onDeviceChanged(DeviceChangedEvent event) {
+        log.debug("Device registry nhận sự kiện {}", event);
+        switch (event.getKind()) {
+            case SAVED -> reload(event.getDeviceId());
+            case DELETED -> snapshots.remove(event.getDeviceId());
+            case ZONE_CHANGED -> reloadWhere(s -> event.getZoneId().equals(s.getZoneId()));
+            case FARM_DELETED -> snapshots.values().removeIf(s -> event.getFarmId().equals(s.getFarmId()));
+            case FARM_CHANGED -> reloadWhere(s -> event.getFarmId().equals(s.getFarmId()));
+            case OWNER_CHANGED -> reloadWhere(s -> event.getUserId().equals(s.getOwnerId()));
+            case PLANT_PROFILE_CHANGED -> reloadWhere(s -> event.getPlantProfileId().equals(s.getPlantProfileId()));
+        }
+    }
+
+    private void reloadWhere(Predicate<DeviceSnapshot> filter) {
+        snapshots.values().stream()
+                .filter(filter)
+                .map(DeviceSnapshot::getDeviceId)
+                .collect(Collectors.toList())
+                .forEach(this::reload);
+    }
+
+    private Optional<DeviceSnapshot> reload(String deviceId) {
+        Optional<DeviceSnapshot> loaded = deviceRepository.findByDeviceIdWithFarmAndOwner(deviceId)
+                .map(DeviceSnapshot::fromEntity);
+        if (loaded.isPresent()) {
+            snapshots.put(deviceId, loaded.get());
+        } else {
+            snapshots.remove(deviceId);
+        }
+        return loaded;
+    }
+}
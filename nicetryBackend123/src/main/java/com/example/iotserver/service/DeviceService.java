@@ -13,12 +13,14 @@ import org.quartz.JobKey;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.example.iotserver.dto.DeviceDTO;
+import com.example.iotserver.dto.DeviceSnapshot;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.entity.ActivityLog;
 import com.example.iotserver.entity.Device;
@@ -29,6 +31,8 @@ import com.example.iotserver.entity.Zone;
 import com.example.iotserver.enums.DeviceStatus;
 import com.example.iotserver.enums.DeviceType; // <-- THÊM IMPORT
 import com.example.iotserver.enums.FarmRole;
+import com.example.iotserver.event.DeviceChangedEvent;
+import com.example.iotserver.event.DeviceStatusChangedEvent;
 import com.example.iotserver.exception.ResourceNotFoundException; // <-- THÊM IMPORT
 import com.example.iotserver.repository.DeviceRepository; // <<<< 1. THÊM IMPORT
 import com.example.iotserver.repository.FarmRepository; // Thêm import này
@@ -71,6 +75,10 @@ public class DeviceService {
     //  THÊM: Inject MQTT Gateway
     private final MqttGateway mqttGateway;
 
+    private final DeviceRegistry deviceRegistry;
+    private final DevicePresenceTracker presenceTracker;
+    private final ApplicationEventPublisher eventPublisher;
+
     // VVVV--- SỬA LẠI PHƯƠNG THỨC `createDevice` ---VVVV
     @Transactional
     public DeviceDTO createDevice(Long farmId, DeviceDTO dto) {
@@ -111,6 +119,7 @@ public class DeviceService {
         }
 
         Device saved = deviceRepository.save(device);
+        eventPublisher.publishEvent(DeviceChangedEvent.saved(saved.getDeviceId()));
         log.info("Đã tạo thiết bị thủ công: {} cho nông trại: {}", saved.getDeviceId(), farmId);
         return mapToDetailedDTO(saved);
     }
@@ -161,6 +170,7 @@ public class DeviceService {
         // [KẾT THÚC FIX 3]
 
         Device updated = deviceRepository.save(device);
+        eventPublisher.publishEvent(DeviceChangedEvent.saved(updated.getDeviceId()));
         log.info("Đã cập nhật thiết bị: {}", updated.getDeviceId());
         return mapToDetailedDTO(updated);
     }
@@ -186,6 +196,7 @@ public class DeviceService {
                     // Quan trọng: device.setFarm(null);
 
                     Device savedDevice = deviceRepository.save(newDevice);
+                    eventPublisher.publishEvent(DeviceChangedEvent.saved(savedDevice.getDeviceId()));
                     return mapToDetailedDTO(savedDevice);
                 });
     }
@@ -231,6 +242,8 @@ public class DeviceService {
 
 
         deviceRepository.delete(device);
+        eventPublisher.publishEvent(DeviceChangedEvent.deleted(device.getDeviceId()));
+        presenceTracker.forget(device.getDeviceId());
         log.info("Deleted device: {}", device.getDeviceId());
     }
 
@@ -408,46 +421,58 @@ public class DeviceService {
 
     // <<< SỬA LẠI: internalControlDevice overload để nhận deviceId >>>
     // Sửa phương thức nội bộ
+    // Dùng DeviceRegistry thay vì truy vấn MySQL vì được rule engine/scheduler gọi liên tục
     @Transactional
     public void internalControlDevice(String deviceId, String action, Map<String, Object> params) {
-        Device device = deviceRepository.findByDeviceId(deviceId)
+        DeviceSnapshot device = deviceRegistry.find(deviceId)
                 .orElseThrow(() -> new ResourceNotFoundException("Device", "id", deviceId));
 
         // Ghi log cho hệ thống
         String description = String.format("Hệ thống điều khiển thiết bị '%s' (%s): %s.", device.getName(), deviceId,
                 action);
-        activityLogService.logSystemActivity(device.getFarm().getId(), "SYSTEM_DEVICE_CONTROL", "DEVICE", deviceId,
+        activityLogService.logSystemActivity(device.getFarmId(), "SYSTEM_DEVICE_CONTROL", "DEVICE", deviceId,
                 description, ActivityLog.LogStatus.SUCCESS, null);
 
-        internalControlDevice(device, action, params);
+        internalControlDevice(device.toDetachedDevice(), action, params);
     }
 
     // SỬA LẠI HÀM NÀY
     @Transactional
     public void checkStaleDevices() {
         LocalDateTime threshold = LocalDateTime.now().minusMinutes(5);
-        List<Device> staleDevices = deviceRepository.findStaleDevices(threshold);
+        // Đọc từ DevicePresenceTracker (lastSeen trong bộ nhớ) thay vì quét bảng devices
+        List<String> staleDeviceIds = presenceTracker.markStale(threshold);
+
+        for (String deviceId : staleDeviceIds) {
+            DeviceSnapshot device = deviceRegistry.find(deviceId).orElse(null);
+            DevicePresenceTracker.Presence presence = presenceTracker.get(deviceId);
+            if (device == null || presence == null) {
+                presenceTracker.forget(deviceId);
+                continue;
+            }
 
-        for (Device device : staleDevices) {
-            if (device.getStatus() == DeviceStatus.ONLINE) {
-                device.setStatus(DeviceStatus.OFFLINE);
-                device.setCurrentState(null); // [FIX 2: Reset trạng thái hoạt động]
-                webSocketService.sendDeviceStatus(device.getFarm().getId(), device.getDeviceId(), "OFFLINE");
+            // [FIX 2: Reset trạng thái hoạt động]
+            deviceRepository.updateConnectionState(deviceId, DeviceStatus.OFFLINE, null, presence.lastSeen());
+            deviceRegistry.updateState(deviceId, DeviceStatus.OFFLINE, null);
+            // Quy tắc DEVICE_STATUS được kiểm tra lại sau khi transaction commit
+            eventPublisher.publishEvent(DeviceStatusChangedEvent.offline(deviceId));
 
-                // VVVV--- THAY ĐỔI LOGIC GỬI THÔNG BÁO ---VVVV
-                // Thay vì gọi notificationService ngay, ta lưu vào Redis để xử lý sau
-                // Key: offline_pending:farmId
-                String redisKey = "offline_pending:" + device.getFarm().getId();
-                redisTemplate.opsForSet().add(redisKey, device.getName() + " (" + device.getDeviceId() + ")");
+            if (!device.isClaimed()) {
+                continue;
+            }
+            webSocketService.sendDeviceStatus(device.getFarmId(), deviceId, "OFFLINE");
 
-                // Lưu thêm set các farm đang có vấn đề để scheduler dễ quét
-                redisTemplate.opsForSet().add("farms_with_offline_devices", device.getFarm().getId().toString());
+            // VVVV--- THAY ĐỔI LOGIC GỬI THÔNG BÁO ---VVVV
+            // Thay vì gọi notificationService ngay, ta lưu vào Redis để xử lý sau
+            // Key: offline_pending:farmId
+            String redisKey = "offline_pending:" + device.getFarmId();
+            redisTemplate.opsForSet().add(redisKey, device.getName() + " (" + deviceId + ")");
 
-                log.info("Device {} offline, added to pending notification queue.", device.getDeviceId());
-                // ^^^^-------------------------------------^^^^
+            // Lưu thêm set các farm đang có vấn đề để scheduler dễ quét
+            redisTemplate.opsForSet().add("farms_with_offline_devices", device.getFarmId().toString());
 
-                deviceRepository.save(device);
-            }
+            log.info("Device {} offline, added to pending notification queue.", deviceId);
+            // ^^^^-------------------------------------^^^^
             // Bỏ phần logic cooldown cũ trong hàm này đi, vì Scheduler sẽ lo việc gom nhóm
         }
     }
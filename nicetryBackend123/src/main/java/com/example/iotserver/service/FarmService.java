@@ -6,6 +6,7 @@ import java.util.stream.Collectors; // <<<< THÊM IMPORT NÀY
 
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -16,6 +17,7 @@ import com.example.iotserver.entity.Rule;
 import com.example.iotserver.entity.User;
 import com.example.iotserver.enums.DeviceStatus;
 import com.example.iotserver.enums.FarmRole;
+import com.example.iotserver.event.DeviceChangedEvent;
 import com.example.iotserver.exception.ResourceNotFoundException;
 import com.example.iotserver.repository.DeviceRepository;
 import com.example.iotserver.repository.FarmMemberRepository;
@@ -40,6 +42,7 @@ public class FarmService {
     private final RuleService ruleService; // Dùng lại logic xóa Rule phức tạp
     private final FarmMemberRepository farmMemberRepository; // <<<< THÊM VÀO
     private final AuthenticationService authenticationService; // Thêm nếu chưa có
+    private final ApplicationEventPublisher eventPublisher;
 
     @Transactional
     public FarmDTO createFarm(Long userId, FarmDTO dto) {
@@ -80,6 +83,7 @@ public class FarmService {
 
         Farm updated = farmRepository.save(farm);
         log.info("Updated farm: {}", updated.getId());
+        eventPublisher.publishEvent(DeviceChangedEvent.farmChanged(farmId));
 
         return mapToDTO(updated, userId);
     }
@@ -109,6 +113,7 @@ public class FarmService {
 
         // 3. Xóa tất cả các thiết bị thuộc farm
         deviceRepository.deleteByFarmId(farmId); // Cần thêm method này vào DeviceRepository
+        eventPublisher.publishEvent(DeviceChangedEvent.farmDeleted(farmId));
 
         // 4. Cuối cùng, xóa nông trại
         farmRepository.delete(farm);
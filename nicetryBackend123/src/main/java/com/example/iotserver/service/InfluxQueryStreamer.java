@@ -0,0 +1,112 @@
+package com.example.iotserver.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.springframework.stereotype.Component;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.influxdb.Cancellable;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxRecord;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Chạy Flux query bằng API callback của client và đẩy từng record (đã chuyển
+ * sang kiểu T) cho {@link RecordSink} ngay khi đọc được, không dựng
+ * {@code List<FluxTable>}. Bộ nhớ dùng không phụ thuộc số record.
+ * <p>
+ * Sink chạy trên thread đọc HTTP của client InfluxDB; nếu sink chậm (VD ghi ra
+ * response cho client mạng yếu) thì việc đọc từ InfluxDB cũng chậm theo. Khi
+ * sink ném lỗi (client HTTP ngắt kết nối) hoặc thread gọi bị interrupt, query
+ * bị hủy qua {@link Cancellable} và lỗi được ném lại cho nơi gọi.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class InfluxQueryStreamer {
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Nơi nhận từng phần tử; được phép ném IOException (VD ghi ra response).
+     */
+    @FunctionalInterface
+    public interface RecordSink<T> {
+        void accept(T item) throws IOException;
+    }
+
+    /**
+     * Chạy {@code flux} và chờ tới khi mọi record đã được đẩy cho {@code sink}.
+     * Record mà {@code mapper} trả về null bị bỏ qua.
+     *
+     * @return số phần tử đã đẩy cho sink
+     */
+    public <T> long stream(String flux, Function<FluxRecord, T> mapper, RecordSink<T> sink) throws IOException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicReference<Cancellable> query = new AtomicReference<>();
+        AtomicLong count = new AtomicLong();
+
+        influxDBClient.getQueryApi().query(flux, influxDBConfig.getOrg(),
+                (cancellable, record) -> {
+                    query.set(cancellable);
+                    if (failure.get() != null) {
+                        // Bị hủy trước record đầu tiên (chưa có Cancellable lúc interrupt)
+                        cancellable.cancel();
+                        return;
+                    }
+                    try {
+                        T item = mapper.apply(record);
+                        if (item != null) {
+                            sink.accept(item);
+                            count.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                        cancellable.cancel();
+                        done.countDown();
+                    }
+                },
+                error -> {
+                    failure.compareAndSet(null, error);
+                    done.countDown();
+                },
+                done::countDown);
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Cancellable cancellable = query.get();
+            if (cancellable != null) {
+                cancellable.cancel();
+            }
+            failure.compareAndSet(null, new InterruptedIOException("Flux query bị hủy"));
+        }
+
+        Throwable error = failure.get();
+        if (error != null) {
+            Counter.builder("influx.query.stream.aborted").register(meterRegistry).increment();
+            log.debug("Dừng stream Flux sau {} record: {}", count.get(), error.getMessage());
+            if (error instanceof IOException io) {
+                throw io;
+            }
+            if (error instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException(error);
+        }
+        return count.get();
+    }
+}
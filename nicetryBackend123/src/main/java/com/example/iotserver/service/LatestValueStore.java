@@ -0,0 +1,403 @@
+package com.example.iotserver.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.event.DeviceChangedEvent;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxRecord;
+import com.influxdb.query.FluxTable;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Giá trị mới nhất của từng field cho mỗi thiết bị, giữ trong bộ nhớ và đánh
+ * index theo farm và zone.
+ * <p>
+ * SensorDataService cập nhật store với mọi reading được nhận; các hàm "latest"
+ * đọc từ đây thay vì chạy {@code range() |> last()} trên InfluxDB. Khi khởi
+ * động, store được nạp từ InfluxDB ({@code sensor.latest.warm-up-days}) trên
+ * một thread riêng; trước khi nạp xong ({@link #isWarm()} false) nơi gọi vẫn
+ * truy vấn InfluxDB. Sau đó, thiết bị không có trong store nghĩa là không có
+ * dữ liệu trong khoảng đã nạp.
+ * <p>
+ * Mỗi field giữ thời điểm riêng nên reading thiếu field không xóa giá trị cũ,
+ * và reading đến muộn không ghi đè giá trị mới hơn.
+ * <p>
+ * Index farm/zone được cập nhật với mỗi reading và theo
+ * {@link DeviceChangedEvent} (đọc lại farm/zone từ DeviceRegistry), nên thiết
+ * bị đổi zone, bị xóa hoặc thuộc farm bị xóa rời index ngay thay vì chờ reading
+ * kế tiếp.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class LatestValueStore {
+
+    // Thứ tự field trong Latest.values/times
+    private static final String[] FIELDS = { "temperature", "humidity", "soil_moisture", "light_intensity",
+            "soilPH" };
+    private static final long WARM_UP_RETRY_MS = 30_000;
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final DeviceRegistry deviceRegistry;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${sensor.latest.warm-up:true}")
+    private boolean warmUpEnabled;
+
+    @Value("${sensor.latest.warm-up-days:30}")
+    private int warmUpDays;
+
+    private final Map<String, Latest> devices = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> byFarm = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> byZone = new ConcurrentHashMap<>();
+
+    private volatile boolean warm;
+    private Counter coldCounter;
+
+    /**
+     * Bản ghi bất biến của một thiết bị; được thay thế nguyên khối khi cập nhật.
+     * {@code times[i]} = 0 nghĩa là chưa có giá trị cho field i.
+     */
+    private record Latest(String deviceId, Long farmId, Long zoneId, String sensorType, double[] values,
+            long[] times) {
+
+        long newest() {
+            long newest = 0;
+            for (long time : times) {
+                newest = Math.max(newest, time);
+            }
+            return newest;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("sensor.latest.devices", devices, Map::size).register(meterRegistry);
+        Gauge.builder("sensor.latest.warm", this, s -> s.warm ? 1 : 0).register(meterRegistry);
+        coldCounter = Counter.builder("sensor.latest.cold.reads")
+                .description("Số lần đọc latest phải truy vấn InfluxDB vì store chưa nạp xong")
+                .register(meterRegistry);
+
+        if (!warmUpEnabled) {
+            warm = true;
+            return;
+        }
+        Thread loader = new Thread(this::warmUp, "latest-value-warmup");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * true khi store đã nạp xong từ InfluxDB và có thể trả lời mọi truy vấn
+     * latest. Khi false nơi gọi nên đọc InfluxDB (được đếm vào
+     * {@code sensor.latest.cold.reads}).
+     */
+    public boolean isWarm() {
+        if (!warm) {
+            coldCounter.increment();
+        }
+        return warm;
+    }
+
+    /**
+     * Cập nhật store với một reading đã được nhận.
+     */
+    public void record(SensorDataDTO data) {
+        if (data == null || data.getDeviceId() == null || data.getTimestamp() == null) {
+            return;
+        }
+        long time = data.getTimestamp().toEpochMilli();
+        Double[] incoming = { data.getTemperature(), data.getHumidity(), data.getSoilMoisture(),
+                data.getLightIntensity(), data.getSoilPH() };
+        update(data.getDeviceId(), data.getFarmId(), data.getZoneId(), data.getSensorType(), incoming, time);
+    }
+
+    public SensorDataDTO findDevice(String deviceId, Duration maxAge) {
+        Latest latest = devices.get(deviceId);
+        return latest != null ? toDTO(latest, cutoff(maxAge)) : null;
+    }
+
+    public Map<String, SensorDataDTO> findDevices(Collection<String> deviceIds, Duration maxAge) {
+        long cutoff = cutoff(maxAge);
+        Map<String, SensorDataDTO> result = new HashMap<>();
+        for (String deviceId : deviceIds) {
+            Latest latest = devices.get(deviceId);
+            SensorDataDTO dto = latest != null ? toDTO(latest, cutoff) : null;
+            if (dto != null) {
+                result.put(deviceId, dto);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Các thiết bị của farm có dữ liệu trong {@code maxAge}, theo deviceId.
+     */
+    public Map<String, SensorDataDTO> findDevicesInFarm(Long farmId, Duration maxAge) {
+        return findDevices(byFarm.getOrDefault(farmId, Collections.emptySet()), maxAge);
+    }
+
+    /**
+     * Giá trị mới nhất của từng field trên toàn farm (mỗi field lấy từ thiết bị
+     * gửi gần nhất); deviceId/timestamp là của reading mới nhất.
+     */
+    public SensorDataDTO findFarm(Long farmId, Duration maxAge) {
+        SensorDataDTO dto = merge(byFarm.get(farmId), cutoff(maxAge));
+        if (dto != null) {
+            dto.setFarmId(farmId);
+        }
+        return dto;
+    }
+
+    public SensorDataDTO findZone(Long zoneId, Duration maxAge) {
+        SensorDataDTO dto = merge(byZone.get(zoneId), cutoff(maxAge));
+        if (dto != null) {
+            dto.setZoneId(zoneId);
+        }
+        return dto;
+    }
+
+    // DeviceRegistry đã xử lý sự kiện trước (@Order)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceChanged(DeviceChangedEvent event) {
+        switch (event.getKind()) {
+            case SAVED, DELETED -> resync(event.getDeviceId());
+            case ZONE_CHANGED, FARM_DELETED -> devices.keySet().forEach(this::resync);
+            default -> {
+                // Không đổi farm/zone của thiết bị
+            }
+        }
+    }
+
+    // Đồng bộ farm/zone của thiết bị với registry; bỏ thiết bị không còn trong registry
+    private void resync(String deviceId) {
+        if (deviceId == null) {
+            return;
+        }
+        DeviceSnapshot snapshot = deviceRegistry.peek(deviceId);
+        devices.computeIfPresent(deviceId, (id, current) -> {
+            if (snapshot == null) {
+                reindex(id, current, null);
+                return null;
+            }
+            if (Objects.equals(current.farmId(), snapshot.getFarmId())
+                    && Objects.equals(current.zoneId(), snapshot.getZoneId())) {
+                return current;
+            }
+            Latest next = new Latest(id, snapshot.getFarmId(), snapshot.getZoneId(), current.sensorType(),
+                    current.values(), current.times());
+            reindex(id, current, next);
+            return next;
+        });
+    }
+
+    private void update(String deviceId, Long farmId, Long zoneId, String sensorType, Double[] incoming,
+            long time) {
+        // Index farm/zone được sửa trong compute() để các cập nhật cùng thiết bị không xen nhau
+        devices.compute(deviceId, (id, current) -> {
+            double[] values = current != null ? current.values().clone() : new double[FIELDS.length];
+            long[] times = current != null ? current.times().clone() : new long[FIELDS.length];
+            boolean changed = false;
+            for (int i = 0; i < FIELDS.length; i++) {
+                Double value = incoming[i];
+                if (value != null && !value.isNaN() && time >= times[i]) {
+                    values[i] = value;
+                    times[i] = time;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return current;
+            }
+            Latest next = current != null && time < current.newest()
+                    // Reading cũ hơn: giữ farm/zone hiện tại
+                    ? new Latest(id, current.farmId(), current.zoneId(), current.sensorType(), values, times)
+                    : new Latest(id, farmId, zoneId, sensorType, values, times);
+            reindex(id, current, next);
+            return next;
+        });
+    }
+
+    // updated = null: thiết bị bị bỏ khỏi store
+    private void reindex(String deviceId, Latest previous, Latest updated) {
+        Long oldFarm = previous != null ? previous.farmId() : null;
+        Long oldZone = previous != null ? previous.zoneId() : null;
+        Long newFarm = updated != null ? updated.farmId() : null;
+        Long newZone = updated != null ? updated.zoneId() : null;
+        if (oldFarm != null && !oldFarm.equals(newFarm)) {
+            byFarm.getOrDefault(oldFarm, Collections.emptySet()).remove(deviceId);
+        }
+        if (oldZone != null && !oldZone.equals(newZone)) {
+            byZone.getOrDefault(oldZone, Collections.emptySet()).remove(deviceId);
+        }
+        if (newFarm != null) {
+            byFarm.computeIfAbsent(newFarm, k -> ConcurrentHashMap.newKeySet()).add(deviceId);
+        }
+        if (newZone != null) {
+            byZone.computeIfAbsent(newZone, k -> ConcurrentHashMap.newKeySet()).add(deviceId);
+        }
+    }
+
+    private SensorDataDTO merge(Set<String> deviceIds, long cutoff) {
+        if (deviceIds == null || deviceIds.isEmpty()) {
+            return null;
+        }
+        double[] values = new double[FIELDS.length];
+        long[] times = new long[FIELDS.length];
+        String newestDevice = null;
+        long newest = 0;
+        for (String deviceId : deviceIds) {
+            Latest latest = devices.get(deviceId);
+            if (latest == null) {
+                continue;
+            }
+            for (int i = 0; i < FIELDS.length; i++) {
+                long time = latest.times()[i];
+                if (time >= cutoff && time > times[i]) {
+                    values[i] = latest.values()[i];
+                    times[i] = time;
+                }
+                if (time >= cutoff && time > newest) {
+                    newest = time;
+                    newestDevice = deviceId;
+                }
+            }
+        }
+        if (newestDevice == null) {
+            return null;
+        }
+        return toDTO(new Latest(newestDevice, null, null, null, values, times), cutoff);
+    }
+
+    // timestamp là của field mới nhất; fieldTimes chỉ được tạo khi các field khác thời điểm
+    private static SensorDataDTO toDTO(Latest latest, long cutoff) {
+        long[] times = latest.times();
+        double[] values = latest.values();
+        long newest = 0;
+        for (long time : times) {
+            if (time >= cutoff) {
+                newest = Math.max(newest, time);
+            }
+        }
+        if (newest == 0) {
+            return null;
+        }
+        Map<String, Instant> fieldTimes = null;
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (times[i] >= cutoff && times[i] != newest) {
+                if (fieldTimes == null) {
+                    fieldTimes = new HashMap<>();
+                }
+                fieldTimes.put(FIELDS[i], Instant.ofEpochMilli(times[i]));
+            }
+        }
+        return SensorDataDTO.builder()
+                .deviceId(latest.deviceId())
+                .farmId(latest.farmId())
+                .zoneId(latest.zoneId())
+                .sensorType(latest.sensorType())
+                .timestamp(Instant.ofEpochMilli(newest))
+                .temperature(times[0] >= cutoff ? values[0] : null)
+                .humidity(times[1] >= cutoff ? values[1] : null)
+                .soilMoisture(times[2] >= cutoff ? values[2] : null)
+                .lightIntensity(times[3] >= cutoff ? values[3] : null)
+                .soilPH(times[4] >= cutoff ? values[4] : null)
+                .fieldTimes(fieldTimes)
+                .build();
+    }
+
+    // Luôn >= 1 để field chưa có giá trị (time = 0) không bao giờ được trả về
+    private static long cutoff(Duration maxAge) {
+        return Math.max(1, System.currentTimeMillis() - maxAge.toMillis());
+    }
+
+    // Nạp giá trị cuối của mọi series trong warm-up-days ngày gần nhất; thử lại tới khi thành công
+    private void warmUp() {
+        while (!warm) {
+            try {
+                load();
+                // Tag farm/zone trong InfluxDB là của lúc ghi; lấy farm/zone hiện tại
+                devices.keySet().forEach(this::resync);
+                warm = true;
+            } catch (Exception e) {
+                log.error("Không nạp được latest value store từ InfluxDB, thử lại sau {} s: {}",
+                        WARM_UP_RETRY_MS / 1000, e.getMessage());
+                try {
+                    Thread.sleep(WARM_UP_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void load() {
+        long start = System.nanoTime();
+        String flux = String.format(
+                "from(bucket: \"%s\")\n" +
+                        "  |> range(start: -%dd)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
+                        "  |> last()",
+                influxDBConfig.getBucket(), warmUpDays);
+        int loaded = 0;
+        for (FluxTable table : influxDBClient.getQueryApi().query(flux, influxDBConfig.getOrg())) {
+            for (FluxRecord record : table.getRecords()) {
+                if (load(record)) {
+                    loaded++;
+                }
+            }
+        }
+        log.info("Latest value store đã nạp {} giá trị của {} thiết bị trong {} ms", loaded, devices.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private boolean load(FluxRecord record) {
+        String deviceId = (String) record.getValueByKey("device_id");
+        int index = Arrays.asList(FIELDS).indexOf(record.getField());
+        if (deviceId == null || index < 0 || !(record.getValue() instanceof Number number)
+                || record.getTime() == null) {
+            return false;
+        }
+        Double[] incoming = new Double[FIELDS.length];
+        incoming[index] = number.doubleValue();
+        update(deviceId, parseLong(record.getValueByKey("farm_id")), parseLong(record.getValueByKey("zone_id")),
+                (String) record.getValueByKey("sensor_type"), incoming, record.getTime().toEpochMilli());
+        return true;
+    }
+
+    private static Long parseLong(Object value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            // farm_id=null, zone_id=none
+            return null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.iotserver.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Giảm số điểm của một chuỗi thời gian cho biểu đồ bằng Largest-Triangle-Three-Buckets,
+ * chạy dạng stream: điểm được đưa vào theo thứ tự thời gian qua {@link #add},
+ * điểm được giữ lại đi ra {@code out} cũng theo thứ tự thời gian.
+ * <p>
+ * Khác bản LTTB gốc (chia theo số điểm), các bucket chia đều theo thời gian
+ * trên {@code [start, end)} nên không cần biết trước số điểm; khoảng không có
+ * dữ liệu vẫn là khoảng trống trên biểu đồ. Điểm đầu và điểm cuối luôn được
+ * giữ, mỗi bucket giữ điểm tạo tam giác lớn nhất với điểm đã chọn trước đó và
+ * trung bình của bucket sau. Bộ nhớ: tối đa {@code maxPoints} điểm lúc đầu
+ * (nếu cả chuỗi không quá {@code maxPoints} thì trả nguyên) và sau đó hai
+ * bucket.
+ * <p>
+ * Không thread-safe; mỗi chuỗi dùng một instance.
+ */
+public final class LttbDownsampler<T> {
+
+    private final int maxPoints;
+    private final int buckets;
+    private final long start;
+    private final double bucketMillis;
+    private final ToLongFunction<T> time;
+    private final ToDoubleFunction<T> value;
+    private final Consumer<T> out;
+
+    // Giữ nguyên cho tới khi vượt maxPoints
+    private List<T> head = new ArrayList<>();
+    private T anchor;
+    private T last;
+    // Bucket đã đủ, chờ trung bình của bucket sau để chọn điểm
+    private List<T> pending = new ArrayList<>();
+    private List<T> filling = new ArrayList<>();
+    private int fillingBucket = -1;
+    private double fillingSumX;
+    private double fillingSumY;
+
+    /**
+     * @param maxPoints số điểm tối đa đi ra (ít nhất 3)
+     */
+    public LttbDownsampler(int maxPoints, Instant start, Instant end, ToLongFunction<T> time,
+            ToDoubleFunction<T> value, Consumer<T> out) {
+        this.maxPoints = Math.max(maxPoints, 3);
+        this.buckets = this.maxPoints - 2;
+        this.start = start.toEpochMilli();
+        this.bucketMillis = Math.max(end.toEpochMilli() - this.start, 1) / (double) buckets;
+        this.time = time;
+        this.value = value;
+        this.out = out;
+    }
+
+    /**
+     * Giảm điểm cho cả danh sách đã có sẵn, dùng thời điểm của điểm đầu/cuối
+     * làm khoảng chia bucket. Danh sách chưa sắp theo thời gian (VD ghép từ
+     * nhiều series) được sắp trên một bản sao trước.
+     */
+    public static <T> List<T> downsample(List<T> points, int maxPoints, ToLongFunction<T> time,
+            ToDoubleFunction<T> value) {
+        if (points.size() <= Math.max(maxPoints, 3)) {
+            return points;
+        }
+        if (!isSorted(points, time)) {
+            points = new ArrayList<>(points);
+            points.sort(Comparator.comparingLong(time));
+        }
+        List<T> result = new ArrayList<>(Math.max(maxPoints, 3));
+        LttbDownsampler<T> reducer = new LttbDownsampler<>(maxPoints,
+                Instant.ofEpochMilli(time.applyAsLong(points.get(0))),
+                Instant.ofEpochMilli(time.applyAsLong(points.get(points.size() - 1)) + 1),
+                time, value, result::add);
+        points.forEach(reducer::add);
+        reducer.finish();
+        return result;
+    }
+
+    private static <T> boolean isSorted(List<T> points, ToLongFunction<T> time) {
+        long previous = Long.MIN_VALUE;
+        for (T point : points) {
+            long t = time.applyAsLong(point);
+            if (t < previous) {
+                return false;
+            }
+            previous = t;
+        }
+        return true;
+    }
+
+    /**
+     * Điểm phải đến theo thứ tự thời gian (trong Flux: group theo series rồi
+     * sort theo _time).
+     */
+    public void add(T point) {
+        if (head != null) {
+            head.add(point);
+            if (head.size() > maxPoints) {
+                List<T> buffered = head;
+                head = null;
+                buffered.forEach(this::push);
+            }
+            return;
+        }
+        push(point);
+    }
+
+    /**
+     * Đẩy ra các điểm còn lại; gọi một lần sau điểm cuối cùng.
+     */
+    public void finish() {
+        if (head != null) {
+            head.forEach(out);
+            head = null;
+            return;
+        }
+        if (!filling.isEmpty()) {
+            closeFilling();
+        }
+        if (last != null) {
+            if (!pending.isEmpty()) {
+                select(pending, time.applyAsLong(last) - start, value.applyAsDouble(last));
+            }
+            out.accept(last);
+        }
+    }
+
+    private void push(T point) {
+        if (anchor == null) {
+            anchor = point;
+            out.accept(point);
+            return;
+        }
+        // Điểm mới nhất được giữ ngoài bucket vì có thể là điểm cuối
+        if (last != null) {
+            addToBucket(last);
+        }
+        last = point;
+    }
+
+    private void addToBucket(T point) {
+        long t = time.applyAsLong(point);
+        int bucket = (int) Math.min(Math.max((t - start) / bucketMillis, 0), buckets - 1);
+        if (!filling.isEmpty() && bucket != fillingBucket) {
+            closeFilling();
+        }
+        filling.add(point);
+        fillingBucket = bucket;
+        // Tính x tương đối so với start để tổng không mất độ chính xác
+        fillingSumX += t - start;
+        fillingSumY += value.applyAsDouble(point);
+    }
+
+    private void closeFilling() {
+        if (!pending.isEmpty()) {
+            select(pending, fillingSumX / filling.size(), fillingSumY / filling.size());
+        }
+        List<T> recycled = pending;
+        recycled.clear();
+        pending = filling;
+        filling = recycled;
+        fillingSumX = 0;
+        fillingSumY = 0;
+    }
+
+    // Chọn điểm của bucket tạo tam giác lớn nhất với anchor và (nextX, nextY); x tính từ start
+    private void select(List<T> bucket, double nextX, double nextY) {
+        double ax = time.applyAsLong(anchor) - start;
+        double ay = value.applyAsDouble(anchor);
+        T best = bucket.get(0);
+        double bestArea = -1;
+        for (T point : bucket) {
+            double area = Math.abs((ax - nextX) * (value.applyAsDouble(point) - ay)
+                    - (ax - (time.applyAsLong(point) - start)) * (nextY - ay));
+            if (area > bestArea) {
+                bestArea = area;
+                best = point;
+            }
+        }
+        out.accept(best);
+        anchor = best;
+    }
+}
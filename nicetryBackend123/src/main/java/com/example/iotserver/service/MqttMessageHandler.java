@@ -2,18 +2,26 @@
 
 package com.example.iotserver.service;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.integration.StaticMessageHeaderAccessor;
+import org.springframework.integration.acks.SimpleAcknowledgment;
 import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.integration.mqtt.support.MqttHeaders;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
+import com.example.iotserver.dto.DeviceSnapshot;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.entity.Device;
 import com.example.iotserver.entity.Farm;
@@ -21,6 +29,15 @@ import com.example.iotserver.entity.Notification;
 import com.example.iotserver.entity.User;
 import com.example.iotserver.enums.DeviceStatus;
 import com.example.iotserver.repository.DeviceRepository; // <<<< Thêm vào
+import com.example.iotserver.service.ingest.DedupWindow;
+import com.example.iotserver.service.ingest.DeviceRateLimiter;
+import com.example.iotserver.service.ingest.GatewayBatchDecoder;
+import com.example.iotserver.service.ingest.IngestBackpressure;
+import com.example.iotserver.service.ingest.IngestPipeline;
+import com.example.iotserver.service.ingest.SensorBinaryCodec;
+import com.example.iotserver.service.ingest.SensorPayloadDecoder;
+import com.example.iotserver.service.ingest.SensorReading;
+import com.example.iotserver.service.rule.RuleTriggerService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import lombok.RequiredArgsConstructor;
@@ -42,36 +59,136 @@ public class MqttMessageHandler {
     // private final SettingService settingService; // Service để lấy ngưỡng cài đặt
     private final StringRedisTemplate redisTemplate; // Redis để quản lý cooldown
     private final FarmSettingService farmSettingService;
+    private final IngestPipeline ingestPipeline;
+    private final DeviceRegistry deviceRegistry;
+    private final DevicePresenceTracker presenceTracker;
+    private final SensorPayloadDecoder payloadDecoder;
+    private final SensorBinaryCodec binaryCodec;
+    private final GatewayBatchDecoder gatewayBatchDecoder;
+    private final DeviceRateLimiter rateLimiter;
+    private final DedupWindow dedupWindow;
+    private final IngestBackpressure backpressure;
+    private final RuleTriggerService ruleTrigger;
 
     private static final int SENSOR_NOTIFICATION_COOLDOWN_HOURS = 4;
 
+    private static final SimpleAcknowledgment NO_ACK = () -> {
+    };
+
+    // Mỗi worker của ingest pipeline dùng lại một SensorReading
+    private static final ThreadLocal<SensorReading> READING = ThreadLocal.withInitial(SensorReading::new);
+
+    /**
+     * Chạy trên thread callback của Paho: chỉ tách topic/payload rồi đưa vào
+     * ingest pipeline (phân vùng theo deviceId để giữ thứ tự của từng thiết bị).
+     * Mọi xử lý DB/InfluxDB/WebSocket đều chạy trên worker của pipeline.
+     * <p>
+     * Mặc định Paho ack ngay khi nhận. Khi bật {@code mqtt.manual-acks} (chỉ
+     * cùng {@code mqtt.clean-session=false}, xem MqttConfig), message chỉ được
+     * ack sau khi worker xử lý xong (dữ liệu cảm biến đã nằm trong
+     * SensorJournal), hoặc ngay khi message bị bỏ/gộp.
+     */
     @ServiceActivator(inputChannel = "mqttInputChannel")
     public void handleMessage(Message<?> message) {
+        SimpleAcknowledgment ack = StaticMessageHeaderAccessor.getAcknowledgment(message);
+        if (ack == null) {
+            ack = NO_ACK;
+        }
         try {
             MessageHeaders headers = message.getHeaders();
-            String topic = (String) headers.get("mqtt_receivedTopic");
-            String payload = message.getPayload().toString();
+            String topic = (String) headers.get(MqttHeaders.RECEIVED_TOPIC);
+            Integer messageId = headers.get(MqttHeaders.ID, Integer.class);
+            byte[] payload = toBytes(message.getPayload());
+
+            if (topic == null) {
+                ack.acknowledge();
+                return;
+            }
+
+            String deviceId = extractDeviceId(topic);
 
-            log.info("Received MQTT message - Topic: {}, Payload: {}", topic, payload);
+            // Phía ghi InfluxDB/journal quá tải: chặn thread MQTT một lúc thay vì
+            // bỏ message (broker giữ các message chưa ack)
+            backpressure.awaitRelief();
 
-            if (topic.startsWith("sensor/")) {
-                handleSensorData(topic, payload);
-            } else if (topic.startsWith("device/")) {
-                handleDeviceStatus(topic, payload);
+            // Giới hạn tốc độ theo thiết bị: message vượt giới hạn được gộp (giữ bản
+            // mới nhất) và xử lý sau bởi flushCoalescedMessages()
+            if (topic.startsWith("sensor/") && !rateLimiter.tryAcquire(deviceId)) {
+                // Message đang chờ chỉ nằm trong bộ nhớ và có thể bị message mới
+                // hơn thay thế nên ack ngay
+                rateLimiter.coalesce(deviceId, topic, payload, messageId);
+                ack.acknowledge();
+                return;
             }
 
+            submit(deviceId, topic, payload, messageId, ack);
+
         } catch (Exception e) {
             log.error("Error handling MQTT message: {}", e.getMessage(), e);
+            ack.acknowledge();
         }
     }
 
-    // <<< DÁN TOÀN BỘ PHƯƠNG THỨC ĐÃ SỬA NÀY VÀO FILE >>>
-    @Transactional
-    private void handleSensorData(String topic, String payload) {
+    @Scheduled(fixedDelayString = "${ingest.rate-limit.flush-interval-ms:1000}")
+    public void flushCoalescedMessages() {
+        rateLimiter.drainReady((deviceId, pending) -> submit(deviceId, pending.topic(), pending.payload(),
+                pending.messageId(), NO_ACK));
+    }
+
+    private void submit(String deviceId, String topic, byte[] payload, Integer messageId,
+            SimpleAcknowledgment ack) {
+        boolean accepted = ingestPipeline.submit(deviceId, () -> {
+            try {
+                processMessage(topic, payload, messageId);
+            } finally {
+                ack.acknowledge();
+            }
+        });
+        if (!accepted) {
+            log.warn("Hàng đợi ingest đầy, bỏ message từ topic {}", topic);
+            ack.acknowledge();
+        }
+    }
+
+    private void processMessage(String topic, byte[] payload, Integer messageId) {
+        log.debug("Processing MQTT message - Topic: {}, {} bytes", topic, payload.length);
+
+        if (topic.startsWith("sensor/")) {
+            // sensor/{id}/bin: frame nhị phân, sensor/{id}/data: JSON
+            handleSensorData(topic, payload, messageId, topic.endsWith("/bin"));
+        } else if (topic.startsWith("gateway/")) {
+            handleGatewayBatch(topic, payload, messageId);
+        } else if (topic.startsWith("device/")) {
+            handleDeviceStatus(topic, payload);
+        }
+    }
+
+    private static byte[] toBytes(Object payload) {
+        return payload instanceof byte[] bytes ? bytes : payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String extractDeviceId(String topic) {
+        String[] parts = topic.split("/");
+        return parts.length > 1 ? parts[1].toUpperCase() : topic;
+    }
+
+    private void handleSensorData(String topic, byte[] payload, Integer messageId, boolean binary) {
         try {
-            String deviceId = topic.split("/")[1].toUpperCase();
-            Device device = deviceRepository.findByDeviceIdWithFarmAndOwner(deviceId)
-                    .orElse(null);
+            String deviceId = extractDeviceId(topic);
+
+            // Giải mã và chống trùng lặp (QoS 1 gửi lại) trước mọi thao tác DB/InfluxDB
+            SensorReading reading = binary
+                    ? binaryCodec.decode(payload, READING.get())
+                    : payloadDecoder.decode(payload, READING.get());
+            boolean duplicate = reading.getDeviceTimestamp() > 0
+                    ? dedupWindow.isDuplicate(deviceId, reading.getDeviceTimestamp())
+                    : messageId != null && dedupWindow.isDuplicate(deviceId, messageId, payload);
+            if (duplicate) {
+                log.debug("Bỏ message trùng lặp từ thiết bị {}", deviceId);
+                return;
+            }
+
+            DeviceSnapshot device = deviceRegistry.find(deviceId).orElse(null);
 
             if (device == null) {
                 log.warn("Nhận được dữ liệu từ thiết bị lạ chưa được đăng ký: {}", deviceId);
@@ -79,94 +196,172 @@ public class MqttMessageHandler {
             }
 
             // <<< KIỂM TRA QUAN TRỌNG: Thiết bị đã được "nhận" vào nông trại chưa? >>>
-            if (device.getFarm() == null) {
+            if (!device.isClaimed()) {
                 log.warn("Nhận được dữ liệu từ thiết bị '{}' chưa được gán vào nông trại. Bỏ qua xử lý.", deviceId);
                 // Cập nhật lastSeen để admin biết thiết bị vẫn đang online và chờ được nhận
-                device.setLastSeen(LocalDateTime.now());
-                deviceRepository.save(device);
-                return; // Dừng xử lý tại đây để tránh lỗi NullPointerException
+                presenceTracker.recordSeen(deviceId);
+                return;
             }
             // <<< KẾT THÚC KIỂM TRA >>>
 
-            // Từ đây trở đi, chúng ta chắc chắn rằng device.getFarm() không phải là null
-            Long farmId = device.getFarm().getId();
+            SensorDataDTO sensorData = reading.toDTO(deviceId);
 
-            Map<String, Object> data = objectMapper.readValue(payload, Map.class);
-            SensorDataDTO sensorData = SensorDataDTO.fromMqttPayload(deviceId, data);
-
-            sensorData.setFarmId(farmId);
+            sensorData.setFarmId(device.getFarmId());
+            sensorData.setZoneId(device.getZoneId());
 
             sensorDataService.saveSensorData(sensorData);
+            afterSensorDataSaved(device, sensorData);
+
+            log.debug("Xử lý thành công dữ liệu cảm biến từ thiết bị: {}", deviceId);
 
-            device.setLastSeen(LocalDateTime.now());
-            if (device.getStatus() != DeviceStatus.ONLINE) {
-                device.setStatus(DeviceStatus.ONLINE);
-                webSocketService.sendDeviceStatus(farmId, deviceId, "ONLINE");
+        } catch (Exception e) {
+            log.error("Lỗi khi xử lý dữ liệu cảm biến: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Batch từ gateway (topic gateway/{gatewayId}/batch): tra registry một lượt,
+     * ghi tất cả reading hợp lệ trong một lần gọi InfluxDB, rồi chạy tác vụ phụ
+     * một lần cho mỗi thiết bị với reading mới nhất của thiết bị đó.
+     */
+    private void handleGatewayBatch(String topic, byte[] payload, Integer messageId) {
+        String gatewayId = extractDeviceId(topic);
+        try {
+            if (messageId != null && dedupWindow.isDuplicate(gatewayId, messageId, payload)) {
+                log.debug("Bỏ batch trùng lặp từ gateway {}", gatewayId);
+                return;
             }
-            
-            deviceRepository.save(device);
 
-            webSocketService.sendSensorData(farmId, sensorData);
-            // VVVV--- THAY THẾ LỆNH GỌI CŨ ---VVVV
-            // plantHealthService.analyzeHealth(farmId); // Dòng cũ
-            plantHealthService.analyzeHealthForDevice(device, sensorData); // Dòng mới
-            // ^^^^-----------------------------^^^^
+            List<SensorDataDTO> readings = gatewayBatchDecoder.decode(gatewayId, payload);
 
-            checkForSensorAnomaliesAndNotify(device.getFarm(), device, sensorData);
+            Map<String, DeviceSnapshot> devices = new HashMap<>();
+            Map<String, SensorDataDTO> latestByDevice = new LinkedHashMap<>();
+            List<SensorDataDTO> accepted = new ArrayList<>(readings.size());
 
-            log.info("Xử lý thành công dữ liệu cảm biến từ thiết bị: {}", deviceId);
+            for (SensorDataDTO reading : readings) {
+                String deviceId = reading.getDeviceId();
+                // computeIfAbsent không lưu null nên tự kiểm tra để thiết bị lạ chỉ tra một lần
+                if (!devices.containsKey(deviceId)) {
+                    devices.put(deviceId, deviceRegistry.find(deviceId).orElse(null));
+                }
+                DeviceSnapshot device = devices.get(deviceId);
+                if (device == null || !device.isClaimed()) {
+                    continue;
+                }
+                reading.setFarmId(device.getFarmId());
+                reading.setZoneId(device.getZoneId());
+                accepted.add(reading);
+                latestByDevice.merge(deviceId, reading,
+                        (current, candidate) -> candidate.getTimestamp().isBefore(current.getTimestamp())
+                                ? current
+                                : candidate);
+            }
+
+            devices.forEach((deviceId, device) -> {
+                if (device == null) {
+                    log.warn("Gateway {} gửi dữ liệu của thiết bị lạ chưa được đăng ký: {}", gatewayId, deviceId);
+                } else if (!device.isClaimed()) {
+                    presenceTracker.recordSeen(deviceId);
+                }
+            });
+
+            sensorDataService.saveSensorDataBatch(accepted);
+            latestByDevice.forEach((deviceId, latest) -> afterSensorDataSaved(devices.get(deviceId), latest));
+
+            log.debug("Gateway {}: đã ghi {}/{} reading của {} thiết bị", gatewayId, accepted.size(),
+                    readings.size(), latestByDevice.size());
 
         } catch (Exception e) {
-            log.error("Lỗi khi xử lý dữ liệu cảm biến: {}", e.getMessage(), e);
+            log.error("Lỗi khi xử lý batch từ gateway {}: {}", gatewayId, e.getMessage(), e);
+        }
+    }
+
+    private void afterSensorDataSaved(DeviceSnapshot device, SensorDataDTO sensorData) {
+        String deviceId = device.getDeviceId();
+
+        // lastSeen/status được ghi xuống MySQL theo lô bởi DevicePresenceTracker,
+        // riêng việc chuyển sang ONLINE thì báo ngay qua WebSocket
+        if (presenceTracker.recordSeen(deviceId)) {
+            deviceRegistry.updateStatus(deviceId, DeviceStatus.ONLINE);
+            webSocketService.sendDeviceStatus(device.getFarmId(), deviceId, "ONLINE");
+            ruleTrigger.onDeviceStatus(deviceId);
+        }
+
+        // Chỉ đưa vào hàng chờ các quy tắc phụ thuộc vào field của reading này
+        ruleTrigger.onReading(sensorData);
+
+        // Các tác vụ phụ chạy ở stage "effects" để không chặn việc ghi dữ liệu.
+        // Khi quá tải (hoặc hàng đợi effects đầy) chỉ giữ lại cảnh báo ngưỡng, bỏ
+        // WebSocket và phân tích sức khỏe cây
+        if (ingestPipeline.isOverloaded()) {
+            ingestPipeline.recordShed();
+            submitAlert(device, sensorData);
+            return;
+        }
+        if (!ingestPipeline.submitEffect(deviceId, () -> runSensorEffects(device, sensorData))) {
+            ingestPipeline.recordShed();
+            submitAlert(device, sensorData);
+        }
+    }
+
+    private void submitAlert(DeviceSnapshot device, SensorDataDTO sensorData) {
+        boolean accepted = ingestPipeline.submitAlert(device.getDeviceId(), () -> {
+            Device detached = device.toDetachedDevice();
+            checkForSensorAnomaliesAndNotify(detached.getFarm(), detached, sensorData);
+        });
+        if (!accepted) {
+            log.warn("Hàng đợi effects đầy, bỏ kiểm tra cảnh báo ngưỡng cho thiết bị {}", device.getDeviceId());
         }
     }
 
-    @Transactional // Thêm @Transactional để đảm bảo lưu DB thành công
-    private void handleDeviceStatus(String topic, String payload) {
+    private void runSensorEffects(DeviceSnapshot snapshot, SensorDataDTO sensorData) {
+        Long farmId = snapshot.getFarmId();
+        webSocketService.sendSensorData(farmId, sensorData);
+
+        // Các service phía sau chỉ đọc id/tên từ entity nên dùng bản detached
+        Device device = snapshot.toDetachedDevice();
+        plantHealthService.analyzeHealthForDevice(device, sensorData);
+
+        checkForSensorAnomaliesAndNotify(device.getFarm(), device, sensorData);
+    }
+
+    private void handleDeviceStatus(String topic, byte[] payload) {
         try {
-            String deviceId = topic.split("/")[1].toUpperCase();
+            String deviceId = extractDeviceId(topic);
             Map<String, Object> statusMap = objectMapper.readValue(payload, Map.class);
 
-            deviceRepository.findByDeviceId(deviceId).ifPresent(device -> {
+            deviceRegistry.find(deviceId).ifPresent(device -> {
                 // Lấy dữ liệu từ payload
                 String statusStr = (String) statusMap.get("status");
-                String stateStr = (String) statusMap.get("state"); // <-- Lấy state
+                String stateStr = (String) statusMap.get("state");
 
-                // Cập nhật trạng thái kết nối (ONLINE/OFFLINE)
-                if (statusStr != null) {
-                    device.setStatus(DeviceStatus.valueOf(statusStr.toUpperCase()));
-                }
-
-                // Cập nhật trạng thái hoạt động (ON/OFF)
-                if (stateStr != null) {
-                    device.setCurrentState(stateStr.toUpperCase()); // <-- Lưu state
-                }
+                // Trạng thái kết nối (ONLINE/OFFLINE) và trạng thái hoạt động (ON/OFF);
+                // giữ giá trị cũ nếu payload không gửi
+                DeviceStatus status = statusStr != null
+                        ? DeviceStatus.valueOf(statusStr.toUpperCase())
+                        : device.getStatus();
+                String currentState = stateStr != null ? stateStr.toUpperCase() : device.getCurrentState();
+                LocalDateTime lastSeen = LocalDateTime.now();
 
-                device.setLastSeen(LocalDateTime.now());
-                Device updatedDevice = deviceRepository.save(device); // Lưu lại
+                deviceRepository.updateConnectionState(deviceId, status, currentState, lastSeen);
+                presenceTracker.recordStatus(deviceId, status, lastSeen);
+                deviceRegistry.updateState(deviceId, status, currentState);
+                ruleTrigger.onDeviceStatus(deviceId);
 
-                log.info("Updated device status: {} - Status: {}, State: {}",
-                        deviceId, updatedDevice.getStatus(), updatedDevice.getCurrentState());
+                log.info("Updated device status: {} - Status: {}, State: {}", deviceId, status, currentState);
 
-                // VVVV--- GỬI THÔNG BÁO WEBSOCKET (BƯỚC BỊ THIẾU) ---VVVV
-                // webSocketService.sendDeviceStatus(
-                // updatedDevice.getFarm().getId(),
-                // updatedDevice.getDeviceId(),
-                // updatedDevice.getStatus().name()
-                // // có thể mở rộng WebSocketService để gửi cả currentState nếu cần
-                // );
+                if (!device.isClaimed()) {
+                    return;
+                }
 
-                // VVVV--- SỬA LẠI HOÀN TOÀN LOGIC GỬI WEBSOCKET ---VVVV
                 Map<String, Object> wsPayload = new HashMap<>();
-                wsPayload.put("deviceId", updatedDevice.getDeviceId());
-                wsPayload.put("status", updatedDevice.getStatus().name());
-                wsPayload.put("currentState", updatedDevice.getCurrentState());
-                wsPayload.put("lastSeen", updatedDevice.getLastSeen().toString());
+                wsPayload.put("deviceId", deviceId);
+                wsPayload.put("status", status.name());
+                wsPayload.put("currentState", currentState);
+                wsPayload.put("lastSeen", lastSeen.toString());
                 wsPayload.put("timestamp", System.currentTimeMillis());
 
-                webSocketService.sendDeviceStatus(updatedDevice.getFarm().getId(), wsPayload);
-                // ^^^^-------------------------------------------------^^^^
-                // ^^^^-------------------------------------------------^^^^
+                webSocketService.sendDeviceStatus(device.getFarmId(), wsPayload);
             });
         } catch (Exception e) {
             log.error("Error processing device status: {}", e.getMessage(), e);
@@ -5,10 +5,12 @@ import com.example.iotserver.dto.PlantProfileDTO;
 import com.example.iotserver.dto.PlantProfileSummaryDTO;
 import com.example.iotserver.entity.PlantProfile;
 import com.example.iotserver.entity.PlantProfileSetting;
+import com.example.iotserver.event.DeviceChangedEvent;
 import com.example.iotserver.exception.ResourceNotFoundException;
 import com.example.iotserver.repository.PlantProfileRepository;
 import com.example.iotserver.repository.PlantProfileSettingRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -22,6 +24,7 @@ public class PlantProfileService {
 
     private final PlantProfileRepository profileRepository;
     private final PlantProfileSettingRepository settingRepository;
+    private final ApplicationEventPublisher eventPublisher;
 
     // --- Dành cho Admin ---
 
@@ -55,6 +58,7 @@ public class PlantProfileService {
         }
 
         PlantProfile updatedProfile = profileRepository.save(profile);
+        eventPublisher.publishEvent(DeviceChangedEvent.plantProfileChanged(profileId));
         return mapToDTO(updatedProfile);
     }
 
@@ -65,6 +69,7 @@ public class PlantProfileService {
         }
         // Các setting liên quan sẽ tự động bị xóa do `ON DELETE CASCADE`
         profileRepository.deleteById(profileId);
+        eventPublisher.publishEvent(DeviceChangedEvent.plantProfileChanged(profileId));
     }
 
     public PlantProfileDTO getProfileById(Long profileId) {
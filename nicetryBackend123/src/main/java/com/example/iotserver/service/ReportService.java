@@ -6,6 +6,8 @@ import com.example.iotserver.exception.ResourceNotFoundException;
 import com.example.iotserver.repository.DeviceRepository;
 import com.example.iotserver.repository.RuleExecutionLogRepository;
 import com.example.iotserver.repository.RuleRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.itextpdf.kernel.colors.ColorConstants;
 import com.itextpdf.kernel.geom.PageSize;
 import com.itextpdf.kernel.pdf.PdfDocument;
@@ -24,7 +26,9 @@ import org.apache.commons.csv.CSVPrinter;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -46,6 +50,7 @@ public class ReportService {
     private final RuleRepository ruleRepository;
     private final RuleExecutionLogRepository logRepository;
     private final SensorDataService sensorDataService;
+    private final ObjectMapper objectMapper;
 
     // SỬA CHỮ KÝ HÀM NÀY
     public Map<String, Object> getDashboardSummary(Long farmId, Long zoneId) {
@@ -141,6 +146,9 @@ public class ReportService {
             .ofPattern("yyyy-MM-dd HH:mm:ss")
             .withZone(ZoneId.systemDefault());
 
+    // Số dòng PDF giữ trong bộ nhớ trước khi flush bảng ra response
+    private static final int PDF_FLUSH_ROWS = 200;
+
     /**
      * Ghi dữ liệu cảm biến vào response dưới dạng file CSV
      * 
@@ -156,35 +164,54 @@ public class ReportService {
         Device device = deviceRepository.findByDeviceId(deviceId)
                 .orElseThrow(() -> new ResourceNotFoundException("Device", "deviceId", deviceId));
 
-        List<SensorDataDTO> dataList = sensorDataService.getSensorDataRange(deviceId, start, end);
-
         response.setContentType("text/csv; charset=UTF-8");
         response.setHeader("Content-Disposition", "attachment; filename=\"report_" + deviceId + ".csv\"");
         response.setCharacterEncoding("UTF-8"); // Đảm bảo hỗ trợ tiếng Việt
 
-        PrintWriter writer = response.getWriter();
+        // Không dùng getWriter(): PrintWriter nuốt IOException nên không biết client đã ngắt kết nối
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
         // Ghi BOM để Excel nhận diện UTF-8
         writer.write('\ufeff');
 
         try (CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
                 .withHeader("Thời gian", "Nhiệt độ (°C)", "Độ ẩm (%)", "Độ ẩm đất (%)", "Ánh sáng (lux)", "pH đất"))) {
 
-            for (SensorDataDTO data : dataList) {
-                csvPrinter.printRecord(
-                        data.getTimestamp() != null ? DATE_TIME_FORMATTER.format(data.getTimestamp()) : "N/A",
-                        data.getTemperature(),
-                        data.getHumidity(),
-                        data.getSoilMoisture(),
-                        data.getLightIntensity(),
-                        data.getSoilPH());
-            }
-            log.info("Đã xuất thành công {} dòng dữ liệu ra CSV.", dataList.size());
+            // Từng dòng được ghi ngay khi đọc được từ InfluxDB
+            long rows = sensorDataService.streamSensorDataRange(deviceId, start, end, data -> csvPrinter.printRecord(
+                    data.getTimestamp() != null ? DATE_TIME_FORMATTER.format(data.getTimestamp()) : "N/A",
+                    data.getTemperature(),
+                    data.getHumidity(),
+                    data.getSoilMoisture(),
+                    data.getLightIntensity(),
+                    data.getSoilPH()));
+            log.info("Đã xuất thành công {} dòng dữ liệu ra CSV.", rows);
         } catch (IOException e) {
             log.error("Lỗi khi ghi file CSV: {}", e.getMessage());
             throw e;
         }
     }
 
+    /**
+     * Ghi dữ liệu cảm biến vào response dưới dạng mảng JSON, từng phần tử được
+     * serialize ngay khi đọc được từ InfluxDB.
+     */
+    public void writeSensorDataToJson(HttpServletResponse response, String deviceId, Instant start, Instant end)
+            throws IOException {
+        deviceRepository.findByDeviceId(deviceId)
+                .orElseThrow(() -> new ResourceNotFoundException("Device", "deviceId", deviceId));
+
+        response.setContentType("application/json; charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"report_" + deviceId + ".json\"");
+
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.writeStartArray();
+            long rows = sensorDataService.streamSensorDataRange(deviceId, start, end,
+                    data -> objectMapper.writeValue(generator, data));
+            generator.writeEndArray();
+            log.info("Đã xuất thành công {} dòng dữ liệu ra JSON.", rows);
+        }
+    }
+
     /**
      * Tạo báo cáo PDF từ dữ liệu cảm biến
      * 
@@ -200,8 +227,6 @@ public class ReportService {
         Device device = deviceRepository.findByDeviceId(deviceId)
                 .orElseThrow(() -> new ResourceNotFoundException("Device", "deviceId", deviceId));
 
-        List<SensorDataDTO> dataList = sensorDataService.getSensorDataRange(deviceId, start, end);
-
         response.setContentType("application/pdf");
         response.setHeader("Content-Disposition", "attachment; filename=\"report_" + deviceId + ".pdf\"");
 
@@ -223,16 +248,20 @@ public class ReportService {
                 "Thời gian: từ " + DATE_TIME_FORMATTER.format(start) + " đến " + DATE_TIME_FORMATTER.format(end)));
 
         // --- Tạo bảng ---
+        // Bảng "large": thêm vào document trước, các dòng đã layout được flush dần ra response
         float[] columnWidths = { 3, 2, 2, 2, 2, 2 };
-        Table table = new Table(UnitValue.createPercentArray(columnWidths));
+        Table table = new Table(UnitValue.createPercentArray(columnWidths), true);
         table.setWidth(UnitValue.createPercentValue(100));
         table.setMarginTop(20);
 
         // --- Header của bảng ---
         addTableHeader(table, "Thời gian", "Nhiệt độ (°C)", "Độ ẩm (%)", "Độ ẩm đất (%)", "Ánh sáng (lux)", "pH đất");
 
+        document.add(table);
+
         // --- Dữ liệu của bảng ---
-        for (SensorDataDTO data : dataList) {
+        long[] pending = { 0 };
+        long rows = sensorDataService.streamSensorDataRange(deviceId, start, end, data -> {
             addTableRow(table,
                     data.getTimestamp() != null ? DATE_TIME_FORMATTER.format(data.getTimestamp()) : "N/A",
                     data.getTemperature() != null ? data.getTemperature().toString() : "",
@@ -240,11 +269,15 @@ public class ReportService {
                     data.getSoilMoisture() != null ? data.getSoilMoisture().toString() : "",
                     data.getLightIntensity() != null ? data.getLightIntensity().toString() : "",
                     data.getSoilPH() != null ? data.getSoilPH().toString() : "");
-        }
+            if (++pending[0] == PDF_FLUSH_ROWS) {
+                table.flush();
+                pending[0] = 0;
+            }
+        });
 
-        document.add(table);
+        table.complete();
         document.close();
-        log.info("Đã tạo thành công file PDF với {} dòng dữ liệu.", dataList.size());
+        log.info("Đã tạo thành công file PDF với {} dòng dữ liệu.", rows);
     }
 
     // Helper method cho việc tạo bảng PDF
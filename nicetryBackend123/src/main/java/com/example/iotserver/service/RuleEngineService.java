@@ -1,36 +1,52 @@
 package com.example.iotserver.service;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
+import com.example.iotserver.dto.DeviceSnapshot;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.dto.WeatherDTO;
 import com.example.iotserver.entity.ActivityLog;
-import com.example.iotserver.entity.Device; // THÊM IMPORT
 import com.example.iotserver.entity.Notification; // THÊM IMPORT
 import com.example.iotserver.entity.Rule;
-import com.example.iotserver.entity.RuleCondition;
 import com.example.iotserver.entity.RuleExecutionLog;
 import com.example.iotserver.entity.User;
-import com.example.iotserver.repository.DeviceRepository; // <<<< 1. THÊM IMPORT
-import com.example.iotserver.repository.RuleExecutionLogRepository;
-import com.example.iotserver.repository.RuleRepository;
+import com.example.iotserver.repository.UserRepository;
+import com.example.iotserver.service.rule.CompiledRule;
+import com.example.iotserver.service.rule.CompiledRuleSet;
+import com.example.iotserver.service.rule.RuleExecutionRecorder;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -39,8 +55,7 @@ import lombok.extern.slf4j.Slf4j;
 @RequiredArgsConstructor
 public class RuleEngineService {
 
-    private final RuleRepository ruleRepository;
-    private final RuleExecutionLogRepository logRepository;
+    private final UserRepository userRepository;
     private final SensorDataService sensorDataService;
     private final DeviceService deviceService;
     private final WebSocketService webSocketService;
@@ -48,84 +63,261 @@ public class RuleEngineService {
     private final WeatherService weatherService;
     // private final EmailService emailService;
     private final NotificationService notificationService; // <<<< THÊM DÒNG NÀY
-    private final DeviceRepository deviceRepository; // VVVV--- THÊM DEPENDENCY NÀY ---VVVV
+    private final DeviceRegistry deviceRegistry;
     private final ActivityLogService activityLogService; // <<< THÊM
+    private final CompiledRuleSet ruleSet;
 
 
     // ... dependencies cũ ...
     private final StringRedisTemplate redisTemplate; // [FIX]: Inject thêm cái này
+    private final RuleExecutionRecorder executionRecorder;
+    private final MeterRegistry meterRegistry;
     private static final String MANUAL_OVERRIDE_PREFIX = "manual_override:";
+    // Nhóm cho quy tắc không có farm (không nên xảy ra)
+    private static final Long NO_FARM = 0L;
+
+    // Số farm chạy quy tắc đồng thời
+    @Value("${rule.engine.parallelism:4}")
+    private int parallelism;
+
+    // Sau mốc này (tính từ đầu chu kỳ) không bắt đầu kiểm tra quy tắc mới
+    @Value("${rule.engine.cycle-budget-ms:20000}")
+    private long cycleBudgetMs;
+
+    // Thời gian chờ thêm cho quy tắc đang chạy dở khi hết ngân sách
+    @Value("${rule.engine.partition-grace-ms:5000}")
+    private long partitionGraceMs;
+
+    // deferred: quy tắc chưa được kiểm tra (farm đang chạy lô khác hoặc hết ngân sách)
+    private record PartitionResult(int success, int skipped, int failed, int overBudget, List<Long> deferred) {
+    }
+
+    private final Set<Long> runningFarms = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor partitionExecutor;
+    private Timer cycleTimer;
+    private Timer partitionTimer;
+    private Counter overBudgetCounter;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(parallelism, 1);
+        // Hàng đợi có giới hạn; khi đầy, thread gọi tự chạy farm đó
+        partitionExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 16), r -> {
+                    Thread t = new Thread(r, "rule-exec-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        cycleTimer = Timer.builder("rule.engine.cycle")
+                .description("Thời gian một lần chạy quy tắc (mọi farm)")
+                .register(meterRegistry);
+        partitionTimer = Timer.builder("rule.engine.partition")
+                .description("Thời gian chạy quy tắc của một farm")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        overBudgetCounter = Counter.builder("rule.engine.over.budget")
+                .description("Số quy tắc không được kiểm tra vì chu kỳ hết ngân sách thời gian")
+                .register(meterRegistry);
+        Gauge.builder("rule.engine.partition.queue", partitionExecutor, e -> e.getQueue().size())
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (partitionExecutor != null) {
+            partitionExecutor.shutdownNow();
+        }
+    }
 
     /**
-     * Chạy tất cả quy tắc đang kích hoạt
+     * Chạy tất cả quy tắc đang kích hoạt. Các farm chạy song song (xem
+     * {@link #runPartition}); không giữ kết nối MySQL trong lúc kiểm tra điều kiện
+     * hay chạy hành động.
      */
-    @Transactional
     public void executeAllRules() {
-        long startTime = System.currentTimeMillis();
-        List<Rule> enabledRules = ruleRepository.findAllEnabledRules();
+        List<CompiledRule> enabledRules = ruleSet.all();
         log.debug("Đang kiểm tra {} quy tắc đang kích hoạt", enabledRules.size());
+        runRules(enabledRules);
+    }
+
+    /**
+     * Chạy một nhóm quy tắc (do RuleTriggerService chọn khi có dữ liệu mới hoặc
+     * tới mốc thời gian). Quy tắc đã bị tắt/xóa được bỏ qua; thứ tự ưu tiên giống
+     * {@link #executeAllRules()}.
+     *
+     * @return các quy tắc chưa được kiểm tra vì farm của chúng đang chạy lô khác
+     *         hoặc chu kỳ hết ngân sách; nơi gọi cần đưa lại vào hàng chờ
+     */
+    public List<Long> executeRules(Collection<Long> ruleIds) {
+        if (ruleIds.isEmpty()) {
+            return List.of();
+        }
+        List<CompiledRule> rules = ruleSet.select(ruleIds);
+        log.debug("Đang kiểm tra {} quy tắc được kích hoạt theo sự kiện", rules.size());
+        return runRules(rules);
+    }
+
+    private List<Long> runRules(List<CompiledRule> enabledRules) {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + cycleBudgetMs;
 
         // <<<< 1. TẠO CACHE TẠM THỜI >>>>
         // Lấy tất cả deviceId cần thiết từ tất cả các quy tắc trong 1 lần
-        Set<String> allDeviceIds = enabledRules.stream()
-                .flatMap(rule -> rule.getConditions().stream())
-                .filter(cond -> cond.getType() == RuleCondition.ConditionType.SENSOR_VALUE
-                        && cond.getDeviceId() != null)
-                .map(RuleCondition::getDeviceId)
-                .collect(Collectors.toSet());
+        Set<String> allDeviceIds = new HashSet<>();
+        for (CompiledRule rule : enabledRules) {
+            allDeviceIds.addAll(rule.getSensorDeviceIds());
+        }
 
         // Lấy dữ liệu cho tất cả thiết bị cần thiết trong 1 lần lặp
        // Dùng Batch Query để lấy dữ liệu 1 lần duy nhất
         Map<String, SensorDataDTO> sensorDataCache;
         if (!allDeviceIds.isEmpty()) {
-            sensorDataCache = sensorDataService.getLatestDataForListDevices(allDeviceIds);
+            SensorDataService.LatestBatch batch = sensorDataService.getLatestDataForDevices(allDeviceIds);
+            sensorDataCache = batch.data();
+            if (batch.isPartial()) {
+                // Điều kiện của các thiết bị này sẽ không thỏa trong chu kỳ này (thiếu dữ liệu)
+                log.warn("Không lấy được dữ liệu mới nhất cho {} thiết bị do lỗi truy vấn: {}",
+                        batch.failedDeviceIds().size(), batch.failedDeviceIds());
+            }
         } else {
             sensorDataCache = new HashMap<>();
         }
         log.debug("Đã cache dữ liệu cho {} thiết bị.", sensorDataCache.size());
+        BatchContext context = new BatchContext(sensorDataCache);
         // <<<< KẾT THÚC PHẦN TẠO CACHE >>>>
 
-        // [FIX 4: DANH SÁCH THIẾT BỊ ĐÃ ĐƯỢC ĐIỀU KHIỂN TRONG CHU KỲ NÀY]
-        // Set này chứa các deviceId đã nhận lệnh từ quy tắc có priority cao hơn
-        Set<String> devicesControlledInThisCycle = new java.util.HashSet<>();
+        // Chia theo farm, giữ thứ tự priority giảm dần trong từng farm
+        Map<Long, List<CompiledRule>> partitions = new LinkedHashMap<>();
+        for (CompiledRule rule : enabledRules) {
+            Long farmId = rule.getFarmId() != null ? rule.getFarmId() : NO_FARM;
+            partitions.computeIfAbsent(farmId, id -> new ArrayList<>()).add(rule);
+        }
+
+        Map<Long, Future<PartitionResult>> futures = new LinkedHashMap<>();
+        for (Map.Entry<Long, List<CompiledRule>> partition : partitions.entrySet()) {
+            futures.put(partition.getKey(), partitionExecutor.submit(
+                    () -> runPartition(partition.getKey(), partition.getValue(), context, deadline)));
+        }
 
         int successCount = 0;
         int skippedCount = 0;
         int failedCount = 0;
+        int overBudgetCount = 0;
+        List<Long> deferred = new ArrayList<>();
+        List<Long> unfinishedFarms = new ArrayList<>();
 
-        for (Rule rule : enabledRules) {
+        for (Map.Entry<Long, Future<PartitionResult>> entry : futures.entrySet()) {
             try {
-                // Truyền thêm danh sách devicesControlledInThisCycle vào hàm executeRule
-                boolean executed = executeRule(rule, sensorDataCache, devicesControlledInThisCycle);
-                if (executed) {
-                    successCount++;
-                } else {
-                    skippedCount++;
-                }
-            } catch (Exception e) {
-                failedCount++;
-                log.error("Lỗi khi thực thi quy tắc {}: {}", rule.getName(), e.getMessage());
+                long wait = Math.max(deadline + partitionGraceMs - System.currentTimeMillis(), 0);
+                PartitionResult result = entry.getValue().get(wait, TimeUnit.MILLISECONDS);
+                successCount += result.success();
+                skippedCount += result.skipped();
+                failedCount += result.failed();
+                overBudgetCount += result.overBudget();
+                deferred.addAll(result.deferred());
+            } catch (TimeoutException e) {
+                // Vẫn chạy tiếp ở nền; farm này bị bỏ qua ở chu kỳ sau cho tới khi xong
+                unfinishedFarms.add(entry.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unfinishedFarms.add(entry.getKey());
+            } catch (ExecutionException e) {
+                failedCount += partitions.get(entry.getKey()).size();
+                log.error("Lỗi khi chạy quy tắc của farm {}: {}", entry.getKey(), e.getCause().getMessage(),
+                        e.getCause());
             }
         }
 
+        // Ghi log và thống kê của chu kỳ theo lô (farm chưa xong sẽ được ghi ở lần flush định kỳ)
+        executionRecorder.flush();
+
         long executionTime = System.currentTimeMillis() - startTime;
-        log.info("Hoàn thành kiểm tra quy tắc: {} thành công, {} bỏ qua, {} lỗi ({}ms)",
-                successCount, skippedCount, failedCount, executionTime);
+        cycleTimer.record(executionTime, TimeUnit.MILLISECONDS);
+        if (overBudgetCount > 0 || !unfinishedFarms.isEmpty()) {
+            log.warn("Chu kỳ quy tắc vượt ngân sách {}ms: {} quy tắc chưa được kiểm tra, farm chưa xong: {}",
+                    cycleBudgetMs, overBudgetCount, unfinishedFarms);
+        }
+        log.info("Hoàn thành kiểm tra quy tắc: {} thành công, {} bỏ qua, {} lỗi, {} hoãn, {} farm ({}ms)",
+                successCount, skippedCount, failedCount, deferred.size(), partitions.size(), executionTime);
+        return deferred;
+    }
+
+    /**
+     * Chạy các quy tắc của một farm, tuần tự theo priority, không mở transaction
+     * (log và thống kê được ghi theo lô bởi {@link RuleExecutionRecorder}). Thứ tự
+     * và danh sách thiết bị đã được điều khiển chỉ có nghĩa trong
+     * farm (thiết bị thuộc về một farm), nên các farm chạy song song được. Một
+     * farm không bao giờ chạy hai lô cùng lúc (VD: lần quét toàn bộ và lô kích
+     * hoạt theo sự kiện); lô sau hoãn các quy tắc của farm đó và trả chúng về
+     * trong {@code deferred}.
+     */
+    private PartitionResult runPartition(Long farmId, List<CompiledRule> rules, CompiledRule.EvalContext context,
+            long deadline) {
+        if (!runningFarms.add(farmId)) {
+            log.debug("Farm {} đang chạy quy tắc ở lô khác, hoãn {} quy tắc", farmId, rules.size());
+            return new PartitionResult(0, 0, 0, 0, idsOf(rules, 0));
+        }
+        long startTime = System.nanoTime();
+        try {
+            // [FIX 4: DANH SÁCH THIẾT BỊ ĐÃ ĐƯỢC ĐIỀU KHIỂN TRONG CHU KỲ NÀY]
+            // Set này chứa các deviceId đã nhận lệnh từ quy tắc có priority cao hơn
+            Set<String> devicesControlledInThisCycle = new HashSet<>();
+            int success = 0;
+            int skipped = 0;
+            int failed = 0;
+            for (int i = 0; i < rules.size(); i++) {
+                // Hết ngân sách: không bắt đầu quy tắc mới, lần chạy sau sẽ kiểm tra lại
+                if (System.currentTimeMillis() > deadline) {
+                    overBudgetCounter.increment(rules.size() - i);
+                    return new PartitionResult(success, skipped, failed, rules.size() - i, idsOf(rules, i));
+                }
+                CompiledRule rule = rules.get(i);
+                try {
+                    // Truyền thêm danh sách devicesControlledInThisCycle vào hàm executeRule
+                    if (executeRule(rule, context, devicesControlledInThisCycle)) {
+                        success++;
+                    } else {
+                        skipped++;
+                    }
+                } catch (Exception e) {
+                    failed++;
+                    log.error("Lỗi khi thực thi quy tắc {}: {}", rule.getName(), e.getMessage());
+                }
+            }
+            return new PartitionResult(success, skipped, failed, 0, List.of());
+        } finally {
+            long elapsed = System.nanoTime() - startTime;
+            partitionTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            log.debug("Farm {}: {} quy tắc trong {}ms", farmId, rules.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+            runningFarms.remove(farmId);
+        }
+    }
+
+    private static List<Long> idsOf(List<CompiledRule> rules, int from) {
+        List<Long> ids = new ArrayList<>(rules.size() - from);
+        for (int i = from; i < rules.size(); i++) {
+            ids.add(rules.get(i).getId());
+        }
+        return ids;
     }
 
     /**
-     * Thực thi một quy tắc cụ thể
+     * Thực thi một quy tắc đã biên dịch: điều kiện và hành động dùng bản trong
+     * bộ nhớ, kết quả được đưa vào {@link RuleExecutionRecorder} thay vì ghi ngay.
      */
-    @Transactional
-    public boolean executeRule(Rule rule, Map<String, SensorDataDTO> sensorDataCache, Set<String> devicesControlledInThisCycle) {
+    public boolean executeRule(CompiledRule compiled, CompiledRule.EvalContext context,
+            Set<String> devicesControlledInThisCycle) {
         long startTime = System.currentTimeMillis();
 
 
         // --- [FIX 1: THÊM LOGIC COOLDOWN] ---
     // Kiểm tra nếu quy tắc vừa chạy gần đây (ví dụ: trong vòng 5 phút) thì bỏ qua
-    if (rule.getLastExecutedAt() != null) {
+    LocalDateTime lastExecutedAt = ruleSet.lastExecutedAt(compiled);
+    if (lastExecutedAt != null) {
         long minutesSinceLastRun = java.time.temporal.ChronoUnit.MINUTES.between(
-            rule.getLastExecutedAt(), 
+            lastExecutedAt, 
             LocalDateTime.now()
         );
         
@@ -133,49 +325,50 @@ public class RuleEngineService {
         // Bạn có thể đưa số 5 này vào cấu hình Rule (entity) nếu muốn linh động
         if (minutesSinceLastRun < 5) {
             log.debug("⏳ Quy tắc '{}' đang trong thời gian nghỉ (Cooldown). Lần chạy cuối: {} phút trước.", 
-                      rule.getName(), minutesSinceLastRun);
+                      compiled.getName(), minutesSinceLastRun);
             return false; // Bỏ qua, không làm gì cả
         }
     }
     // --- [KẾT THÚC FIX 1] ---
 
-        log.debug("Đang kiểm tra quy tắc: {}", rule.getName());
+        log.debug("Đang kiểm tra quy tắc: {}", compiled.getName());
 
         try {
             // Bước 1: Kiểm tra điều kiện
+            if (compiled.getConditions().isEmpty()) {
+                log.warn("Quy tắc '{}' không có điều kiện nào", compiled.getName());
+            }
             Map<String, Object> conditionContext = new HashMap<>();
-            boolean allConditionsMet = evaluateConditions(rule, conditionContext, sensorDataCache);
+            boolean allConditionsMet = compiled.matches(context, conditionContext);
 
             long executionTime = System.currentTimeMillis() - startTime;
 
             // Bước 2: Nếu điều kiện đúng → Thực hiện hành động
             if (allConditionsMet) {
                 
-                log.info(" Quy tắc '{}' - Điều kiện ĐÃ THỎA MÃN", rule.getName());
+                log.info(" Quy tắc '{}' - Điều kiện ĐÃ THỎA MÃN", compiled.getName());
 
                 // [FIX 4 & 3]: Truyền danh sách device đã lock xuống để kiểm tra trước khi action
-                List<String> performedActions = performActions(rule, devicesControlledInThisCycle);
+                List<String> performedActions = performActions(compiled, devicesControlledInThisCycle);
                 
                 // Nếu không có hành động nào thực sự được thực hiện (do bị chặn bởi Priority hoặc Manual Override)
                 if (performedActions.isEmpty()) {
                      return false; 
                 }
 
-                // Cập nhật thống kê
-                rule.setLastExecutedAt(LocalDateTime.now());
-                rule.setExecutionCount(rule.getExecutionCount() + 1);
-                ruleRepository.save(rule);
+                // Cooldown có hiệu lực ngay; thống kê (lastExecutedAt, executionCount) ghi cùng log
+                ruleSet.markExecuted(compiled.getId(), LocalDateTime.now());
 
                 // Lưu log thành công
-                saveExecutionLog(rule, RuleExecutionLog.ExecutionStatus.SUCCESS,
+                saveExecutionLog(compiled, RuleExecutionLog.ExecutionStatus.SUCCESS,
                         true, conditionContext, performedActions, null, executionTime);
 
                 return true;
             } else {
-                log.debug(" Quy tắc '{}' - Điều kiện CHƯA THỎA MÃN", rule.getName());
+                log.debug(" Quy tắc '{}' - Điều kiện CHƯA THỎA MÃN", compiled.getName());
 
-                // Lưu log bỏ qua
-                saveExecutionLog(rule, RuleExecutionLog.ExecutionStatus.SKIPPED,
+                // Lưu log bỏ qua, chỉ khi kết quả khác lần trước (hoặc theo chu kỳ)
+                saveExecutionLog(compiled, RuleExecutionLog.ExecutionStatus.SKIPPED,
                         false, conditionContext, Collections.emptyList(), null, executionTime);
 
                 return false;
@@ -183,10 +376,10 @@ public class RuleEngineService {
 
         } catch (Exception e) {
             long executionTime = System.currentTimeMillis() - startTime;
-            log.error(" Lỗi khi thực thi quy tắc '{}': {}", rule.getName(), e.getMessage(), e);
+            log.error(" Lỗi khi thực thi quy tắc '{}': {}", compiled.getName(), e.getMessage(), e);
 
             // Lưu log lỗi
-            saveExecutionLog(rule, RuleExecutionLog.ExecutionStatus.FAILED,
+            saveExecutionLog(compiled, RuleExecutionLog.ExecutionStatus.FAILED,
                     null, null, null, e.getMessage(), executionTime);
 
             return false;
@@ -194,282 +387,59 @@ public class RuleEngineService {
     }
 
     /**
-     * Kiểm tra tất cả điều kiện của quy tắc
+     * Dữ liệu dùng chung cho một lần chạy: dữ liệu cảm biến lấy theo lô (kèm
+     * timestamp để kiểm tra độ tươi), thời gian chụp một lần, thời tiết nhớ theo
+     * farm để chỉ được hỏi một lần dù nhiều điều kiện cùng dùng.
      */
-    private boolean evaluateConditions(Rule rule, Map<String, Object> context,
-            Map<String, SensorDataDTO> sensorDataCache) {
-        if (rule.getConditions().isEmpty()) {
-            log.warn("Quy tắc '{}' không có điều kiện nào", rule.getName());
-            return false;
-        }
-
-        // Sắp xếp theo thứ tự
-        List<RuleCondition> sortedConditions = rule.getConditions().stream()
-                .sorted(Comparator.comparing(RuleCondition::getOrderIndex))
-                .collect(Collectors.toList());
-
-        boolean result = true;
-        RuleCondition.LogicalOperator nextOperator = RuleCondition.LogicalOperator.AND;
-
-        for (int i = 0; i < sortedConditions.size(); i++) {
-            RuleCondition condition = sortedConditions.get(i);
-            boolean conditionMet = evaluateSingleCondition(condition, context, sensorDataCache);
+    private final class BatchContext implements CompiledRule.EvalContext {
 
-            // Kết hợp với điều kiện trước đó
-            if (i == 0) {
-                result = conditionMet;
-            } else {
-                if (nextOperator == RuleCondition.LogicalOperator.AND) {
-                    result = result && conditionMet;
-                } else {
-                    result = result || conditionMet;
-                }
-            }
+        private final Map<String, SensorDataDTO> sensorDataCache;
+        // Dùng chung giữa các farm chạy song song
+        private final Map<Long, Optional<WeatherDTO>> weather = new ConcurrentHashMap<>();
+        private final Instant now = Instant.now();
+        private final LocalTime localTime = LocalTime.now();
 
-            // Lưu operator cho lần tiếp theo
-            nextOperator = condition.getLogicalOperator();
-
-            log.debug("  Điều kiện {}: {} {} {} = {}",
-                    i + 1, condition.getField(), condition.getOperator(),
-                    condition.getValue(), conditionMet);
+        BatchContext(Map<String, SensorDataDTO> sensorDataCache) {
+            this.sensorDataCache = sensorDataCache;
         }
 
-        return result;
-    }
-
-    /**
-     * Kiểm tra một điều kiện đơn
-     */
-    private boolean evaluateSingleCondition(RuleCondition condition, Map<String, Object> context,
-            Map<String, SensorDataDTO> sensorDataCache) {
-        switch (condition.getType()) {
-            case SENSOR_VALUE:
-                return evaluateSensorCondition(condition, context, sensorDataCache);
-            case TIME_RANGE:
-                return evaluateTimeCondition(condition, context);
-            case DEVICE_STATUS:
-                // VVVV--- SỬA LẠI LỜI GỌI HÀM NÀY, BỎ sensorDataCache ---VVVV
-                return evaluateDeviceStatusCondition(condition, context);
-            case WEATHER:
-                return evaluateWeatherCondition(condition, context);
-            default:
-                log.warn("Loại điều kiện không được hỗ trợ: {}", condition.getType());
-                return false;
+        @Override
+        public SensorDataDTO latest(String deviceId) {
+            return sensorDataCache.get(deviceId);
         }
-    }
-
-    /**
-     * Kiểm tra điều kiện về giá trị cảm biến
-     */
-    private boolean evaluateSensorCondition(RuleCondition condition, Map<String, Object> context,
-            Map<String, SensorDataDTO> sensorDataCache) {
-        try {
-            String deviceId = condition.getDeviceId();
-
-            log.info(" [Rule Check] deviceId: {}, field: {}, operator: {}, value: {}",
-                    deviceId, condition.getField(), condition.getOperator(), condition.getValue());
-
-            if (deviceId == null || deviceId.isEmpty()) {
-                log.warn(" [Rule Check] Thiếu deviceId cho điều kiện cảm biến");
-                return false;
-            }
-
-            //  THÊM: Kiểm tra dữ liệu có tồn tại không
-            if (!sensorDataService.hasRecentData(deviceId, 24)) {
-                log.warn(" [Rule Check] Không có dữ liệu 24h gần nhất cho device: {}", deviceId);
-                return false;
-            }
-
-            SensorDataDTO sensorData = sensorDataCache.get(deviceId);
-
-            log.info(" [Rule Check] Sensor data từ InfluxDB: {}", sensorData != null ? "CÓ DỮ LIỆU" : "NULL");
-
-            if (sensorData == null) {
-                // Thêm log chi tiết hơn
-                log.warn("Rule [{}]: Bỏ qua điều kiện vì không có dữ liệu cảm biến gần đây cho thiết bị [{}].",
-                        condition.getRule().getName(), deviceId);
-                return false;
-            }
-
-
 
-            // --- [FIX 2: KIỂM TRA ĐỘ "TƯƠI" CỦA DỮ LIỆU] ---
-        if (sensorData.getTimestamp() != null) {
-            java.time.Instant dataTime = sensorData.getTimestamp();
-            java.time.Instant now = java.time.Instant.now();
-            
-            // Tính khoảng cách thời gian (phút)
-            long minutesDiff = java.time.temporal.ChronoUnit.MINUTES.between(dataTime, now);
-            
-            // Ngưỡng chấp nhận: 15 phút. Nếu cũ hơn 15p -> Bỏ qua
-            if (minutesDiff > 15) {
-                log.warn(" [Rule Check] Dữ liệu từ thiết bị {} quá cũ ({} phút trước). Bỏ qua điều kiện.", 
-                         deviceId, minutesDiff);
-                return false; // Coi như điều kiện sai để an toàn
-            }
-        }
-        // --- [KẾT THÚC FIX 2] ---
-
-            Double actualValue = getSensorValue(sensorData, condition.getField());
-
-            log.info(" [Rule Check] actualValue: {}, expectedValue: {}", actualValue, condition.getValue());
-
-            if (actualValue == null) {
-                log.warn("Rule [{}]: Không tìm thấy giá trị cho trường [{}] trên thiết bị [{}].",
-                        condition.getRule().getName(), condition.getField(), deviceId);
-                return false;
-            }
-
-
-
-
-            Double expectedValue = Double.parseDouble(condition.getValue());
-            context.put(condition.getField(), actualValue);
-            context.put(condition.getField() + "_expected", expectedValue);
-
-            boolean result = compareValues(actualValue, condition.getOperator(), expectedValue);
-
-            // <<< DÒNG LOG QUAN TRỌNG ĐƯỢC THÊM VÀO >>>
-            log.info("[Rule Check] Quy tắc [{}]: Điều kiện [{} {} {}] -> {}. (Thực tế: {})",
-                    condition.getRule().getName(),
-                    condition.getField(),
-                    condition.getOperator(),
-                    expectedValue,
-                    result ? "ĐÚNG" : "SAI",
-                    actualValue);
-            // <<< KẾT THÚC PHẦN THÊM MỚI >>>
-
-            return result;
-
-        } catch (Exception e) {
-            log.error(" [Rule Check] Lỗi: {}", e.getMessage(), e);
-            return false;
+        @Override
+        public DeviceSnapshot device(String deviceId) {
+            return deviceRegistry.find(deviceId).orElse(null);
         }
-    }
-
-    /**
-     * Kiểm tra điều kiện về thời gian
-     */
-    private boolean evaluateTimeCondition(RuleCondition condition, Map<String, Object> context) {
-        try {
-            LocalTime now = LocalTime.now();
-            context.put("current_time", now.toString());
-
-            // Format: "06:00-18:00" hoặc "06:00"
-            String value = condition.getValue();
-
-            if (value.contains("-")) {
-                // Khoảng thời gian
-                String[] parts = value.split("-");
-                LocalTime start = LocalTime.parse(parts[0].trim());
-                LocalTime end = LocalTime.parse(parts[1].trim());
-
-                boolean inRange = now.isAfter(start) && now.isBefore(end);
-                context.put("time_range", value);
-                context.put("in_time_range", inRange);
-
-                return inRange;
-            } else {
-                // Thời gian cụ thể
-                LocalTime target = LocalTime.parse(value.trim());
-                return now.isAfter(target) || now.equals(target);
-            }
-
-        } catch (Exception e) {
-            log.error("Lỗi khi kiểm tra điều kiện thời gian: {}", e.getMessage());
-            return false;
-        }
-    }
-
-    /**
-     * Kiểm tra điều kiện về trạng thái thiết bị (ONLINE/OFFLINE).
-     * Đã tối ưu hóa để chỉ truy vấn MySQL.
-     */
-    // VVVV--- VIẾT LẠI HOÀN TOÀN HÀM NÀY ---VVVV
-    private boolean evaluateDeviceStatusCondition(RuleCondition condition, Map<String, Object> context) {
-        try {
-            String deviceId = condition.getDeviceId();
-            if (deviceId == null || deviceId.isEmpty()) {
-                return false;
-            }
 
-            Optional<Device> deviceOpt = deviceRepository.findByDeviceId(deviceId);
-            if (deviceOpt.isEmpty()) {
-                log.warn("Không tìm thấy thiết bị với ID '{}' cho điều kiện trạng thái.", deviceId);
-                return false;
-            }
-
-            String currentStatus = deviceOpt.get().getStatus().name();
-            String expectedStatus = condition.getValue().toUpperCase();
-
-            context.put("device_" + deviceId + "_status", currentStatus);
-            context.put("device_" + deviceId + "_expected_status", expectedStatus);
-
-            boolean result = currentStatus.equals(expectedStatus);
-            log.debug("  Kiểm tra trạng thái thiết bị {}: Hiện tại '{}' == Mong đợi '{}' -> {}", deviceId,
-                    currentStatus, expectedStatus, result);
-
-            return result;
-        } catch (Exception e) {
-            log.error("Lỗi khi kiểm tra trạng thái thiết bị: {}", e.getMessage());
-            return false;
+        @Override
+        public WeatherDTO weather(Long farmId) {
+            return weather.computeIfAbsent(farmId, id -> {
+                try {
+                    return Optional.ofNullable(weatherService.getCurrentWeather(id));
+                } catch (Exception e) {
+                    log.error("Lỗi khi lấy thời tiết cho farm {}: {}", id, e.getMessage());
+                    return Optional.empty();
+                }
+            }).orElse(null);
         }
-    }
-    // ^^^^---------------------------------------^^^^
 
-    /**
-     * So sánh giá trị
-     */
-    private boolean compareValues(Double actual, RuleCondition.Operator operator, Double expected) {
-        switch (operator) {
-            case EQUALS:
-                return Math.abs(actual - expected) < 0.01;
-            case NOT_EQUALS:
-                return Math.abs(actual - expected) >= 0.01;
-            case GREATER_THAN:
-                return actual > expected;
-            case GREATER_THAN_OR_EQUAL:
-                return actual >= expected;
-            case LESS_THAN:
-                return actual < expected;
-            case LESS_THAN_OR_EQUAL:
-                return actual <= expected;
-            default:
-                return false;
+        @Override
+        public Instant now() {
+            return now;
         }
-    }
 
-    /**
-     * Lấy giá trị cảm biến theo tên trường
-     */
-    private Double getSensorValue(SensorDataDTO data, String field) {
-        if (field == null || data == null)
-            return null;
-
-        String normalizedField = field.toLowerCase().replace("_", "");
-
-        //  So sánh với các chuỗi đã chuẩn hóa
-        switch (normalizedField) {
-            case "temperature":
-                return data.getTemperature();
-            case "humidity":
-                return data.getHumidity();
-            case "soilmoisture":
-                return data.getSoilMoisture();
-            case "lightintensity":
-                return data.getLightIntensity();
-            case "soilph":
-                return data.getSoilPH();
-            default:
-                log.warn("Trường cảm biến không được hỗ trợ hoặc không có giá trị: {}", field);
-                return null;
+        @Override
+        public LocalTime localTime() {
+            return localTime;
         }
     }
 
     /**
      * Thực hiện các hành động
      */
-    private List<String> performActions(Rule rule, Set<String> devicesControlledInThisCycle) {
+    private List<String> performActions(CompiledRule rule, Set<String> devicesControlledInThisCycle) {
         List<String> performedActions = new ArrayList<>();
 
         for (Rule.RuleAction action : rule.getActions()) {
@@ -507,7 +477,7 @@ public class RuleEngineService {
 
                 // <<< GHI LOG Ở ĐÂY >>>
                 String description = String.format("Quy tắc '%s' đã thực thi hành động: %s", rule.getName(), result);
-                activityLogService.logSystemActivity(rule.getFarm().getId(), "RULE_EXECUTION", "RULE",
+                activityLogService.logSystemActivity(rule.getFarmId(), "RULE_EXECUTION", "RULE",
                         rule.getId().toString(), description, ActivityLog.LogStatus.SUCCESS, null);
 
                 performedActions.add(result);
@@ -525,7 +495,7 @@ public class RuleEngineService {
     /**
      * Thực hiện một hành động đơn
      */
-    private String performSingleAction(Rule rule, Rule.RuleAction action) {
+    private String performSingleAction(CompiledRule rule, Rule.RuleAction action) {
         switch (action.getType()) {
             case TURN_ON_DEVICE:
                 return turnOnDevice(action);
@@ -550,9 +520,9 @@ public class RuleEngineService {
     private String turnOnDevice(Rule.RuleAction action) {
 
 
-        // 1. Lấy thông tin thiết bị mới nhất từ DB (để có trạng thái current_state)
+        // 1. Lấy thông tin thiết bị từ DeviceRegistry (current_state được cập nhật theo MQTT)
     // Lưu ý: action.getDeviceId() trả về String deviceId (VD: "PUMP-001")
-    Device device = deviceRepository.findByDeviceId(action.getDeviceId()).orElse(null);
+    DeviceSnapshot device = deviceRegistry.find(action.getDeviceId()).orElse(null);
 
     if (device == null) {
         return "Không tìm thấy thiết bị " + action.getDeviceId();
@@ -590,7 +560,7 @@ public class RuleEngineService {
     private String turnOffDevice(Rule.RuleAction action) {
 
 
-        Device device = deviceRepository.findByDeviceId(action.getDeviceId()).orElse(null);
+        DeviceSnapshot device = deviceRegistry.find(action.getDeviceId()).orElse(null);
 
     if (device == null) {
         return "Không tìm thấy thiết bị " + action.getDeviceId();
@@ -656,91 +626,37 @@ public class RuleEngineService {
     // }
 
     /**
-     * Lưu log thực thi
+     * Lưu log thực thi (ghi theo lô cuối chu kỳ)
      */
-    private void saveExecutionLog(Rule rule, RuleExecutionLog.ExecutionStatus status,
+    private void saveExecutionLog(CompiledRule rule, RuleExecutionLog.ExecutionStatus status,
             Boolean conditionsMet, Map<String, Object> conditionContext,
             List<String> actions, String errorMessage, long executionTime) {
+        if (!ruleSet.shouldLog(rule.getId(), status, System.currentTimeMillis())) {
+            return;
+        }
         try {
-            RuleExecutionLog log = RuleExecutionLog.builder()
-                    .rule(rule)
-                    .executedAt(LocalDateTime.now())
-                    .status(status)
-                    .conditionsMet(conditionsMet)
-                    .conditionDetails(
-                            conditionContext != null ? objectMapper.writeValueAsString(conditionContext) : null)
-                    .actionsPerformed(actions != null ? objectMapper.writeValueAsString(actions) : null)
-                    .errorMessage(errorMessage)
-                    .executionTimeMs(executionTime)
-                    .build();
-
-            logRepository.save(log);
+            executionRecorder.record(new RuleExecutionRecorder.Entry(
+                    rule.getId(),
+                    LocalDateTime.now(),
+                    status,
+                    conditionsMet,
+                    conditionContext != null ? objectMapper.writeValueAsString(conditionContext) : null,
+                    actions != null ? objectMapper.writeValueAsString(actions) : null,
+                    errorMessage,
+                    executionTime));
 
         } catch (JsonProcessingException e) {
             log.error("Lỗi khi lưu execution log: {}", e.getMessage());
         }
     }
 
-    private boolean evaluateWeatherCondition(RuleCondition condition, Map<String, Object> context) {
-        try {
-            Long farmId = condition.getRule().getFarm().getId();
-            WeatherDTO weather = weatherService.getCurrentWeather(farmId);
-
-            if (weather == null) {
-                log.warn("Không có dữ liệu thời tiết cho farm {}", farmId);
-                return false;
-            }
-
-            String field = condition.getField().toLowerCase();
-            Double actualValue = null;
-
-            switch (field) {
-                case "rain_amount":
-                case "rain":
-                    actualValue = weather.getRainAmount();
-                    break;
-                case "temperature":
-                    actualValue = weather.getTemperature();
-                    break;
-                case "humidity":
-                    actualValue = weather.getHumidity();
-                    break;
-                case "wind_speed":
-                    actualValue = weather.getWindSpeed();
-                    break;
-                default:
-                    log.warn("Trường thời tiết không được hỗ trợ: {}", field);
-                    return false;
-            }
-
-            if (actualValue == null) {
-                return false;
-            }
-
-            Double expectedValue = Double.parseDouble(condition.getValue());
-            context.put("weather_" + field, actualValue);
-            context.put("weather_" + field + "_expected", expectedValue);
-
-            boolean result = compareValues(actualValue, condition.getOperator(), expectedValue);
-
-            log.info(" Kiểm tra thời tiết: {} {} {} = {}",
-                    actualValue, condition.getOperator(), expectedValue, result);
-
-            return result;
-
-        } catch (Exception e) {
-            log.error("Lỗi khi kiểm tra điều kiện thời tiết: {}", e.getMessage());
-            return false;
-        }
-    }
-
     // VVVV--- HỢP NHẤT `sendNotification` VÀ `sendEmailForRule` THÀNH MỘT HÀM DUY
     // NHẤT ---VVVV
     /**
      * Tạo thông báo (và gửi email nếu cần) cho một Rule được kích hoạt.
      */
-    private String createRuleNotification(Rule rule, Rule.RuleAction action, boolean sendEmail) {
-        User owner = rule.getFarm().getOwner();
+    private String createRuleNotification(CompiledRule rule, Rule.RuleAction action, boolean sendEmail) {
+        User owner = rule.getOwnerId() != null ? userRepository.findById(rule.getOwnerId()).orElse(null) : null;
         if (owner == null) {
             return "Lỗi: Không tìm thấy chủ nông trại.";
         }
@@ -6,10 +6,12 @@ import com.example.iotserver.entity.Farm;
 import com.example.iotserver.entity.Rule;
 import com.example.iotserver.entity.RuleCondition;
 import com.example.iotserver.entity.RuleExecutionLog;
+import com.example.iotserver.event.RuleChangedEvent;
 import com.example.iotserver.repository.FarmRepository;
 import com.example.iotserver.repository.RuleExecutionLogRepository;
 import com.example.iotserver.repository.RuleRepository;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
@@ -30,6 +32,7 @@ public class RuleService {
     private final RuleExecutionLogRepository logRepository;
     private final AuthenticationService authenticationService;
     private final FarmService farmService;
+    private final ApplicationEventPublisher eventPublisher;
 
     // <<<< SỬA: Thêm @Lazy vào constructor parameter >>>>
     public RuleService(
@@ -37,12 +40,14 @@ public class RuleService {
             FarmRepository farmRepository,
             RuleExecutionLogRepository logRepository,
             AuthenticationService authenticationService,
-            @Lazy FarmService farmService) { // <-- THÊM @Lazy VÀO ĐÂY
+            @Lazy FarmService farmService, // <-- THÊM @Lazy VÀO ĐÂY
+            ApplicationEventPublisher eventPublisher) {
         this.ruleRepository = ruleRepository;
         this.farmRepository = farmRepository;
         this.logRepository = logRepository;
         this.authenticationService = authenticationService;
         this.farmService = farmService;
+        this.eventPublisher = eventPublisher;
     }
 
     /**
@@ -81,6 +86,7 @@ public class RuleService {
                                 ? RuleCondition.LogicalOperator.valueOf(condDto.getLogicalOperator())
                                 : RuleCondition.LogicalOperator.AND)
                         .orderIndex(condDto.getOrderIndex() != null ? condDto.getOrderIndex() : 0)
+                        .maxDataAgeMinutes(condDto.getMaxDataAgeMinutes())
                         .build();
                 rule.getConditions().add(condition);
             }
@@ -101,6 +107,7 @@ public class RuleService {
 
         Rule saved = ruleRepository.save(rule);
         log.info("Đã tạo quy tắc: {} cho nông trại: {}", saved.getName(), farmId);
+        eventPublisher.publishEvent(RuleChangedEvent.saved(saved.getId()));
 
         return mapToDTO(saved);
     }
@@ -142,6 +149,7 @@ public class RuleService {
                                 ? RuleCondition.LogicalOperator.valueOf(condDto.getLogicalOperator())
                                 : RuleCondition.LogicalOperator.AND)
                         .orderIndex(condDto.getOrderIndex() != null ? condDto.getOrderIndex() : 0)
+                        .maxDataAgeMinutes(condDto.getMaxDataAgeMinutes())
                         .build();
                 rule.getConditions().add(condition);
             }
@@ -163,6 +171,7 @@ public class RuleService {
 
         Rule updated = ruleRepository.save(rule);
         log.info("Đã cập nhật quy tắc: {}", updated.getName());
+        eventPublisher.publishEvent(RuleChangedEvent.saved(updated.getId()));
 
         return mapToDTO(updated);
     }
@@ -194,6 +203,7 @@ public class RuleService {
 
         // 2. Sau khi đã xóa hết các bản ghi con, bây giờ mới xóa bản ghi cha
         ruleRepository.delete(rule);
+        eventPublisher.publishEvent(RuleChangedEvent.deleted(ruleId));
 
         log.info("Đã xóa quy tắc: {} và các log liên quan", rule.getName());
     }
@@ -241,6 +251,7 @@ public class RuleService {
 
         rule.setEnabled(enabled);
         Rule updated = ruleRepository.save(rule);
+        eventPublisher.publishEvent(RuleChangedEvent.saved(updated.getId()));
 
         log.info("Đã {} quy tắc: {}", enabled ? "bật" : "tắt", rule.getName());
         return mapToDTO(updated);
@@ -287,6 +298,7 @@ public class RuleService {
                         .deviceId(c.getDeviceId())
                         .logicalOperator(c.getLogicalOperator().name())
                         .orderIndex(c.getOrderIndex())
+                        .maxDataAgeMinutes(c.getMaxDataAgeMinutes())
                         .build())
                 .collect(Collectors.toList()));
 
@@ -1,5 +1,9 @@
 package com.example.iotserver.service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
@@ -7,15 +11,35 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import com.example.iotserver.config.InfluxDBConfig;
 import com.example.iotserver.dto.SensorDataDTO;
 import com.example.iotserver.entity.Device;
 import com.example.iotserver.repository.DeviceRepository;
+import com.example.iotserver.service.journal.InfluxWriteMonitor;
+import com.example.iotserver.service.journal.LineProtocolWriter;
+import com.example.iotserver.service.journal.SensorJournal;
+import com.example.iotserver.service.rollup.SensorRollupService;
+import com.example.iotserver.service.rollup.ZoneTagMigration;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.QueryApi;
 import com.influxdb.client.domain.WritePrecision;
@@ -23,6 +47,12 @@ import com.influxdb.client.write.Point;
 import com.influxdb.query.FluxRecord;
 import com.influxdb.query.FluxTable;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -36,39 +66,106 @@ public class SensorDataService {
     private final InfluxDBClient influxDBClient;
     private final InfluxDBConfig influxDBConfig;
     private final DeviceRepository deviceRepository; // Inject DeviceRepository
+    private final SensorJournal journal;
+    private final InfluxWriteMonitor writeMonitor;
+    private final SensorRollupService rollupService;
+    private final ZoneTagMigration zoneTagMigration;
+    private final LatestValueStore latestValues;
+    private final InfluxQueryStreamer queryStreamer;
+    private final SeriesBucketCache seriesCache;
+    private final MeterRegistry meterRegistry;
+
+    // Số query chunk chạy đồng thời khi lấy dữ liệu mới nhất cho nhiều thiết bị
+    @Value("${influxdb.query.parallelism:4}")
+    private int queryParallelism;
+
+    // Độ dài tối đa của bộ lọc device_id trong một query chunk
+    @Value("${influxdb.query.max-filter-chars:4000}")
+    private int maxFilterChars;
+
+    @Value("${influxdb.query.chunk-timeout-ms:5000}")
+    private long chunkTimeoutMs;
+
+    @Value("${influxdb.query.chunk-retries:1}")
+    private int chunkRetries;
+
+    @Value("${influxdb.query.chunk-retry-delay-ms:200}")
+    private long chunkRetryDelayMs;
+
+    private ThreadPoolExecutor chunkExecutor;
+    // Chỉ đặt timeout và hẹn giờ thử lại, không chạy query
+    private ScheduledExecutorService chunkScheduler;
+    private Timer chunkTimer;
+    private Counter chunkRetryCounter;
+    private Counter chunkFailureCounter;
+
+    // Mỗi worker ingest dùng lại một writer (và ByteBuffer của nó)
+    private static final ThreadLocal<LineProtocolWriter> LINE_WRITER = ThreadLocal
+            .withInitial(LineProtocolWriter::new);
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(queryParallelism, 1);
+        // Hàng đợi không giới hạn: mỗi request tự giới hạn số chunk đang chạy
+        // (xem getLatestDataForDevices), nên hàng đợi tối đa cỡ số request * threads
+        chunkExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "influx-chunk-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "influx-chunk-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        chunkScheduler = scheduler;
+
+        chunkTimer = Timer.builder("influx.query.chunk")
+                .description("Thời gian một query chunk dữ liệu mới nhất")
+                .register(meterRegistry);
+        chunkRetryCounter = Counter.builder("influx.query.chunk.retries").register(meterRegistry);
+        chunkFailureCounter = Counter.builder("influx.query.chunk.failures").register(meterRegistry);
+        Gauge.builder("influx.query.chunk.queue", chunkExecutor, e -> e.getQueue().size())
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdownNow();
+        }
+        if (chunkScheduler != null) {
+            chunkScheduler.shutdownNow();
+        }
+    }
 
     /**
-     * Save sensor data to InfluxDB
+     * Save sensor data to InfluxDB. Khi bật journal, dữ liệu được ghi vào
+     * journal cục bộ trước và JournalReplayer đẩy sang InfluxDB theo lô.
      */
     public void saveSensorData(SensorDataDTO data) {
         try {
-            Point point = Point.measurement("sensor_data")
-                    .addTag("device_id", data.getDeviceId())
-                    .addTag("sensor_type", data.getSensorType() != null ? data.getSensorType() : "UNKNOWN") // Thêm kiểm
-                                                                                                            // tra null
-                    .addTag("farm_id", String.valueOf(data.getFarmId()))
-                    .time(data.getTimestamp(), WritePrecision.MS);
-
-            // VVVV--- THÊM LOG DEBUG CHI TIẾT ---VVVV
-            log.info(">>>> [INFLUX WRITE] Preparing to write Point for device {}", data.getDeviceId());
-            // ^^^^-------------------------------^^^^
-
-            // VVVV--- THÊM ĐẦY ĐỦ CÁC TRƯỜNG ---VVVV
-            if (data.getTemperature() != null)
-                point.addField("temperature", data.getTemperature());
-            if (data.getHumidity() != null)
-                point.addField("humidity", data.getHumidity());
-            if (data.getSoilMoisture() != null)
-                point.addField("soil_moisture", data.getSoilMoisture());
-            if (data.getLightIntensity() != null)
-                point.addField("light_intensity", data.getLightIntensity());
-            if (data.getSoilPH() != null)
-                point.addField("soilPH", data.getSoilPH());
-            // ^^^^-----------------------------^^^^
+            log.debug(">>>> [INFLUX WRITE] Preparing to write Point for device {}", data.getDeviceId());
+
+            if (journal.isEnabled()) {
+                journalSensorData(data);
+                latestValues.record(data);
+                rollupService.recordWrite(data.getTimestamp());
+                seriesCache.recordWrite(data.getDeviceId(), data.getTimestamp());
+                return;
+            }
 
+            Point point = toPoint(data);
             // Nếu không có field nào được thêm, không ghi để tránh lỗi
-            if (point.hasFields()) {
+            if (point != null) {
                 writeApiAsync.writePoint(point); // [FIX 3]: Dùng hàm async, không block
+                writeMonitor.submitted(1);
+                latestValues.record(data);
+                rollupService.recordWrite(data.getTimestamp());
+                seriesCache.recordWrite(data.getDeviceId(), data.getTimestamp());
                 log.debug("Saved sensor data (async) for device: {}", data.getDeviceId());
             } else {
                 log.warn("No fields to write for device {}, skipping InfluxDB write.", data.getDeviceId());
@@ -79,6 +176,78 @@ public class SensorDataService {
         }
     }
 
+    /**
+     * Ghi nhiều bản ghi (VD: batch từ gateway) trong một lần gọi WriteApi.
+     */
+    public void saveSensorDataBatch(List<SensorDataDTO> dataList) {
+        try {
+            if (journal.isEnabled()) {
+                for (SensorDataDTO data : dataList) {
+                    journalSensorData(data);
+                    latestValues.record(data);
+                    rollupService.recordWrite(data.getTimestamp());
+                    seriesCache.recordWrite(data.getDeviceId(), data.getTimestamp());
+                }
+                return;
+            }
+
+            List<Point> points = new ArrayList<>(dataList.size());
+            for (SensorDataDTO data : dataList) {
+                Point point = toPoint(data);
+                if (point != null) {
+                    points.add(point);
+                }
+            }
+            if (!points.isEmpty()) {
+                writeApiAsync.writePoints(points);
+                writeMonitor.submitted(points.size());
+                for (SensorDataDTO data : dataList) {
+                    latestValues.record(data);
+                    rollupService.recordWrite(data.getTimestamp());
+                    seriesCache.recordWrite(data.getDeviceId(), data.getTimestamp());
+                }
+                log.debug("Saved {} sensor points (async) in one batch", points.size());
+            }
+        } catch (Exception e) {
+            log.error("Error queueing sensor data batch to InfluxDB: {}", e.getMessage());
+        }
+    }
+
+    // Mã hóa line protocol thẳng vào ByteBuffer rồi ghi vào journal, không tạo Point
+    private void journalSensorData(SensorDataDTO data) {
+        ByteBuffer line = LINE_WRITER.get().encode(data);
+        if (line != null) {
+            journal.append(line);
+        } else {
+            log.warn("No fields to write for device {}, skipping InfluxDB write.", data.getDeviceId());
+        }
+    }
+
+    private Point toPoint(SensorDataDTO data) {
+        Point point = Point.measurement("sensor_data")
+                .addTag("device_id", data.getDeviceId())
+                .addTag("sensor_type", data.getSensorType() != null ? data.getSensorType() : "UNKNOWN") // Thêm kiểm
+                                                                                                        // tra null
+                .addTag("farm_id", String.valueOf(data.getFarmId()))
+                .addTag("zone_id", data.getZoneId() != null ? String.valueOf(data.getZoneId()) : SensorDataDTO.NO_ZONE)
+                .time(data.getTimestamp(), WritePrecision.MS);
+
+        // VVVV--- THÊM ĐẦY ĐỦ CÁC TRƯỜNG ---VVVV
+        if (data.getTemperature() != null)
+            point.addField("temperature", data.getTemperature());
+        if (data.getHumidity() != null)
+            point.addField("humidity", data.getHumidity());
+        if (data.getSoilMoisture() != null)
+            point.addField("soil_moisture", data.getSoilMoisture());
+        if (data.getLightIntensity() != null)
+            point.addField("light_intensity", data.getLightIntensity());
+        if (data.getSoilPH() != null)
+            point.addField("soilPH", data.getSoilPH());
+        // ^^^^-----------------------------^^^^
+
+        return point.hasFields() ? point : null;
+    }
+
     // File: SensorDataService.java
 
     /**
@@ -86,6 +255,9 @@ public class SensorDataService {
      *  SỬA: Tăng range lên 24h để đảm bảo có dữ liệu
      */
     public SensorDataDTO getLatestSensorData(String deviceId) {
+        if (latestValues.isWarm()) {
+            return latestValues.findDevice(deviceId, Duration.ofDays(30));
+        }
         try {
             log.info(" [InfluxDB] Getting latest data for device: {}", deviceId);
 
@@ -151,20 +323,113 @@ public class SensorDataService {
             String deviceId,
             Instant start,
             Instant end) {
+        return getSensorDataRange(deviceId, start, end, null);
+    }
+
+    /**
+     * Như trên; khi có {@code maxPoints}, mỗi field được giảm còn tối đa
+     * {@code maxPoints} điểm bằng LTTB ngay trong lúc stream kết quả từ InfluxDB
+     * (không giữ toàn bộ dữ liệu gốc trong bộ nhớ).
+     */
+    public List<SensorDataDTO> getSensorDataRange(
+            String deviceId,
+            Instant start,
+            Instant end,
+            Integer maxPoints) {
         String flux = String.format(
                 "from(bucket: \"%s\") " +
                         "|> range(start: %s, stop: %s) " +
+                        "|> filter(fn: (r) => r[\"_measurement\"] == \"sensor_data\") " +
                         "|> filter(fn: (r) => r[\"device_id\"] == \"%s\") " +
+                        // zone_id thuộc series key: gộp các series của cùng field trước khi sort
+                        "|> group(columns: [\"device_id\", \"_field\"]) " +
                         "|> sort(columns: [\"_time\"])",
                 influxDBConfig.getBucket(),
                 start.toString(),
                 end.toString(),
                 deviceId);
 
-        List<Map<String, Object>> rawDataList = executeQueryList(flux);
-        return rawDataList.stream()
-                .map(SensorDataDTO::fromInfluxRecord)
-                .collect(Collectors.toList());
+        List<SensorDataDTO> result = new ArrayList<>();
+        // Mỗi series (field; query đã gộp các zone) một reducer và được sắp theo
+        // _time; kết quả giữ thứ tự field như khi không giảm điểm
+        Map<String, LttbDownsampler<SensorDataDTO>> reducers = new java.util.LinkedHashMap<>();
+        Map<String, List<SensorDataDTO>> reduced = new HashMap<>();
+        try {
+            long rows = queryStreamer.stream(flux, record -> {
+                Map<String, Object> data = toRecordMap(record);
+                return data != null ? SensorDataDTO.fromInfluxRecord(data) : null;
+            }, maxPoints == null ? result::add : dto -> {
+                String field = fieldOf(dto);
+                reducers.computeIfAbsent(field, f -> new LttbDownsampler<>(maxPoints, start, end,
+                        d -> d.getTimestamp().toEpochMilli(), d -> fieldValue(d, f),
+                        reduced.computeIfAbsent(f, k -> new ArrayList<>())::add)).add(dto);
+            });
+            if (maxPoints != null) {
+                reducers.values().forEach(LttbDownsampler::finish);
+                reducers.keySet().forEach(field -> result.addAll(reduced.get(field)));
+                log.debug(" [InfluxDB] Giảm {} điểm còn {} (maxPoints={})", rows, result.size(), maxPoints);
+            }
+        } catch (Exception e) {
+            log.error(" [InfluxDB] Lỗi query: {}", e.getMessage(), e);
+            return Collections.emptyList();
+        }
+        return result;
+    }
+
+    // Field duy nhất có giá trị trong DTO tạo từ một record chưa pivot
+    private static String fieldOf(SensorDataDTO dto) {
+        if (dto.getTemperature() != null) return "temperature";
+        if (dto.getHumidity() != null) return "humidity";
+        if (dto.getSoilMoisture() != null) return "soil_moisture";
+        if (dto.getLightIntensity() != null) return "light_intensity";
+        if (dto.getSoilPH() != null) return "soilPH";
+        return "";
+    }
+
+    private static double fieldValue(SensorDataDTO dto, String field) {
+        Double value = switch (field) {
+            case "temperature" -> dto.getTemperature();
+            case "humidity" -> dto.getHumidity();
+            case "soil_moisture" -> dto.getSoilMoisture();
+            case "light_intensity" -> dto.getLightIntensity();
+            case "soilPH" -> dto.getSoilPH();
+            default -> null;
+        };
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Đẩy dữ liệu của thiết bị trong [start, end) cho {@code sink}, mỗi thời
+     * điểm một DTO đủ các field, theo thứ tự thời gian. Không giữ kết quả trong
+     * bộ nhớ; dùng cho export. Lỗi của sink (VD client ngắt kết nối) hủy query
+     * và được ném lại.
+     *
+     * @return số dòng đã đẩy
+     */
+    public long streamSensorDataRange(String deviceId, Instant start, Instant end,
+            InfluxQueryStreamer.RecordSink<SensorDataDTO> sink) throws IOException {
+        String flux = String.format(
+                "from(bucket: \"%s\")\n" +
+                        "  |> range(start: %s, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\" and r.device_id == \"%s\")\n" +
+                        // Gộp mọi series của thiết bị (mỗi zone một series) trước pivot
+                        "  |> group(columns: [\"device_id\"])\n" +
+                        "  |> pivot(rowKey: [\"_time\"], columnKey: [\"_field\"], valueColumn: \"_value\")\n" +
+                        "  |> sort(columns: [\"_time\"])",
+                influxDBConfig.getBucket(), start, end, deviceId);
+
+        return queryStreamer.stream(flux, record -> {
+            Map<String, Object> values = record.getValues();
+            return SensorDataDTO.builder()
+                    .deviceId(deviceId)
+                    .timestamp(record.getTime())
+                    .temperature(getDoubleValue(values, "temperature"))
+                    .humidity(getDoubleValue(values, "humidity"))
+                    .soilMoisture(getDoubleValue(values, "soil_moisture"))
+                    .lightIntensity(getDoubleValue(values, "light_intensity"))
+                    .soilPH(getDoubleValue(values, "soilPH"))
+                    .build();
+        }, sink);
     }
 
     /**
@@ -176,15 +441,12 @@ public class SensorDataService {
             String aggregation, // mean, max, min
             String window // 1m, 5m, 1h, 1d
     ) {
-        String flux = String.format(
-                "from(bucket: \"%s\") " +
-                        "|> range(start: -7d) " +
-                        "|> filter(fn: (r) => r[\"device_id\"] == \"%s\") " +
-                        "|> filter(fn: (r) => r[\"_field\"] == \"%s\") " +
-                        "|> aggregateWindow(every: %s, fn: %s, createEmpty: false)",
-                influxDBConfig.getBucket(),
-                deviceId,
-                field,
+        // Đọc từ measurement rollup khi window đủ lớn (xem SensorRollupService)
+        Instant end = Instant.now();
+        String flux = rollupService.aggregateQuery(
+                end.minus(Duration.ofDays(7)),
+                end,
+                String.format("r[\"device_id\"] == \"%s\" and r[\"_field\"] == \"%s\"", deviceId, field),
                 window,
                 aggregation);
 
@@ -219,13 +481,38 @@ public class SensorDataService {
                 .collect(Collectors.toList());
     }
 
+    // Cùng dạng với record của InfluxDB: tên field -> giá trị, device_id, timestamp
+    private static Map<String, Object> toFieldMap(SensorDataDTO dto) {
+        Map<String, Object> values = new HashMap<>();
+        if (dto.getTemperature() != null)
+            values.put("temperature", dto.getTemperature());
+        if (dto.getHumidity() != null)
+            values.put("humidity", dto.getHumidity());
+        if (dto.getSoilMoisture() != null)
+            values.put("soil_moisture", dto.getSoilMoisture());
+        if (dto.getLightIntensity() != null)
+            values.put("light_intensity", dto.getLightIntensity());
+        if (dto.getSoilPH() != null)
+            values.put("soilPH", dto.getSoilPH());
+        values.put("device_id", dto.getDeviceId());
+        values.put("timestamp", dto.getTimestamp());
+        return values;
+    }
+
     /**
      * Get all devices data for a farm
      */
     public Map<String, Map<String, Object>> getFarmLatestData(Long farmId) {
+        if (latestValues.isWarm()) {
+            Map<String, Map<String, Object>> deviceDataMap = new HashMap<>();
+            latestValues.findDevicesInFarm(farmId, Duration.ofHours(1))
+                    .forEach((deviceId, dto) -> deviceDataMap.put(deviceId, toFieldMap(dto)));
+            return deviceDataMap;
+        }
         String flux = String.format(
                 "from(bucket: \"%s\") " +
                         "|> range(start: -1h) " +
+                        "|> filter(fn: (r) => r[\"_measurement\"] == \"sensor_data\") " +
                         "|> filter(fn: (r) => r[\"farm_id\"] == \"%s\") " +
                         "|> last()",
                 influxDBConfig.getBucket(),
@@ -262,47 +549,32 @@ public class SensorDataService {
     }
 
     private List<Map<String, Object>> executeQueryList(String flux) {
+        // Đọc từng record qua callback thay vì dựng List<FluxTable> rồi mới chép ra Map
+        List<Map<String, Object>> results = new ArrayList<>();
         try {
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(flux, influxDBConfig.getOrg());
-
-            //  THÊM: Log debug
-            log.debug(" [InfluxDB] Query executed, tables count: {}", tables.size());
-
-            if (tables.isEmpty()) {
-                return Collections.emptyList(); //  Trả về list rỗng
-            }
-
-            List<Map<String, Object>> results = new ArrayList<>();
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    Map<String, Object> data = new HashMap<>();
-
-                    //  SỬA: Xử lý null an toàn
-                    Object value = record.getValue();
-                    if (value != null) {
-                        data.put("_value", value);
-                    } else {
-                        log.warn(" Record có value null, bỏ qua");
-                        continue; // Skip record này
-                    }
-
-                    data.put("_time", record.getTime());
-                    data.put("_field", record.getField());
-                    data.put("device_id", record.getValueByKey("device_id"));
-
-                    results.add(data);
-                }
-            }
-
+            long count = queryStreamer.stream(flux, SensorDataService::toRecordMap, results::add);
+            log.debug(" [InfluxDB] Query executed, records: {}", count);
             return results;
-
         } catch (Exception e) {
             log.error(" [InfluxDB] Lỗi query: {}", e.getMessage(), e);
             return Collections.emptyList(); //  Trả về list rỗng thay vì throw exception
         }
     }
 
+    // Các cột mà executeQueryList trả về; null nếu record không có giá trị
+    private static Map<String, Object> toRecordMap(FluxRecord record) {
+        Object value = record.getValue();
+        if (value == null) {
+            return null;
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("_value", value);
+        data.put("_time", record.getTime());
+        data.put("_field", record.getField());
+        data.put("device_id", record.getValueByKey("device_id"));
+        return data;
+    }
+
     private Map<String, Object> fluxRecordToMap(FluxRecord record) {
         Map<String, Object> map = new HashMap<>();
         map.put("_time", record.getTime());
@@ -316,6 +588,9 @@ public class SensorDataService {
      * Lấy dữ liệu cảm biến mới nhất theo farmId
      */
     public SensorDataDTO getLatestSensorDataByFarmId(Long farmId) {
+        if (latestValues.isWarm()) {
+            return latestValues.findFarm(farmId, Duration.ofDays(30));
+        }
         try {
             String query = String.format(
                     "from(bucket: \"%s\") " +
@@ -506,20 +781,11 @@ public class SensorDataService {
 
     // VVVV--- THÊM HÀM MỚI NÀY ---VVVV
     public SensorDataDTO getLatestSensorDataForFarmDevices(Long farmId) {
-        // 1. Lấy danh sách deviceId từ MySQL (giữ nguyên)
-        List<String> deviceIds = deviceRepository.findByFarmId(farmId)
-                .stream()
-                .map(Device::getDeviceId)
-                .collect(Collectors.toList());
-
-        if (deviceIds.isEmpty()) {
-            log.warn("Farm {} không có thiết bị nào.", farmId);
-            return null;
+        if (latestValues.isWarm()) {
+            return latestValues.findFarm(farmId, Duration.ofDays(30));
         }
-
-        String deviceIdFilter = deviceIds.stream()
-                .map(id -> String.format("r.device_id == \"%s\"", id))
-                .collect(Collectors.joining(" or "));
+        // 1. Lọc theo tag farm_id, không cần danh sách deviceId từ MySQL
+        String deviceIdFilter = scopeFilter(farmId, null);
 
         // 2. Câu query Flux (giữ nguyên, nó đã đúng)
         String query = String.format(
@@ -603,10 +869,37 @@ public class SensorDataService {
      */
     public Map<String, List<SensorDataDTO>> getMultiSeriesData(List<String> deviceIds, List<String> fields,
             Instant start, Instant end, String window) {
+        return getMultiSeriesData(deviceIds, fields, start, end, window, null);
+    }
+
+    /**
+     * Như trên; khi có {@code maxPoints}, mỗi chuỗi được giảm bằng LTTB sau khi
+     * lấy từ cache (cache vẫn giữ dữ liệu đủ độ phân giải).
+     */
+    public Map<String, List<SensorDataDTO>> getMultiSeriesData(List<String> deviceIds, List<String> fields,
+            Instant start, Instant end, String window, Integer maxPoints) {
+        Map<String, List<SensorDataDTO>> series = getCachedMultiSeries(deviceIds, fields, start, end, window);
+        if (maxPoints == null) {
+            return series;
+        }
+        Map<String, List<SensorDataDTO>> reduced = new HashMap<>();
+        series.forEach((key, points) -> reduced.put(key, LttbDownsampler.downsample(points, maxPoints,
+                p -> p.getTimestamp().toEpochMilli(), p -> p.getAvgValue() != null ? p.getAvgValue() : 0)));
+        return reduced;
+    }
+
+    private Map<String, List<SensorDataDTO>> getCachedMultiSeries(List<String> deviceIds, List<String> fields,
+            Instant start, Instant end, String window) {
         if (deviceIds == null || deviceIds.isEmpty() || fields == null || fields.isEmpty()) {
             return Collections.emptyMap();
         }
+        // Các block lịch sử đã đóng lấy từ cache, chỉ truy vấn phần còn thiếu
+        return seriesCache.get(deviceIds, fields, start, end, window,
+                (from, to) -> queryMultiSeries(deviceIds, fields, from, to, window));
+    }
 
+    private Map<String, List<SensorDataDTO>> queryMultiSeries(List<String> deviceIds, List<String> fields,
+            Instant start, Instant end, String window) {
         // Tạo các chuỗi filter cho Flux query
         String deviceIdFilter = deviceIds.stream()
                 .map(id -> String.format("r.device_id == \"%s\"", id))
@@ -616,20 +909,14 @@ public class SensorDataService {
                 .map(field -> String.format("r._field == \"%s\"", field))
                 .collect(Collectors.joining(" or "));
 
-        String query = String.format(
-                "from(bucket: \"%s\")\n" +
-                        "  |> range(start: %s, stop: %s)\n" +
-                        "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
-                        "  |> filter(fn: (r) => %s)\n" + // Filter theo device_id
-                        "  |> filter(fn: (r) => %s)\n" + // Filter theo _field
-                        "  |> aggregateWindow(every: %s, fn: mean, createEmpty: false)\n" +
-                        "  |> yield(name: \"mean\")",
-                influxDBConfig.getBucket(),
-                start.toString(),
-                end.toString(),
-                deviceIdFilter,
-                fieldFilter,
-                window);
+        // Window từ 1m trở lên được đọc từ measurement rollup khi đã có
+        String query = rollupService.aggregateQuery(
+                start,
+                end,
+                String.format("(%s) and (%s)", deviceIdFilter, fieldFilter),
+                window,
+                "mean") +
+                "\n  |> yield(name: \"mean\")";
 
         log.info("Executing multi-series query for {} devices and {} fields.", deviceIds.size(), fields.size());
 
@@ -665,12 +952,8 @@ public class SensorDataService {
      * Lấy giá trị trung bình của một trường dữ liệu trong một khoảng thời gian.
      */
     public Double getAverageValueInRange(Long farmId, Long zoneId, String field, Instant start, Instant end) {
-        List<String> deviceIds = getDeviceIdsByFarmAndZone(farmId, zoneId);
-        if (deviceIds.isEmpty()) return null;
-
-        String deviceFilter = deviceIds.stream()
-                .map(id -> String.format("r.device_id == \"%s\"", id))
-                .collect(Collectors.joining(" or "));
+        String deviceFilter = scopeFilter(farmId, zoneId);
+        if (deviceFilter == null) return null;
 
         String query = String.format(
                 "from(bucket: \"%s\")\n" +
@@ -693,12 +976,8 @@ public class SensorDataService {
      * Lấy giá trị gần nhất trước một thời điểm cụ thể.
      */
     public Double getLatestValueBefore(Long farmId, Long zoneId, String field, Instant time) {
-         List<String> deviceIds = getDeviceIdsByFarmAndZone(farmId, zoneId);
-         if (deviceIds.isEmpty()) return null;
-         
-         String deviceFilter = deviceIds.stream()
-                .map(id -> String.format("r.device_id == \"%s\"", id))
-                .collect(Collectors.joining(" or "));
+         String deviceFilter = scopeFilter(farmId, zoneId);
+         if (deviceFilter == null) return null;
 
          // ... query giống hàm cũ nhưng thay deviceIdFilter bằng deviceFilter mới ...
          // ...
@@ -720,6 +999,28 @@ public class SensorDataService {
     }
 
 
+    /**
+     * Bộ lọc Flux cho dữ liệu của một farm (zoneId null) hoặc một zone, lọc
+     * thẳng trên tag farm_id/zone_id. Khi ZoneTagMigration chưa gắn xong tag
+     * zone_id cho dữ liệu cũ, lọc zone vẫn dùng danh sách deviceId từ MySQL.
+     * Trả về null nếu zone không có thiết bị nào.
+     */
+    private String scopeFilter(Long farmId, Long zoneId) {
+        if (zoneId == null) {
+            return String.format("r.farm_id == \"%d\"", farmId);
+        }
+        if (zoneTagMigration.isComplete()) {
+            return String.format("r.farm_id == \"%d\" and r.zone_id == \"%d\"", farmId, zoneId);
+        }
+        List<String> deviceIds = getDeviceIdsByFarmAndZone(farmId, zoneId);
+        if (deviceIds.isEmpty()) {
+            return null;
+        }
+        return deviceIds.stream()
+                .map(id -> String.format("r.device_id == \"%s\"", id))
+                .collect(Collectors.joining(" or "));
+    }
+
     // Lấy danh sách deviceId thuộc zone cụ thể để lọc trong InfluxDB
     public List<String> getDeviceIdsByFarmAndZone(Long farmId, Long zoneId) {
         return deviceRepository.findByFarmId(farmId).stream()
@@ -731,14 +1032,14 @@ public class SensorDataService {
 
      // Hàm lấy dữ liệu hiện tại cho zone
     public SensorDataDTO getLatestDataForZone(Long farmId, Long zoneId) {
-        List<String> deviceIds = getDeviceIdsByFarmAndZone(farmId, zoneId);
-        if (deviceIds.isEmpty()) return null;
-
-        // Logic giống getLatestSensorDataForFarmDevices nhưng filter theo list deviceIds cụ thể
-        // ... (bạn có thể copy logic và thay filter r.device_id)
-         String deviceIdFilter = deviceIds.stream()
-                .map(id -> String.format("r.device_id == \"%s\"", id))
-                .collect(Collectors.joining(" or "));
+        if (latestValues.isWarm()) {
+            return zoneId != null
+                    ? latestValues.findZone(zoneId, Duration.ofDays(30))
+                    : latestValues.findFarm(farmId, Duration.ofDays(30));
+        }
+        // Logic giống getLatestSensorDataForFarmDevices nhưng filter theo zone
+        String deviceIdFilter = scopeFilter(farmId, zoneId);
+        if (deviceIdFilter == null) return null;
 
         String query = String.format(
                 "from(bucket: \"%s\") " +
@@ -782,36 +1083,157 @@ public class SensorDataService {
 
 // [SensorDataService.java]
 
+    /**
+     * Kết quả của {@link #getLatestDataForDevices}: dữ liệu theo deviceId, và các
+     * thiết bị không lấy được vì chunk của chúng lỗi/timeout (khác với thiết bị
+     * không có dữ liệu).
+     */
+    public record LatestBatch(Map<String, SensorDataDTO> data, java.util.Set<String> failedDeviceIds) {
+
+        public boolean isPartial() {
+            return !failedDeviceIds.isEmpty();
+        }
+    }
+
     /**
      * TỐI ƯU HÓA: Lấy dữ liệu mới nhất cho một DANH SÁCH thiết bị (Batch Query).
      * Thay vì gọi 100 query lẻ, ta chỉ gọi 1 query duy nhất.
      */
     public Map<String, SensorDataDTO> getLatestDataForListDevices(java.util.Set<String> deviceIds) {
+        return getLatestDataForDevices(deviceIds).data();
+    }
+
+    /**
+     * Như {@link #getLatestDataForListDevices} nhưng báo cả các thiết bị bị lỗi.
+     * Khi store chưa nạp xong, danh sách thiết bị được chia thành các chunk theo
+     * độ dài bộ lọc ({@code influxdb.query.max-filter-chars}) và chạy song song
+     * trên {@code chunkExecutor}, mỗi chunk có timeout và thử lại riêng. Mỗi
+     * request chỉ có tối đa {@code influxdb.query.parallelism} chunk đang chạy
+     * (kể cả lúc chờ thử lại); thread gọi chờ tới khi có chỗ thay vì để chunk bị
+     * từ chối.
+     */
+    public LatestBatch getLatestDataForDevices(java.util.Set<String> deviceIds) {
         if (deviceIds == null || deviceIds.isEmpty()) {
-            return Collections.emptyMap();
+            return new LatestBatch(Collections.emptyMap(), Collections.emptySet());
+        }
+        if (latestValues.isWarm()) {
+            return new LatestBatch(latestValues.findDevices(deviceIds, Duration.ofHours(24)), Collections.emptySet());
         }
 
-        Map<String, SensorDataDTO> finalResult = new HashMap<>();
-        List<String> allIdsList = new ArrayList<>(deviceIds);
-        
-        // Kích thước mỗi gói: 50 thiết bị (An toàn cho URL length limit)
-        int chunkSize = 50; 
+        List<List<String>> chunks = chunkByFilterLength(deviceIds);
+        List<CompletableFuture<Map<String, SensorDataDTO>>> futures = new ArrayList<>(chunks.size());
+        Semaphore inFlight = new Semaphore(Math.max(queryParallelism, 1));
+        for (List<String> chunk : chunks) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                // Request bị hủy: các chunk chưa chạy tính là lỗi
+                Thread.currentThread().interrupt();
+                futures.add(CompletableFuture.failedFuture(
+                        new CancellationException("Bị interrupt khi chờ chạy chunk")));
+                continue;
+            }
+            CompletableFuture<Map<String, SensorDataDTO>> future = runChunk(chunk, 0);
+            future.whenComplete((r, e) -> inFlight.release());
+            futures.add(future);
+        }
 
-        for (int i = 0; i < allIdsList.size(); i += chunkSize) {
-            // Cắt lấy 1 khúc danh sách
-            List<String> chunk = allIdsList.subList(i, Math.min(i + chunkSize, allIdsList.size()));
-            
-            // Xử lý khúc này
-            Map<String, SensorDataDTO> chunkResult = executeChunkQuery(chunk);
-            finalResult.putAll(chunkResult);
+        Map<String, SensorDataDTO> finalResult = new HashMap<>();
+        java.util.Set<String> failed = new java.util.HashSet<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            try {
+                finalResult.putAll(futures.get(i).join());
+            } catch (CompletionException | CancellationException e) {
+                failed.addAll(chunks.get(i));
+                chunkFailureCounter.increment();
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                log.error(" [Batch Query Chunk] Bỏ {} thiết bị sau {} lần thử: {}", chunks.get(i).size(),
+                        chunkRetries + 1, cause.toString());
+            }
         }
-        
-        return finalResult;
+        if (!failed.isEmpty()) {
+            log.warn(" [Batch Query] {}/{} thiết bị không lấy được dữ liệu do lỗi truy vấn", failed.size(),
+                    deviceIds.size());
+        }
+        return new LatestBatch(finalResult, failed);
     }
 
+    /**
+     * Một lần chạy chunk trên {@code chunkExecutor}. Timeout và việc hẹn giờ thử
+     * lại chạy trên {@code chunkScheduler}, không bao giờ chạy query. Timeout tính
+     * từ lúc chunk bắt đầu chạy (không tính thời gian chờ trong hàng đợi); khi hết
+     * giờ, thread đang chạy bị interrupt nên InfluxQueryStreamer hủy HTTP query.
+     */
+    private CompletableFuture<Map<String, SensorDataDTO>> runChunk(List<String> chunk, int attempt) {
+        CompletableFuture<Map<String, SensorDataDTO>> result = new CompletableFuture<>();
+        AtomicReference<Future<?>> task = new AtomicReference<>();
+        try {
+            task.set(chunkExecutor.submit(() -> {
+                ScheduledFuture<?> timeout = chunkScheduler.schedule(() -> {
+                    if (result.completeExceptionally(
+                            new TimeoutException("Chunk query quá " + chunkTimeoutMs + " ms"))) {
+                        Future<?> running = task.get();
+                        if (running != null) {
+                            running.cancel(true);
+                        }
+                    }
+                }, chunkTimeoutMs, TimeUnit.MILLISECONDS);
+                try {
+                    result.complete(executeChunkQuery(chunk));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    timeout.cancel(false);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            // Chỉ xảy ra khi đang tắt
+            result.completeExceptionally(e);
+        }
 
+        return result.exceptionallyCompose(e -> {
+            if (attempt >= chunkRetries) {
+                return CompletableFuture.failedFuture(e);
+            }
+            chunkRetryCounter.increment();
+            log.debug(" [Batch Query Chunk] Thử lại lần {}: {}", attempt + 1, e.toString());
+            CompletableFuture<Map<String, SensorDataDTO>> retry = new CompletableFuture<>();
+            try {
+                chunkScheduler.schedule(() -> runChunk(chunk, attempt + 1).whenComplete((r, err) -> {
+                    if (err != null) {
+                        retry.completeExceptionally(err);
+                    } else {
+                        retry.complete(r);
+                    }
+                }), chunkRetryDelayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                retry.completeExceptionally(e);
+            }
+            return retry;
+        });
+    }
 
-
+    // Chia theo độ dài chuỗi bộ lọc thay vì số thiết bị cố định: deviceId dài -> chunk nhỏ hơn
+    private List<List<String>> chunkByFilterLength(java.util.Set<String> deviceIds) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        int length = 0;
+        for (String deviceId : deviceIds) {
+            // r.device_id == "X" or
+            int clause = deviceId.length() + 22;
+            if (!current.isEmpty() && length + clause > maxFilterChars) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                length = 0;
+            }
+            current.add(deviceId);
+            length += clause;
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
 
     // Hàm helper để chạy query cho 1 chunk nhỏ
     private Map<String, SensorDataDTO> executeChunkQuery(List<String> deviceIdsChunk) {
@@ -820,74 +1242,61 @@ public class SensorDataService {
                 .map(id -> String.format("r.device_id == \"%s\"", id))
                 .collect(Collectors.joining(" or "));
 
+        // Không pivot theo _time: giá trị cuối của mỗi field có thời điểm riêng, được
+        // ghép theo thiết bị ở dưới (mỗi field giữ thời điểm của nó trong fieldTimes)
         String query = String.format(
                 "from(bucket: \"%s\")\n" +
                 "  |> range(start: -24h)\n" +
                 "  |> filter(fn: (r) => r._measurement == \"sensor_data\")\n" +
                 "  |> filter(fn: (r) => %s)\n" + // Filter chunk này
-                "  |> last()\n" +
-                "  |> pivot(rowKey:[\"_time\"], columnKey: [\"_field\"], valueColumn: \"_value\")",
+                "  |> last()",
                 influxDBConfig.getBucket(), 
                 deviceFilter
         );
 
+        // Lỗi được ném lại để runChunk thử lại và báo thiết bị lỗi cho nơi gọi. Dùng
+        // API stream để query bị hủy khi thread bị interrupt (timeout)
+        long started = System.nanoTime();
         try {
-            QueryApi queryApi = influxDBClient.getQueryApi();
-            List<FluxTable> tables = queryApi.query(query, influxDBConfig.getOrg());
             Map<String, SensorDataDTO> chunkMap = new HashMap<>();
-
-            for (FluxTable table : tables) {
-                for (FluxRecord record : table.getRecords()) {
-                    String deviceId = (String) record.getValueByKey("device_id");
-                    if (deviceId == null) continue;
-
-                    Map<String, Object> values = record.getValues();
-                    SensorDataDTO dto = SensorDataDTO.builder()
-                            .deviceId(deviceId)
-                            .timestamp(record.getTime())
-                            .temperature(getDoubleValue(values, "temperature"))
-                            .humidity(getDoubleValue(values, "humidity"))
-                            .soilMoisture(getDoubleValue(values, "soil_moisture"))
-                            .lightIntensity(getDoubleValue(values, "light_intensity"))
-                            .soilPH(getDoubleValue(values, "soilPH"))
-                            .build();
-                    
-                    chunkMap.put(deviceId, dto);
-                }
-            }
+            queryStreamer.stream(query, record -> record.getValueByKey("device_id") != null ? record : null,
+                    record -> mergeLatestField(chunkMap, record));
             return chunkMap;
-        } catch (Exception e) {
-            log.error(" [Batch Query Chunk] Lỗi: {}", e.getMessage());
-            return Collections.emptyMap();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            chunkTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
         }
-
-
     }
 
-
-
-    /**
-     * [FIX 3 - Data Retention]: Tự động dọn dẹp dữ liệu cũ hơn 90 ngày
-     * Chạy hàng ngày lúc 4:00 AM
-     */
-    @Scheduled(cron = "0 0 4 * * ?")
-    public void cleanupOldSensorData() {
-        log.info("🧹 Bắt đầu dọn dẹp dữ liệu InfluxDB cũ...");
-        try {
-            java.time.OffsetDateTime stop = java.time.OffsetDateTime.now().minusDays(90);
-            java.time.OffsetDateTime start = stop.minusYears(10); 
-            
-            influxDBClient.getDeleteApi().delete(
-                start, 
-                stop, 
-                "_measurement=\"sensor_data\"", 
-                influxDBConfig.getBucket(), 
-                influxDBConfig.getOrg()
-            );
-            
-            log.info(" Đã xóa dữ liệu cảm biến cũ hơn 90 ngày.");
-        } catch (Exception e) {
-            log.error(" Lỗi khi dọn dẹp InfluxDB: {}", e.getMessage());
+    // Một series (thiết bị, field, tag) -> giá trị cuối; nhiều series cùng field (VD đổi zone) thì giữ cái mới nhất
+    private void mergeLatestField(Map<String, SensorDataDTO> latest, FluxRecord record) {
+        String deviceId = (String) record.getValueByKey("device_id");
+        String field = record.getField();
+        Instant time = record.getTime();
+        Double value = getDoubleValue(record.getValues(), "_value");
+        if (field == null || time == null || value == null) {
+            return;
+        }
+        SensorDataDTO dto = latest.computeIfAbsent(deviceId,
+                id -> SensorDataDTO.builder().deviceId(id).fieldTimes(new HashMap<>()).build());
+        Instant current = dto.getFieldTimes().get(field);
+        if (current != null && !time.isAfter(current)) {
+            return;
+        }
+        switch (field) {
+            case "temperature" -> dto.setTemperature(value);
+            case "humidity" -> dto.setHumidity(value);
+            case "soil_moisture" -> dto.setSoilMoisture(value);
+            case "light_intensity" -> dto.setLightIntensity(value);
+            case "soilPH" -> dto.setSoilPH(value);
+            default -> {
+                return;
+            }
+        }
+        dto.getFieldTimes().put(field, time);
+        if (dto.getTimestamp() == null || time.isAfter(dto.getTimestamp())) {
+            dto.setTimestamp(time);
         }
     }
 }
@@ -0,0 +1,315 @@
+package com.example.iotserver.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.service.journal.SensorJournal;
+import com.example.iotserver.service.rollup.SensorRollupService;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Cache kết quả aggregate theo cửa sổ cho biểu đồ lịch sử (getMultiSeriesData).
+ * <p>
+ * Khoảng thời gian yêu cầu được căn theo biên cửa sổ (giống aggregateWindow,
+ * tính từ epoch) rồi chia thành các block cố định gồm
+ * {@code analytics.cache.windows-per-block} cửa sổ. Block đã đóng (kết thúc
+ * trước {@code now - analytics.cache.settle-seconds}) không còn thay đổi nên
+ * được cache theo (deviceId, field, window, block), kể cả khi rỗng. Với một
+ * request, chỉ các block chưa có trong cache và block cuối còn mở mới được
+ * truy vấn; nên hai người xem cùng một biểu đồ, hay một dashboard tự refresh,
+ * dùng chung kết quả.
+ * <p>
+ * Block chỉ được coi là đóng sau cả độ trễ replay của journal. Point cũ hơn
+ * settle (journal replay, gateway gửi lô dữ liệu cũ) được báo qua
+ * {@link #recordWrite}: các block của thiết bị đó trong khoảng bị ghi không
+ * dùng cache cho tới khi point chắc chắn đã vào InfluxDB (settle + độ trễ
+ * journal sau lần ghi muộn cuối), rồi bị bỏ khỏi cache để lần sau đọc lại.
+ * <p>
+ * Cache giới hạn theo số block ({@code analytics.cache.max-blocks}), bỏ block
+ * ít dùng nhất khi đầy. Tỉ lệ trúng: {@code analytics.cache.blocks{result}} và
+ * gauge {@code analytics.cache.hit.ratio}.
+ */
+@Component
+@RequiredArgsConstructor
+public class SeriesBucketCache {
+
+    private final SensorJournal journal;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${analytics.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${analytics.cache.windows-per-block:60}")
+    private int windowsPerBlock;
+
+    @Value("${analytics.cache.max-blocks:20000}")
+    private int maxBlocks;
+
+    // Dữ liệu đến muộn (journal replay) vẫn có thể rơi vào block vừa kết thúc
+    @Value("${analytics.cache.settle-seconds:600}")
+    private long settleSeconds;
+
+    /**
+     * Chạy truy vấn cho mọi thiết bị/field của request trong {@code [from, to)},
+     * trả kết quả theo key {@code deviceId + "_" + field}.
+     */
+    @FunctionalInterface
+    public interface SeriesLoader {
+        Map<String, List<SensorDataDTO>> load(Instant from, Instant to);
+    }
+
+    private record BlockKey(String deviceId, String field, String window, long block) {
+    }
+
+    // Khoảng timestamp bị ghi muộn của một thiết bị và lúc ghi muộn gần nhất
+    private record LateRange(long from, long to, long markedAt) {
+        LateRange merge(LateRange other) {
+            return new LateRange(Math.min(from, other.from), Math.max(to, other.to),
+                    Math.max(markedAt, other.markedAt));
+        }
+
+        boolean overlaps(long start, long end) {
+            return from < end && to >= start;
+        }
+    }
+
+    private Map<BlockKey, List<SensorDataDTO>> blocks;
+    private final Map<String, LateRange> lateWrites = new ConcurrentHashMap<>();
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Counter evictionCounter;
+    private Counter lateEvictionCounter;
+
+    @PostConstruct
+    public void init() {
+        int capacity = Math.max(maxBlocks, 1);
+        blocks = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BlockKey, List<SensorDataDTO>> eldest) {
+                if (size() > capacity) {
+                    evictionCounter.increment();
+                    return true;
+                }
+                return false;
+            }
+        });
+        hitCounter = Counter.builder("analytics.cache.blocks").tag("result", "hit")
+                .description("Số block lịch sử lấy từ cache")
+                .register(meterRegistry);
+        missCounter = Counter.builder("analytics.cache.blocks").tag("result", "miss")
+                .description("Số block lịch sử phải truy vấn InfluxDB")
+                .register(meterRegistry);
+        evictionCounter = Counter.builder("analytics.cache.evictions").register(meterRegistry);
+        lateEvictionCounter = Counter.builder("analytics.cache.late.evictions")
+                .description("Block bị bỏ khỏi cache vì có dữ liệu ghi muộn")
+                .register(meterRegistry);
+        Gauge.builder("analytics.cache.size", this, c -> c.blocks.size()).register(meterRegistry);
+        Gauge.builder("analytics.cache.hit.ratio", this, SeriesBucketCache::hitRatio).register(meterRegistry);
+    }
+
+    /**
+     * Gọi khi ingest ghi một point (vào journal hoặc WriteApi). Chỉ point cũ
+     * hơn {@code settle-seconds} có thể rơi vào block đã cache.
+     */
+    public void recordWrite(String deviceId, Instant timestamp) {
+        if (!enabled || deviceId == null || timestamp == null) {
+            return;
+        }
+        long ts = timestamp.toEpochMilli();
+        long now = System.currentTimeMillis();
+        if (ts < now - settleSeconds * 1000) {
+            lateWrites.merge(deviceId, new LateRange(ts, ts, now), LateRange::merge);
+        }
+    }
+
+    /**
+     * Kết quả cho {@code [start, end)} căn theo {@code window}: gồm mọi cửa sổ
+     * giao với khoảng yêu cầu. Window theo lịch (mo, y) hoặc cache tắt thì gọi
+     * thẳng {@code loader}.
+     */
+    public Map<String, List<SensorDataDTO>> get(List<String> deviceIds, List<String> fields, Instant start,
+            Instant end, String window, SeriesLoader loader) {
+        Duration every = SensorRollupService.parseDuration(window);
+        if (!enabled || every == null || every.isZero() || !start.isBefore(end)) {
+            return loader.load(start, end);
+        }
+
+        long everyMs = every.toMillis();
+        long blockMs = everyMs * Math.max(windowsPerBlock, 1);
+        long from = Math.floorDiv(start.toEpochMilli(), everyMs) * everyMs;
+        long to = -Math.floorDiv(-end.toEpochMilli(), everyMs) * everyMs;
+        long firstBlock = Math.floorDiv(from, blockMs);
+        long lastBlock = Math.floorDiv(to - 1, blockMs);
+        long now = System.currentTimeMillis();
+        evictSettledLateWrites(now);
+        long closedBefore = Math.floorDiv(now - settleSeconds * 1000 - journalLagMillis(), blockMs);
+        Map<String, LateRange> late = lateWrites.isEmpty() ? Map.of() : Map.copyOf(lateWrites);
+
+        // Block nào thiếu với ít nhất một series thì truy vấn lại cho cả request
+        boolean[] missing = new boolean[(int) (lastBlock - firstBlock + 1)];
+        for (long block = firstBlock; block <= lastBlock; block++) {
+            int i = (int) (block - firstBlock);
+            if (block >= closedBefore) {
+                missing[i] = true;
+                continue;
+            }
+            for (String deviceId : deviceIds) {
+                for (String field : fields) {
+                    if (isLate(late, deviceId, block, blockMs)
+                            || !blocks.containsKey(new BlockKey(deviceId, field, window, block))) {
+                        missing[i] = true;
+                    }
+                }
+            }
+        }
+
+        Map<Long, Map<String, List<SensorDataDTO>>> loaded = new HashMap<>();
+        int i = 0;
+        while (i < missing.length) {
+            if (!missing[i]) {
+                hitCounter.increment();
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j < missing.length && missing[j]) {
+                j++;
+            }
+            // Block đóng lấy trọn để cache được; block còn mở chỉ lấy tới hết request
+            long runFrom = (firstBlock + i) * blockMs;
+            long runTo = (firstBlock + j) * blockMs;
+            if (firstBlock + j - 1 >= closedBefore) {
+                runTo = Math.min(runTo, to);
+                if (firstBlock + i >= closedBefore) {
+                    runFrom = Math.max(runFrom, from);
+                }
+            }
+            missCounter.increment(j - i);
+            split(loader.load(Instant.ofEpochMilli(runFrom), Instant.ofEpochMilli(runTo)), everyMs, blockMs, loaded);
+            i = j;
+        }
+
+        Map<String, List<SensorDataDTO>> result = new HashMap<>();
+        for (String deviceId : deviceIds) {
+            for (String field : fields) {
+                String seriesKey = deviceId + "_" + field;
+                List<SensorDataDTO> series = new ArrayList<>();
+                for (long block = firstBlock; block <= lastBlock; block++) {
+                    List<SensorDataDTO> points;
+                    BlockKey key = new BlockKey(deviceId, field, window, block);
+                    if (missing[(int) (block - firstBlock)]) {
+                        points = loaded.getOrDefault(block, Map.of()).getOrDefault(seriesKey, List.of());
+                        if (block < closedBefore && !isLate(late, deviceId, block, blockMs)) {
+                            blocks.put(key, List.copyOf(points));
+                        }
+                    } else {
+                        points = blocks.get(key);
+                        if (points == null) {
+                            // Bị bỏ khỏi cache giữa lúc kiểm tra và lúc đọc
+                            return loader.load(start, end);
+                        }
+                    }
+                    for (SensorDataDTO point : points) {
+                        long t = point.getTimestamp().toEpochMilli();
+                        if (t > from && t <= to) {
+                            series.add(point);
+                        }
+                    }
+                }
+                if (!series.isEmpty()) {
+                    result.put(seriesKey, series);
+                }
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        blocks.clear();
+        lateWrites.clear();
+    }
+
+    private static boolean isLate(Map<String, LateRange> late, String deviceId, long block, long blockMs) {
+        LateRange range = late.get(deviceId);
+        return range != null && range.overlaps(block * blockMs, (block + 1) * blockMs);
+    }
+
+    /**
+     * Bỏ khỏi cache các block bị ghi muộn mà point đã chắc chắn vào InfluxDB;
+     * khoảng còn chờ vẫn được giữ để get() không dùng cache cho chúng.
+     */
+    private void evictSettledLateWrites(long now) {
+        if (lateWrites.isEmpty()) {
+            return;
+        }
+        long settledBefore = now - settleSeconds * 1000 - journalLagMillis();
+        Map<String, LateRange> settled = new HashMap<>();
+        for (Map.Entry<String, LateRange> entry : lateWrites.entrySet()) {
+            LateRange range = entry.getValue();
+            // Chỉ xóa đúng bản ghi đã đọc; lần ghi muộn mới hơn giữ khoảng lại
+            if (range.markedAt() < settledBefore && lateWrites.remove(entry.getKey(), range)) {
+                settled.put(entry.getKey(), range);
+            }
+        }
+        if (settled.isEmpty()) {
+            return;
+        }
+        synchronized (blocks) {
+            blocks.keySet().removeIf(key -> {
+                LateRange range = settled.get(key.deviceId());
+                if (range == null) {
+                    return false;
+                }
+                Duration every = SensorRollupService.parseDuration(key.window());
+                long blockMs = every.toMillis() * Math.max(windowsPerBlock, 1);
+                if (range.overlaps(key.block() * blockMs, (key.block() + 1) * blockMs)) {
+                    lateEvictionCounter.increment();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
+    private long journalLagMillis() {
+        return journal.isEnabled() ? (long) (journal.lagSeconds() * 1000) : 0;
+    }
+
+    // _time của aggregateWindow là cuối cửa sổ; xếp point vào block chứa đầu cửa sổ
+    private static void split(Map<String, List<SensorDataDTO>> data, long everyMs, long blockMs,
+            Map<Long, Map<String, List<SensorDataDTO>>> into) {
+        for (Map.Entry<String, List<SensorDataDTO>> series : data.entrySet()) {
+            for (SensorDataDTO point : series.getValue()) {
+                if (point.getTimestamp() == null) {
+                    continue;
+                }
+                long block = Math.floorDiv(point.getTimestamp().toEpochMilli() - everyMs, blockMs);
+                into.computeIfAbsent(block, b -> new HashMap<>())
+                        .computeIfAbsent(series.getKey(), k -> new ArrayList<>())
+                        .add(point);
+            }
+        }
+    }
+
+    private double hitRatio() {
+        double hits = hitCounter.count();
+        double total = hits + missCounter.count();
+        return total == 0 ? 0 : hits / total;
+    }
+}
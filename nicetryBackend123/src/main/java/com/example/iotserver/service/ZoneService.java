@@ -6,10 +6,12 @@ import com.example.iotserver.entity.Farm;
 import com.example.iotserver.entity.User;
 import com.example.iotserver.entity.Zone;
 import com.example.iotserver.enums.FarmRole;
+import com.example.iotserver.event.DeviceChangedEvent;
 import com.example.iotserver.exception.ResourceNotFoundException;
 import com.example.iotserver.repository.FarmRepository;
 import com.example.iotserver.repository.ZoneRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -27,6 +29,7 @@ public class ZoneService {
     private final FarmService farmService;
     private final AuthenticationService authenticationService;
     private final PlantProfileRepository plantProfileRepository; // Thêm repo này
+    private final ApplicationEventPublisher eventPublisher;
 
     // CRUD operations...
     @Transactional
@@ -91,6 +94,8 @@ public class ZoneService {
         }
         // ^^^^-------------------------------^^^^
 
+        // Tên zone/plantProfile nằm trong DeviceSnapshot nên cần làm mới registry
+        eventPublisher.publishEvent(DeviceChangedEvent.zoneChanged(zoneId));
         return mapToDTO(zoneRepository.save(zone));
     }
 
@@ -106,6 +111,7 @@ public class ZoneService {
         zone.getDevices().forEach(device -> device.setZone(null));
 
         zoneRepository.delete(zone);
+        eventPublisher.publishEvent(DeviceChangedEvent.zoneChanged(zoneId));
     }
 
     private ZoneDTO mapToDTO(Zone zone) {
@@ -2,6 +2,7 @@ package com.example.iotserver.service.impl;
 
 import java.util.Optional;
 
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.security.crypto.password.PasswordEncoder;
@@ -11,6 +12,7 @@ import org.springframework.transaction.annotation.Transactional;
 import com.example.iotserver.dto.request.SetPasswordRequest;
 import com.example.iotserver.dto.request.UpdateUserRequest;
 import com.example.iotserver.entity.User;
+import com.example.iotserver.event.DeviceChangedEvent;
 import com.example.iotserver.exception.ResourceNotFoundException;
 import com.example.iotserver.repository.UserRepository;
 import com.example.iotserver.service.UserService;
@@ -23,11 +25,15 @@ public class UserServiceImpl implements UserService {
 
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Override
     @Transactional
     public User save(User user) {
-        return userRepository.save(user);
+        User saved = userRepository.save(user);
+        // Email/họ tên chủ farm nằm trong DeviceSnapshot
+        eventPublisher.publishEvent(DeviceChangedEvent.ownerChanged(saved.getId()));
+        return saved;
     }
 
     @Override
@@ -104,7 +110,9 @@ public class UserServiceImpl implements UserService {
             user.setEnabled(request.getEnabled());
         }
 
-        return userRepository.save(user);
+        User saved = userRepository.save(user);
+        eventPublisher.publishEvent(DeviceChangedEvent.ownerChanged(userId));
+        return saved;
     }
 
     @Override
@@ -128,5 +136,6 @@ public class UserServiceImpl implements UserService {
         user.setEnabled(false); // Một user bị xóa cũng nên bị vô hiệu hóa
 
         userRepository.save(user);
+        eventPublisher.publishEvent(DeviceChangedEvent.ownerChanged(userId));
     }
 }
\ No newline at end of file
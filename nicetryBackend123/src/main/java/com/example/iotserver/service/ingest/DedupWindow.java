@@ -0,0 +1,121 @@
+package com.example.iotserver.service.ingest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Cửa sổ chống trùng lặp cho message MQTT QoS 1 bị gửi lại.
+ * <p>
+ * Mỗi message được quy về một fingerprint 64-bit từ (deviceId, timestamp của
+ * thiết bị) hoặc, nếu payload không có timestamp, (deviceId, MQTT message id,
+ * nội dung payload). Fingerprint được lưu trong một mảng {@code long[]} kích
+ * thước cố định, tổ chức kiểu set-associative 4 ngả: bộ nhớ luôn là
+ * {@code 8 * capacity} byte, không tạo object cho mỗi message. Khi đầy, mục cũ
+ * nhất trong cùng bucket bị ghi đè, nên cửa sổ xấp xỉ "capacity message gần
+ * nhất".
+ */
+@Component
+@RequiredArgsConstructor
+public class DedupWindow {
+
+    private static final int WAYS = 4;
+
+    private final MeterRegistry meterRegistry;
+
+    // Làm tròn lên lũy thừa của 2
+    @Value("${ingest.dedup.capacity:65536}")
+    private int capacity;
+
+    @Value("${ingest.dedup.enabled:true}")
+    private boolean enabled;
+
+    private long[] slots;
+    private byte[] nextWay;
+    private int bucketMask;
+
+    private Counter checkedCounter;
+    private Counter duplicateCounter;
+
+    @PostConstruct
+    public void init() {
+        int size = Integer.highestOneBit(Math.max(WAYS, capacity - 1) << 1);
+        slots = new long[size];
+        nextWay = new byte[size / WAYS];
+        bucketMask = size / WAYS - 1;
+
+        checkedCounter = Counter.builder("ingest.dedup.checked")
+                .description("Số message đã kiểm tra trùng lặp")
+                .register(meterRegistry);
+        duplicateCounter = Counter.builder("ingest.messages").tag("result", "duplicate")
+                .description("Số message trùng lặp bị bỏ (QoS 1 gửi lại)")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Ghi nhận một reading có timestamp của thiết bị.
+     *
+     * @return true nếu đã thấy (deviceId, timestamp) này trong cửa sổ.
+     */
+    public boolean isDuplicate(String deviceId, long deviceTimestamp) {
+        return check(mix(hash(deviceId) ^ 0x9E3779B97F4A7C15L, deviceTimestamp));
+    }
+
+    /**
+     * Ghi nhận một message không có timestamp của thiết bị: dùng MQTT message id
+     * kèm nội dung payload (message id bị broker dùng lại sau 65535 message).
+     *
+     * @return true nếu đã thấy message này trong cửa sổ.
+     */
+    public boolean isDuplicate(String deviceId, int messageId, byte[] payload) {
+        long h = mix(hash(deviceId), messageId);
+        for (byte b : payload) {
+            h = (h ^ b) * 0x100000001B3L;
+        }
+        return check(mix(h, payload.length));
+    }
+
+    private boolean check(long fingerprint) {
+        if (!enabled) {
+            return false;
+        }
+        checkedCounter.increment();
+        // 0 đánh dấu slot trống
+        long fp = fingerprint == 0 ? 1 : fingerprint;
+        int bucket = (int) (fp >>> 32) & bucketMask;
+        int base = bucket * WAYS;
+
+        synchronized (this) {
+            for (int i = 0; i < WAYS; i++) {
+                if (slots[base + i] == fp) {
+                    duplicateCounter.increment();
+                    return true;
+                }
+            }
+            int way = nextWay[bucket];
+            slots[base + way] = fp;
+            nextWay[bucket] = (byte) ((way + 1) % WAYS);
+        }
+        return false;
+    }
+
+    private static long hash(String value) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    // Bộ trộn bit của SplitMix64
+    private static long mix(long seed, long value) {
+        long z = seed + value * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.iotserver.service.ingest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.enums.DeviceType;
+import com.example.iotserver.service.DeviceRegistry;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Giới hạn tốc độ gửi dữ liệu của từng thiết bị bằng token bucket.
+ * <p>
+ * Cấu hình theo {@link DeviceType}:
+ * {@code ingest.rate-limit.<DEVICE_TYPE>.per-second} và
+ * {@code ingest.rate-limit.<DEVICE_TYPE>.burst}; loại không cấu hình dùng
+ * {@code ingest.rate-limit.default-per-second} / {@code default-burst}.
+ * <p>
+ * Message vượt giới hạn không bị bỏ ngay mà được gộp (chỉ giữ message mới
+ * nhất của mỗi thiết bị) và được xử lý khi thiết bị có token trở lại.
+ * <p>
+ * Chỉ thiết bị có trong {@link DeviceRegistry} mới có bucket riêng; mọi
+ * deviceId lạ dùng chung một bucket ({@code ingest.rate-limit.unknown-per-second}
+ * / {@code unknown-burst}) và message vượt giới hạn của chúng bị bỏ thay vì
+ * gộp, nên client gửi deviceId ngẫu nhiên không làm phình bộ nhớ. Bucket không
+ * dùng quá {@code ingest.rate-limit.idle-evict-ms} (hoặc thiết bị đã bị xóa
+ * khỏi registry) được dọn định kỳ.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class DeviceRateLimiter {
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final DeviceRegistry deviceRegistry;
+
+    @Value("${ingest.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${ingest.rate-limit.default-per-second:1.0}")
+    private double defaultPerSecond;
+
+    @Value("${ingest.rate-limit.default-burst:5}")
+    private double defaultBurst;
+
+    @Value("${ingest.rate-limit.unknown-per-second:20}")
+    private double unknownPerSecond;
+
+    @Value("${ingest.rate-limit.unknown-burst:50}")
+    private double unknownBurst;
+
+    @Value("${ingest.rate-limit.idle-evict-ms:600000}")
+    private long idleEvictMs;
+
+    private final Map<DeviceType, double[]> limitsByType = new EnumMap<>(DeviceType.class);
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private TokenBucket unknownBucket;
+
+    private Counter limitedCounter;
+    private Counter coalescedCounter;
+    private Counter unknownDroppedCounter;
+    private Counter evictedCounter;
+
+    /**
+     * Message đang chờ của một thiết bị (chỉ giữ bản mới nhất).
+     */
+    public record Pending(String topic, byte[] payload, Integer messageId) {
+    }
+
+    @PostConstruct
+    public void init() {
+        for (DeviceType type : DeviceType.values()) {
+            double perSecond = environment.getProperty("ingest.rate-limit." + type.name() + ".per-second",
+                    Double.class, defaultPerSecond);
+            double burst = environment.getProperty("ingest.rate-limit." + type.name() + ".burst",
+                    Double.class, defaultBurst);
+            limitsByType.put(type, new double[] { perSecond, Math.max(1, burst) });
+        }
+        unknownBucket = new TokenBucket(unknownPerSecond, Math.max(1, unknownBurst));
+        limitedCounter = Counter.builder("ingest.messages").tag("result", "rate_limited")
+                .description("Số message vượt giới hạn tốc độ của thiết bị")
+                .register(meterRegistry);
+        coalescedCounter = Counter.builder("ingest.messages").tag("result", "coalesced")
+                .description("Số message bị thay thế bởi message mới hơn của cùng thiết bị")
+                .register(meterRegistry);
+        unknownDroppedCounter = Counter.builder("ingest.messages").tag("result", "unknown_rate_limited")
+                .description("Số message từ deviceId chưa có trong registry bị bỏ do vượt giới hạn chung")
+                .register(meterRegistry);
+        evictedCounter = Counter.builder("ingest.rate-limit.evicted")
+                .description("Số bucket giới hạn tốc độ bị dọn vì không dùng")
+                .register(meterRegistry);
+        Gauge.builder("ingest.rate-limit.buckets", buckets, Map::size).register(meterRegistry);
+    }
+
+    /**
+     * Thử lấy một token cho thiết bị. Nếu được phép, message đang chờ (cũ hơn)
+     * của thiết bị bị bỏ vì đã có message mới hơn.
+     *
+     * @return true nếu message được xử lý ngay.
+     */
+    public boolean tryAcquire(String deviceId) {
+        if (!enabled) {
+            return true;
+        }
+        TokenBucket bucket = bucketOf(deviceId);
+        if (bucket == null) {
+            // Thiết bị lạ: không tạo state riêng, worker sẽ tra DeviceRegistry và bỏ nếu chưa đăng ký
+            return unknownBucket.tryAcquire();
+        }
+        if (!bucket.tryAcquire()) {
+            return false;
+        }
+        if (pending.remove(deviceId) != null) {
+            coalescedCounter.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Giữ lại message vượt giới hạn, thay thế message đang chờ trước đó. Message
+     * của thiết bị không có bucket (chưa có trong registry) bị bỏ.
+     */
+    public void coalesce(String deviceId, String topic, byte[] payload, Integer messageId) {
+        if (!buckets.containsKey(deviceId)) {
+            unknownDroppedCounter.increment();
+            return;
+        }
+        limitedCounter.increment();
+        if (pending.put(deviceId, new Pending(topic, payload, messageId)) != null) {
+            coalescedCounter.increment();
+        }
+    }
+
+    /**
+     * Chuyển các message đang chờ của những thiết bị đã có token trở lại cho
+     * {@code consumer}.
+     */
+    public void drainReady(BiConsumer<String, Pending> consumer) {
+        pending.forEach((deviceId, message) -> {
+            TokenBucket bucket = buckets.get(deviceId);
+            if ((bucket == null || bucket.tryAcquire()) && pending.remove(deviceId, message)) {
+                consumer.accept(deviceId, message);
+            }
+        });
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Dọn bucket không dùng quá {@code idle-evict-ms} (bucket đó đã nạp đầy nên
+     * tạo lại sau này không đổi hành vi) và bucket của thiết bị đã bị xóa.
+     * Thiết bị còn message đang chờ thì giữ lại để drainReady xử lý trước.
+     */
+    @Scheduled(fixedDelayString = "${ingest.rate-limit.evict-interval-ms:60000}")
+    public void evictIdleBuckets() {
+        long now = System.nanoTime();
+        int before = buckets.size();
+        buckets.entrySet().removeIf(entry -> !pending.containsKey(entry.getKey())
+                && (entry.getValue().idleNanos(now) > entry.getValue().refillNanos(idleEvictMs)
+                        || deviceRegistry.peek(entry.getKey()) == null));
+        int evicted = before - buckets.size();
+        if (evicted > 0) {
+            evictedCounter.increment(evicted);
+            log.debug("Đã dọn {} bucket giới hạn tốc độ, còn {}", evicted, buckets.size());
+        }
+    }
+
+    int bucketCount() {
+        return buckets.size();
+    }
+
+    private TokenBucket bucketOf(String deviceId) {
+        TokenBucket bucket = buckets.get(deviceId);
+        if (bucket != null) {
+            return bucket;
+        }
+        // Chạy trên thread MQTT nên chỉ đọc bộ nhớ, không fallback về MySQL
+        DeviceSnapshot device = deviceRegistry.peek(deviceId);
+        if (device == null) {
+            return null;
+        }
+        return buckets.computeIfAbsent(deviceId, id -> {
+            DeviceType type = device.getType();
+            double[] limit = type != null
+                    ? limitsByType.get(type)
+                    : new double[] { defaultPerSecond, Math.max(1, defaultBurst) };
+            return new TokenBucket(limit[0], limit[1]);
+        });
+    }
+
+    /**
+     * Token bucket đơn giản, nạp lại theo thời gian thực (nanoTime).
+     */
+    static final class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double perSecond, double capacity) {
+            this.tokensPerNano = perSecond / 1_000_000_000d;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized long idleNanos(long now) {
+            return now - lastRefill;
+        }
+
+        /**
+         * Không ngắn hơn thời gian để bucket nạp đầy lại.
+         */
+        long refillNanos(long minMillis) {
+            long full = tokensPerNano > 0 ? (long) (capacity / tokensPerNano) : Long.MAX_VALUE;
+            return Math.max(TimeUnit.MILLISECONDS.toNanos(minMillis), full);
+        }
+    }
+}
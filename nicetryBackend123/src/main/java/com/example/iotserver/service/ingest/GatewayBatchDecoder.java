@@ -0,0 +1,139 @@
+package com.example.iotserver.service.ingest;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Giải mã payload của topic {@code gateway/{gatewayId}/batch}: một gateway gom
+ * dữ liệu của nhiều cảm biến vào một message.
+ *
+ * <pre>
+ * {
+ *   "gatewayId": "GW-01",
+ *   "readings": [
+ *     { "deviceId": "DHT22-0001", "timestamp": 1718000000000, "temperature": 28.4, "humidity": 71.2 },
+ *     { "deviceId": "SOIL-0002", "soilMoisture": 43.9 }
+ *   ]
+ * }
+ * </pre>
+ *
+ * {@code timestamp} (epoch millis) là tùy chọn, mặc định là thời điểm nhận.
+ * Các trường cảm biến giống payload {@code sensor/+/data}. Reading không hợp lệ
+ * (thiếu deviceId, không có giá trị nào, timestamp ở tương lai) bị bỏ riêng lẻ,
+ * không làm hỏng cả batch. Reading có timestamp đã được xử lý trước đó (gateway
+ * gửi lại batch) bị bỏ qua {@link DedupWindow}.
+ */
+@Component
+@Slf4j
+public class GatewayBatchDecoder {
+
+    // Cho phép lệch đồng hồ giữa gateway và server
+    private static final long MAX_CLOCK_SKEW_MS = 5 * 60 * 1000L;
+
+    private final JsonFactory jsonFactory;
+    private final DedupWindow dedupWindow;
+
+    @Value("${ingest.gateway.max-readings:1000}")
+    private int maxReadings;
+
+    public GatewayBatchDecoder(ObjectMapper objectMapper, DedupWindow dedupWindow) {
+        this.jsonFactory = objectMapper.getFactory();
+        this.dedupWindow = dedupWindow;
+    }
+
+    /**
+     * @return các reading hợp lệ, theo đúng thứ tự trong payload. deviceId đã
+     *         được chuẩn hóa chữ hoa.
+     * @throws IOException nếu payload sai cấu trúc hoặc vượt quá số reading cho
+     *                     phép.
+     */
+    public List<SensorDataDTO> decode(String gatewayId, byte[] payload) throws IOException {
+        List<SensorDataDTO> readings = new ArrayList<>();
+        SensorReading scratch = new SensorReading();
+        long now = System.currentTimeMillis();
+        int rejected = 0;
+        int duplicates = 0;
+
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Payload batch phải là JSON object");
+            }
+            String name;
+            while ((name = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                if (!"readings".equals(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (value != JsonToken.START_ARRAY) {
+                    throw new IOException("'readings' phải là JSON array");
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (readings.size() + rejected + duplicates >= maxReadings) {
+                        throw new IOException("Batch vượt quá " + maxReadings + " reading");
+                    }
+                    SensorDataDTO reading = readReading(parser, scratch, now);
+                    if (reading == null) {
+                        rejected++;
+                    } else if (scratch.getDeviceTimestamp() > 0
+                            && dedupWindow.isDuplicate(reading.getDeviceId(), scratch.getDeviceTimestamp())) {
+                        duplicates++;
+                    } else {
+                        readings.add(reading);
+                    }
+                }
+                if (parser.currentToken() != JsonToken.END_ARRAY) {
+                    throw new IOException("Phần tử của 'readings' phải là JSON object");
+                }
+            }
+        }
+
+        if (rejected > 0) {
+            log.warn("Gateway {}: bỏ {} reading không hợp lệ trong batch", gatewayId, rejected);
+        }
+        if (duplicates > 0) {
+            log.debug("Gateway {}: bỏ {} reading trùng lặp trong batch", gatewayId, duplicates);
+        }
+        return readings;
+    }
+
+    private SensorDataDTO readReading(JsonParser parser, SensorReading scratch, long now) throws IOException {
+        scratch.reset();
+        String deviceId = null;
+        long timestamp = now;
+
+        String name;
+        while ((name = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            if ("deviceId".equals(name)) {
+                deviceId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+            } else if ("timestamp".equals(name)) {
+                long deviceTimestamp = SensorPayloadDecoder.readEpochMillis(parser, value);
+                if (deviceTimestamp > 0) {
+                    timestamp = deviceTimestamp;
+                    scratch.setDeviceTimestamp(deviceTimestamp);
+                }
+            } else if (!SensorPayloadDecoder.readField(parser, name, value, scratch)) {
+                parser.skipChildren();
+            }
+        }
+
+        if (deviceId == null || deviceId.isBlank() || scratch.isEmpty() || timestamp > now + MAX_CLOCK_SKEW_MS) {
+            return null;
+        }
+        return scratch.toDTO(deviceId.toUpperCase(), Instant.ofEpochMilli(timestamp));
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.iotserver.service.ingest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tín hiệu backpressure từ phía ghi InfluxDB (BackpressureEvent của WriteApi,
+ * journal sắp đầy) về phía nhận MQTT.
+ * <p>
+ * Khi có tín hiệu, thread MQTT chờ trong {@link #awaitRelief()} trước khi nhận
+ * message kế tiếp thay vì bỏ dữ liệu: Paho ngừng đọc socket, broker giữ lại
+ * các message QoS 1 chưa ack. Mỗi message chờ tối đa
+ * {@code ingest.backpressure.max-wait-ms} để kết nối MQTT không bị timeout.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class IngestBackpressure {
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${ingest.backpressure.max-wait-ms:2000}")
+    private long maxWaitMs;
+
+    // Nguồn tín hiệu -> thời điểm hết hiệu lực (epoch millis)
+    private final Map<String, Long> activeUntil = new ConcurrentHashMap<>();
+
+    private Timer waitTimer;
+
+    @PostConstruct
+    public void init() {
+        waitTimer = Timer.builder("ingest.backpressure.wait")
+                .description("Thời gian thread MQTT chờ do backpressure từ phía ghi")
+                .register(meterRegistry);
+        Gauge.builder("ingest.backpressure.active", this, b -> b.isActive() ? 1 : 0)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Bật backpressure từ {@code source} trong {@code holdMs} (dùng cho sự kiện
+     * không có tín hiệu kết thúc, VD BackpressureEvent).
+     */
+    public void engage(String source, long holdMs) {
+        long until = System.currentTimeMillis() + holdMs;
+        if (activeUntil.put(source, until) == null) {
+            log.warn("Bật backpressure cho ingest (nguồn: {})", source);
+        }
+    }
+
+    /**
+     * Bật/tắt backpressure theo trạng thái của {@code source} (VD độ đầy của
+     * journal).
+     */
+    public void setActive(String source, boolean active) {
+        if (active) {
+            if (activeUntil.put(source, Long.MAX_VALUE) == null) {
+                log.warn("Bật backpressure cho ingest (nguồn: {})", source);
+            }
+        } else if (activeUntil.remove(source) != null) {
+            log.info("Tắt backpressure cho ingest (nguồn: {})", source);
+        }
+    }
+
+    public boolean isActive() {
+        if (activeUntil.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        activeUntil.entrySet().removeIf(e -> e.getValue() <= now);
+        return !activeUntil.isEmpty();
+    }
+
+    /**
+     * Chờ tới khi hết backpressure hoặc quá {@code max-wait-ms}. Không bao giờ
+     * bỏ message.
+     */
+    public void awaitRelief() {
+        if (!isActive()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        while (isActive() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(POLL_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.iotserver.service.ingest;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pipeline xử lý dữ liệu MQTT theo 2 stage, cả hai đều phân vùng theo deviceId:
+ * <ul>
+ * <li><b>ingest</b>: giải mã payload, tra cứu thiết bị, ghi InfluxDB, cập nhật
+ * trạng thái thiết bị.</li>
+ * <li><b>effects</b>: các tác vụ phụ (WebSocket, phân tích sức khỏe cây, cảnh
+ * báo ngưỡng) không được phép làm chậm việc ghi dữ liệu.</li>
+ * </ul>
+ * Thread nhận MQTT (Paho callback) chỉ việc gọi {@link #submit}.
+ * <p>
+ * Khi hàng đợi gần đầy, pipeline vào chế độ quá tải ({@link #isOverloaded()}):
+ * nơi gọi bỏ bớt tác vụ không quan trọng (WebSocket, phân tích sức khỏe cây)
+ * để ưu tiên ghi dữ liệu. Có ngưỡng vào/ra riêng để tránh bật tắt liên tục.
+ * Cảnh báo ngưỡng đi qua {@link #submitAlert}: được chờ chỗ trống trong hàng
+ * đợi effects một khoảng ngắn thay vì bị bỏ ngay, và được đếm riêng khi vẫn bị
+ * bỏ.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class IngestPipeline {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${ingest.pipeline.ingest-workers:4}")
+    private int ingestWorkers;
+
+    @Value("${ingest.pipeline.effect-workers:2}")
+    private int effectWorkers;
+
+    // Tổng sức chứa của mỗi stage, chia đều cho các partition
+    @Value("${ingest.pipeline.queue-capacity:10000}")
+    private int queueCapacity;
+
+    // Thời gian tối đa thread MQTT chờ khi hàng đợi đầy trước khi bỏ message
+    @Value("${ingest.pipeline.enqueue-timeout-ms:50}")
+    private long enqueueTimeoutMs;
+
+    @Value("${ingest.pipeline.shutdown-timeout-ms:10000}")
+    private long shutdownTimeoutMs;
+
+    // Tỷ lệ lấp đầy hàng đợi để vào / thoát chế độ quá tải
+    @Value("${ingest.pipeline.overload-high-watermark:0.8}")
+    private double overloadHighWatermark;
+
+    @Value("${ingest.pipeline.overload-low-watermark:0.5}")
+    private double overloadLowWatermark;
+
+    private volatile boolean overloaded;
+    private Counter shedCounter;
+    private Counter alertDroppedCounter;
+
+    private PartitionedStage ingestStage;
+    private PartitionedStage effectStage;
+
+    @PostConstruct
+    public void start() {
+        int ingestPartitions = Math.max(1, ingestWorkers);
+        int effectPartitions = Math.max(1, effectWorkers);
+        ingestStage = new PartitionedStage("ingest", ingestPartitions, queueCapacity / ingestPartitions, meterRegistry);
+        effectStage = new PartitionedStage("effects", effectPartitions, queueCapacity / effectPartitions,
+                meterRegistry);
+        ingestStage.start();
+        effectStage.start();
+
+        Gauge.builder("ingest.overload", this, p -> p.overloaded ? 1 : 0)
+                .description("1 nếu ingest pipeline đang ở chế độ quá tải")
+                .register(meterRegistry);
+        shedCounter = Counter.builder("ingest.messages").tag("result", "shed")
+                .description("Số message bị bỏ tác vụ phụ do quá tải")
+                .register(meterRegistry);
+        alertDroppedCounter = Counter.builder("ingest.alerts.dropped")
+                .description("Số lần kiểm tra cảnh báo ngưỡng bị bỏ do hàng đợi effects đầy")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        log.info("Đang dừng ingest pipeline, chờ xử lý nốt các message trong hàng đợi...");
+        ingestStage.shutdown(shutdownTimeoutMs);
+        effectStage.shutdown(shutdownTimeoutMs);
+    }
+
+    /**
+     * Đưa một message vào stage ingest. Được gọi từ thread MQTT.
+     *
+     * @return false nếu hàng đợi của partition đầy (message bị bỏ).
+     */
+    public boolean submit(String deviceId, Runnable task) {
+        return ingestStage.submit(deviceId, task, enqueueTimeoutMs);
+    }
+
+    /**
+     * Đưa tác vụ phụ vào stage effects. Được gọi từ worker của stage ingest nên
+     * không chờ: nếu hàng đợi đầy thì bỏ tác vụ thay vì làm nghẽn việc ghi dữ
+     * liệu.
+     */
+    public boolean submitEffect(String deviceId, Runnable task) {
+        return effectStage.submit(deviceId, task, 0);
+    }
+
+    /**
+     * Đưa việc kiểm tra cảnh báo ngưỡng vào stage effects. Khác
+     * {@link #submitEffect}, chờ tối đa {@code ingest.pipeline.enqueue-timeout-ms}
+     * khi hàng đợi đầy vì bỏ cảnh báo nghiêm trọng hơn làm chậm ingest một chút.
+     *
+     * @return false nếu vẫn không có chỗ (đã đếm vào {@code ingest.alerts.dropped}).
+     */
+    public boolean submitAlert(String deviceId, Runnable task) {
+        boolean accepted = effectStage.submit(deviceId, task, enqueueTimeoutMs);
+        if (!accepted) {
+            alertDroppedCounter.increment();
+        }
+        return accepted;
+    }
+
+    /**
+     * Kiểm tra (và cập nhật) trạng thái quá tải dựa trên mức lấp đầy của cả hai
+     * stage.
+     */
+    public boolean isOverloaded() {
+        double fill = Math.max(
+                (double) ingestStage.depth() / ingestStage.capacity(),
+                (double) effectStage.depth() / effectStage.capacity());
+        if (!overloaded && fill >= overloadHighWatermark) {
+            overloaded = true;
+            log.warn("Ingest pipeline quá tải (hàng đợi đầy {}%), tạm bỏ các tác vụ phụ",
+                    Math.round(fill * 100));
+        } else if (overloaded && fill <= overloadLowWatermark) {
+            overloaded = false;
+            log.info("Ingest pipeline hết quá tải (hàng đợi đầy {}%)", Math.round(fill * 100));
+        }
+        return overloaded;
+    }
+
+    public void recordShed() {
+        shedCounter.increment();
+    }
+
+    public int ingestQueueDepth() {
+        return ingestStage.depth();
+    }
+
+    public int effectQueueDepth() {
+        return effectStage.depth();
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.iotserver.service.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Một "stage" của pipeline ingest: N hàng đợi có giới hạn, mỗi hàng đợi có
+ * đúng 1 worker thread. Task được phân vào partition theo hash của key
+ * (deviceId), nên các message của cùng một thiết bị luôn được xử lý tuần tự
+ * và đúng thứ tự nhận.
+ */
+@Slf4j
+public class PartitionedStage {
+
+    private final String name;
+    private final List<BlockingQueue<Runnable>> queues;
+    private final List<Thread> workers = new ArrayList<>();
+    private final Counter acceptedCounter;
+    private final Counter rejectedCounter;
+    private final Counter failedCounter;
+    private final Timer taskTimer;
+
+    private volatile boolean running = true;
+
+    public PartitionedStage(String name, int partitions, int capacityPerPartition, MeterRegistry meterRegistry) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Stage " + name + " phải có ít nhất 1 partition");
+        }
+        this.name = name;
+        this.queues = new ArrayList<>(partitions);
+
+        for (int i = 0; i < partitions; i++) {
+            BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(Math.max(1, capacityPerPartition));
+            queues.add(queue);
+            Gauge.builder("ingest.queue.depth", queue, BlockingQueue::size)
+                    .description("Số task đang chờ trong hàng đợi của partition")
+                    .tag("stage", name)
+                    .tag("partition", String.valueOf(i))
+                    .register(meterRegistry);
+        }
+
+        this.acceptedCounter = Counter.builder("ingest.tasks").tag("stage", name).tag("result", "accepted")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("ingest.tasks").tag("stage", name).tag("result", "rejected")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("ingest.tasks").tag("stage", name).tag("result", "failed")
+                .register(meterRegistry);
+        this.taskTimer = Timer.builder("ingest.task.duration").tag("stage", name).register(meterRegistry);
+    }
+
+    public void start() {
+        for (int i = 0; i < queues.size(); i++) {
+            BlockingQueue<Runnable> queue = queues.get(i);
+            Thread worker = new Thread(() -> runWorker(queue), "ingest-" + name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        log.info("Ingest stage '{}' đã khởi động với {} partition", name, queues.size());
+    }
+
+    /**
+     * Đưa task vào partition của key. Chờ tối đa {@code timeoutMs} nếu hàng đợi
+     * đầy; trả về false nếu vẫn không có chỗ.
+     */
+    public boolean submit(String key, Runnable task, long timeoutMs) {
+        BlockingQueue<Runnable> queue = queues.get(partitionOf(key));
+        try {
+            boolean accepted = timeoutMs > 0
+                    ? queue.offer(task, timeoutMs, TimeUnit.MILLISECONDS)
+                    : queue.offer(task);
+            (accepted ? acceptedCounter : rejectedCounter).increment();
+            return accepted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejectedCounter.increment();
+            return false;
+        }
+    }
+
+    public int partitionOf(String key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), queues.size());
+    }
+
+    public int partitions() {
+        return queues.size();
+    }
+
+    public int capacity() {
+        int total = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            total += queue.size() + queue.remainingCapacity();
+        }
+        return total;
+    }
+
+    public int depth() {
+        int total = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            total += queue.size();
+        }
+        return total;
+    }
+
+    /**
+     * Dừng nhận task mới, chờ các hàng đợi được xử lý hết (tối đa
+     * {@code timeoutMs}) rồi dừng worker.
+     */
+    public void shutdown(long timeoutMs) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.forEach(Thread::interrupt);
+        int remaining = depth();
+        if (remaining > 0) {
+            log.warn("Ingest stage '{}' dừng khi vẫn còn {} task chưa xử lý", name, remaining);
+        }
+    }
+
+    private void runWorker(BlockingQueue<Runnable> queue) {
+        while (running || !queue.isEmpty()) {
+            Runnable task;
+            try {
+                task = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (Exception e) {
+                failedCounter.increment();
+                log.error("Lỗi khi xử lý task trong stage '{}': {}", name, e.getMessage(), e);
+            } finally {
+                taskTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
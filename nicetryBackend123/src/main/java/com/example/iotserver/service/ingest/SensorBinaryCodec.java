@@ -0,0 +1,142 @@
+package com.example.iotserver.service.ingest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Codec cho payload nhị phân trên topic {@code sensor/+/bin}.
+ * <p>
+ * Frame phiên bản 1 (little-endian):
+ *
+ * <pre>
+ * u8   version        = 1
+ * u8   field bitmap   bit0 temperature, bit1 humidity, bit2 soilMoisture,
+ *                     bit3 lightIntensity, bit4 soilPH, bit7 sensorType
+ * f32  giá trị        một float32 cho mỗi bit 0..4 được bật, theo thứ tự bit
+ * u8 + bytes          nếu bit7 bật: độ dài rồi sensorType dạng ASCII
+ * </pre>
+ *
+ * Bit 0..4 trùng với các hằng số trong {@link SensorReading}. Byte đầu tiên
+ * luôn là version nên firmware có thể chuyển dần sang định dạng mới: phiên bản
+ * mới được thêm vào {@link #decode} mà không bỏ phiên bản cũ. Encoder tham
+ * chiếu nằm trong {@code fake_arduino_device.py}.
+ */
+@Component
+public class SensorBinaryCodec {
+
+    public static final int VERSION_1 = 1;
+
+    private static final int SENSOR_TYPE_BIT = 1 << 7;
+    private static final int VALUE_BITS = SensorReading.TEMPERATURE | SensorReading.HUMIDITY
+            | SensorReading.SOIL_MOISTURE | SensorReading.LIGHT_INTENSITY | SensorReading.SOIL_PH;
+
+    /**
+     * @return {@code into} sau khi đã reset và điền dữ liệu.
+     * @throws IOException nếu frame sai định dạng hoặc version không hỗ trợ.
+     */
+    public SensorReading decode(byte[] frame, SensorReading into) throws IOException {
+        into.reset();
+        if (frame.length < 2) {
+            throw new IOException("Frame nhị phân quá ngắn: " + frame.length + " bytes");
+        }
+        int version = frame[0] & 0xFF;
+        return switch (version) {
+            case VERSION_1 -> decodeV1(frame, into);
+            default -> throw new IOException("Không hỗ trợ phiên bản frame nhị phân: " + version);
+        };
+    }
+
+    private SensorReading decodeV1(byte[] frame, SensorReading into) throws IOException {
+        int bitmap = frame[1] & 0xFF;
+        if ((bitmap & ~(VALUE_BITS | SENSOR_TYPE_BIT)) != 0) {
+            throw new IOException("Field bitmap không hợp lệ: 0x" + Integer.toHexString(bitmap));
+        }
+
+        int offset = 2;
+        for (int field = 1; field <= SensorReading.SOIL_PH; field <<= 1) {
+            if ((bitmap & field) == 0) {
+                continue;
+            }
+            if (offset + 4 > frame.length) {
+                throw new IOException("Frame nhị phân bị cắt cụt tại byte " + offset);
+            }
+            float value = Float.intBitsToFloat((frame[offset] & 0xFF)
+                    | (frame[offset + 1] & 0xFF) << 8
+                    | (frame[offset + 2] & 0xFF) << 16
+                    | (frame[offset + 3] & 0xFF) << 24);
+            offset += 4;
+            // NaN = cảm biến lỗi; làm tròn 4 chữ số để 28.4f không thành 28.3999996...
+            if (!Float.isNaN(value)) {
+                into.set(field, Math.round(value * 10_000d) / 10_000d);
+            }
+        }
+
+        if ((bitmap & SENSOR_TYPE_BIT) != 0) {
+            if (offset >= frame.length) {
+                throw new IOException("Frame nhị phân thiếu độ dài sensorType");
+            }
+            int length = frame[offset++] & 0xFF;
+            if (offset + length > frame.length) {
+                throw new IOException("Frame nhị phân bị cắt cụt trong sensorType");
+            }
+            into.setSensorType(new String(frame, offset, length, StandardCharsets.US_ASCII));
+        }
+        return into;
+    }
+
+    /**
+     * Mã hóa một {@link SensorReading} thành frame phiên bản 1. Dùng cho test và
+     * công cụ giả lập; firmware có encoder riêng.
+     */
+    public byte[] encode(SensorReading reading) {
+        byte[] sensorType = reading.getSensorType() != null
+                ? reading.getSensorType().getBytes(StandardCharsets.US_ASCII)
+                : null;
+        int bitmap = 0;
+        int size = 2;
+        for (int field = 1; field <= SensorReading.SOIL_PH; field <<= 1) {
+            if (reading.has(field)) {
+                bitmap |= field;
+                size += 4;
+            }
+        }
+        if (sensorType != null) {
+            if (sensorType.length > 255) {
+                throw new IllegalArgumentException("sensorType dài quá 255 bytes");
+            }
+            bitmap |= SENSOR_TYPE_BIT;
+            size += 1 + sensorType.length;
+        }
+
+        byte[] frame = new byte[size];
+        frame[0] = VERSION_1;
+        frame[1] = (byte) bitmap;
+        int offset = 2;
+        for (int field = 1; field <= SensorReading.SOIL_PH; field <<= 1) {
+            if (reading.has(field)) {
+                int bits = Float.floatToIntBits((float) valueOf(reading, field));
+                frame[offset++] = (byte) bits;
+                frame[offset++] = (byte) (bits >>> 8);
+                frame[offset++] = (byte) (bits >>> 16);
+                frame[offset++] = (byte) (bits >>> 24);
+            }
+        }
+        if (sensorType != null) {
+            frame[offset++] = (byte) sensorType.length;
+            System.arraycopy(sensorType, 0, frame, offset, sensorType.length);
+        }
+        return frame;
+    }
+
+    private static double valueOf(SensorReading reading, int field) {
+        return switch (field) {
+            case SensorReading.TEMPERATURE -> reading.getTemperature();
+            case SensorReading.HUMIDITY -> reading.getHumidity();
+            case SensorReading.SOIL_MOISTURE -> reading.getSoilMoisture();
+            case SensorReading.LIGHT_INTENSITY -> reading.getLightIntensity();
+            default -> reading.getSoilPH();
+        };
+    }
+}
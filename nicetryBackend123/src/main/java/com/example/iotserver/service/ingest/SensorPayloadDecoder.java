@@ -0,0 +1,121 @@
+package com.example.iotserver.service.ingest;
+
+import java.io.IOException;
+
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Giải mã payload JSON của topic {@code sensor/+/data} trực tiếp từ byte[] vào
+ * {@link SensorReading} bằng streaming {@link JsonParser}: không tạo Map trung
+ * gian, không chuyển payload thành String, không box giá trị double.
+ * <p>
+ * Hành vi giống {@code objectMapper.readValue(payload, Map.class)} +
+ * {@code SensorDataDTO.fromMqttPayload}: số dạng chuỗi ("25.3") vẫn được chấp
+ * nhận, giá trị không parse được hoặc null bị bỏ qua, trường lạ bị bỏ qua.
+ */
+@Component
+public class SensorPayloadDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    public SensorPayloadDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * @return {@code into} sau khi đã reset và điền dữ liệu.
+     * @throws IOException nếu payload không phải một JSON object hợp lệ.
+     */
+    public SensorReading decode(byte[] payload, SensorReading into) throws IOException {
+        into.reset();
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Payload cảm biến phải là JSON object");
+            }
+            String name;
+            while ((name = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                if ("timestamp".equals(name)) {
+                    // Chỉ dùng để chống trùng lặp; thời điểm ghi vẫn là thời điểm nhận
+                    into.setDeviceTimestamp(readEpochMillis(parser, value));
+                } else if (!readField(parser, name, value, into)) {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new IOException("Payload cảm biến không kết thúc bằng '}'");
+            }
+        }
+        return into;
+    }
+
+    /**
+     * Đọc một trường cảm biến đã biết vào {@code into}. Parser đang đứng ở token
+     * giá trị của trường.
+     *
+     * @return false nếu không phải trường cảm biến (nơi gọi tự xử lý/bỏ qua).
+     */
+    static boolean readField(JsonParser parser, String name, JsonToken value, SensorReading into)
+            throws IOException {
+        // Tên trường đã được JsonFactory canonicalize nên switch không tạo String mới
+        switch (name) {
+            case "temperature" -> readDouble(parser, value, SensorReading.TEMPERATURE, into);
+            case "humidity" -> readDouble(parser, value, SensorReading.HUMIDITY, into);
+            case "soilMoisture" -> readDouble(parser, value, SensorReading.SOIL_MOISTURE, into);
+            case "lightIntensity" -> readDouble(parser, value, SensorReading.LIGHT_INTENSITY, into);
+            case "soilPH" -> readDouble(parser, value, SensorReading.SOIL_PH, into);
+            case "sensorType" -> {
+                if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+                    into.setSensorType(parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Đọc timestamp epoch millis dạng số hoặc chuỗi số ("1718000000000").
+     *
+     * @return 0 nếu không đọc được.
+     */
+    static long readEpochMillis(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                try {
+                    return Long.parseLong(parser.getText());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            default:
+                parser.skipChildren();
+                return 0;
+        }
+    }
+
+    private static void readDouble(JsonParser parser, JsonToken token, int field, SensorReading into)
+            throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> into.set(field, parser.getDoubleValue());
+            case VALUE_STRING -> {
+                try {
+                    into.set(field, Double.parseDouble(parser.getText()));
+                } catch (NumberFormatException ignored) {
+                    // Giống SensorDataDTO.parseDouble: giá trị không hợp lệ coi như không có
+                }
+            }
+            default -> parser.skipChildren();
+        }
+    }
+}
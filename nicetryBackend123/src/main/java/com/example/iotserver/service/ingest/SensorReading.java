@@ -0,0 +1,120 @@
+package com.example.iotserver.service.ingest;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import com.example.iotserver.dto.SensorDataDTO;
+
+/**
+ * Một lần đọc cảm biến đã giải mã, dùng lại được giữa các message (mỗi worker
+ * giữ một instance). Giá trị lưu dưới dạng double nguyên thủy, kèm bitmask cho
+ * biết trường nào có mặt trong payload.
+ */
+public final class SensorReading {
+
+    public static final int TEMPERATURE = 1;
+    public static final int HUMIDITY = 1 << 1;
+    public static final int SOIL_MOISTURE = 1 << 2;
+    public static final int LIGHT_INTENSITY = 1 << 3;
+    public static final int SOIL_PH = 1 << 4;
+
+    private int present;
+    private double temperature;
+    private double humidity;
+    private double soilMoisture;
+    private double lightIntensity;
+    private double soilPH;
+    private String sensorType;
+    // Timestamp (epoch millis) do thiết bị gửi kèm, 0 nếu không có
+    private long deviceTimestamp;
+
+    public SensorReading reset() {
+        present = 0;
+        sensorType = null;
+        deviceTimestamp = 0;
+        return this;
+    }
+
+    public void set(int field, double value) {
+        switch (field) {
+            case TEMPERATURE -> temperature = value;
+            case HUMIDITY -> humidity = value;
+            case SOIL_MOISTURE -> soilMoisture = value;
+            case LIGHT_INTENSITY -> lightIntensity = value;
+            case SOIL_PH -> soilPH = value;
+            default -> throw new IllegalArgumentException("Trường không hợp lệ: " + field);
+        }
+        present |= field;
+    }
+
+    public boolean has(int field) {
+        return (present & field) != 0;
+    }
+
+    public boolean isEmpty() {
+        return present == 0;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    public double getHumidity() {
+        return humidity;
+    }
+
+    public double getSoilMoisture() {
+        return soilMoisture;
+    }
+
+    public double getLightIntensity() {
+        return lightIntensity;
+    }
+
+    public double getSoilPH() {
+        return soilPH;
+    }
+
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    public void setSensorType(String sensorType) {
+        this.sensorType = sensorType;
+    }
+
+    public long getDeviceTimestamp() {
+        return deviceTimestamp;
+    }
+
+    public void setDeviceTimestamp(long deviceTimestamp) {
+        this.deviceTimestamp = deviceTimestamp;
+    }
+
+    /**
+     * Chuyển sang DTO ở ranh giới với các service dùng SensorDataDTO. Kết quả
+     * tương đương {@link SensorDataDTO#fromMqttPayload}.
+     */
+    public SensorDataDTO toDTO(String deviceId) {
+        return toDTO(deviceId, Instant.now());
+    }
+
+    /**
+     * Như {@link #toDTO(String)} nhưng dùng thời điểm đo do thiết bị/gateway gửi
+     * lên.
+     */
+    public SensorDataDTO toDTO(String deviceId, Instant timestamp) {
+        return SensorDataDTO.builder()
+                .deviceId(deviceId)
+                .timestamp(timestamp)
+                .localTime(LocalDateTime.ofInstant(timestamp, ZoneId.systemDefault()))
+                .temperature(has(TEMPERATURE) ? temperature : null)
+                .humidity(has(HUMIDITY) ? humidity : null)
+                .soilMoisture(has(SOIL_MOISTURE) ? soilMoisture : null)
+                .lightIntensity(has(LIGHT_INTENSITY) ? lightIntensity : null)
+                .soilPH(has(SOIL_PH) ? soilPH : null)
+                .sensorType(sensorType)
+                .build();
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.iotserver.service.journal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.service.ingest.IngestBackpressure;
+import com.influxdb.client.WriteApi;
+import com.influxdb.client.write.events.BackpressureEvent;
+import com.influxdb.client.write.events.WriteErrorEvent;
+import com.influxdb.client.write.events.WriteRetriableErrorEvent;
+import com.influxdb.client.write.events.WriteSuccessEvent;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Đưa các sự kiện của WriteApi bất đồng bộ vào Micrometer:
+ * {@code influx.write.points}, {@code influx.write.batches{result=success|dropped}},
+ * {@code influx.write.retries}, {@code influx.write.backpressure{reason}}.
+ * <p>
+ * BackpressureEvent chỉ tới sau khi buffer của WriteApi đã đầy và DROP_OLDEST
+ * đã bỏ point, nên khi không dùng journal, SensorDataService báo số point gửi
+ * vào WriteApi qua {@link #submitted}: số point chưa được xác nhận (gửi trừ
+ * đã ghi/lỗi) vượt {@code influxdb.write.backpressure-high-water} x
+ * {@code buffer-limit} thì bật {@link IngestBackpressure} trước khi buffer
+ * đầy, xuống dưới {@code backpressure-low-water} thì tắt. WriteErrorEvent
+ * không cho biết số point nên mỗi batch lỗi được tính là {@code batch-size}
+ * point; sau BackpressureEvent ước lượng được đặt lại bằng buffer-limit.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class InfluxWriteMonitor {
+
+    private static final String SOURCE = "influx-write-api";
+    private static final String SOURCE_PENDING = "influx-write-pending";
+
+    private final WriteApi writeApiAsync;
+    private final InfluxDBConfig influxDBConfig;
+    private final IngestBackpressure backpressure;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${influxdb.write.backpressure-hold-ms:1000}")
+    private long backpressureHoldMs;
+
+    @Value("${influxdb.write.backpressure-high-water:0.8}")
+    private double highWater;
+
+    @Value("${influxdb.write.backpressure-low-water:0.5}")
+    private double lowWater;
+
+    // Point đã gửi vào WriteApi nhưng chưa có WriteSuccessEvent/WriteErrorEvent
+    private final AtomicLong pendingPoints = new AtomicLong();
+
+    // Lấy từ InfluxDBConfig để luôn khớp với WriteOptions của writeApiAsync
+    private int bufferLimit;
+    private int batchSize;
+
+    private Counter pointsCounter;
+    private Counter successCounter;
+    private Counter droppedCounter;
+    private Counter retryCounter;
+
+    @PostConstruct
+    public void init() {
+        bufferLimit = influxDBConfig.getBufferLimit();
+        batchSize = influxDBConfig.getBatchSize();
+        pointsCounter = Counter.builder("influx.write.points")
+                .description("Số point WriteApi đã ghi thành công")
+                .register(meterRegistry);
+        successCounter = Counter.builder("influx.write.batches").tag("result", "success")
+                .register(meterRegistry);
+        droppedCounter = Counter.builder("influx.write.batches").tag("result", "dropped")
+                .description("Số batch bị bỏ sau khi hết số lần thử lại hoặc lỗi không thử lại được")
+                .register(meterRegistry);
+        retryCounter = Counter.builder("influx.write.retries")
+                .register(meterRegistry);
+        Gauge.builder("influx.write.pending", pendingPoints, AtomicLong::get)
+                .description("Ước lượng số point nằm trong buffer của WriteApi")
+                .register(meterRegistry);
+
+        writeApiAsync.listenEvents(WriteSuccessEvent.class, this::onSuccess);
+        writeApiAsync.listenEvents(WriteRetriableErrorEvent.class, this::onRetry);
+        writeApiAsync.listenEvents(WriteErrorEvent.class, this::onError);
+        writeApiAsync.listenEvents(BackpressureEvent.class, this::onBackpressure);
+    }
+
+    /**
+     * Gọi sau khi gửi {@code points} point vào WriteApi bất đồng bộ.
+     */
+    public void submitted(int points) {
+        long pending = pendingPoints.addAndGet(points);
+        if (pending >= highWater * bufferLimit) {
+            backpressure.setActive(SOURCE_PENDING, true);
+        }
+    }
+
+    private void onSuccess(WriteSuccessEvent event) {
+        successCounter.increment();
+        int lines = countLines(event.getLineProtocol());
+        pointsCounter.increment(lines);
+        completed(lines);
+    }
+
+    private void onRetry(WriteRetriableErrorEvent event) {
+        retryCounter.increment();
+        log.debug("InfluxDB ghi lỗi, thử lại sau {} ms: {}", event.getRetryInterval(),
+                event.getThrowable().getMessage());
+    }
+
+    private void onError(WriteErrorEvent event) {
+        droppedCounter.increment();
+        log.error("InfluxDB bỏ một batch sau khi ghi lỗi: {}", event.getThrowable().getMessage());
+        completed(batchSize);
+    }
+
+    private void onBackpressure(BackpressureEvent event) {
+        Counter.builder("influx.write.backpressure").tag("reason", event.getReason().name())
+                .register(meterRegistry)
+                .increment();
+        backpressure.engage(SOURCE, backpressureHoldMs);
+        // Point cũ đã bị bỏ mà không có sự kiện riêng: buffer đang đầy
+        pendingPoints.set(bufferLimit);
+        backpressure.setActive(SOURCE_PENDING, true);
+    }
+
+    private void completed(int points) {
+        long pending = pendingPoints.updateAndGet(p -> Math.max(0, p - points));
+        if (pending <= lowWater * bufferLimit) {
+            backpressure.setActive(SOURCE_PENDING, false);
+        }
+    }
+
+    private static int countLines(String lineProtocol) {
+        if (lineProtocol == null || lineProtocol.isEmpty()) {
+            return 0;
+        }
+        int lines = 1;
+        for (int i = 0; i < lineProtocol.length(); i++) {
+            if (lineProtocol.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.iotserver.service.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.service.ingest.IngestBackpressure;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.exceptions.BadRequestException;
+import com.influxdb.exceptions.UnprocessableEntityException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Thread nền đọc {@link SensorJournal} và ghi sang InfluxDB theo lô lớn.
+ * <p>
+ * Checkpoint chỉ được tiến sau khi InfluxDB xác nhận lô ghi, nên khi InfluxDB
+ * lỗi/mất kết nối dữ liệu vẫn nằm trong journal và được thử lại với backoff
+ * tăng dần. Lô bị InfluxDB từ chối vĩnh viễn (400 dữ liệu sai, 422 xung đột
+ * kiểu field hoặc ngoài retention của bucket) được chia đôi và ghi lại từng
+ * phần, nên chỉ những dòng thật sự bị từ chối mới bị bỏ (và đếm); sau đó lô
+ * vẫn được commit để không chặn cả journal.
+ * <p>
+ * Khi phần chưa replay vượt {@code ingest.journal.backpressure-ratio} của giới
+ * hạn đĩa, ingest được làm chậm qua {@link IngestBackpressure}.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class JournalReplayer {
+
+    private static final String BACKPRESSURE_SOURCE = "journal";
+
+    private final SensorJournal journal;
+    private final WriteApiBlocking writeApi;
+    private final InfluxDBConfig influxDBConfig;
+    private final MeterRegistry meterRegistry;
+    private final IngestBackpressure backpressure;
+
+    @Value("${ingest.journal.replay.batch-size:5000}")
+    private int batchSize;
+
+    // Giới hạn dung lượng một lô (một request HTTP tới InfluxDB)
+    @Value("${ingest.journal.replay.max-batch-kb:4096}")
+    private int maxBatchKb;
+
+    @Value("${ingest.journal.replay.idle-poll-ms:200}")
+    private long idlePollMs;
+
+    @Value("${ingest.journal.replay.max-backoff-ms:30000}")
+    private long maxBackoffMs;
+
+    // Làm chậm ingest khi journal gần chạm giới hạn đĩa, trước khi phải bỏ segment
+    @Value("${ingest.journal.backpressure-ratio:0.8}")
+    private double backpressureRatio;
+
+    private ByteBuffer batchBuffer;
+    private Thread worker;
+    private volatile boolean running;
+    private volatile boolean healthy = true;
+
+    private Counter replayedCounter;
+    private Counter rejectedCounter;
+    private Counter failedCounter;
+    private Timer writeTimer;
+
+    @PostConstruct
+    public void start() {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        replayedCounter = Counter.builder("ingest.journal.replayed")
+                .description("Số bản ghi đã replay từ journal sang InfluxDB")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("ingest.journal.rejected")
+                .description("Số bản ghi bị InfluxDB từ chối khi replay (bỏ qua)")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("ingest.journal.replay.failures")
+                .description("Số lần ghi sang InfluxDB thất bại (sẽ thử lại)")
+                .register(meterRegistry);
+        writeTimer = Timer.builder("ingest.journal.replay.write")
+                .description("Thời gian ghi một lô từ journal sang InfluxDB")
+                .register(meterRegistry);
+        Gauge.builder("ingest.journal.influx.healthy", this, r -> r.healthy ? 1 : 0)
+                .register(meterRegistry);
+
+        batchBuffer = ByteBuffer.allocate(Math.max(maxBatchKb * 1024, SensorJournal.MAX_RECORD_BYTES + 1));
+        running = true;
+        worker = new Thread(this::run, "journal-replayer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (worker == null) {
+            return;
+        }
+        worker.interrupt();
+        try {
+            worker.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    private void run() {
+        long backoffMs = 0;
+        while (running) {
+            try {
+                if (backoffMs > 0) {
+                    TimeUnit.MILLISECONDS.sleep(backoffMs);
+                }
+                journal.force();
+                backpressure.setActive(BACKPRESSURE_SOURCE, journal.fillRatio() >= backpressureRatio);
+                if (!journal.hasPending()) {
+                    TimeUnit.MILLISECONDS.sleep(idlePollMs);
+                    continue;
+                }
+
+                batchBuffer.clear();
+                SensorJournal.Batch batch = journal.readBatch(batchSize, batchBuffer);
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+                journal.commit(batch.end());
+                backoffMs = 0;
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                failedCounter.increment();
+                backoffMs = backoffMs == 0 ? 500 : Math.min(maxBackoffMs, backoffMs * 2);
+                if (healthy) {
+                    log.warn("InfluxDB không ghi được, giữ dữ liệu trong journal: {}", e.getMessage());
+                }
+                healthy = false;
+            }
+        }
+    }
+
+    /**
+     * Gửi cả lô trong một request: thân request là các dòng line protocol nối
+     * bằng '\n', chỉ tạo một String cho mỗi lô. Lỗi tạm thời (mạng, 5xx...) được
+     * ném ra để thử lại cả lô; phần đã ghi được ghi lại cũng không sao (cùng
+     * series và thời điểm thì InfluxDB ghi đè).
+     */
+    private void write(SensorJournal.Batch batch) {
+        // Bỏ ký tự xuống dòng cuối cùng
+        int end = batchBuffer.position() - 1;
+        try {
+            send(0, end);
+            replayedCounter.increment(batch.records());
+        } catch (BadRequestException | UnprocessableEntityException e) {
+            log.warn("InfluxDB từ chối lô {} bản ghi từ journal ({}), chia nhỏ để tìm dòng lỗi",
+                    batch.records(), e.getMessage());
+            int rejected = splitAndWrite(0, end);
+            rejectedCounter.increment(rejected);
+            replayedCounter.increment(batch.records() - rejected);
+            log.error("Bỏ {}/{} bản ghi bị InfluxDB từ chối khi replay journal", rejected, batch.records());
+        }
+        if (!healthy) {
+            log.info("InfluxDB ghi lại được, tiếp tục replay journal (lag {} bytes)", journal.lagBytes());
+            healthy = true;
+        }
+    }
+
+    // Ghi [from, to) của batchBuffer (các dòng, không có '\n' cuối)
+    private void send(int from, int to) {
+        String body = new String(batchBuffer.array(), from, to - from, StandardCharsets.UTF_8);
+        writeTimer.record(() -> writeApi.writeRecord(influxDBConfig.getBucket(), influxDBConfig.getOrg(),
+                WritePrecision.MS, body));
+    }
+
+    /**
+     * Ghi lại [from, to) (đã biết là bị từ chối) theo hai nửa. Trả về số dòng bị
+     * từ chối, tức là bị bỏ.
+     */
+    private int splitAndWrite(int from, int to) {
+        int split = lineBreakNear(from, to);
+        if (split < 0) {
+            log.debug("Bỏ dòng journal bị từ chối: {}",
+                    new String(batchBuffer.array(), from, to - from, StandardCharsets.UTF_8));
+            return 1;
+        }
+        return writeOrSplit(from, split) + writeOrSplit(split + 1, to);
+    }
+
+    private int writeOrSplit(int from, int to) {
+        try {
+            send(from, to);
+            return 0;
+        } catch (BadRequestException | UnprocessableEntityException e) {
+            return splitAndWrite(from, to);
+        }
+    }
+
+    // Vị trí '\n' gần giữa [from, to) nhất, -1 nếu đoạn chỉ có một dòng
+    private int lineBreakNear(int from, int to) {
+        byte[] bytes = batchBuffer.array();
+        int middle = from + (to - from) / 2;
+        for (int i = middle; i < to; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        for (int i = middle - 1; i >= from; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.iotserver.service.journal;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.util.Locale;
+
+import com.example.iotserver.dto.SensorDataDTO;
+
+/**
+ * Mã hóa SensorDataDTO thành một dòng line protocol của InfluxDB, ghi thẳng vào
+ * ByteBuffer dùng lại được: không tạo {@code Point}, không tạo String cho tag,
+ * farmId hay giá trị số.
+ * <p>
+ * Kết quả giống hệt {@code Point.toLineProtocol()} của SensorDataService (tag
+ * và field theo thứ tự khóa, tag null/rỗng bị bỏ, {@code sensor_type} mặc định
+ * UNKNOWN, {@code zone_id} mặc định {@link SensorDataDTO#NO_ZONE}, timestamp
+ * millis). Giá trị double không bị làm tròn: giá trị có tối đa 6 chữ số thập
+ * phân (trường hợp thường gặp) được ghi trực tiếp, còn lại dùng cùng
+ * NumberFormat với Point.
+ * <p>
+ * Không thread-safe: mỗi thread giữ một instance (xem SensorDataService).
+ */
+public final class LineProtocolWriter {
+
+    private static final byte[] MEASUREMENT = ascii("sensor_data");
+    private static final byte[] TAG_DEVICE_ID = ascii(",device_id=");
+    private static final byte[] TAG_FARM_ID = ascii(",farm_id=");
+    private static final byte[] TAG_SENSOR_TYPE = ascii(",sensor_type=");
+    private static final byte[] TAG_ZONE_ID = ascii(",zone_id=");
+    private static final byte[] UNKNOWN = ascii("UNKNOWN");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] NO_ZONE_BYTES = ascii(SensorDataDTO.NO_ZONE);
+
+    // Thứ tự khóa giống TreeMap của Point
+    private static final byte[] FIELD_HUMIDITY = ascii("humidity=");
+    private static final byte[] FIELD_LIGHT_INTENSITY = ascii("light_intensity=");
+    private static final byte[] FIELD_SOIL_PH = ascii("soilPH=");
+    private static final byte[] FIELD_SOIL_MOISTURE = ascii("soil_moisture=");
+    private static final byte[] FIELD_TEMPERATURE = ascii("temperature=");
+
+    private static final int FRACTION_DIGITS = 6;
+    private static final long FRACTION_SCALE = 1_000_000L;
+    // Dưới ngưỡng này value * 10^6 < 2^53 và số chữ số có nghĩa <= 15, nên
+    // biểu diễn thập phân ngắn nhất chính là dạng 6 chữ số thập phân
+    private static final double MAX_FIXED = 1.0e9;
+
+    private ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    // Cấu hình giống NUMBER_FORMATTER của Point, chỉ dùng cho giá trị hiếm gặp
+    private final NumberFormat numberFormat = pointNumberFormat();
+
+    public LineProtocolWriter() {
+        this(256);
+    }
+
+    public LineProtocolWriter(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * @return buffer (dùng lại giữa các lần gọi) chứa đúng một dòng, không có
+     *         ký tự xuống dòng; null nếu DTO không có field hợp lệ nào.
+     */
+    public ByteBuffer encode(SensorDataDTO data) {
+        while (true) {
+            try {
+                buffer.clear();
+                return write(data) ? buffer.flip() : null;
+            } catch (BufferOverflowException e) {
+                // deviceId/sensorType dài bất thường: tăng gấp đôi rồi ghi lại
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private boolean write(SensorDataDTO data) {
+        buffer.put(MEASUREMENT);
+
+        if (isNotEmpty(data.getDeviceId())) {
+            buffer.put(TAG_DEVICE_ID);
+            putTagValue(data.getDeviceId());
+        }
+        buffer.put(TAG_FARM_ID);
+        if (data.getFarmId() != null) {
+            putLong(data.getFarmId());
+        } else {
+            buffer.put(NULL);
+        }
+        if (data.getSensorType() == null) {
+            buffer.put(TAG_SENSOR_TYPE).put(UNKNOWN);
+        } else if (!data.getSensorType().isEmpty()) {
+            buffer.put(TAG_SENSOR_TYPE);
+            putTagValue(data.getSensorType());
+        }
+        buffer.put(TAG_ZONE_ID);
+        if (data.getZoneId() != null) {
+            putLong(data.getZoneId());
+        } else {
+            buffer.put(NO_ZONE_BYTES);
+        }
+
+        buffer.put((byte) ' ');
+        boolean first = true;
+        first = putField(FIELD_HUMIDITY, data.getHumidity(), first);
+        first = putField(FIELD_LIGHT_INTENSITY, data.getLightIntensity(), first);
+        first = putField(FIELD_SOIL_PH, data.getSoilPH(), first);
+        first = putField(FIELD_SOIL_MOISTURE, data.getSoilMoisture(), first);
+        first = putField(FIELD_TEMPERATURE, data.getTemperature(), first);
+        if (first) {
+            return false;
+        }
+
+        Instant timestamp = data.getTimestamp();
+        if (timestamp != null) {
+            buffer.put((byte) ' ');
+            putLong(timestamp.toEpochMilli());
+        }
+        return true;
+    }
+
+    private boolean putField(byte[] key, Double value, boolean first) {
+        if (value == null || value.isNaN() || value.isInfinite()) {
+            // Line protocol không biểu diễn được NaN/Infinity
+            return first;
+        }
+        if (!first) {
+            buffer.put((byte) ',');
+        }
+        buffer.put(key);
+        putDouble(value);
+        return false;
+    }
+
+    // Escape ',', '=', ' ' (và xuống dòng) theo quy tắc tag value, mã hóa UTF-8
+    private void putTagValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case ',', '=', ' ' -> {
+                    buffer.put((byte) '\\');
+                    buffer.put((byte) c);
+                }
+                case '\n' -> buffer.put((byte) '\\').put((byte) 'n');
+                case '\r' -> buffer.put((byte) '\\').put((byte) 'r');
+                case '\t' -> buffer.put((byte) '\\').put((byte) 't');
+                default -> {
+                    if (c < 0x80) {
+                        buffer.put((byte) c);
+                    } else if (c < 0x800) {
+                        buffer.put((byte) (0xC0 | (c >> 6)));
+                        buffer.put((byte) (0x80 | (c & 0x3F)));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, value.charAt(++i));
+                        buffer.put((byte) (0xF0 | (cp >> 18)));
+                        buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                        buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                        buffer.put((byte) (0x80 | (cp & 0x3F)));
+                    } else {
+                        buffer.put((byte) (0xE0 | (c >> 12)));
+                        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                        buffer.put((byte) (0x80 | (c & 0x3F)));
+                    }
+                }
+            }
+        }
+    }
+
+    private void putDouble(double value) {
+        double abs = Math.abs(value);
+        long scaled = Math.round(abs * FRACTION_SCALE);
+        if (abs >= MAX_FIXED || (double) scaled / FRACTION_SCALE != abs) {
+            // Hơn 6 chữ số thập phân (VD 0.1 + 0.2) hoặc quá lớn: hiếm gặp với
+            // dữ liệu cảm biến
+            buffer.put(ascii(numberFormat.format(value)));
+            return;
+        }
+        // Giống Point: giữ dấu của -0.0
+        if (Double.doubleToRawLongBits(value) < 0) {
+            buffer.put((byte) '-');
+        }
+        putLong(scaled / FRACTION_SCALE);
+
+        long fraction = scaled % FRACTION_SCALE;
+        if (fraction == 0) {
+            // Giống Point: số nguyên vẫn ghi dạng "12.0"
+            buffer.put((byte) '.').put((byte) '0');
+            return;
+        }
+        int digitCount = FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digitCount--;
+        }
+        buffer.put((byte) '.');
+        for (int i = digitCount - 1; i >= 0; i--) {
+            digits[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        buffer.put(digits, 0, digitCount);
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                buffer.put(ascii(Long.toString(value)));
+                return;
+            }
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, pos, digits.length - pos);
+    }
+
+    private static boolean isNotEmpty(String value) {
+        return value != null && !value.isEmpty();
+    }
+
+    private static NumberFormat pointNumberFormat() {
+        NumberFormat format = NumberFormat.getInstance(Locale.ENGLISH);
+        format.setMaximumFractionDigits(340);
+        format.setGroupingUsed(false);
+        format.setMinimumFractionDigits(1);
+        return format;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
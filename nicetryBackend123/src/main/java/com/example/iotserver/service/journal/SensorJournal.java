@@ -0,0 +1,457 @@
+package com.example.iotserver.service.journal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-ahead journal cục bộ cho dữ liệu cảm biến (line protocol của
+ * InfluxDB).
+ * <p>
+ * Journal gồm các segment kích thước cố định, mỗi segment là một file được
+ * memory-map ({@code journal-<seq>.seg}). Mỗi bản ghi:
+ *
+ * <pre>
+ * int  length   độ dài payload (0 = hết dữ liệu trong segment)
+ * int  crc32    CRC của payload
+ * long appended thời điểm ghi (epoch millis), dùng để đo độ trễ replay
+ * byte payload  line protocol dạng UTF-8
+ * </pre>
+ *
+ * {@link JournalReplayer} đọc từ checkpoint, ghi sang InfluxDB rồi gọi
+ * {@link #commit}. Segment đã replay xong bị xóa; tổng dung lượng được giới hạn
+ * bởi {@code ingest.journal.max-disk-mb}, khi vượt quá thì segment cũ nhất bị
+ * bỏ (có metric đếm).
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SensorJournal {
+
+    private static final int HEADER_BYTES = 16;
+
+    /**
+     * Kích thước tối đa của một bản ghi; buffer replay phải lớn hơn giá trị này.
+     */
+    public static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final MeterRegistry meterRegistry;
+
+    // Tắt journal: SensorDataService ghi thẳng qua WriteApi bất đồng bộ như trước
+    @Value("${ingest.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${ingest.journal.dir:./data/journal}")
+    private String directory;
+
+    @Value("${ingest.journal.segment-size-mb:64}")
+    private int segmentSizeMb;
+
+    @Value("${ingest.journal.max-disk-mb:2048}")
+    private long maxDiskMb;
+
+    private Path dir;
+    private int segmentSize;
+    private int maxSegments;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private final CRC32 writeCrc = new CRC32();
+    // Chỉ dùng bởi thread replay
+    private final CRC32 readCrc = new CRC32();
+    private Segment active;
+
+    private volatile Position writePosition;
+    private volatile Position readPosition;
+    // Thời điểm ghi của bản ghi cũ nhất chưa replay (0 nếu đã replay hết)
+    private volatile long oldestPendingMillis;
+
+    private Counter appendedCounter;
+    private Counter droppedBytesCounter;
+
+    /**
+     * Vị trí trong journal: số thứ tự segment + offset trong segment.
+     */
+    public record Position(long segment, int offset) {
+    }
+
+    /**
+     * Một lô bản ghi đọc ra để replay. {@code end} là vị trí ngay sau bản ghi cuối.
+     */
+    public record Batch(int records, Position end, long oldestAppendMillis) {
+
+        public boolean isEmpty() {
+            return records == 0;
+        }
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            log.info("Sensor journal đang tắt (ingest.journal.enabled=false)");
+            return;
+        }
+        dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        segmentSize = Math.max(1, segmentSizeMb) * 1024 * 1024;
+        maxSegments = (int) Math.max(2, maxDiskMb * 1024 * 1024 / segmentSize);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(seq, Segment.open(file, seq, segmentSize));
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            active = createSegment(1);
+        } else {
+            active = segments.lastEntry().getValue();
+            active.limit = scanLimit(active);
+            segments.headMap(active.seq).values().forEach(s -> s.sealed = true);
+        }
+        writePosition = new Position(active.seq, active.limit);
+        readPosition = loadCheckpoint();
+        deleteSegmentsBefore(readPosition.segment());
+
+        appendedCounter = Counter.builder("ingest.journal.appended")
+                .description("Số bản ghi đã ghi vào journal")
+                .register(meterRegistry);
+        droppedBytesCounter = Counter.builder("ingest.journal.dropped.bytes")
+                .description("Dung lượng dữ liệu chưa replay bị bỏ do vượt giới hạn đĩa")
+                .register(meterRegistry);
+        Gauge.builder("ingest.journal.lag.bytes", this, SensorJournal::lagBytes)
+                .description("Dung lượng dữ liệu trong journal chưa được ghi sang InfluxDB")
+                .register(meterRegistry);
+        Gauge.builder("ingest.journal.lag.seconds", this, SensorJournal::lagSeconds)
+                .description("Tuổi của bản ghi cũ nhất chưa được ghi sang InfluxDB")
+                .register(meterRegistry);
+        Gauge.builder("ingest.journal.segments", segments, Map::size).register(meterRegistry);
+
+        log.info("Sensor journal mở tại {}: {} segment, đọc từ {}, ghi tại {}", dir.toAbsolutePath(),
+                segments.size(), readPosition, writePosition);
+    }
+
+    @PreDestroy
+    public void close() {
+        force();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Ghi một bản ghi (các byte còn lại của {@code record}, thường là buffer của
+     * {@link LineProtocolWriter}) vào journal. Sau khi hàm trả về, dữ liệu nằm
+     * trong page cache của OS nên không mất khi process bị kill. Không thay đổi
+     * position của {@code record}.
+     */
+    public void append(ByteBuffer record) {
+        int length = record.remaining();
+        if (length == 0) {
+            return;
+        }
+        if (length > MAX_RECORD_BYTES) {
+            log.error("Bản ghi {} bytes vượt quá {} bytes, bỏ qua", length, MAX_RECORD_BYTES);
+            return;
+        }
+        int size = HEADER_BYTES + length;
+        long now = System.currentTimeMillis();
+        synchronized (writeLock) {
+            if (active.limit + size > segmentSize) {
+                roll();
+            }
+            int position = record.position();
+            writeCrc.reset();
+            writeCrc.update(record);
+            record.position(position);
+
+            ByteBuffer buffer = active.buffer;
+            int offset = active.limit;
+            buffer.putInt(offset + 4, (int) writeCrc.getValue());
+            buffer.putLong(offset + 8, now);
+            buffer.put(offset + HEADER_BYTES, record, position, length);
+            // Ghi length sau cùng để bản ghi chỉ "tồn tại" khi đã đầy đủ
+            buffer.putInt(offset, length);
+            active.limit = offset + size;
+            writePosition = new Position(active.seq, active.limit);
+        }
+        appendedCounter.increment();
+    }
+
+    /**
+     * Đọc tối đa {@code maxRecords} bản ghi tính từ checkpoint hiện tại vào
+     * {@code into} (heap buffer), mỗi bản ghi kết thúc bằng {@code '\n'}. Dừng sớm
+     * khi {@code into} không đủ chỗ cho bản ghi kế tiếp. Không thay đổi
+     * checkpoint.
+     */
+    public Batch readBatch(int maxRecords, ByteBuffer into) {
+        Position start = readPosition;
+        Position end = writePosition;
+        byte[] target = into.array();
+        int count = 0;
+        long oldest = 0;
+
+        long seq = start.segment();
+        int offset = start.offset();
+
+        while (count < maxRecords) {
+            Segment segment = segments.get(seq);
+            if (segment == null) {
+                // Segment đã bị bỏ do giới hạn đĩa: nhảy tới segment còn lại kế tiếp
+                Long next = segments.higherKey(seq);
+                if (next == null || next > end.segment()) {
+                    break;
+                }
+                seq = next;
+                offset = 0;
+                continue;
+            }
+
+            int limit = seq == end.segment() ? end.offset() : segmentSize;
+            if (offset + HEADER_BYTES > limit) {
+                if (seq >= end.segment()) {
+                    break;
+                }
+                seq++;
+                offset = 0;
+                continue;
+            }
+
+            ByteBuffer buffer = segment.buffer;
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > limit) {
+                // Hết dữ liệu trong segment đã đóng
+                if (seq >= end.segment()) {
+                    break;
+                }
+                seq++;
+                offset = 0;
+                continue;
+            }
+            if (length + 1 > into.remaining()) {
+                break;
+            }
+
+            int position = into.arrayOffset() + into.position();
+            buffer.get(offset + HEADER_BYTES, target, position, length);
+            readCrc.reset();
+            readCrc.update(target, position, length);
+            if ((int) readCrc.getValue() != buffer.getInt(offset + 4)) {
+                log.error("Bản ghi hỏng (CRC) trong segment {} tại offset {}, bỏ phần còn lại của segment",
+                        seq, offset);
+                if (seq >= end.segment()) {
+                    break;
+                }
+                seq++;
+                offset = 0;
+                continue;
+            }
+
+            if (oldest == 0) {
+                oldest = buffer.getLong(offset + 8);
+            }
+            into.position(into.position() + length);
+            into.put((byte) '\n');
+            count++;
+            offset += HEADER_BYTES + length;
+        }
+
+        oldestPendingMillis = count == 0 ? 0 : oldest;
+        return new Batch(count, new Position(seq, offset), oldest);
+    }
+
+    /**
+     * Đánh dấu mọi bản ghi trước {@code position} đã được ghi sang InfluxDB: lưu
+     * checkpoint và xóa các segment đã replay xong.
+     */
+    public synchronized void commit(Position position) {
+        readPosition = position;
+        Position write = writePosition;
+        if (position.segment() == write.segment() && position.offset() >= write.offset()) {
+            oldestPendingMillis = 0;
+        }
+        saveCheckpoint(position);
+        deleteSegmentsBefore(position.segment());
+    }
+
+    /**
+     * Ép dữ liệu của segment đang ghi xuống đĩa (bảo vệ khi mất điện).
+     */
+    public void force() {
+        Segment segment = active;
+        if (segment != null) {
+            segment.buffer.force();
+        }
+    }
+
+    public boolean hasPending() {
+        Position read = readPosition;
+        Position write = writePosition;
+        return read.segment() < write.segment() || read.offset() < write.offset();
+    }
+
+    public long lagBytes() {
+        Position read = readPosition;
+        Position write = writePosition;
+        return (write.segment() - read.segment()) * segmentSize + write.offset() - read.offset();
+    }
+
+    /**
+     * Tỷ lệ dữ liệu chưa replay so với giới hạn đĩa (1.0 = bắt đầu bỏ segment).
+     */
+    public double fillRatio() {
+        return (double) lagBytes() / ((double) maxSegments * segmentSize);
+    }
+
+    public double lagSeconds() {
+        long oldest = oldestPendingMillis;
+        return oldest == 0 ? 0 : (System.currentTimeMillis() - oldest) / 1000.0;
+    }
+
+    // Gọi trong writeLock
+    private void roll() {
+        // force() chỉ ép segment đang ghi: phải ép segment cũ trước khi chuyển
+        active.buffer.force();
+        active.sealed = true;
+        long nextSeq = active.seq + 1;
+        if (segments.size() >= maxSegments) {
+            dropOldestSegment();
+        }
+        active = createSegment(nextSeq);
+        log.debug("Journal chuyển sang segment {}", nextSeq);
+    }
+
+    private synchronized void dropOldestSegment() {
+        Map.Entry<Long, Segment> oldest = segments.firstEntry();
+        if (oldest == null) {
+            return;
+        }
+        Segment segment = oldest.getValue();
+        if (readPosition.segment() <= segment.seq) {
+            long lost = (long) segmentSize - (readPosition.segment() == segment.seq ? readPosition.offset() : 0);
+            droppedBytesCounter.increment(lost);
+            log.warn("Journal vượt {} MB, bỏ segment {} chưa replay ({} bytes)", maxDiskMb, segment.seq, lost);
+            readPosition = new Position(segment.seq + 1, 0);
+            saveCheckpoint(readPosition);
+        }
+        segments.remove(segment.seq);
+        deleteQuietly(segment.path);
+    }
+
+    private Segment createSegment(long seq) {
+        try {
+            Segment segment = Segment.open(dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX)),
+                    seq, segmentSize);
+            segments.put(seq, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Không tạo được segment journal " + seq, e);
+        }
+    }
+
+    private int scanLimit(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= segmentSize) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > segmentSize) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private void deleteSegmentsBefore(long seq) {
+        for (Segment segment : segments.headMap(seq).values()) {
+            segments.remove(segment.seq);
+            deleteQuietly(segment.path);
+        }
+    }
+
+    private Position loadCheckpoint() throws IOException {
+        Path file = dir.resolve(CHECKPOINT_FILE);
+        long first = segments.firstKey();
+        if (!Files.exists(file)) {
+            return new Position(first, 0);
+        }
+        String[] parts = Files.readString(file).trim().split(" ");
+        Position position = new Position(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+        return position.segment() < first ? new Position(first, 0) : position;
+    }
+
+    private void saveCheckpoint(Position position) {
+        Path file = dir.resolve(CHECKPOINT_FILE);
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        try {
+            Files.writeString(tmp, position.segment() + " " + position.offset());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Không lưu được checkpoint journal: {}", e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Không xóa được segment journal {}: {}", path, e.getMessage());
+        }
+    }
+
+    private static final class Segment {
+
+        final long seq;
+        final Path path;
+        final MappedByteBuffer buffer;
+        volatile int limit;
+        volatile boolean sealed;
+
+        private Segment(long seq, Path path, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, long seq, int size) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                if (file.length() < size) {
+                    file.setLength(size);
+                }
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(seq, path, buffer);
+            }
+        }
+    }
+}
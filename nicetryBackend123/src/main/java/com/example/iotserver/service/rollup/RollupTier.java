@@ -0,0 +1,37 @@
+package com.example.iotserver.service.rollup;
+
+import java.time.Duration;
+
+/**
+ * Các mức downsampling của sensor_data. Mỗi mức là một measurement riêng
+ * ({@code sensor_data_1m}, ...) với cùng tag như dữ liệu gốc, thêm tag
+ * {@code agg} = mean | min | max | count | sum. Thời điểm của mỗi point là đầu
+ * cửa sổ.
+ */
+public enum RollupTier {
+
+    MINUTE("1m", Duration.ofMinutes(1)),
+    QUARTER_HOUR("15m", Duration.ofMinutes(15)),
+    HOUR("1h", Duration.ofHours(1)),
+    DAY("1d", Duration.ofDays(1));
+
+    private final String label;
+    private final Duration duration;
+
+    RollupTier(String label, Duration duration) {
+        this.label = label;
+        this.duration = duration;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+
+    public String getMeasurement() {
+        return "sensor_data_" + label;
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.iotserver.service.rollup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxTable;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Retention theo từng mức dữ liệu: sensor_data giữ {@code sensor.retention.raw-days}
+ * ngày, các measurement rollup giữ {@code sensor.retention.<label>-days} ngày
+ * (0 = giữ mãi). Mặc định: gốc 90 ngày, 1m 14 ngày, 15m 90 ngày, 1h 1 năm, 1d
+ * giữ mãi.
+ * <p>
+ * Thay vì một lệnh delete lớn mỗi đêm, mỗi lần chạy chỉ xử lý một đoạn
+ * {@code sensor.retention.chunk-hours} cho mỗi measurement, tiến dần từ dữ
+ * liệu cũ nhất. Mốc đã xóa tới được lưu trong Redis. Trước khi xóa một đoạn dữ
+ * liệu gốc, các mức giữ lâu hơn dữ liệu gốc phải đã có rollup cho đoạn đó; nếu
+ * chưa (VD dữ liệu có từ trước khi bật rollup), đoạn đó được compact trước.
+ * <p>
+ * Tiến độ: gauge {@code sensor.retention.backlog.seconds{measurement}},
+ * counter {@code sensor.retention.chunks{measurement,action}} và
+ * {@link #getStatus()}.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SensorRetentionService {
+
+    private static final String RAW_MEASUREMENT = "sensor_data";
+    private static final String REDIS_KEY = "retention:%s:expired";
+    private static final Duration ALIGN = Duration.ofDays(1);
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final StringRedisTemplate redisTemplate;
+    private final SensorRollupService rollupService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${sensor.retention.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sensor.retention.raw-days:90}")
+    private int rawDays;
+
+    @Value("${sensor.retention.1m-days:14}")
+    private int minuteDays;
+
+    @Value("${sensor.retention.15m-days:90}")
+    private int quarterHourDays;
+
+    @Value("${sensor.retention.1h-days:365}")
+    private int hourDays;
+
+    @Value("${sensor.retention.1d-days:0}")
+    private int dayDays;
+
+    @Value("${sensor.retention.chunk-hours:24}")
+    private long chunkHours;
+
+    /**
+     * Trạng thái retention của một measurement. {@code expiredUntil} null khi
+     * chưa xác định được dữ liệu cũ nhất.
+     */
+    public record RetentionStatus(String measurement, int retentionDays, Instant expiredUntil, Instant cutoff,
+            long backlogSeconds) {
+    }
+
+    // measurement -> số ngày giữ (0 = giữ mãi), theo thứ tự gốc rồi tới các mức rollup
+    private final Map<String, Integer> policies = new LinkedHashMap<>();
+    // measurement -> mốc đã xóa tới (dữ liệu trước mốc này không còn)
+    private final Map<String, Instant> expiredUntil = new ConcurrentHashMap<>();
+    private Timer deleteTimer;
+
+    @PostConstruct
+    public void init() {
+        policies.put(RAW_MEASUREMENT, rawDays);
+        policies.put(RollupTier.MINUTE.getMeasurement(), minuteDays);
+        policies.put(RollupTier.QUARTER_HOUR.getMeasurement(), quarterHourDays);
+        policies.put(RollupTier.HOUR.getMeasurement(), hourDays);
+        policies.put(RollupTier.DAY.getMeasurement(), dayDays);
+
+        for (Map.Entry<String, Integer> policy : policies.entrySet()) {
+            String measurement = policy.getKey();
+            try {
+                String saved = redisTemplate.opsForValue().get(String.format(REDIS_KEY, measurement));
+                if (saved != null) {
+                    expiredUntil.put(measurement, Instant.ofEpochMilli(Long.parseLong(saved)));
+                }
+            } catch (Exception e) {
+                log.warn("Không đọc được trạng thái retention {} từ Redis: {}", measurement, e.getMessage());
+            }
+            Gauge.builder("sensor.retention.backlog.seconds", this, s -> s.backlogSeconds(measurement))
+                    .tag("measurement", measurement)
+                    .description("Lượng dữ liệu quá hạn chưa xóa (giây)")
+                    .register(meterRegistry);
+        }
+        deleteTimer = Timer.builder("sensor.retention.delete").register(meterRegistry);
+        log.info("Sensor retention (ngày, 0 = giữ mãi): {}", policies);
+    }
+
+    @Scheduled(fixedDelayString = "${sensor.retention.interval-ms:300000}", initialDelay = 120000)
+    public void enforce() {
+        if (!enabled) {
+            return;
+        }
+        for (Map.Entry<String, Integer> policy : policies.entrySet()) {
+            if (policy.getValue() <= 0) {
+                continue;
+            }
+            try {
+                step(policy.getKey(), policy.getValue());
+            } catch (Exception e) {
+                log.error("Lỗi retention cho {}: {}", policy.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    public List<RetentionStatus> getStatus() {
+        List<RetentionStatus> status = new ArrayList<>();
+        for (Map.Entry<String, Integer> policy : policies.entrySet()) {
+            String measurement = policy.getKey();
+            status.add(new RetentionStatus(measurement, policy.getValue(), expiredUntil.get(measurement),
+                    cutoff(policy.getValue()), backlogSeconds(measurement)));
+        }
+        return status;
+    }
+
+    // Xử lý tối đa một đoạn cho measurement (compact hoặc xóa)
+    private void step(String measurement, int days) {
+        Instant cutoff = cutoff(days);
+        Instant from = expiredUntil.get(measurement);
+        if (from == null) {
+            from = findOldest(measurement, cutoff);
+            saveExpired(measurement, from);
+        }
+        if (!from.isBefore(cutoff)) {
+            return;
+        }
+        Instant to = from.plus(Duration.ofHours(Math.max(chunkHours, 1)));
+        if (to.isAfter(cutoff)) {
+            to = cutoff;
+        }
+
+        if (RAW_MEASUREMENT.equals(measurement)) {
+            RollupTier missing = uncoveredTier(days, from, to);
+            if (missing != null) {
+                compactBackwards(missing, from);
+                return;
+            }
+        }
+
+        delete(measurement, from, to);
+        saveExpired(measurement, to);
+        for (RollupTier tier : RollupTier.values()) {
+            if (tier.getMeasurement().equals(measurement)) {
+                rollupService.trimCoverage(tier, to);
+            }
+        }
+        chunkCounter(measurement, "expire").increment();
+        log.info("Retention {}: đã xóa dữ liệu trước {} (còn {} giờ quá hạn)", measurement, to,
+                Duration.between(to, cutoff).toHours());
+    }
+
+    /**
+     * Mức rollup giữ lâu hơn dữ liệu gốc nhưng chưa có rollup cho {@code [from, to)},
+     * hoặc null nếu có thể xóa đoạn đó.
+     */
+    private RollupTier uncoveredTier(int rawRetentionDays, Instant from, Instant to) {
+        for (RollupTier tier : RollupTier.values()) {
+            int tierDays = policies.get(tier.getMeasurement());
+            if (tierDays > 0 && tierDays <= rawRetentionDays) {
+                continue;
+            }
+            SensorRollupService.Coverage covered = rollupService.getCoverage(tier);
+            if (covered == null || covered.from().isAfter(from) || covered.to().isBefore(to)) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
+    // Mở rộng rollup của mức về phía dữ liệu cũ, mỗi lần một đoạn, để khoảng đã rollup luôn liền mạch
+    private void compactBackwards(RollupTier tier, Instant oldest) {
+        SensorRollupService.Coverage covered = rollupService.getCoverage(tier);
+        if (covered == null) {
+            log.debug("Retention: chờ rollup {} chạy lần đầu trước khi xóa dữ liệu gốc", tier.getLabel());
+            return;
+        }
+        if (!covered.from().isAfter(oldest)) {
+            // Đã có phần cũ nhưng chưa tới to, job rollup sẽ tự bắt kịp
+            return;
+        }
+        Instant start = covered.from().minus(Duration.ofHours(Math.max(chunkHours, 1)));
+        if (start.isBefore(oldest)) {
+            start = oldest;
+        }
+        rollupService.compact(tier, start, covered.from());
+        chunkCounter(RAW_MEASUREMENT, "compact").increment();
+    }
+
+    private void delete(String measurement, Instant from, Instant to) {
+        // Delete API lấy cả hai đầu mút; lùi stop 1ns để không xóa point tại "to"
+        deleteTimer.record(() -> influxDBClient.getDeleteApi().delete(
+                OffsetDateTime.ofInstant(from, ZoneOffset.UTC),
+                OffsetDateTime.ofInstant(to, ZoneOffset.UTC).minusNanos(1),
+                String.format("_measurement=\"%s\"", measurement),
+                influxDBConfig.getBucket(),
+                influxDBConfig.getOrg()));
+    }
+
+    // Lần đầu: tìm thời điểm của point cũ nhất trước cutoff (căn về đầu ngày)
+    private Instant findOldest(String measurement, Instant cutoff) {
+        String flux = String.format(
+                "from(bucket: \"%s\")\n" +
+                        "  |> range(start: 0, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"%s\")\n" +
+                        "  |> first()\n" +
+                        "  |> group()\n" +
+                        "  |> min(column: \"_time\")",
+                influxDBConfig.getBucket(), cutoff, measurement);
+        for (FluxTable table : influxDBClient.getQueryApi().query(flux, influxDBConfig.getOrg())) {
+            for (var record : table.getRecords()) {
+                if (record.getTime() != null) {
+                    long ms = ALIGN.toMillis();
+                    return Instant.ofEpochMilli(Math.floorDiv(record.getTime().toEpochMilli(), ms) * ms);
+                }
+            }
+        }
+        return cutoff;
+    }
+
+    private void saveExpired(String measurement, Instant until) {
+        expiredUntil.put(measurement, until);
+        redisTemplate.opsForValue().set(String.format(REDIS_KEY, measurement), String.valueOf(until.toEpochMilli()));
+    }
+
+    private Instant cutoff(int days) {
+        if (days <= 0) {
+            return null;
+        }
+        long ms = ALIGN.toMillis();
+        long cutoff = Instant.now().minus(Duration.ofDays(days)).toEpochMilli();
+        return Instant.ofEpochMilli(Math.floorDiv(cutoff, ms) * ms);
+    }
+
+    private long backlogSeconds(String measurement) {
+        Instant cutoff = cutoff(policies.getOrDefault(measurement, 0));
+        Instant from = expiredUntil.get(measurement);
+        if (cutoff == null || from == null || !from.isBefore(cutoff)) {
+            return 0;
+        }
+        return Duration.between(from, cutoff).getSeconds();
+    }
+
+    private Counter chunkCounter(String measurement, String action) {
+        return Counter.builder("sensor.retention.chunks")
+                .tag("measurement", measurement)
+                .tag("action", action)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,559 @@
+package com.example.iotserver.service.rollup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.service.journal.SensorJournal;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxTable;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Duy trì các measurement downsampling ({@link RollupTier}) và chọn nguồn dữ
+ * liệu cho các truy vấn aggregateWindow.
+ * <p>
+ * Mỗi lần chạy, với từng mức, job tổng hợp các cửa sổ đã đóng kể từ lần trước
+ * (mean/min/max/count/sum theo device, field) và ghi bằng {@code to()}: mức
+ * 1m đọc từ sensor_data, các mức sau đọc từ mức ngay trước nó (và không vượt
+ * quá khoảng mức đó đã có). Ghi lại cùng series/thời điểm sẽ ghi đè nên an
+ * toàn. Khoảng đã tổng hợp xong của mỗi mức ({@code [from, to)}) lưu trong
+ * Redis.
+ * <p>
+ * Dữ liệu đến muộn: ingest báo timestamp của mỗi point qua {@link #recordWrite};
+ * point cũ hơn {@code settle-seconds} hạ watermark "dirty" của mức 1m về
+ * timestamp nhỏ nhất. Sau khi dữ liệu chắc chắn đã tới InfluxDB (thêm
+ * settle-seconds và độ trễ của journal), các cửa sổ từ watermark tới
+ * {@code to} được tổng hợp lại, tối đa {@code max-chunk-hours} mỗi lần. Khi
+ * một mức ghi lại cửa sổ mà mức sau đã tổng hợp, watermark của mức sau được hạ
+ * theo. Vài cửa sổ cuối của mức 1m vẫn được tính lại
+ * ({@code sensor.rollup.lateness-minutes}) cho các lần ghi bất đồng bộ bị trễ.
+ * <p>
+ * {@link #aggregateQuery} chọn mức thô nhất có độ phân giải chia hết cửa sổ
+ * được yêu cầu; phần thời gian mà mức đó chưa có (trước {@code from}, sau
+ * {@code to}) vẫn đọc từ dữ liệu gốc. Kết quả được nhóm theo
+ * {@code (device_id, _field)} trước khi tổng hợp: zone_id (và farm_id,
+ * sensor_type) là một phần của series key nên thiết bị đã đổi zone có nhiều
+ * series, nhưng vẫn chỉ trả về một chuỗi cho mỗi thiết bị/field.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SensorRollupService {
+
+    private static final String RAW_MEASUREMENT = "sensor_data";
+    private static final String REDIS_KEY = "rollup:%s:%s";
+    private static final Set<String> ROLLUP_FUNCTIONS = Set.of("mean", "min", "max", "count", "sum");
+    private static final Pattern FLUX_DURATION = Pattern.compile("(\\d+)(s|m|h|d|w)");
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final StringRedisTemplate redisTemplate;
+    private final SensorJournal journal;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${sensor.rollup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sensor.rollup.lateness-minutes:5}")
+    private long latenessMinutes;
+
+    // Chờ thêm sau khi cửa sổ đóng để dữ liệu kịp ghi vào InfluxDB
+    @Value("${sensor.rollup.settle-seconds:30}")
+    private long settleSeconds;
+
+    // Lần chạy đầu tiên: tổng hợp lại bao nhiêu ngày dữ liệu cũ
+    @Value("${sensor.rollup.backfill-days:0}")
+    private long backfillDays;
+
+    // Mỗi lần chạy chỉ xử lý tối đa chừng này giờ dữ liệu cho một mức
+    @Value("${sensor.rollup.max-chunk-hours:6}")
+    private long maxChunkHours;
+
+    private final Map<RollupTier, Coverage> coverage = new EnumMap<>(RollupTier.class);
+    // Timestamp (millis) nhỏ nhất cần tổng hợp lại của mỗi mức; Long.MAX_VALUE nếu không có
+    private final Map<RollupTier, AtomicLong> dirtyFrom = new EnumMap<>(RollupTier.class);
+    // Point đến muộn từ ingest, chưa chắc đã tới InfluxDB
+    private final AtomicLong lateWrites = new AtomicLong(Long.MAX_VALUE);
+    // Các point đến muộn đã gom, chờ tới closedLateAt + settle + độ trễ journal; chỉ dùng trong rollup()
+    private long closedLate = Long.MAX_VALUE;
+    private long closedLateAt;
+    private final Map<RollupTier, Counter> pointCounters = new EnumMap<>(RollupTier.class);
+    private final Map<String, Counter> querySourceCounters = new ConcurrentHashMap<>();
+    private Timer runTimer;
+
+    /**
+     * Khoảng thời gian {@code [from, to)} mà một mức đã được tổng hợp đầy đủ.
+     */
+    public record Coverage(Instant from, Instant to) {
+    }
+
+    @PostConstruct
+    public void init() {
+        for (RollupTier tier : RollupTier.values()) {
+            dirtyFrom.put(tier, new AtomicLong(Long.MAX_VALUE));
+            pointCounters.put(tier, Counter.builder("sensor.rollup.points").tag("tier", tier.getLabel())
+                    .description("Số point đã ghi vào measurement downsampling")
+                    .register(meterRegistry));
+            try {
+                String from = redisTemplate.opsForValue().get(String.format(REDIS_KEY, tier.getLabel(), "from"));
+                String to = redisTemplate.opsForValue().get(String.format(REDIS_KEY, tier.getLabel(), "to"));
+                if (from != null && to != null) {
+                    coverage.put(tier, new Coverage(Instant.ofEpochMilli(Long.parseLong(from)),
+                            Instant.ofEpochMilli(Long.parseLong(to))));
+                }
+            } catch (Exception e) {
+                log.warn("Không đọc được trạng thái rollup {} từ Redis: {}", tier.getLabel(), e.getMessage());
+            }
+        }
+        runTimer = Timer.builder("sensor.rollup.run").register(meterRegistry);
+        log.info("Sensor rollup: {}", coverage);
+    }
+
+    /**
+     * Gọi khi ingest ghi một point (vào journal hoặc WriteApi). Chỉ point cũ
+     * hơn {@code settle-seconds} có thể rơi vào cửa sổ đã tổng hợp.
+     */
+    public void recordWrite(Instant timestamp) {
+        if (timestamp == null) {
+            return;
+        }
+        long ts = timestamp.toEpochMilli();
+        if (ts < System.currentTimeMillis() - settleSeconds * 1000) {
+            lateWrites.accumulateAndGet(ts, Math::min);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${sensor.rollup.interval-ms:60000}", initialDelay = 30000)
+    public void rollup() {
+        if (!enabled) {
+            return;
+        }
+        runTimer.record(() -> {
+            promoteLateWrites();
+            for (RollupTier tier : RollupTier.values()) {
+                try {
+                    rollupTier(tier);
+                } catch (Exception e) {
+                    log.error("Lỗi khi tổng hợp rollup {}: {}", tier.getLabel(), e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Point đến muộn chỉ được tính lại khi đã chắc chắn nằm trong InfluxDB
+    private void promoteLateWrites() {
+        long now = System.currentTimeMillis();
+        if (closedLate != Long.MAX_VALUE && now - closedLateAt >= settleSeconds * 1000 + journalLagMillis()) {
+            markDirty(RollupTier.values()[0], closedLate);
+            closedLate = Long.MAX_VALUE;
+        }
+        if (closedLate == Long.MAX_VALUE) {
+            closedLate = lateWrites.getAndSet(Long.MAX_VALUE);
+            closedLateAt = now;
+        }
+    }
+
+    private void markDirty(RollupTier tier, long fromMillis) {
+        dirtyFrom.get(tier).accumulateAndGet(fromMillis, Math::min);
+    }
+
+    public synchronized Coverage getCoverage(RollupTier tier) {
+        return coverage.get(tier);
+    }
+
+    private void rollupTier(RollupTier tier) {
+        Duration step = tier.getDuration();
+        Instant now = Instant.now();
+        RollupTier source = sourceOf(tier);
+        Coverage sourceCoverage = source != null ? getCoverage(source) : null;
+        if (source != null && sourceCoverage == null) {
+            // Mức nguồn chưa chạy lần nào
+            return;
+        }
+
+        rerunDirty(tier, source, sourceCoverage);
+
+        // Dữ liệu còn nằm trong journal chưa tới InfluxDB: lùi mốc kết thúc lại
+        Instant safeEnd = source == null
+                ? floor(now.minusSeconds(settleSeconds).minusMillis(journalLagMillis()), step)
+                : floor(sourceCoverage.to(), step);
+
+        Coverage current = getCoverage(tier);
+        Instant start;
+        if (current == null) {
+            start = backfillDays > 0 ? floor(now.minus(Duration.ofDays(backfillDays)), step) : safeEnd.minus(step);
+            if (source != null) {
+                start = max(start, ceil(sourceCoverage.from(), step));
+            }
+        } else if (source == null) {
+            Instant rerun = floor(current.to().minus(Duration.ofMinutes(latenessMinutes)), step);
+            start = rerun.isBefore(current.from()) ? current.from() : rerun;
+        } else {
+            start = current.to();
+        }
+
+        Instant stop = floor(start.plus(chunk(step)), step);
+        if (stop.isAfter(safeEnd)) {
+            stop = safeEnd;
+        }
+        if (!stop.isAfter(start) || (current != null && !stop.isAfter(current.to()))) {
+            return;
+        }
+
+        long written = write(tier, source, start, stop);
+        Instant from = start;
+        Instant to = stop;
+        updateCoverage(tier, c -> new Coverage(c == null ? from : c.from(), c == null ? to : max(c.to(), to)));
+        log.debug("Rollup {}: [{}, {}) -> {} point", tier.getLabel(), start, stop, written);
+    }
+
+    /**
+     * Tổng hợp lại các cửa sổ đã có từ watermark dirty, tối đa một đoạn; phần
+     * còn lại để lần chạy sau.
+     */
+    private void rerunDirty(RollupTier tier, RollupTier source, Coverage sourceCoverage) {
+        long dirty = dirtyFrom.get(tier).getAndSet(Long.MAX_VALUE);
+        Coverage current = getCoverage(tier);
+        if (dirty == Long.MAX_VALUE || current == null || dirty >= current.to().toEpochMilli()) {
+            return;
+        }
+        Duration step = tier.getDuration();
+        Instant start = max(floor(Instant.ofEpochMilli(dirty), step), current.from());
+        if (source != null) {
+            // Dữ liệu của mức nguồn trước from đã bị xóa theo retention
+            start = max(start, ceil(sourceCoverage.from(), step));
+        }
+        Instant stop = min(floor(start.plus(chunk(step)), step), current.to());
+        if (!stop.isAfter(start)) {
+            return;
+        }
+        long written = write(tier, source, start, stop);
+        if (stop.isBefore(current.to())) {
+            markDirty(tier, stop.toEpochMilli());
+        }
+        log.debug("Rollup {}: tổng hợp lại [{}, {}) do dữ liệu đến muộn -> {} point", tier.getLabel(), start, stop,
+                written);
+    }
+
+    private long write(RollupTier tier, RollupTier source, Instant start, Instant stop) {
+        long written = source == null
+                ? runRollupQuery(tier, start, stop)
+                : runCascadeQuery(tier, source, start, stop);
+        pointCounters.get(tier).increment(written);
+        // Mức sau đã tổng hợp các cửa sổ này từ dữ liệu cũ
+        RollupTier next = nextOf(tier);
+        if (next != null) {
+            Coverage nextCoverage = getCoverage(next);
+            if (nextCoverage != null && start.isBefore(nextCoverage.to())) {
+                markDirty(next, start.toEpochMilli());
+            }
+        }
+        return written;
+    }
+
+    private Duration chunk(Duration step) {
+        Duration chunk = Duration.ofHours(maxChunkHours);
+        return chunk.compareTo(step) < 0 ? step : chunk;
+    }
+
+    private long journalLagMillis() {
+        return journal.isEnabled() ? (long) (journal.lagSeconds() * 1000) : 0;
+    }
+
+    private static RollupTier sourceOf(RollupTier tier) {
+        return tier.ordinal() == 0 ? null : RollupTier.values()[tier.ordinal() - 1];
+    }
+
+    private static RollupTier nextOf(RollupTier tier) {
+        RollupTier[] tiers = RollupTier.values();
+        return tier.ordinal() + 1 < tiers.length ? tiers[tier.ordinal() + 1] : null;
+    }
+
+    /**
+     * Tổng hợp {@code [start, stop)} (căn theo độ phân giải của mức) từ dữ liệu
+     * gốc và nới {@code from} của mức về {@code start}. Dùng khi cần rollup dữ
+     * liệu cũ trước khi xóa dữ liệu gốc; {@code stop} phải nối liền với khoảng
+     * đã có.
+     */
+    public long compact(RollupTier tier, Instant start, Instant stop) {
+        Instant alignedStart = floor(start, tier.getDuration());
+        Instant alignedStop = ceil(stop, tier.getDuration());
+        long written = runRollupQuery(tier, alignedStart, alignedStop);
+        pointCounters.get(tier).increment(written);
+        updateCoverage(tier, c -> c == null
+                ? new Coverage(alignedStart, alignedStop)
+                : new Coverage(min(c.from(), alignedStart), max(c.to(), alignedStop)));
+        log.info("Rollup {} (compact): [{}, {}) -> {} point", tier.getLabel(), alignedStart, alignedStop, written);
+        return written;
+    }
+
+    /**
+     * Dữ liệu của mức trước {@code from} đã bị xóa theo retention.
+     */
+    public void trimCoverage(RollupTier tier, Instant from) {
+        updateCoverage(tier, c -> c == null || !c.from().isBefore(from) ? c
+                : new Coverage(min(from, c.to()), c.to()));
+    }
+
+    private void updateCoverage(RollupTier tier, UnaryOperator<Coverage> change) {
+        Coverage updated;
+        synchronized (this) {
+            updated = change.apply(coverage.get(tier));
+            coverage.put(tier, updated);
+        }
+        if (updated == null) {
+            return;
+        }
+        redisTemplate.opsForValue().set(String.format(REDIS_KEY, tier.getLabel(), "from"),
+                String.valueOf(updated.from().toEpochMilli()));
+        redisTemplate.opsForValue().set(String.format(REDIS_KEY, tier.getLabel(), "to"),
+                String.valueOf(updated.to().toEpochMilli()));
+    }
+
+    private long runRollupQuery(RollupTier tier, Instant start, Instant stop) {
+        String bucket = influxDBConfig.getBucket();
+        // to() không liệt kê tagColumns: mọi cột string (tag gốc và agg) đều thành tag
+        String flux = String.format(
+                "data = from(bucket: \"%s\")\n" +
+                        "  |> range(start: %s, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"%s\")\n" +
+                        "rollup = (tables=<-, fn, name) => tables\n" +
+                        "  |> aggregateWindow(every: %s, fn: fn, timeSrc: \"_start\", createEmpty: false)\n" +
+                        "  |> toFloat()\n" +
+                        "  |> set(key: \"agg\", value: name)\n" +
+                        "union(tables: [\n" +
+                        "    data |> rollup(fn: mean, name: \"mean\"),\n" +
+                        "    data |> rollup(fn: min, name: \"min\"),\n" +
+                        "    data |> rollup(fn: max, name: \"max\"),\n" +
+                        "    data |> rollup(fn: count, name: \"count\"),\n" +
+                        "    data |> rollup(fn: sum, name: \"sum\")])\n" +
+                        "  |> set(key: \"_measurement\", value: \"%s\")\n" +
+                        "  |> to(bucket: \"%s\", org: \"%s\")\n" +
+                        "  |> group()\n" +
+                        "  |> count()",
+                bucket, start, stop, RAW_MEASUREMENT, tier.getLabel(), tier.getMeasurement(), bucket,
+                influxDBConfig.getOrg());
+        return countWritten(flux);
+    }
+
+    /**
+     * Tổng hợp {@code tier} từ mức {@code source} nhỏ hơn: min của min, max
+     * của max, tổng count/sum, mean = tổng sum / tổng count.
+     */
+    private long runCascadeQuery(RollupTier tier, RollupTier source, Instant start, Instant stop) {
+        String bucket = influxDBConfig.getBucket();
+        String flux = String.format(
+                "data = from(bucket: \"%s\")\n" +
+                        "  |> range(start: %s, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"%s\")\n" +
+                        "rollup = (tables=<-, name, fn) => tables\n" +
+                        "  |> filter(fn: (r) => r.agg == name)\n" +
+                        "  |> aggregateWindow(every: %s, fn: fn, timeSrc: \"_start\", createEmpty: false)\n" +
+                        "mean = data\n" +
+                        "  |> filter(fn: (r) => r.agg == \"sum\" or r.agg == \"count\")\n" +
+                        "  |> aggregateWindow(every: %s, fn: sum, timeSrc: \"_start\", createEmpty: false)\n" +
+                        "  |> group(columns: [\"_measurement\", \"device_id\", \"farm_id\", \"sensor_type\", \"zone_id\", \"_field\"])\n" +
+                        "  |> pivot(rowKey: [\"_time\"], columnKey: [\"agg\"], valueColumn: \"_value\")\n" +
+                        "  |> map(fn: (r) => ({r with _value: r.sum / r.count, agg: \"mean\"}))\n" +
+                        "  |> drop(columns: [\"sum\", \"count\"])\n" +
+                        "union(tables: [\n" +
+                        "    mean,\n" +
+                        "    data |> rollup(name: \"min\", fn: min),\n" +
+                        "    data |> rollup(name: \"max\", fn: max),\n" +
+                        "    data |> rollup(name: \"count\", fn: sum),\n" +
+                        "    data |> rollup(name: \"sum\", fn: sum)])\n" +
+                        "  |> set(key: \"_measurement\", value: \"%s\")\n" +
+                        "  |> to(bucket: \"%s\", org: \"%s\")\n" +
+                        "  |> group()\n" +
+                        "  |> count()",
+                bucket, start, stop, source.getMeasurement(), tier.getLabel(), tier.getLabel(),
+                tier.getMeasurement(), bucket, influxDBConfig.getOrg());
+        return countWritten(flux);
+    }
+
+    private long countWritten(String flux) {
+        long written = 0;
+        for (FluxTable table : influxDBClient.getQueryApi().query(flux, influxDBConfig.getOrg())) {
+            for (var record : table.getRecords()) {
+                if (record.getValue() instanceof Number number) {
+                    written += number.longValue();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Tạo Flux trả về {@code aggregateWindow(every: window, fn: fn)} của các
+     * series thỏa {@code predicate} (biểu thức trên {@code r}, VD
+     * {@code r.device_id == "X" and r._field == "temperature"}) trong
+     * {@code [start, end)}. Dùng mức rollup khi có thể, chưa có {@code yield()}.
+     */
+    public String aggregateQuery(Instant start, Instant end, String predicate, String window, String fn) {
+        RollupTier tier = enabled ? chooseTier(window, fn) : null;
+        Coverage covered = tier != null ? getCoverage(tier) : null;
+        if (covered == null) {
+            countQuery("raw");
+            return rawPipeline(start, end, predicate, window, fn);
+        }
+
+        Duration every = parseDuration(window);
+        Instant tierFrom = max(start, ceil(covered.from(), every));
+        Instant tierTo = min(end, floor(covered.to(), every));
+        if (!tierFrom.isBefore(tierTo)) {
+            countQuery("raw");
+            return rawPipeline(start, end, predicate, window, fn);
+        }
+        countQuery(tier.getLabel());
+
+        String tierPart = tierPipeline(tier, tierFrom, tierTo, predicate, window, fn);
+        if (!start.isBefore(tierFrom) && !tierTo.isBefore(end)) {
+            return tierPart;
+        }
+
+        // Ghép phần đầu/cuối chưa có rollup từ dữ liệu gốc
+        List<String> parts = new ArrayList<>();
+        if (start.isBefore(tierFrom)) {
+            parts.add(rawPipeline(start, tierFrom, predicate, window, fn) + " |> toFloat()");
+        }
+        parts.add(tierPart);
+        if (tierTo.isBefore(end)) {
+            parts.add(rawPipeline(tierTo, end, predicate, window, fn) + " |> toFloat()");
+        }
+        return "union(tables: [\n" + String.join(",\n", parts) + "])\n" +
+                "  |> group(columns: [\"device_id\", \"_field\"])\n" +
+                "  |> sort(columns: [\"_time\"])";
+    }
+
+    /**
+     * Mức thô nhất có độ phân giải chia hết {@code window}; null nếu không có
+     * (cửa sổ nhỏ hơn 1m, không đọc được, hoặc hàm không tổng hợp lại được).
+     */
+    RollupTier chooseTier(String window, String fn) {
+        Duration every = parseDuration(window);
+        if (every == null || !ROLLUP_FUNCTIONS.contains(fn)) {
+            return null;
+        }
+        RollupTier chosen = null;
+        for (RollupTier tier : RollupTier.values()) {
+            Duration step = tier.getDuration();
+            if (step.compareTo(every) <= 0 && every.toMillis() % step.toMillis() == 0) {
+                chosen = tier;
+            }
+        }
+        return chosen;
+    }
+
+    private String rawPipeline(Instant start, Instant end, String predicate, String window, String fn) {
+        return String.format(
+                "from(bucket: \"%s\")\n" +
+                        "  |> range(start: %s, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"%s\")\n" +
+                        "  |> filter(fn: (r) => %s)\n" +
+                        "  |> group(columns: [\"device_id\", \"_field\"])\n" +
+                        "  |> aggregateWindow(every: %s, fn: %s, createEmpty: false)",
+                influxDBConfig.getBucket(), start, end, RAW_MEASUREMENT, predicate, window, fn);
+    }
+
+    private String tierPipeline(RollupTier tier, Instant start, Instant end, String predicate, String window,
+            String fn) {
+        String source = String.format(
+                "from(bucket: \"%s\")\n" +
+                        "  |> range(start: %s, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"%s\")\n" +
+                        "  |> filter(fn: (r) => %s)\n" +
+                        "  |> set(key: \"_measurement\", value: \"%s\")\n",
+                influxDBConfig.getBucket(), start, end, tier.getMeasurement(), predicate, RAW_MEASUREMENT);
+
+        // Kết quả trông như khi chạy aggregateWindow trên dữ liệu gốc
+        return switch (fn) {
+            // Trung bình có trọng số: tổng sum / tổng count của các cửa sổ con
+            case "mean" -> source +
+                    "  |> filter(fn: (r) => r.agg == \"sum\" or r.agg == \"count\")\n" +
+                    "  |> group(columns: [\"device_id\", \"_field\", \"agg\"])\n" +
+                    "  |> aggregateWindow(every: " + window + ", fn: sum, createEmpty: false)\n" +
+                    "  |> group(columns: [\"device_id\", \"_field\"])\n" +
+                    "  |> pivot(rowKey: [\"_time\"], columnKey: [\"agg\"], valueColumn: \"_value\")\n" +
+                    "  |> map(fn: (r) => ({r with _value: r.sum / r.count}))\n" +
+                    "  |> drop(columns: [\"sum\", \"count\"])";
+            case "min", "max" -> source +
+                    "  |> filter(fn: (r) => r.agg == \"" + fn + "\")\n" +
+                    "  |> group(columns: [\"device_id\", \"_field\"])\n" +
+                    "  |> aggregateWindow(every: " + window + ", fn: " + fn + ", createEmpty: false)\n" +
+                    "  |> drop(columns: [\"agg\"])";
+            default -> source +
+                    "  |> filter(fn: (r) => r.agg == \"" + fn + "\")\n" +
+                    "  |> group(columns: [\"device_id\", \"_field\"])\n" +
+                    "  |> aggregateWindow(every: " + window + ", fn: sum, createEmpty: false)\n" +
+                    "  |> drop(columns: [\"agg\"])";
+        };
+    }
+
+    private void countQuery(String source) {
+        querySourceCounters.computeIfAbsent(source, s -> Counter.builder("sensor.query.source").tag("source", s)
+                .description("Số truy vấn aggregate theo nguồn dữ liệu (raw hoặc mức rollup)")
+                .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Độ dài của cửa sổ Flux dạng {@code <n><s|m|h|d|w>}; null với đơn vị theo
+     * lịch (mo, y) hoặc chuỗi không đọc được.
+     */
+    public static Duration parseDuration(String window) {
+        if (window == null) {
+            return null;
+        }
+        Matcher m = FLUX_DURATION.matcher(window.trim());
+        if (!m.matches()) {
+            return null;
+        }
+        long n = Long.parseLong(m.group(1));
+        return switch (m.group(2)) {
+            case "s" -> Duration.ofSeconds(n);
+            case "m" -> Duration.ofMinutes(n);
+            case "h" -> Duration.ofHours(n);
+            case "d" -> Duration.ofDays(n);
+            default -> Duration.ofDays(7 * n);
+        };
+    }
+
+    private static Instant floor(Instant time, Duration step) {
+        long ms = step.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(time.toEpochMilli(), ms) * ms);
+    }
+
+    private static Instant ceil(Instant time, Duration step) {
+        Instant floored = floor(time, step);
+        return floored.equals(time) ? time : floored.plus(step);
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a.isBefore(b) ? a : b;
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.iotserver.service.rollup;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.service.DeviceRegistry;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.query.FluxTable;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Gắn tag {@code zone_id} cho các series được ghi trước khi ingest có tag này
+ * (sensor_data và các measurement rollup), để truy vấn theo zone lọc được trên
+ * một tag thay vì danh sách deviceId.
+ * <p>
+ * Mỗi lần chạy xử lý tối đa {@code sensor.zone-migration.windows-per-run} cửa
+ * sổ thời gian ({@code sensor.zone-migration.window-hours}, mặc định một ngày):
+ * với mỗi cửa sổ, chép các point chưa có zone_id sang series có zone hiện tại
+ * của thiết bị (phía server bằng {@code to()}), xóa đúng cửa sổ vừa chép rồi
+ * kiểm tra lại. Vị trí đã xử lý của từng thiết bị được lưu trong Redis nên lần
+ * sau (kể cả sau khi khởi động lại) chạy tiếp từ đó; khoảng trống không có dữ
+ * liệu được bỏ qua bằng cách nhảy tới point chưa có tag kế tiếp. Thiết bị đã xong
+ * được lưu trong Redis; khi hết thiết bị,
+ * {@link #isComplete()} chuyển true và SensorDataService bắt đầu lọc zone theo
+ * tag. Nếu sau khi xóa vẫn còn point chưa có tag, migration dừng hẳn và truy vấn
+ * tiếp tục dùng danh sách deviceId.
+ * <p>
+ * Lưu ý: lịch sử zone của thiết bị không được lưu ở đâu, nên mọi point cũ được
+ * gắn zone <em>hiện tại</em> của thiết bị lúc migration chạy. Thiết bị đã đổi
+ * zone trước đó sẽ có toàn bộ dữ liệu cũ tính vào zone mới trong các truy vấn
+ * theo zone; dữ liệu ghi sau khi có tag zone_id thì đúng zone tại thời điểm
+ * ghi.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ZoneTagMigration {
+
+    private static final String RAW_MEASUREMENT = "sensor_data";
+    private static final String DONE_KEY = "influx:zone-migration:done";
+    private static final String DEVICES_KEY = "influx:zone-migration:devices";
+    // deviceId -> epoch millis: mọi point chưa có tag trước mốc này đã được chép
+    private static final String PROGRESS_KEY = "influx:zone-migration:progress";
+
+    private final InfluxDBClient influxDBClient;
+    private final InfluxDBConfig influxDBConfig;
+    private final StringRedisTemplate redisTemplate;
+    private final DeviceRegistry deviceRegistry;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${sensor.zone-migration.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sensor.zone-migration.devices-per-run:5}")
+    private int devicesPerRun;
+
+    // Mỗi bước chỉ chép và xóa một cửa sổ thời gian
+    @Value("${sensor.zone-migration.window-hours:24}")
+    private long windowHours;
+
+    @Value("${sensor.zone-migration.windows-per-run:24}")
+    private int windowsPerRun;
+
+    private volatile boolean complete;
+    private volatile boolean failed;
+    private Counter migratedPoints;
+
+    @PostConstruct
+    public void init() {
+        try {
+            complete = "1".equals(redisTemplate.opsForValue().get(DONE_KEY));
+        } catch (Exception e) {
+            log.warn("Không đọc được trạng thái migration zone_id từ Redis: {}", e.getMessage());
+        }
+        migratedPoints = Counter.builder("sensor.zone_migration.points")
+                .description("Số point đã được gắn lại tag zone_id")
+                .register(meterRegistry);
+        Gauge.builder("sensor.zone_migration.complete", this, m -> m.isComplete() ? 1 : 0)
+                .register(meterRegistry);
+    }
+
+    /**
+     * true khi mọi series đã có tag zone_id.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Scheduled(fixedDelayString = "${sensor.zone-migration.interval-ms:10000}", initialDelay = 60000)
+    public void migrate() {
+        if (!enabled || complete || failed) {
+            return;
+        }
+        Set<String> done = redisTemplate.opsForSet().members(DEVICES_KEY);
+        Set<String> migrated = done != null ? done : Collections.emptySet();
+        List<DeviceSnapshot> pending = deviceRegistry.findAll().stream()
+                .filter(d -> !migrated.contains(d.getDeviceId()))
+                .limit(devicesPerRun)
+                .toList();
+
+        if (pending.isEmpty()) {
+            complete = true;
+            redisTemplate.opsForValue().set(DONE_KEY, "1");
+            log.info("Migration zone_id hoàn tất ({} thiết bị)", migrated.size());
+            return;
+        }
+
+        int budget = Math.max(windowsPerRun, 1);
+        for (DeviceSnapshot device : pending) {
+            if (budget <= 0) {
+                return;
+            }
+            try {
+                budget = migrateDevice(device, budget);
+            } catch (IllegalStateException e) {
+                failed = true;
+                log.error("Dừng migration zone_id: {}", e.getMessage());
+                return;
+            } catch (Exception e) {
+                log.warn("Migration zone_id cho {} lỗi, thử lại lần sau: {}", device.getDeviceId(), e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Chép tối đa {@code budget} cửa sổ của thiết bị, trả về số cửa sổ còn lại cho
+     * các thiết bị khác. Thiết bị được đánh dấu xong khi không còn point chưa có
+     * tag trước thời điểm hiện tại (point mới luôn có zone_id).
+     */
+    private int migrateDevice(DeviceSnapshot device, int budget) {
+        String deviceId = device.getDeviceId();
+        String zone = device.getZoneId() != null ? String.valueOf(device.getZoneId()) : SensorDataDTO.NO_ZONE;
+        long windowMs = Math.max(windowHours, 1) * 3_600_000L;
+        Instant cursor = loadProgress(deviceId);
+
+        while (budget > 0) {
+            Instant now = Instant.now();
+            Instant next = earliestUntagged(deviceId, cursor, now);
+            if (next == null) {
+                redisTemplate.opsForSet().add(DEVICES_KEY, deviceId);
+                redisTemplate.opsForHash().delete(PROGRESS_KEY, deviceId);
+                log.info("Migration zone_id xong thiết bị {}", deviceId);
+                return budget;
+            }
+            Instant start = Instant.ofEpochMilli(Math.floorDiv(next.toEpochMilli(), windowMs) * windowMs);
+            Instant stop = start.plusMillis(windowMs);
+            if (stop.isAfter(now)) {
+                stop = now;
+            }
+            migrateWindow(deviceId, zone, start, stop);
+            cursor = stop;
+            redisTemplate.opsForHash().put(PROGRESS_KEY, deviceId, String.valueOf(stop.toEpochMilli()));
+            budget--;
+        }
+        return budget;
+    }
+
+    private void migrateWindow(String deviceId, String zone, Instant start, Instant stop) {
+        for (String measurement : measurements()) {
+            long copied = count(String.format(
+                    "%s\n" +
+                            "  |> set(key: \"zone_id\", value: \"%s\")\n" +
+                            "  |> to(bucket: \"%s\", org: \"%s\")\n" +
+                            "  |> group()\n" +
+                            "  |> count()",
+                    untagged(measurement, deviceId, start, stop), zone, influxDBConfig.getBucket(),
+                    influxDBConfig.getOrg()));
+            if (copied == 0) {
+                continue;
+            }
+
+            // Chỉ xóa cửa sổ vừa chép. Tag không có trong series tương đương với giá
+            // trị rỗng trong predicate
+            influxDBClient.getDeleteApi().delete(
+                    OffsetDateTime.ofInstant(start, ZoneOffset.UTC),
+                    OffsetDateTime.ofInstant(stop, ZoneOffset.UTC).minusNanos(1),
+                    String.format("_measurement=\"%s\" AND device_id=\"%s\" AND zone_id=\"\"", measurement, deviceId),
+                    influxDBConfig.getBucket(),
+                    influxDBConfig.getOrg());
+
+            long remaining = count(untagged(measurement, deviceId, start, stop) + "\n  |> group()\n  |> count()");
+            if (remaining > 0) {
+                throw new IllegalStateException(String.format(
+                        "%s/%s vẫn còn %d point chưa có zone_id trong [%s, %s) sau khi xóa",
+                        measurement, deviceId, remaining, start, stop));
+            }
+            migratedPoints.increment(copied);
+            log.debug("Migration zone_id: {} {} point của {} trong [{}, {}) -> zone {}", measurement, copied,
+                    deviceId, start, stop, zone);
+        }
+    }
+
+    // Thời điểm của point chưa có tag sớm nhất trong [from, stop), null nếu không còn
+    private Instant earliestUntagged(String deviceId, Instant from, Instant stop) {
+        Instant earliest = null;
+        for (String measurement : measurements()) {
+            String flux = untagged(measurement, deviceId, from, stop)
+                    + "\n  |> first()\n  |> keep(columns: [\"_time\"])";
+            for (FluxTable table : influxDBClient.getQueryApi().query(flux, influxDBConfig.getOrg())) {
+                for (var record : table.getRecords()) {
+                    Instant time = record.getTime();
+                    if (time != null && (earliest == null || time.isBefore(earliest))) {
+                        earliest = time;
+                    }
+                }
+            }
+        }
+        return earliest;
+    }
+
+    private Instant loadProgress(String deviceId) {
+        Object value = redisTemplate.opsForHash().get(PROGRESS_KEY, deviceId);
+        return value != null ? Instant.ofEpochMilli(Long.parseLong(value.toString())) : Instant.EPOCH;
+    }
+
+    private String untagged(String measurement, String deviceId, Instant start, Instant stop) {
+        return String.format(
+                "from(bucket: \"%s\")\n" +
+                        "  |> range(start: %s, stop: %s)\n" +
+                        "  |> filter(fn: (r) => r._measurement == \"%s\" and r.device_id == \"%s\")\n" +
+                        "  |> filter(fn: (r) => not exists r.zone_id)",
+                influxDBConfig.getBucket(), start, stop, measurement, deviceId);
+    }
+
+    private long count(String flux) {
+        long total = 0;
+        for (FluxTable table : influxDBClient.getQueryApi().query(flux, influxDBConfig.getOrg())) {
+            for (var record : table.getRecords()) {
+                if (record.getValue() instanceof Number number) {
+                    total += number.longValue();
+                }
+            }
+        }
+        return total;
+    }
+
+    private static List<String> measurements() {
+        List<String> measurements = new ArrayList<>();
+        measurements.add(RAW_MEASUREMENT);
+        for (RollupTier tier : RollupTier.values()) {
+            measurements.add(tier.getMeasurement());
+        }
+        return measurements;
+    }
+}
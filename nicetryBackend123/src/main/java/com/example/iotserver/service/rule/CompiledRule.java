@@ -0,0 +1,402 @@
+package com.example.iotserver.service.rule;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.dto.WeatherDTO;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleCondition;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Quy tắc đã được "biên dịch" từ entity Rule: điều kiện đã sắp theo
+ * orderIndex, ngưỡng và khoảng giờ đã parse sẵn, field cảm biến/thời tiết đã
+ * chuyển thành enum truy cập trực tiếp getter; hành động được chép lại. Bất
+ * biến (RuleAction bản sao không được sửa); CompiledRuleSet thay nguyên object
+ * khi quy tắc thay đổi.
+ * <p>
+ * {@link #matches} không tạo object nào khi {@code details} là null và dừng sớm
+ * khi kết quả đã chắc chắn (kết hợp trái sang phải như trước: điều kiện sau
+ * AND khi kết quả đang sai, hoặc sau OR khi đang đúng, thì không cần kiểm tra).
+ */
+@Slf4j
+public final class CompiledRule {
+
+    // Sai số cho EQUALS/NOT_EQUALS
+    private static final double EPSILON = 0.01;
+
+    @Getter
+    private final Long id;
+    @Getter
+    private final String name;
+    @Getter
+    private final Long farmId;
+    // Chủ farm, nhận thông báo từ hành động SEND_NOTIFICATION/SEND_EMAIL
+    @Getter
+    private final Long ownerId;
+    @Getter
+    private final int priority;
+    // Lúc biên dịch; các lần chạy sau được CompiledRuleSet ghi nhận riêng
+    @Getter
+    private final LocalDateTime lastExecutedAt;
+    @Getter
+    private final List<Condition> conditions;
+    // Bản sao hành động, để chạy hành động không cần nạp entity
+    @Getter
+    private final List<Rule.RuleAction> actions;
+    // andBefore[i]: điều kiện i được kết hợp với kết quả trước bằng AND
+    private final boolean[] andBefore;
+    // Thiết bị có điều kiện SENSOR_VALUE (để lấy dữ liệu theo lô)
+    @Getter
+    private final Set<String> sensorDeviceIds;
+
+    /**
+     * Dữ liệu cho một lần kiểm tra (một chu kỳ hoặc một lô quy tắc).
+     */
+    public interface EvalContext {
+        SensorDataDTO latest(String deviceId);
+
+        DeviceSnapshot device(String deviceId);
+
+        WeatherDTO weather(Long farmId);
+
+        Instant now();
+
+        LocalTime localTime();
+    }
+
+    public sealed interface Condition
+            permits SensorCondition, TimeRangeCondition, TimeOfDayCondition, DeviceStatusCondition,
+            WeatherCondition, InvalidCondition {
+
+        /**
+         * @param details nơi ghi giá trị thực tế/mong đợi cho log; null nếu không cần
+         */
+        boolean test(EvalContext ctx, Map<String, Object> details);
+    }
+
+    public enum SensorField {
+        TEMPERATURE("temperature", "temperature", SensorDataDTO::getTemperature),
+        HUMIDITY("humidity", "humidity", SensorDataDTO::getHumidity),
+        SOIL_MOISTURE("soilmoisture", "soil_moisture", SensorDataDTO::getSoilMoisture),
+        LIGHT_INTENSITY("lightintensity", "light_intensity", SensorDataDTO::getLightIntensity),
+        SOIL_PH("soilph", "soilPH", SensorDataDTO::getSoilPH);
+
+        private final String normalized;
+        // Tên field trong InfluxDB
+        private final String key;
+        private final Function<SensorDataDTO, Double> accessor;
+
+        SensorField(String normalized, String key, Function<SensorDataDTO, Double> accessor) {
+            this.normalized = normalized;
+            this.key = key;
+            this.accessor = accessor;
+        }
+
+        public Double get(SensorDataDTO data) {
+            return accessor.apply(data);
+        }
+
+        /**
+         * Thời điểm của giá trị field này trong {@code data} (không phải của
+         * field mới nhất).
+         */
+        public Instant time(SensorDataDTO data) {
+            return data.fieldTime(key);
+        }
+
+        // Chữ thường, bỏ "_": "soil_moisture", "soilMoisture" -> SOIL_MOISTURE
+        static SensorField parse(String field) {
+            String normalized = field.toLowerCase().replace("_", "");
+            for (SensorField f : values()) {
+                if (f.normalized.equals(normalized)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum WeatherField {
+        RAIN_AMOUNT("rain_amount", WeatherDTO::getRainAmount),
+        TEMPERATURE("temperature", WeatherDTO::getTemperature),
+        HUMIDITY("humidity", WeatherDTO::getHumidity),
+        WIND_SPEED("wind_speed", WeatherDTO::getWindSpeed);
+
+        private final String key;
+        private final Function<WeatherDTO, Double> accessor;
+
+        WeatherField(String key, Function<WeatherDTO, Double> accessor) {
+            this.key = key;
+            this.accessor = accessor;
+        }
+
+        static WeatherField parse(String field) {
+            return switch (field.toLowerCase()) {
+                case "rain_amount", "rain" -> RAIN_AMOUNT;
+                case "temperature" -> TEMPERATURE;
+                case "humidity" -> HUMIDITY;
+                case "wind_speed" -> WIND_SPEED;
+                default -> null;
+            };
+        }
+    }
+
+    /**
+     * Điều kiện giá trị cảm biến. Độ tươi được kiểm tra bằng thời điểm của chính
+     * field trong lô (không truy vấn InfluxDB riêng, không dùng timestamp của
+     * field mới nhất): cũ hơn {@code maxAgeMillis}, hoặc không có thời điểm, thì
+     * điều kiện là SAI.
+     */
+    public record SensorCondition(String deviceId, SensorField field, String fieldName,
+            RuleCondition.Operator operator, double expected, long maxAgeMillis) implements Condition {
+
+        @Override
+        public boolean test(EvalContext ctx, Map<String, Object> details) {
+            SensorDataDTO data = ctx.latest(deviceId);
+            if (data == null) {
+                log.debug(" [Rule Check] Không có dữ liệu cảm biến gần đây cho thiết bị [{}]", deviceId);
+                return false;
+            }
+            Instant time = field.time(data);
+            if (time == null || ctx.now().toEpochMilli() - time.toEpochMilli() > maxAgeMillis) {
+                log.debug(" [Rule Check] Dữ liệu {} từ thiết bị {} quá cũ. Bỏ qua điều kiện.", fieldName, deviceId);
+                return false;
+            }
+            Double actual = field.get(data);
+            if (actual == null) {
+                return false;
+            }
+            if (details != null) {
+                details.put(fieldName, actual);
+                details.put(fieldName + "_expected", expected);
+            }
+            return compare(actual, operator, expected);
+        }
+    }
+
+    public record TimeRangeCondition(LocalTime start, LocalTime end, String range) implements Condition {
+
+        @Override
+        public boolean test(EvalContext ctx, Map<String, Object> details) {
+            LocalTime now = ctx.localTime();
+            boolean inRange = now.isAfter(start) && now.isBefore(end);
+            if (details != null) {
+                details.put("current_time", now.toString());
+                details.put("time_range", range);
+                details.put("in_time_range", inRange);
+            }
+            return inRange;
+        }
+    }
+
+    public record TimeOfDayCondition(LocalTime target) implements Condition {
+
+        @Override
+        public boolean test(EvalContext ctx, Map<String, Object> details) {
+            LocalTime now = ctx.localTime();
+            if (details != null) {
+                details.put("current_time", now.toString());
+            }
+            return !now.isBefore(target);
+        }
+    }
+
+    public record DeviceStatusCondition(String deviceId, String expectedStatus) implements Condition {
+
+        @Override
+        public boolean test(EvalContext ctx, Map<String, Object> details) {
+            DeviceSnapshot device = ctx.device(deviceId);
+            if (device == null || device.getStatus() == null) {
+                log.debug("Không tìm thấy thiết bị với ID '{}' cho điều kiện trạng thái.", deviceId);
+                return false;
+            }
+            String currentStatus = device.getStatus().name();
+            if (details != null) {
+                details.put("device_" + deviceId + "_status", currentStatus);
+                details.put("device_" + deviceId + "_expected_status", expectedStatus);
+            }
+            return currentStatus.equals(expectedStatus);
+        }
+    }
+
+    public record WeatherCondition(Long farmId, WeatherField field, RuleCondition.Operator operator,
+            double expected) implements Condition {
+
+        @Override
+        public boolean test(EvalContext ctx, Map<String, Object> details) {
+            WeatherDTO weather = ctx.weather(farmId);
+            if (weather == null) {
+                log.debug("Không có dữ liệu thời tiết cho farm {}", farmId);
+                return false;
+            }
+            Double actual = field.accessor.apply(weather);
+            if (actual == null) {
+                return false;
+            }
+            if (details != null) {
+                details.put("weather_" + field.key, actual);
+                details.put("weather_" + field.key + "_expected", expected);
+            }
+            return compare(actual, operator, expected);
+        }
+    }
+
+    /**
+     * Điều kiện không dùng được (thiếu deviceId, field lạ, giá trị không parse
+     * được...): luôn sai, như khi kiểm tra entity gặp lỗi.
+     */
+    public record InvalidCondition(String reason) implements Condition {
+
+        @Override
+        public boolean test(EvalContext ctx, Map<String, Object> details) {
+            return false;
+        }
+    }
+
+    private CompiledRule(Rule rule, List<Condition> conditions, boolean[] andBefore) {
+        this.id = rule.getId();
+        this.name = rule.getName();
+        this.farmId = rule.getFarm() != null ? rule.getFarm().getId() : null;
+        this.ownerId = rule.getFarm() != null && rule.getFarm().getOwner() != null
+                ? rule.getFarm().getOwner().getId()
+                : null;
+        this.priority = rule.getPriority() != null ? rule.getPriority() : 0;
+        this.lastExecutedAt = rule.getLastExecutedAt();
+        this.conditions = conditions;
+        this.andBefore = andBefore;
+        this.actions = rule.getActions().stream()
+                .map(action -> new Rule.RuleAction(action.getType(), action.getDeviceId(),
+                        action.getDurationSeconds(), action.getMessage()))
+                .toList();
+        Set<String> devices = new HashSet<>();
+        for (Condition condition : conditions) {
+            if (condition instanceof SensorCondition sensor) {
+                devices.add(sensor.deviceId());
+            }
+        }
+        this.sensorDeviceIds = Set.copyOf(devices);
+    }
+
+    /**
+     * Biên dịch một quy tắc; gọi trong transaction vì điều kiện, hành động và
+     * farm của entity được đọc tại đây.
+     *
+     * @param defaultMaxDataAgeMinutes ngưỡng độ tươi cho điều kiện cảm biến không tự đặt
+     */
+    public static CompiledRule compile(Rule rule, long defaultMaxDataAgeMinutes) {
+        List<RuleCondition> sorted = rule.getConditions().stream()
+                .sorted(Comparator.comparing(RuleCondition::getOrderIndex,
+                        Comparator.nullsFirst(Comparator.naturalOrder())))
+                .toList();
+        Long farmId = rule.getFarm() != null ? rule.getFarm().getId() : null;
+
+        Condition[] compiled = new Condition[sorted.size()];
+        boolean[] andBefore = new boolean[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            RuleCondition condition = sorted.get(i);
+            compiled[i] = compileCondition(condition, farmId, defaultMaxDataAgeMinutes);
+            if (compiled[i] instanceof InvalidCondition invalid) {
+                log.warn("Quy tắc '{}': điều kiện {} không hợp lệ ({}), luôn được coi là SAI",
+                        rule.getName(), i + 1, invalid.reason());
+            }
+            // Operator của điều kiện trước quyết định cách kết hợp với điều kiện này (khác AND là OR)
+            andBefore[i] = i == 0
+                    || sorted.get(i - 1).getLogicalOperator() == RuleCondition.LogicalOperator.AND;
+        }
+        return new CompiledRule(rule, List.of(compiled), andBefore);
+    }
+
+    private static Condition compileCondition(RuleCondition condition, Long farmId,
+            long defaultMaxDataAgeMinutes) {
+        try {
+            return switch (condition.getType()) {
+                case SENSOR_VALUE -> {
+                    if (condition.getDeviceId() == null || condition.getDeviceId().isEmpty()) {
+                        yield new InvalidCondition("thiếu deviceId");
+                    }
+                    SensorField field = condition.getField() != null ? SensorField.parse(condition.getField()) : null;
+                    if (field == null) {
+                        yield new InvalidCondition("trường cảm biến không hỗ trợ: " + condition.getField());
+                    }
+                    long maxAgeMinutes = condition.getMaxDataAgeMinutes() != null && condition.getMaxDataAgeMinutes() > 0
+                            ? condition.getMaxDataAgeMinutes()
+                            : defaultMaxDataAgeMinutes;
+                    yield new SensorCondition(condition.getDeviceId(), field, condition.getField(),
+                            condition.getOperator(), Double.parseDouble(condition.getValue()),
+                            TimeUnit.MINUTES.toMillis(maxAgeMinutes));
+                }
+                case TIME_RANGE -> {
+                    // Format: "06:00-18:00" hoặc "06:00"
+                    String value = condition.getValue();
+                    if (value.contains("-")) {
+                        String[] parts = value.split("-");
+                        yield new TimeRangeCondition(LocalTime.parse(parts[0].trim()),
+                                LocalTime.parse(parts[1].trim()), value);
+                    }
+                    yield new TimeOfDayCondition(LocalTime.parse(value.trim()));
+                }
+                case DEVICE_STATUS -> {
+                    if (condition.getDeviceId() == null || condition.getDeviceId().isEmpty()) {
+                        yield new InvalidCondition("thiếu deviceId");
+                    }
+                    yield new DeviceStatusCondition(condition.getDeviceId(), condition.getValue().toUpperCase());
+                }
+                case WEATHER -> {
+                    WeatherField field = WeatherField.parse(condition.getField());
+                    if (field == null) {
+                        yield new InvalidCondition("trường thời tiết không hỗ trợ: " + condition.getField());
+                    }
+                    yield new WeatherCondition(farmId, field, condition.getOperator(),
+                            Double.parseDouble(condition.getValue()));
+                }
+            };
+        } catch (RuntimeException e) {
+            return new InvalidCondition(e.getMessage());
+        }
+    }
+
+    /**
+     * Kiểm tra điều kiện của quy tắc.
+     *
+     * @param details nơi ghi chi tiết điều kiện cho execution log; null để không tạo object nào
+     */
+    public boolean matches(EvalContext ctx, Map<String, Object> details) {
+        if (conditions.isEmpty()) {
+            return false;
+        }
+        boolean result = conditions.get(0).test(ctx, details);
+        for (int i = 1; i < conditions.size(); i++) {
+            // AND với kết quả sai hoặc OR với kết quả đúng: không đổi được kết quả
+            if (andBefore[i] != result) {
+                continue;
+            }
+            result = conditions.get(i).test(ctx, details);
+        }
+        return result;
+    }
+
+    static boolean compare(double actual, RuleCondition.Operator operator, double expected) {
+        return switch (operator) {
+            case EQUALS -> Math.abs(actual - expected) < EPSILON;
+            case NOT_EQUALS -> Math.abs(actual - expected) >= EPSILON;
+            case GREATER_THAN -> actual > expected;
+            case GREATER_THAN_OR_EQUAL -> actual >= expected;
+            case LESS_THAN -> actual < expected;
+            case LESS_THAN_OR_EQUAL -> actual <= expected;
+            default -> false;
+        };
+    }
+}
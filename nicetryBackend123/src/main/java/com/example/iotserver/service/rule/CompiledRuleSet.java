@@ -0,0 +1,284 @@
+package com.example.iotserver.service.rule;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleExecutionLog;
+import com.example.iotserver.event.DeviceChangedEvent;
+import com.example.iotserver.event.RuleChangedEvent;
+import com.example.iotserver.repository.RuleRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tập quy tắc đang bật đã biên dịch ({@link CompiledRule}), giữ trong bộ nhớ.
+ * RuleEngineService kiểm tra điều kiện trên tập này mà không đọc MySQL; entity
+ * Rule chỉ được nạp khi quy tắc thật sự chạy hành động.
+ * <p>
+ * Nạp toàn bộ khi khởi động (giống DeviceRegistry). Sau đó chỉ quy tắc có trong
+ * {@link RuleChangedEvent} (phát từ RuleService sau khi commit) được biên dịch
+ * lại hoặc bỏ đi; xóa farm thì nạp lại toàn bộ. Kèm theo là index kích hoạt
+ * cho RuleTriggerService: (deviceId, field) -> quy tắc, deviceId -> quy tắc có
+ * điều kiện trạng thái, các quy tắc theo giờ/thời tiết, và ruleId -> các quy
+ * tắc cùng farm có hành động trên cùng thiết bị (phải được kiểm tra cùng lô để
+ * thứ tự priority giữa chúng vẫn đúng).
+ * <p>
+ * Ngoài ra giữ kết quả kiểm tra gần nhất của mỗi quy tắc để RuleEngineService
+ * chỉ ghi execution log SKIPPED khi kết quả thay đổi (xem {@link #shouldLog}).
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class CompiledRuleSet {
+
+    private final RuleRepository ruleRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+
+    // Ngưỡng độ tươi mặc định của dữ liệu cảm biến (điều kiện có thể tự đặt maxDataAgeMinutes)
+    @Value("${rule.engine.max-data-age-minutes:15}")
+    private long defaultMaxDataAgeMinutes;
+
+    // SKIPPED lặp lại vẫn được ghi log sau khoảng này (0 = chỉ ghi khi kết quả đổi)
+    @Value("${rule.engine.skipped-log-interval-ms:3600000}")
+    private long skippedLogIntervalMs;
+
+    /**
+     * Index bất biến dựng từ các quy tắc đã biên dịch, thay nguyên khối khi tập
+     * quy tắc thay đổi.
+     */
+    record TriggerIndex(Map<String, Map<CompiledRule.SensorField, Set<Long>>> sensorRules,
+            Map<String, Set<Long>> statusRules, Set<Long> timeRules, Set<Long> weatherRules,
+            Map<Long, Set<Long>> actionPeers) {
+
+        static final TriggerIndex EMPTY = new TriggerIndex(Map.of(), Map.of(), Set.of(), Set.of(), Map.of());
+    }
+
+    // Kết quả lần kiểm tra gần nhất đã ghi log, và lúc ghi
+    private record Outcome(RuleExecutionLog.ExecutionStatus status, long loggedAt) {
+    }
+
+    private final Map<Long, CompiledRule> rules = new ConcurrentHashMap<>();
+    private final Map<Long, LocalDateTime> lastExecuted = new ConcurrentHashMap<>();
+    private final Map<Long, Outcome> lastOutcome = new ConcurrentHashMap<>();
+    // Theo priority giảm dần, như findAllEnabledRules
+    private volatile List<CompiledRule> ordered = List.of();
+    private volatile TriggerIndex index = TriggerIndex.EMPTY;
+    private Counter compileCounter;
+    private Counter suppressedLogCounter;
+
+    @PostConstruct
+    public void init() {
+        compileCounter = Counter.builder("rule.compiled")
+                .description("Số lần biên dịch một quy tắc")
+                .register(meterRegistry);
+        suppressedLogCounter = Counter.builder("rule.log.suppressed")
+                .description("Execution log SKIPPED không ghi vì kết quả giống lần trước")
+                .register(meterRegistry);
+        Gauge.builder("rule.compiled.size", rules, Map::size).register(meterRegistry);
+        reloadAll();
+    }
+
+    /**
+     * Nạp lại toàn bộ quy tắc đang bật từ MySQL.
+     */
+    public void reloadAll() {
+        List<CompiledRule> compiled = transactionTemplate.execute(status -> {
+            List<Rule> enabled = ruleRepository.findAllEnabledRulesWithConditions();
+            List<CompiledRule> result = new ArrayList<>(enabled.size());
+            for (Rule rule : enabled) {
+                result.add(CompiledRule.compile(rule, defaultMaxDataAgeMinutes));
+            }
+            return result;
+        });
+        Map<Long, CompiledRule> loaded = new HashMap<>();
+        compiled.forEach(rule -> loaded.put(rule.getId(), rule));
+        rules.putAll(loaded);
+        rules.keySet().retainAll(loaded.keySet());
+        lastOutcome.keySet().retainAll(loaded.keySet());
+        compileCounter.increment(loaded.size());
+        rebuildViews();
+        log.info("Đã biên dịch {} quy tắc đang kích hoạt", loaded.size());
+    }
+
+    // Chạy trước RuleTriggerService để quy tắc vừa lưu được kiểm tra bằng bản mới
+    @TransactionalEventListener(fallbackExecution = true)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onRuleChanged(RuleChangedEvent event) {
+        log.debug("Compiled rule set nhận sự kiện {}", event);
+        switch (event.getKind()) {
+            case SAVED -> {
+                // Lần kiểm tra đầu tiên sau khi sửa luôn được ghi log
+                lastOutcome.remove(event.getRuleId());
+                reload(event.getRuleId());
+            }
+            case DELETED -> {
+                rules.remove(event.getRuleId());
+                lastExecuted.remove(event.getRuleId());
+                lastOutcome.remove(event.getRuleId());
+                rebuildViews();
+            }
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceChanged(DeviceChangedEvent event) {
+        if (event.getKind() == DeviceChangedEvent.Kind.FARM_DELETED) {
+            reloadAll();
+        }
+    }
+
+    public List<CompiledRule> all() {
+        return ordered;
+    }
+
+    public Optional<CompiledRule> find(Long ruleId) {
+        return Optional.ofNullable(rules.get(ruleId));
+    }
+
+    /**
+     * Các quy tắc trong {@code ruleIds} còn đang bật, theo priority giảm dần.
+     */
+    public List<CompiledRule> select(Collection<Long> ruleIds) {
+        List<CompiledRule> selected = new ArrayList<>(ruleIds.size());
+        for (Long ruleId : ruleIds) {
+            CompiledRule rule = rules.get(ruleId);
+            if (rule != null) {
+                selected.add(rule);
+            }
+        }
+        selected.sort(Comparator.comparingInt(CompiledRule::getPriority).reversed());
+        return selected;
+    }
+
+    /**
+     * Ghi nhận quy tắc vừa chạy hành động (cho cooldown) mà không biên dịch lại.
+     */
+    public void markExecuted(Long ruleId, LocalDateTime executedAt) {
+        lastExecuted.put(ruleId, executedAt);
+    }
+
+    /**
+     * Lần chạy hành động gần nhất của quy tắc, null nếu chưa chạy.
+     */
+    public LocalDateTime lastExecutedAt(CompiledRule rule) {
+        LocalDateTime recorded = lastExecuted.get(rule.getId());
+        LocalDateTime compiled = rule.getLastExecutedAt();
+        if (recorded == null || (compiled != null && compiled.isAfter(recorded))) {
+            return compiled;
+        }
+        return recorded;
+    }
+
+    /**
+     * Ghi nhận kết quả một lần kiểm tra quy tắc và cho biết có cần ghi execution
+     * log không. SUCCESS/FAILED luôn được ghi; SKIPPED chỉ khi lần trước không
+     * phải SKIPPED, hoặc lần ghi SKIPPED trước đã quá
+     * {@code rule.engine.skipped-log-interval-ms}.
+     */
+    public boolean shouldLog(Long ruleId, RuleExecutionLog.ExecutionStatus status, long nowMillis) {
+        boolean[] write = new boolean[1];
+        lastOutcome.compute(ruleId, (id, previous) -> {
+            write[0] = status != RuleExecutionLog.ExecutionStatus.SKIPPED
+                    || previous == null
+                    || previous.status() != status
+                    || (skippedLogIntervalMs > 0 && nowMillis - previous.loggedAt() >= skippedLogIntervalMs);
+            return write[0] ? new Outcome(status, nowMillis) : previous;
+        });
+        if (!write[0]) {
+            suppressedLogCounter.increment();
+        }
+        return write[0];
+    }
+
+    TriggerIndex index() {
+        return index;
+    }
+
+    private void reload(Long ruleId) {
+        CompiledRule compiled = transactionTemplate.execute(status -> ruleRepository.findById(ruleId)
+                .filter(rule -> Boolean.TRUE.equals(rule.getEnabled()))
+                .map(rule -> CompiledRule.compile(rule, defaultMaxDataAgeMinutes))
+                .orElse(null));
+        if (compiled == null) {
+            rules.remove(ruleId);
+        } else {
+            rules.put(ruleId, compiled);
+            compileCounter.increment();
+        }
+        rebuildViews();
+    }
+
+    private synchronized void rebuildViews() {
+        List<CompiledRule> sorted = new ArrayList<>(rules.values());
+        sorted.sort(Comparator.comparingInt(CompiledRule::getPriority).reversed());
+
+        Map<String, Map<CompiledRule.SensorField, Set<Long>>> sensorRules = new HashMap<>();
+        Map<String, Set<Long>> statusRules = new HashMap<>();
+        Set<Long> timeRules = new HashSet<>();
+        Set<Long> weatherRules = new HashSet<>();
+        // (farm, thiết bị của hành động) -> quy tắc
+        Map<Long, Map<String, Set<Long>>> actionRules = new HashMap<>();
+        for (CompiledRule rule : sorted) {
+            for (Rule.RuleAction action : rule.getActions()) {
+                if (action.getDeviceId() != null) {
+                    actionRules.computeIfAbsent(rule.getFarmId(), f -> new HashMap<>())
+                            .computeIfAbsent(action.getDeviceId(), d -> new HashSet<>())
+                            .add(rule.getId());
+                }
+            }
+            for (CompiledRule.Condition condition : rule.getConditions()) {
+                if (condition instanceof CompiledRule.SensorCondition sensor) {
+                    sensorRules.computeIfAbsent(sensor.deviceId(), d -> new EnumMap<>(CompiledRule.SensorField.class))
+                            .computeIfAbsent(sensor.field(), f -> new HashSet<>())
+                            .add(rule.getId());
+                } else if (condition instanceof CompiledRule.DeviceStatusCondition status) {
+                    statusRules.computeIfAbsent(status.deviceId(), d -> new HashSet<>()).add(rule.getId());
+                } else if (condition instanceof CompiledRule.TimeRangeCondition
+                        || condition instanceof CompiledRule.TimeOfDayCondition) {
+                    timeRules.add(rule.getId());
+                } else if (condition instanceof CompiledRule.WeatherCondition) {
+                    weatherRules.add(rule.getId());
+                }
+            }
+        }
+        Map<Long, Set<Long>> actionPeers = new HashMap<>();
+        for (Map<String, Set<Long>> byDevice : actionRules.values()) {
+            for (Set<Long> ruleIds : byDevice.values()) {
+                if (ruleIds.size() < 2) {
+                    continue;
+                }
+                for (Long ruleId : ruleIds) {
+                    Set<Long> peers = actionPeers.computeIfAbsent(ruleId, r -> new HashSet<>());
+                    peers.addAll(ruleIds);
+                    peers.remove(ruleId);
+                }
+            }
+        }
+        ordered = List.copyOf(sorted);
+        index = new TriggerIndex(sensorRules, statusRules, timeRules, weatherRules, actionPeers);
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.iotserver.service.rule;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.iotserver.entity.RuleExecutionLog;
+import com.example.iotserver.repository.RuleExecutionLogRepository;
+import com.example.iotserver.repository.RuleRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Gom execution log và thống kê chạy của quy tắc để ghi MySQL theo lô.
+ * <p>
+ * RuleEngineService kiểm tra điều kiện và chạy hành động ngoài mọi transaction
+ * rồi chỉ gọi {@link #record}; {@link #flush} được gọi cuối mỗi lần chạy (và
+ * định kỳ theo {@code rule.engine.log-flush-ms} cho các farm chạy quá ngân
+ * sách), mỗi lô tối đa {@code rule.engine.log-batch-size} bản ghi trong một
+ * transaction ngắn. Thống kê (lastExecutedAt, executionCount) được gộp theo
+ * quy tắc thành một câu UPDATE. Log của quy tắc đã bị xóa trước khi ghi thì
+ * bị bỏ. Cooldown không phụ thuộc vào việc ghi này vì CompiledRuleSet ghi nhận
+ * lần chạy ngay trong bộ nhớ.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class RuleExecutionRecorder {
+
+    private final RuleRepository ruleRepository;
+    private final RuleExecutionLogRepository logRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rule.engine.log-batch-size:500}")
+    private int batchSize;
+
+    // Quá số này thì bỏ bản ghi mới (VD: MySQL ngừng quá lâu)
+    @Value("${rule.engine.log-queue-capacity:50000}")
+    private int queueCapacity;
+
+    /**
+     * Một lần kiểm tra quy tắc, đã serialize sẵn chi tiết sang JSON.
+     */
+    public record Entry(Long ruleId, LocalDateTime executedAt, RuleExecutionLog.ExecutionStatus status,
+            Boolean conditionsMet, String conditionDetails, String actionsPerformed, String errorMessage,
+            long executionTimeMs) {
+    }
+
+    private BlockingQueue<Entry> queue;
+    private Timer flushTimer;
+    private Counter droppedCounter;
+
+    @PostConstruct
+    public void init() {
+        queue = new LinkedBlockingQueue<>(Math.max(queueCapacity, 1));
+        flushTimer = Timer.builder("rule.log.flush")
+                .description("Thời gian ghi một lô execution log và thống kê quy tắc")
+                .register(meterRegistry);
+        droppedCounter = Counter.builder("rule.log.dropped")
+                .description("Execution log bị bỏ (hàng chờ đầy hoặc quy tắc đã bị xóa)")
+                .register(meterRegistry);
+        Gauge.builder("rule.log.pending", this, r -> r.queue.size()).register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    public void record(Entry entry) {
+        if (!queue.offer(entry)) {
+            droppedCounter.increment();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${rule.engine.log-flush-ms:5000}", initialDelay = 15000)
+    public void scheduledFlush() {
+        flush();
+    }
+
+    /**
+     * Ghi mọi bản ghi đang chờ, theo lô.
+     */
+    public synchronized void flush() {
+        List<Entry> batch = new ArrayList<>(Math.min(queue.size(), Math.max(batchSize, 1)));
+        while (queue.drainTo(batch, Math.max(batchSize, 1)) > 0) {
+            try {
+                flushTimer.record(() -> writeBatch(batch));
+            } catch (Exception e) {
+                droppedCounter.increment(batch.size());
+                log.error("Lỗi khi ghi {} execution log của quy tắc: {}", batch.size(), e.getMessage(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) {
+        Set<Long> ruleIds = new HashSet<>();
+        for (Entry entry : batch) {
+            ruleIds.add(entry.ruleId());
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            Set<Long> existing = new HashSet<>(ruleRepository.findExistingIds(ruleIds));
+            List<RuleExecutionLog> logs = new ArrayList<>(batch.size());
+            // Thống kê gộp theo quy tắc trong lô: lần chạy cuối và số lần chạy
+            Map<Long, LocalDateTime> lastExecuted = new LinkedHashMap<>();
+            Map<Long, Long> executions = new LinkedHashMap<>();
+            for (Entry entry : batch) {
+                if (!existing.contains(entry.ruleId())) {
+                    droppedCounter.increment();
+                    continue;
+                }
+                logs.add(RuleExecutionLog.builder()
+                        .rule(ruleRepository.getReferenceById(entry.ruleId()))
+                        .executedAt(entry.executedAt())
+                        .status(entry.status())
+                        .conditionsMet(entry.conditionsMet())
+                        .conditionDetails(entry.conditionDetails())
+                        .actionsPerformed(entry.actionsPerformed())
+                        .errorMessage(entry.errorMessage())
+                        .executionTimeMs(entry.executionTimeMs())
+                        .build());
+                if (entry.status() == RuleExecutionLog.ExecutionStatus.SUCCESS) {
+                    lastExecuted.merge(entry.ruleId(), entry.executedAt(),
+                            (a, b) -> a.isAfter(b) ? a : b);
+                    executions.merge(entry.ruleId(), 1L, Long::sum);
+                }
+            }
+            logRepository.saveAll(logs);
+            lastExecuted.forEach((ruleId, executedAt) ->
+                    ruleRepository.recordExecutions(ruleId, executedAt, executions.get(ruleId)));
+        });
+        log.debug("Đã ghi {} execution log của quy tắc", batch.size());
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.iotserver.service.rule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.event.DeviceStatusChangedEvent;
+import com.example.iotserver.event.RuleChangedEvent;
+import com.example.iotserver.service.RuleEngineService;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Kích hoạt quy tắc theo sự kiện thay vì chạy lại mọi quy tắc mỗi 30 giây.
+ * <p>
+ * Dùng index của {@link CompiledRuleSet}: (deviceId, field) -> quy tắc cho
+ * SENSOR_VALUE, deviceId -> quy tắc cho DEVICE_STATUS, và danh sách quy tắc
+ * có điều kiện TIME_RANGE/WEATHER. Mỗi reading được chấp nhận chỉ đưa
+ * các quy tắc phụ thuộc vào field của nó vào hàng chờ; TIME_RANGE và WEATHER
+ * được đưa vào theo timer riêng ({@code rule.trigger.time-interval-ms},
+ * {@code rule.trigger.weather-interval-ms}).
+ * <p>
+ * Mỗi quy tắc trong hàng chờ được chạy sau {@code rule.trigger.debounce-ms}
+ * kể từ sự kiện đầu tiên; các sự kiện tiếp theo trong khoảng đó gộp vào cùng
+ * một lần chạy. Khi một quy tắc vào hàng chờ, các quy tắc cùng farm điều khiển
+ * cùng thiết bị cũng được đưa vào, để quy tắc priority cao hơn vẫn chặn được
+ * quy tắc thấp hơn trong cùng lô. Việc chạy diễn ra trên một thread riêng, theo lô qua
+ * {@link RuleEngineService#executeRules}; quy tắc bị hoãn (farm đang chạy lô
+ * khác, hết ngân sách) được đưa lại vào hàng chờ. Quy tắc vừa lưu ({@link RuleChangedEvent})
+ * được kiểm tra ngay. RuleScheduler vẫn quét toàn bộ định kỳ (thưa hơn)
+ * để bắt các thay đổi không có sự kiện, VD thiết bị chuyển OFFLINE.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class RuleTriggerService {
+
+    private final CompiledRuleSet ruleSet;
+    private final RuleEngineService ruleEngineService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rule.trigger.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rule.trigger.debounce-ms:2000}")
+    private long debounceMs;
+
+    @Value("${rule.trigger.tick-ms:250}")
+    private long tickMs;
+
+    // ruleId -> thời điểm (ms) sẽ chạy
+    private final Map<Long, Long> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+    private Timer evaluationTimer;
+
+    @PostConstruct
+    public void init() {
+        evaluationTimer = Timer.builder("rule.trigger.evaluation")
+                .description("Thời gian chạy một lô quy tắc được kích hoạt theo sự kiện")
+                .register(meterRegistry);
+        Gauge.builder("rule.trigger.pending", pending, Map::size).register(meterRegistry);
+        if (!enabled) {
+            log.info("Kích hoạt quy tắc theo sự kiện đang tắt, RuleScheduler chạy mọi quy tắc định kỳ");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rule-trigger");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::runDue, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gọi cho mỗi reading được chấp nhận: đưa các quy tắc phụ thuộc vào
+     * (deviceId, field) có giá trị trong reading vào hàng chờ.
+     */
+    public void onReading(SensorDataDTO data) {
+        if (!enabled || data.getDeviceId() == null) {
+            return;
+        }
+        Map<CompiledRule.SensorField, Set<Long>> byField = ruleSet.index().sensorRules().get(data.getDeviceId());
+        if (byField == null) {
+            return;
+        }
+        for (Map.Entry<CompiledRule.SensorField, Set<Long>> entry : byField.entrySet()) {
+            if (entry.getKey().get(data) != null) {
+                enqueue(entry.getValue(), "sensor");
+            }
+        }
+    }
+
+    /**
+     * Gọi khi trạng thái kết nối/hoạt động của thiết bị thay đổi.
+     */
+    public void onDeviceStatus(String deviceId) {
+        if (!enabled || deviceId == null) {
+            return;
+        }
+        enqueue(ruleSet.index().statusRules().getOrDefault(deviceId, Set.of()), "status");
+    }
+
+    @Scheduled(fixedDelayString = "${rule.trigger.time-interval-ms:60000}", initialDelay = 10000)
+    public void triggerTimeRules() {
+        if (enabled) {
+            enqueue(ruleSet.index().timeRules(), "time");
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${rule.trigger.weather-interval-ms:600000}", initialDelay = 60000)
+    public void triggerWeatherRules() {
+        if (enabled) {
+            enqueue(ruleSet.index().weatherRules(), "weather");
+        }
+    }
+
+    /**
+     * Trạng thái đổi ngoài luồng MQTT (VD: thiết bị bị đánh dấu OFFLINE vì im lặng).
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceStatusChanged(DeviceStatusChangedEvent event) {
+        onDeviceStatus(event.getDeviceId());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onRuleChanged(RuleChangedEvent event) {
+        log.debug("Rule trigger nhận sự kiện {}", event);
+        if (enabled && event.getKind() == RuleChangedEvent.Kind.SAVED) {
+            // Quy tắc mới/sửa được kiểm tra ngay với dữ liệu hiện có
+            enqueue(Set.of(event.getRuleId()), "changed");
+        }
+    }
+
+    private void enqueue(Collection<Long> ruleIds, String source) {
+        if (ruleIds.isEmpty()) {
+            return;
+        }
+        long due = System.currentTimeMillis() + debounceMs;
+        Map<Long, Set<Long>> actionPeers = ruleSet.index().actionPeers();
+        int added = 0;
+        for (Long ruleId : ruleIds) {
+            if (pending.putIfAbsent(ruleId, due) == null) {
+                added++;
+            }
+            for (Long peer : actionPeers.getOrDefault(ruleId, Set.of())) {
+                if (pending.putIfAbsent(peer, due) == null) {
+                    added++;
+                }
+            }
+        }
+        if (added > 0) {
+            Counter.builder("rule.trigger.enqueued").tag("source", source)
+                    .register(meterRegistry).increment(added);
+        }
+    }
+
+    // Chạy trên thread "rule-trigger": lấy các quy tắc đã tới hạn và chạy một lô
+    private void runDue() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Long> due = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : pending.entrySet()) {
+            // remove(key, value) để không mất sự kiện vừa được thêm lại sau khi lấy
+            if (entry.getValue() <= now && pending.remove(entry.getKey(), entry.getValue())) {
+                due.add(entry.getKey());
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        try {
+            List<Long> deferred = evaluationTimer.record(
+                    () -> ruleEngineService.executeRules(Collections.unmodifiableList(due)));
+            // Farm đang chạy lô khác hoặc hết ngân sách: kiểm tra lại sau một debounce
+            if (deferred != null) {
+                enqueue(deferred, "deferred");
+            }
+        } catch (Exception e) {
+            log.error("Lỗi khi chạy {} quy tắc được kích hoạt: {}", due.size(), e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,601 @@
+package com.example.iotserver.benchmark;
+
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.integration.config.EnableIntegration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.config.MqttConfig;
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.entity.Device;
+import com.example.iotserver.entity.Farm;
+import com.example.iotserver.entity.User;
+import com.example.iotserver.enums.DeviceStatus;
+import com.example.iotserver.enums.DeviceType;
+import com.example.iotserver.repository.DeviceRepository;
+import com.example.iotserver.service.DevicePresenceTracker;
+import com.example.iotserver.service.DeviceRegistry;
+import com.example.iotserver.service.InfluxQueryStreamer;
+import com.example.iotserver.service.LatestValueStore;
+import com.example.iotserver.service.FarmSettingService;
+import com.example.iotserver.service.MqttMessageHandler;
+import com.example.iotserver.service.NotificationService;
+import com.example.iotserver.service.PlantHealthService;
+import com.example.iotserver.service.SensorDataService;
+import com.example.iotserver.service.SeriesBucketCache;
+import com.example.iotserver.service.WebSocketService;
+import com.example.iotserver.service.ingest.DedupWindow;
+import com.example.iotserver.service.ingest.DeviceRateLimiter;
+import com.example.iotserver.service.ingest.GatewayBatchDecoder;
+import com.example.iotserver.service.ingest.IngestBackpressure;
+import com.example.iotserver.service.ingest.IngestPipeline;
+import com.example.iotserver.service.ingest.SensorBinaryCodec;
+import com.example.iotserver.service.ingest.SensorPayloadDecoder;
+import com.example.iotserver.service.journal.InfluxWriteMonitor;
+import com.example.iotserver.service.journal.JournalReplayer;
+import com.example.iotserver.service.journal.SensorJournal;
+import com.example.iotserver.service.rollup.SensorRollupService;
+import com.example.iotserver.service.rollup.ZoneTagMigration;
+import com.example.iotserver.service.rule.RuleTriggerService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.WriteApi;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.write.Point;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.config.MemoryConfig;
+
+/**
+ * Benchmark end-to-end cho đường ingest: broker MQTT nhúng (Moquette), một
+ * đàn thiết bị giả lập publish {@code sensor/{id}/data}, và các thành phần
+ * ingest thật (MqttConfig, MqttMessageHandler, IngestPipeline, SensorJournal,
+ * JournalReplayer, SensorDataService...) chạy trong một Spring context nhỏ.
+ * <p>
+ * InfluxDB, Redis và MySQL được thay bằng stand-in trong process (Mockito):
+ * WriteApi/WriteApiBlocking ghi nhận thời điểm mỗi point được "ghi",
+ * WebSocketService ghi nhận thời điểm push. Độ trễ được đo từ lúc publish tới
+ * lúc ghi InfluxDB và tới lúc push WebSocket; thông lượng là số point ghi
+ * InfluxDB mỗi giây trong giai đoạn đo. Chạy hoàn toàn offline.
+ * <p>
+ * Chạy: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.example.iotserver.benchmark.IngestEndToEndBenchmark}.
+ * Tham số (system property):
+ * <ul>
+ * <li>{@code bench.devices} (mặc định 2000), {@code bench.rate-per-device}
+ * (message/giây/thiết bị, mặc định 1.0)</li>
+ * <li>{@code bench.warmup-s} (10), {@code bench.duration-s} (60),
+ * {@code bench.publishers} (số kết nối MQTT publish, 8)</li>
+ * <li>{@code bench.influx-latency-ms}: độ trễ giả lập của mỗi lần ghi InfluxDB
+ * (0)</li>
+ * </ul>
+ * Mọi property {@code ingest.*} (VD {@code -Dingest.journal.enabled=false},
+ * {@code -Dingest.rate-limit.enabled=false}) được truyền thẳng cho các
+ * component.
+ */
+public class IngestEndToEndBenchmark {
+
+    private static final String DEVICE_PREFIX = "BENCH-";
+    private static final long FARM_ID = 1L;
+
+    public static void main(String[] args) throws Exception {
+        int devices = Integer.getInteger("bench.devices", 2000);
+        double ratePerDevice = Double.parseDouble(System.getProperty("bench.rate-per-device", "1.0"));
+        int warmupSeconds = Integer.getInteger("bench.warmup-s", 10);
+        int durationSeconds = Integer.getInteger("bench.duration-s", 60);
+        int publishers = Integer.getInteger("bench.publishers", 8);
+
+        quietLogging();
+        int port = freePort();
+        Path journalDir = Files.createTempDirectory("bench-journal");
+
+        Server broker = new Server();
+        Properties brokerProps = new Properties();
+        brokerProps.setProperty(IConfig.HOST_PROPERTY_NAME, "127.0.0.1");
+        brokerProps.setProperty(IConfig.PORT_PROPERTY_NAME, String.valueOf(port));
+        brokerProps.setProperty(IConfig.WEB_SOCKET_PORT_PROPERTY_NAME, BrokerConstants.DISABLED_PORT_BIND);
+        brokerProps.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        brokerProps.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+        brokerProps.setProperty(IConfig.DATA_PATH_PROPERTY_NAME, journalDir.toString());
+        broker.startServer(new MemoryConfig(brokerProps));
+
+        Map<String, Object> props = new HashMap<>();
+        props.put("mqtt.broker-url", "tcp://127.0.0.1:" + port);
+        props.put("mqtt.client-id", "bench");
+        props.put("ingest.journal.dir", journalDir.toString());
+        // Không có InfluxDB thật để chạy job rollup/migration
+        props.put("sensor.rollup.enabled", "false");
+        props.put("sensor.zone-migration.enabled", "false");
+        props.put("sensor.latest.warm-up", "false");
+
+        LatencyRecorder recorder = new LatencyRecorder(warmupSeconds + durationSeconds);
+        FakeBackends.recorder = recorder;
+        FakeBackends.devices = devices;
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addLast(new MapPropertySource("bench", props));
+        context.register(FakeBackends.class);
+        context.refresh();
+
+        List<Publisher> fleet = new ArrayList<>();
+        try {
+            // Chờ adapter inbound kết nối và subscribe
+            TimeUnit.SECONDS.sleep(2);
+
+            double totalRate = devices * ratePerDevice;
+            for (int p = 0; p < publishers; p++) {
+                Publisher publisher = new Publisher("tcp://127.0.0.1:" + port, p, publishers, devices,
+                        totalRate / publishers, recorder);
+                publisher.start();
+                fleet.add(publisher);
+            }
+
+            System.out.printf(Locale.ROOT, "Fleet: %d devices x %.2f msg/s = %.0f msg/s, warmup %ds, đo %ds%n",
+                    devices, ratePerDevice, totalRate, warmupSeconds, durationSeconds);
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+            recorder.startMeasuring();
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            recorder.stopMeasuring();
+            fleet.forEach(Publisher::halt);
+
+            // Chờ pipeline/journal xử lý nốt phần đã publish trong giai đoạn đo
+            recorder.awaitDrain(Duration.ofSeconds(30));
+            report(recorder, context.getBean(MeterRegistry.class), durationSeconds);
+
+        } finally {
+            fleet.forEach(Publisher::close);
+            context.close();
+            broker.stopServer();
+            deleteRecursively(journalDir);
+        }
+        System.exit(0);
+    }
+
+    private static void report(LatencyRecorder recorder, MeterRegistry appRegistry, int durationSeconds) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Published (đo):       %d (%.0f msg/s), lỗi publish %d%n",
+                recorder.published.sum(), recorder.published.sum() / (double) durationSeconds,
+                recorder.publishFailures.sum());
+        System.out.printf(Locale.ROOT, "Influx points (đo):   %d (%.0f points/s)%n",
+                recorder.influxWritten.sum(), recorder.influxWritten.sum() / (double) durationSeconds);
+        System.out.printf(Locale.ROOT, "WebSocket push (đo):  %d%n", recorder.wsPushed.sum());
+        printLatency("publish -> Influx write", recorder.influxLatency);
+        printLatency("publish -> WebSocket", recorder.wsLatency);
+
+        System.out.println();
+        System.out.println("Metric của ứng dụng:");
+        appRegistry.getMeters().stream()
+                .filter(m -> m.getId().getName().startsWith("ingest."))
+                .sorted(Comparator.comparing((Meter m) -> m.getId().getName())
+                        .thenComparing(m -> m.getId().getTags().toString()))
+                .forEach(m -> {
+                    double value = m.measure().iterator().next().getValue();
+                    System.out.printf(Locale.ROOT, "  %-40s %-28s %.0f%n", m.getId().getName(),
+                            m.getId().getTags().isEmpty() ? "" : m.getId().getTags().toString(), value);
+                });
+    }
+
+    private static void printLatency(String label, Timer timer) {
+        double p50 = 0;
+        double p99 = 0;
+        for (ValueAtPercentile v : timer.takeSnapshot().percentileValues()) {
+            if (v.percentile() == 0.5) {
+                p50 = v.value(TimeUnit.MILLISECONDS);
+            } else if (v.percentile() == 0.99) {
+                p99 = v.value(TimeUnit.MILLISECONDS);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%-24s p50 %8.2f ms   p99 %8.2f ms   max %8.2f ms%n", label, p50, p99,
+                timer.max(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Thời điểm publish của từng message, đối chiếu khi point tới
+     * InfluxDB/WebSocket. Mỗi message mang một số thứ tự trong trường
+     * {@code lightIntensity} (server đặt thời điểm của point là lúc nhận nên
+     * không dùng timestamp để đối chiếu được).
+     */
+    static final class LatencyRecorder {
+
+        private final Map<Long, Sample> inFlight = new ConcurrentHashMap<>();
+        private final AtomicLong sequence = new AtomicLong();
+        private final MeterRegistry registry = new SimpleMeterRegistry();
+        final Timer influxLatency;
+        final Timer wsLatency;
+
+        final LongAdder published = new LongAdder();
+        final LongAdder publishFailures = new LongAdder();
+        final LongAdder influxWritten = new LongAdder();
+        final LongAdder wsPushed = new LongAdder();
+        private volatile boolean measuring;
+
+        private record Sample(long publishedNanos, boolean measured, AtomicInteger pending) {
+        }
+
+        LatencyRecorder(int expirySeconds) {
+            influxLatency = timer("influx", expirySeconds);
+            wsLatency = timer("websocket", expirySeconds);
+        }
+
+        private Timer timer(String stage, int expirySeconds) {
+            return Timer.builder("bench.latency").tag("stage", stage)
+                    .publishPercentiles(0.5, 0.99)
+                    .distributionStatisticExpiry(Duration.ofSeconds(expirySeconds * 2L))
+                    .distributionStatisticBufferLength(1)
+                    .register(registry);
+        }
+
+        void startMeasuring() {
+            measuring = true;
+        }
+
+        void stopMeasuring() {
+            measuring = false;
+        }
+
+        long onPublish() {
+            long seq = sequence.incrementAndGet();
+            boolean measured = measuring;
+            inFlight.put(seq, new Sample(System.nanoTime(), measured, new AtomicInteger(2)));
+            if (measured) {
+                published.increment();
+            }
+            return seq;
+        }
+
+        void onPublishFailed(long seq) {
+            inFlight.remove(seq);
+            publishFailures.increment();
+        }
+
+        void onInfluxWrite(long seq) {
+            record(seq, influxLatency, influxWritten);
+        }
+
+        void onWebSocketPush(long seq) {
+            record(seq, wsLatency, wsPushed);
+        }
+
+        private void record(long key, Timer timer, LongAdder counter) {
+            Sample sample = inFlight.get(key);
+            if (sample == null) {
+                return;
+            }
+            if (sample.measured()) {
+                timer.record(System.nanoTime() - sample.publishedNanos(), TimeUnit.NANOSECONDS);
+                counter.increment();
+            }
+            if (sample.pending().decrementAndGet() == 0) {
+                inFlight.remove(key);
+            }
+        }
+
+        void awaitDrain(Duration timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            long last = -1;
+            while (System.nanoTime() < deadline && influxWritten.sum() < published.sum()) {
+                TimeUnit.SECONDS.sleep(1);
+                long written = influxWritten.sum();
+                if (written == last) {
+                    // Không còn tiến triển (message bị bỏ/gộp)
+                    break;
+                }
+                last = written;
+            }
+        }
+    }
+
+    /**
+     * Một kết nối MQTT publish thay cho các thiết bị {@code index, index +
+     * stride, ...}, theo vòng tròn với tốc độ cố định.
+     */
+    static final class Publisher extends Thread {
+
+        private final MqttAsyncClient client;
+        private final int first;
+        private final int stride;
+        private final int devices;
+        private final long intervalNanos;
+        private final LatencyRecorder recorder;
+        private volatile boolean running = true;
+
+        Publisher(String brokerUrl, int index, int stride, int devices, double ratePerSecond,
+                LatencyRecorder recorder) throws MqttException {
+            super("bench-publisher-" + index);
+            this.first = index;
+            this.stride = stride;
+            this.devices = devices;
+            this.intervalNanos = (long) (1_000_000_000L / ratePerSecond);
+            this.recorder = recorder;
+            this.client = new MqttAsyncClient(brokerUrl, "bench-publisher-" + index, new MemoryPersistence());
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            options.setMaxInflight(10_000);
+            client.connect(options).waitForCompletion(10_000);
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            int device = first;
+            while (running) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                next += intervalNanos;
+                publish(String.format("%s%05d", DEVICE_PREFIX, device));
+                device += stride;
+                if (device >= devices) {
+                    device = first;
+                }
+            }
+        }
+
+        private void publish(String deviceId) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long seq = recorder.onPublish();
+            String payload = String.format(Locale.ROOT,
+                    "{\"deviceId\":\"%s\",\"sensorType\":\"DHT22\",\"temperature\":%.1f,\"humidity\":%.1f,"
+                            + "\"soilMoisture\":%.1f,\"lightIntensity\":%d,\"timestamp\":%d}",
+                    deviceId, random.nextDouble(20, 35), random.nextDouble(40, 90), random.nextDouble(25, 60),
+                    seq, System.currentTimeMillis());
+            MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+            message.setQos(1);
+            try {
+                client.publish("sensor/" + deviceId + "/data", message);
+            } catch (MqttException e) {
+                recorder.onPublishFailed(seq);
+            }
+        }
+
+        void halt() {
+            running = false;
+        }
+
+        void close() {
+            halt();
+            try {
+                client.disconnect().waitForCompletion(5_000);
+                client.close();
+            } catch (MqttException e) {
+                // Bỏ qua khi dọn dẹp
+            }
+        }
+    }
+
+    /**
+     * Spring context tối thiểu: các component ingest thật + stand-in cho
+     * InfluxDB, MySQL, Redis và WebSocket.
+     */
+    @Configuration
+    @EnableIntegration
+    @EnableScheduling
+    @Import({ MqttConfig.class, MqttMessageHandler.class, SensorDataService.class, DeviceRegistry.class,
+            DevicePresenceTracker.class, IngestPipeline.class, SensorPayloadDecoder.class,
+            SensorBinaryCodec.class, GatewayBatchDecoder.class, DeviceRateLimiter.class, DedupWindow.class,
+            IngestBackpressure.class, SensorJournal.class, JournalReplayer.class, InfluxWriteMonitor.class,
+            SensorRollupService.class, ZoneTagMigration.class, LatestValueStore.class,
+            InfluxQueryStreamer.class, SeriesBucketCache.class })
+    static class FakeBackends {
+
+        static LatencyRecorder recorder;
+        static int devices;
+
+        private static final long INFLUX_LATENCY_MS = Long.getLong("bench.influx-latency-ms", 0);
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+
+        @Bean
+        ObjectMapper objectMapper() {
+            return new ObjectMapper().registerModule(new JavaTimeModule());
+        }
+
+        @Bean
+        DeviceRepository deviceRepository() {
+            User owner = new User();
+            owner.setId(1L);
+            owner.setEmail("bench@example.com");
+            owner.setFullName("Bench");
+            Farm farm = new Farm();
+            farm.setId(FARM_ID);
+            farm.setName("Bench farm");
+            farm.setOwner(owner);
+
+            List<Device> fleet = new ArrayList<>(devices);
+            for (int i = 0; i < devices; i++) {
+                Device device = new Device();
+                device.setId((long) i + 1);
+                device.setDeviceId(String.format("%s%05d", DEVICE_PREFIX, i));
+                device.setName("Bench " + i);
+                device.setType(DeviceType.SENSOR_DHT22);
+                device.setStatus(DeviceStatus.ONLINE);
+                device.setFarm(farm);
+                fleet.add(device);
+            }
+            DeviceRepository repository = mock(DeviceRepository.class);
+            when(repository.findAllWithFarmAndOwner()).thenReturn(fleet);
+            return repository;
+        }
+
+        @Bean
+        JdbcTemplate jdbcTemplate() {
+            return mock(JdbcTemplate.class);
+        }
+
+        @Bean
+        StringRedisTemplate redisTemplate() {
+            return mock(StringRedisTemplate.class, org.mockito.Answers.RETURNS_DEEP_STUBS);
+        }
+
+        @Bean
+        InfluxDBConfig influxDBConfig() {
+            InfluxDBConfig config = mock(InfluxDBConfig.class);
+            when(config.getBucket()).thenReturn("bench");
+            when(config.getOrg()).thenReturn("bench");
+            when(config.getBatchSize()).thenReturn(5000);
+            when(config.getBufferLimit()).thenReturn(10000);
+            return config;
+        }
+
+        @Bean
+        InfluxDBClient influxDBClient() {
+            return mock(InfluxDBClient.class);
+        }
+
+        // Đường ghi trực tiếp (ingest.journal.enabled=false)
+        @Bean
+        WriteApi writeApiAsync() {
+            return mock(WriteApi.class, invocation -> {
+                switch (invocation.getMethod().getName()) {
+                    case "writePoint" -> recordPoint(invocation.getArgument(0));
+                    case "writePoints" -> {
+                        for (Object point : (List<?>) invocation.getArgument(0)) {
+                            recordPoint((Point) point);
+                        }
+                    }
+                    default -> {
+                    }
+                }
+                return null;
+            });
+        }
+
+        // Đường replay từ journal
+        @Bean
+        WriteApiBlocking writeApi() {
+            return mock(WriteApiBlocking.class, invocation -> {
+                if ("writeRecord".equals(invocation.getMethod().getName())) {
+                    simulateLatency();
+                    String body = invocation.getArgument(invocation.getArguments().length - 1);
+                    body.lines().forEach(FakeBackends::recordLine);
+                }
+                return null;
+            });
+        }
+
+        @Bean
+        WebSocketService webSocketService() {
+            return mock(WebSocketService.class, invocation -> {
+                if ("sendSensorData".equals(invocation.getMethod().getName())) {
+                    SensorDataDTO data = invocation.getArgument(1);
+                    recorder.onWebSocketPush(data.getLightIntensity().longValue());
+                }
+                return null;
+            });
+        }
+
+        @Bean
+        PlantHealthService plantHealthService() {
+            return mock(PlantHealthService.class);
+        }
+
+        @Bean
+        NotificationService notificationService() {
+            return mock(NotificationService.class);
+        }
+
+        @Bean
+        RuleTriggerService ruleTriggerService() {
+            return mock(RuleTriggerService.class);
+        }
+
+        @Bean
+        FarmSettingService farmSettingService() {
+            FarmSettingService service = mock(FarmSettingService.class);
+            when(service.getDouble(anyLong(), anyString(), anyDouble())).thenAnswer(i -> i.getArgument(2));
+            return service;
+        }
+
+        private static void recordPoint(Point point) {
+            simulateLatency();
+            recordLine(point.toLineProtocol());
+        }
+
+        // sensor_data,device_id=X,... humidity=...,light_intensity=<seq>,... <millis>
+        private static void recordLine(String line) {
+            int start = line.indexOf("light_intensity=") + "light_intensity=".length();
+            int end = start;
+            while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != ' ') {
+                end++;
+            }
+            recorder.onInfluxWrite((long) Double.parseDouble(line.substring(start, end)));
+        }
+
+        private static void simulateLatency() {
+            if (INFLUX_LATENCY_MS > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(INFLUX_LATENCY_MS));
+            }
+        }
+    }
+
+    private static void quietLogging() {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        ((Logger) LoggerFactory.getLogger("com.example.iotserver")).setLevel(Level.INFO);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
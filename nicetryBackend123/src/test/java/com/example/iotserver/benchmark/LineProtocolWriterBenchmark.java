@@ -0,0 +1,97 @@
+package com.example.iotserver.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.service.journal.LineProtocolWriter;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+
+/**
+ * So sánh đường mã hóa cũ (Point -> toLineProtocol() -> byte[]) với
+ * {@link LineProtocolWriter} cho một reading đầy đủ 5 trường.
+ * <p>
+ * Chạy: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.example.iotserver.benchmark.LineProtocolWriterBenchmark}.
+ * Xem {@code gc.alloc.rate.norm} để so sánh số byte cấp phát mỗi reading.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineProtocolWriterBenchmark {
+
+    private SensorDataDTO data;
+    private LineProtocolWriter writer;
+
+    @Setup
+    public void setup() {
+        data = SensorDataDTO.builder()
+                .deviceId("DHT22-0001")
+                .farmId(42L)
+                .zoneId(7L)
+                .sensorType("DHT22")
+                .timestamp(Instant.ofEpochMilli(1_718_000_000_000L))
+                .temperature(28.4)
+                .humidity(71.2)
+                .soilMoisture(43.9)
+                .lightIntensity(12500.0)
+                .soilPH(6.6)
+                .build();
+        writer = new LineProtocolWriter();
+    }
+
+    // Giống SensorDataService.toPoint(); byte[] là thứ cuối cùng được ghi ra
+    @Benchmark
+    public byte[] point() {
+        Point point = Point.measurement("sensor_data")
+                .addTag("device_id", data.getDeviceId())
+                .addTag("sensor_type", data.getSensorType() != null ? data.getSensorType() : "UNKNOWN")
+                .addTag("farm_id", String.valueOf(data.getFarmId()))
+                .addTag("zone_id", data.getZoneId() != null ? String.valueOf(data.getZoneId()) : SensorDataDTO.NO_ZONE)
+                .time(data.getTimestamp(), WritePrecision.MS);
+        if (data.getTemperature() != null)
+            point.addField("temperature", data.getTemperature());
+        if (data.getHumidity() != null)
+            point.addField("humidity", data.getHumidity());
+        if (data.getSoilMoisture() != null)
+            point.addField("soil_moisture", data.getSoilMoisture());
+        if (data.getLightIntensity() != null)
+            point.addField("light_intensity", data.getLightIntensity());
+        if (data.getSoilPH() != null)
+            point.addField("soilPH", data.getSoilPH());
+        return point.toLineProtocol().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer writer() {
+        return writer.encode(data);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LineProtocolWriterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
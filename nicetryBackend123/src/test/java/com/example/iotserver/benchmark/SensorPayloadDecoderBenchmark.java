@@ -0,0 +1,88 @@
+package com.example.iotserver.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.service.ingest.SensorPayloadDecoder;
+import com.example.iotserver.service.ingest.SensorReading;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * So sánh đường giải mã cũ (String -> Map -> SensorDataDTO) với
+ * {@link SensorPayloadDecoder}.
+ * <p>
+ * Chạy: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.example.iotserver.benchmark.SensorPayloadDecoderBenchmark}.
+ * GC profiler được bật để so sánh cả số byte cấp phát mỗi lần giải mã
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SensorPayloadDecoderBenchmark {
+
+    // Giống payload của fake_arduino_device.py, thêm một trường lạ
+    private static final String PAYLOAD = "{\"deviceId\":\"DHT22-0001\",\"sensorType\":\"DHT22\","
+            + "\"temperature\":28.4,\"humidity\":71.2,\"soilMoisture\":43.9,\"lightIntensity\":12500,"
+            + "\"soilPH\":6.6,\"rssi\":-67}";
+
+    private ObjectMapper objectMapper;
+    private SensorPayloadDecoder decoder;
+    private SensorReading reading;
+    private byte[] payloadBytes;
+
+    @Setup
+    public void setup() {
+        objectMapper = new ObjectMapper();
+        decoder = new SensorPayloadDecoder(objectMapper);
+        reading = new SensorReading();
+        payloadBytes = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public SensorDataDTO mapBased() throws Exception {
+        // Đường cũ: Paho byte[] -> String -> Map -> DTO
+        String payload = new String(payloadBytes, StandardCharsets.UTF_8);
+        Map<String, Object> data = objectMapper.readValue(payload, Map.class);
+        return SensorDataDTO.fromMqttPayload("DHT22-0001", data);
+    }
+
+    @Benchmark
+    public SensorReading streaming() throws Exception {
+        return decoder.decode(payloadBytes, reading);
+    }
+
+    @Benchmark
+    public SensorDataDTO streamingToDTO() throws Exception {
+        // Bao gồm cả bước chuyển sang DTO như MqttMessageHandler đang làm
+        return decoder.decode(payloadBytes, reading).toDTO("DHT22-0001");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SensorPayloadDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.iotserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.event.DeviceChangedEvent;
+import com.influxdb.client.InfluxDBClient;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class LatestValueStoreTest {
+
+    private static final Duration MAX_AGE = Duration.ofHours(1);
+
+    private final DeviceRegistry deviceRegistry = mock(DeviceRegistry.class);
+    private LatestValueStore store;
+
+    @BeforeEach
+    void setUp() {
+        // warm-up tắt (giá trị mặc định của field khi không có Spring)
+        store = new LatestValueStore(mock(InfluxDBClient.class), mock(InfluxDBConfig.class), deviceRegistry,
+                new SimpleMeterRegistry());
+        store.init();
+        store.record(SensorDataDTO.builder().deviceId("ESP-1").farmId(1L).zoneId(10L).temperature(25.0)
+                .timestamp(Instant.now()).build());
+    }
+
+    @Test
+    void keepsTimeOfEachField() {
+        Instant older = Instant.now().minus(Duration.ofMinutes(30));
+        store.record(SensorDataDTO.builder().deviceId("ESP-1").humidity(70.0).timestamp(older).build());
+
+        SensorDataDTO latest = store.findDevice("ESP-1", MAX_AGE);
+        assertEquals(70.0, latest.getHumidity());
+        assertEquals(older.toEpochMilli(), latest.fieldTime("humidity").toEpochMilli());
+        // timestamp là của field mới nhất
+        assertEquals(latest.getTimestamp(), latest.fieldTime("temperature"));
+        assertEquals(1, latest.getFieldTimes().size());
+    }
+
+    @Test
+    void movesDeviceToNewZoneWithoutWaitingForReading() {
+        when(deviceRegistry.peek("ESP-1")).thenReturn(snapshot(1L, 20L));
+
+        store.onDeviceChanged(DeviceChangedEvent.saved("ESP-1"));
+
+        assertNull(store.findZone(10L, MAX_AGE));
+        SensorDataDTO zone = store.findZone(20L, MAX_AGE);
+        assertNotNull(zone);
+        assertEquals(25.0, zone.getTemperature());
+        assertEquals(20L, store.findDevice("ESP-1", MAX_AGE).getZoneId());
+    }
+
+    @Test
+    void dropsDeletedDevice() {
+        when(deviceRegistry.peek("ESP-1")).thenReturn(null);
+
+        store.onDeviceChanged(DeviceChangedEvent.deleted("ESP-1"));
+
+        assertNull(store.findDevice("ESP-1", MAX_AGE));
+        assertNull(store.findFarm(1L, MAX_AGE));
+        assertNull(store.findZone(10L, MAX_AGE));
+    }
+
+    @Test
+    void dropsDevicesOfDeletedFarm() {
+        when(deviceRegistry.peek("ESP-1")).thenReturn(null);
+
+        store.onDeviceChanged(DeviceChangedEvent.farmDeleted(1L));
+
+        assertNull(store.findFarm(1L, MAX_AGE));
+    }
+
+    @Test
+    void keepsDeviceWhenFarmAndZoneUnchanged() {
+        when(deviceRegistry.peek("ESP-1")).thenReturn(snapshot(1L, 10L));
+
+        store.onDeviceChanged(DeviceChangedEvent.saved("ESP-1"));
+
+        assertNotNull(store.findZone(10L, MAX_AGE));
+        assertNotNull(store.findFarm(1L, MAX_AGE));
+    }
+
+    private static DeviceSnapshot snapshot(Long farmId, Long zoneId) {
+        return DeviceSnapshot.builder().deviceId("ESP-1").farmId(farmId).zoneId(zoneId).build();
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.iotserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LttbDownsamplerTest {
+
+    private record Sample(long time, double value) {
+    }
+
+    @Test
+    void keepsFirstAndLastAndLimitsPoints() {
+        List<Sample> points = series(1000);
+
+        List<Sample> reduced = LttbDownsampler.downsample(points, 50, Sample::time, Sample::value);
+
+        assertTrue(reduced.size() <= 50);
+        assertEquals(points.get(0), reduced.get(0));
+        assertEquals(points.get(points.size() - 1), reduced.get(reduced.size() - 1));
+        for (int i = 1; i < reduced.size(); i++) {
+            assertTrue(reduced.get(i - 1).time() < reduced.get(i).time());
+        }
+    }
+
+    @Test
+    void unsortedInputIsReducedLikeSortedInput() {
+        List<Sample> points = series(1000);
+        // VD hai series (hai zone) của cùng field nối tiếp nhau
+        List<Sample> interleaved = new ArrayList<>(points.subList(500, 1000));
+        interleaved.addAll(points.subList(0, 500));
+        List<Sample> shuffled = new ArrayList<>(points);
+        Collections.shuffle(shuffled, new Random(7));
+
+        List<Sample> expected = LttbDownsampler.downsample(points, 50, Sample::time, Sample::value);
+        assertEquals(expected, LttbDownsampler.downsample(interleaved, 50, Sample::time, Sample::value));
+        assertEquals(expected, LttbDownsampler.downsample(shuffled, 50, Sample::time, Sample::value));
+    }
+
+    @Test
+    void returnsShortSeriesUnchanged() {
+        List<Sample> points = series(10);
+        assertEquals(points, LttbDownsampler.downsample(points, 50, Sample::time, Sample::value));
+    }
+
+    private static List<Sample> series(int n) {
+        Random random = new Random(1);
+        List<Sample> points = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            points.add(new Sample(1_700_000_000_000L + i * 1000L, Math.sin(i / 20.0) * 10 + random.nextDouble()));
+        }
+        return points;
+    }
+}
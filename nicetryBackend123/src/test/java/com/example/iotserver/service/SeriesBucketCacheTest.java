@@ -0,0 +1,123 @@
+package com.example.iotserver.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.service.journal.SensorJournal;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class SeriesBucketCacheTest {
+
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    private final SensorJournal journal = mock(SensorJournal.class);
+    private final AtomicInteger loads = new AtomicInteger();
+    private SeriesBucketCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new SeriesBucketCache(journal, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "windowsPerBlock", 1);
+        ReflectionTestUtils.setField(cache, "maxBlocks", 1000);
+        ReflectionTestUtils.setField(cache, "settleSeconds", 60L);
+        cache.init();
+    }
+
+    @Test
+    void cachesClosedBlocks() {
+        Instant start = floor(Instant.now().minus(Duration.ofHours(10)));
+        Instant end = start.plus(Duration.ofHours(4));
+        get(start, end);
+        get(start, end);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void journalLagKeepsRecentBlocksOpen() {
+        when(journal.isEnabled()).thenReturn(true);
+        when(journal.lagSeconds()).thenReturn(6 * 3600.0);
+        Instant start = floor(Instant.now().minus(Duration.ofHours(4)));
+        Instant end = start.plus(Duration.ofHours(2));
+        get(start, end);
+        get(start, end);
+        // Block còn trong khoảng journal chưa replay thì luôn đọc lại
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void lateWriteBypassesThenEvictsTouchedBlocks() throws InterruptedException {
+        Instant start = floor(Instant.now().minus(Duration.ofHours(10)));
+        Instant end = start.plus(Duration.ofHours(4));
+        get(start, end);
+
+        cache.recordWrite("ESP-1", start.plus(Duration.ofMinutes(90)));
+        // Point chưa chắc đã vào InfluxDB: không dùng cũng không ghi cache block đó
+        List<Instant[]> ranges = new ArrayList<>();
+        cache.get(List.of("ESP-1"), List.of("temperature"), start, end, "1h", (from, to) -> {
+            ranges.add(new Instant[] { from, to });
+            return series(from, to);
+        });
+        assertEquals(1, ranges.size());
+        assertEquals(start.plus(HOUR), ranges.get(0)[0]);
+        assertEquals(start.plus(Duration.ofHours(2)), ranges.get(0)[1]);
+
+        // Sau settle: block bị bỏ khỏi cache, lần sau đọc lại rồi cache
+        ReflectionTestUtils.setField(cache, "settleSeconds", 0L);
+        Thread.sleep(5);
+        ranges.clear();
+        for (int i = 0; i < 2; i++) {
+            cache.get(List.of("ESP-1"), List.of("temperature"), start, end, "1h", (from, to) -> {
+                ranges.add(new Instant[] { from, to });
+                return series(from, to);
+            });
+        }
+        assertEquals(1, ranges.size());
+        assertEquals(start.plus(HOUR), ranges.get(0)[0]);
+    }
+
+    @Test
+    void ignoresRecentWrites() {
+        Instant start = floor(Instant.now().minus(Duration.ofHours(10)));
+        Instant end = start.plus(Duration.ofHours(4));
+        get(start, end);
+        cache.recordWrite("ESP-1", Instant.now());
+        get(start, end);
+        assertEquals(1, loads.get());
+    }
+
+    private Map<String, List<SensorDataDTO>> get(Instant start, Instant end) {
+        return cache.get(List.of("ESP-1"), List.of("temperature"), start, end, "1h", (from, to) -> {
+            loads.incrementAndGet();
+            return series(from, to);
+        });
+    }
+
+    // Một point mỗi cửa sổ, _time là cuối cửa sổ như aggregateWindow
+    private static Map<String, List<SensorDataDTO>> series(Instant from, Instant to) {
+        List<SensorDataDTO> points = new ArrayList<>();
+        for (Instant t = from.plus(HOUR); !t.isAfter(to); t = t.plus(HOUR)) {
+            points.add(SensorDataDTO.builder().deviceId("ESP-1").temperature(20.0).timestamp(t).build());
+        }
+        return Map.of("ESP-1_temperature", points);
+    }
+
+    private static Instant floor(Instant time) {
+        long ms = HOUR.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(time.toEpochMilli(), ms) * ms);
+    }
+}
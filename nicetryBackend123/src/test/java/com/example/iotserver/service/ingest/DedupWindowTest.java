@@ -0,0 +1,112 @@
+package com.example.iotserver.service.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DedupWindowTest {
+
+    private static final int WAYS = 4;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private DedupWindow window;
+
+    @BeforeEach
+    void setUp() {
+        window = new DedupWindow(meterRegistry);
+        ReflectionTestUtils.setField(window, "enabled", true);
+        // 64 slot = 16 bucket
+        ReflectionTestUtils.setField(window, "capacity", 64);
+        window.init();
+    }
+
+    @Test
+    void detectsRepeatedDeviceTimestamp() {
+        assertFalse(window.isDuplicate("ESP-1", 1_700_000_000_000L));
+        assertTrue(window.isDuplicate("ESP-1", 1_700_000_000_000L));
+        assertFalse(window.isDuplicate("ESP-2", 1_700_000_000_000L));
+        assertFalse(window.isDuplicate("ESP-1", 1_700_000_000_001L));
+        assertEquals(1, duplicates());
+    }
+
+    @Test
+    void detectsRepeatedMessageIdAndPayload() {
+        assertFalse(window.isDuplicate("ESP-1", 7, bytes("{\"temperature\":28.5}")));
+        assertTrue(window.isDuplicate("ESP-1", 7, bytes("{\"temperature\":28.5}")));
+        assertFalse(window.isDuplicate("ESP-1", 8, bytes("{\"temperature\":28.5}")));
+        assertFalse(window.isDuplicate("ESP-2", 7, bytes("{\"temperature\":28.5}")));
+        assertEquals(1, duplicates());
+    }
+
+    @Test
+    void reusedMessageIdWithDifferentPayloadIsNotDuplicate() {
+        // Broker dùng lại message id sau 65535 message
+        assertFalse(window.isDuplicate("ESP-1", 7, bytes("{\"temperature\":28.5}")));
+        assertFalse(window.isDuplicate("ESP-1", 7, bytes("{\"temperature\":29.0}")));
+        assertEquals(0, duplicates());
+    }
+
+    @Test
+    void evictsOldestEntryAfterWaysInsertsIntoSameBucket() {
+        long first = 1_000L;
+        List<Long> sameBucket = sameBucketAs("ESP-1", first, WAYS);
+
+        assertFalse(window.isDuplicate("ESP-1", first));
+        for (int i = 0; i < WAYS - 1; i++) {
+            assertFalse(window.isDuplicate("ESP-1", sameBucket.get(i)));
+        }
+        // Bucket vừa đầy: vẫn còn mục đầu
+        assertTrue(window.isDuplicate("ESP-1", first));
+
+        assertFalse(window.isDuplicate("ESP-1", sameBucket.get(WAYS - 1)));
+        assertFalse(window.isDuplicate("ESP-1", first));
+    }
+
+    @Test
+    void disabledNeverReportsDuplicates() {
+        ReflectionTestUtils.setField(window, "enabled", false);
+        assertFalse(window.isDuplicate("ESP-1", 1_000L));
+        assertFalse(window.isDuplicate("ESP-1", 1_000L));
+        assertFalse(window.isDuplicate("ESP-1", 7, bytes("x")));
+        assertFalse(window.isDuplicate("ESP-1", 7, bytes("x")));
+        assertEquals(0, meterRegistry.get("ingest.dedup.checked").counter().count());
+    }
+
+    // Tìm các timestamp khác rơi vào cùng bucket với (deviceId, timestamp)
+    private List<Long> sameBucketAs(String deviceId, long timestamp, int count) {
+        int bucket = bucket(deviceId, timestamp);
+        List<Long> result = new ArrayList<>();
+        for (long t = timestamp + 1; result.size() < count; t++) {
+            if (bucket(deviceId, t) == bucket) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    // Cùng cách tính với DedupWindow.isDuplicate(deviceId, timestamp)
+    private int bucket(String deviceId, long timestamp) {
+        long hash = ReflectionTestUtils.invokeMethod(DedupWindow.class, "hash", deviceId);
+        long fp = ReflectionTestUtils.invokeMethod(DedupWindow.class, "mix", hash ^ 0x9E3779B97F4A7C15L, timestamp);
+        int bucketMask = (int) ReflectionTestUtils.getField(window, "bucketMask");
+        return (int) ((fp == 0 ? 1 : fp) >>> 32) & bucketMask;
+    }
+
+    private double duplicates() {
+        return meterRegistry.get("ingest.messages").tag("result", "duplicate").counter().count();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
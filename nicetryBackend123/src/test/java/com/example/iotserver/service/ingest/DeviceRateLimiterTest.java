@@ -0,0 +1,80 @@
+package com.example.iotserver.service.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.enums.DeviceType;
+import com.example.iotserver.service.DeviceRegistry;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DeviceRateLimiterTest {
+
+    private final DeviceRegistry deviceRegistry = mock(DeviceRegistry.class);
+    private DeviceRateLimiter limiter;
+
+    @BeforeEach
+    void setUp() {
+        limiter = new DeviceRateLimiter(new MockEnvironment(), new SimpleMeterRegistry(), deviceRegistry);
+        ReflectionTestUtils.setField(limiter, "enabled", true);
+        ReflectionTestUtils.setField(limiter, "defaultPerSecond", 1.0);
+        ReflectionTestUtils.setField(limiter, "defaultBurst", 1.0);
+        ReflectionTestUtils.setField(limiter, "unknownPerSecond", 1.0);
+        ReflectionTestUtils.setField(limiter, "unknownBurst", 2.0);
+        ReflectionTestUtils.setField(limiter, "idleEvictMs", 0L);
+        limiter.init();
+    }
+
+    @Test
+    void unknownDevicesShareOneBucketAndAreNotCoalesced() {
+        for (int i = 0; i < 100; i++) {
+            String deviceId = "RANDOM-" + i;
+            if (!limiter.tryAcquire(deviceId)) {
+                limiter.coalesce(deviceId, "sensor/" + deviceId + "/data", new byte[0], i);
+            }
+        }
+        assertEquals(0, limiter.bucketCount());
+        assertEquals(0, limiter.pendingCount());
+    }
+
+    @Test
+    void knownDeviceIsLimitedAndCoalesced() {
+        when(deviceRegistry.peek("ESP-1")).thenReturn(device("ESP-1"));
+
+        assertTrue(limiter.tryAcquire("ESP-1"));
+        assertFalse(limiter.tryAcquire("ESP-1"));
+        limiter.coalesce("ESP-1", "sensor/esp-1/data", new byte[0], 1);
+
+        assertEquals(1, limiter.bucketCount());
+        assertEquals(1, limiter.pendingCount());
+    }
+
+    @Test
+    void evictsBucketsOfRemovedDevicesButKeepsDevicesWithPendingMessages() {
+        when(deviceRegistry.peek("ESP-1")).thenReturn(device("ESP-1"));
+        when(deviceRegistry.peek("ESP-2")).thenReturn(device("ESP-2"));
+        limiter.tryAcquire("ESP-1");
+        limiter.tryAcquire("ESP-2");
+        limiter.tryAcquire("ESP-2");
+        limiter.coalesce("ESP-2", "sensor/esp-2/data", new byte[0], 1);
+
+        when(deviceRegistry.peek("ESP-1")).thenReturn(null);
+        when(deviceRegistry.peek("ESP-2")).thenReturn(null);
+        limiter.evictIdleBuckets();
+
+        assertEquals(1, limiter.bucketCount());
+    }
+
+    private static DeviceSnapshot device(String deviceId) {
+        return DeviceSnapshot.builder().deviceId(deviceId).type(DeviceType.SENSOR_DHT22).build();
+    }
+}
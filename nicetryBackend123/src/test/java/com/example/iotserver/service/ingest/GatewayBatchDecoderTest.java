@@ -0,0 +1,98 @@
+package com.example.iotserver.service.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class GatewayBatchDecoderTest {
+
+    private GatewayBatchDecoder decoder;
+
+    @BeforeEach
+    void setUp() {
+        DedupWindow dedupWindow = new DedupWindow(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(dedupWindow, "enabled", true);
+        ReflectionTestUtils.setField(dedupWindow, "capacity", 1024);
+        dedupWindow.init();
+        decoder = new GatewayBatchDecoder(new ObjectMapper(), dedupWindow);
+        ReflectionTestUtils.setField(decoder, "maxReadings", 10);
+    }
+
+    @Test
+    void decodesReadingsInOrder() throws IOException {
+        List<SensorDataDTO> readings = decode("{\"gatewayId\":\"GW-01\",\"readings\":["
+                + "{\"deviceId\":\"dht22-0001\",\"timestamp\":1718000000000,\"temperature\":28.4,\"humidity\":71.2},"
+                + "{\"deviceId\":\"SOIL-0002\",\"soilMoisture\":\"43.9\"}]}");
+
+        assertEquals(2, readings.size());
+        assertEquals("DHT22-0001", readings.get(0).getDeviceId());
+        assertEquals(Instant.ofEpochMilli(1_718_000_000_000L), readings.get(0).getTimestamp());
+        assertEquals(28.4, readings.get(0).getTemperature());
+        assertEquals("SOIL-0002", readings.get(1).getDeviceId());
+        assertEquals(43.9, readings.get(1).getSoilMoisture());
+        // Không có timestamp: thời điểm nhận
+        assertNotNull(readings.get(1).getTimestamp());
+    }
+
+    @Test
+    void skipsInvalidReadingsWithoutFailingBatch() throws IOException {
+        long future = System.currentTimeMillis() + 60 * 60 * 1000L;
+        List<SensorDataDTO> readings = decode("{\"readings\":["
+                + "{\"temperature\":20},"
+                + "{\"deviceId\":\"  \",\"temperature\":20},"
+                + "{\"deviceId\":42,\"temperature\":20},"
+                + "{\"deviceId\":\"ESP-1\"},"
+                + "{\"deviceId\":\"ESP-1\",\"rssi\":-60,\"temperature\":\"abc\"},"
+                + "{\"deviceId\":\"ESP-1\",\"timestamp\":" + future + ",\"temperature\":20},"
+                + "{\"deviceId\":\"ESP-2\",\"temperature\":21}]}");
+
+        assertEquals(1, readings.size());
+        assertEquals("ESP-2", readings.get(0).getDeviceId());
+    }
+
+    @Test
+    void dropsReadingsAlreadySeenByTimestamp() throws IOException {
+        String batch = "{\"readings\":["
+                + "{\"deviceId\":\"ESP-1\",\"timestamp\":1718000000000,\"temperature\":20},"
+                + "{\"deviceId\":\"ESP-1\",\"timestamp\":1718000000000,\"temperature\":20},"
+                + "{\"deviceId\":\"ESP-2\",\"timestamp\":1718000000000,\"temperature\":21},"
+                + "{\"deviceId\":\"ESP-3\",\"temperature\":22}]}";
+        assertEquals(3, decode(batch).size());
+
+        // Gateway gửi lại batch: chỉ reading không có timestamp được giữ
+        List<SensorDataDTO> resent = decode(batch);
+        assertEquals(1, resent.size());
+        assertEquals("ESP-3", resent.get(0).getDeviceId());
+    }
+
+    @Test
+    void rejectsMalformedOrOversizedBatch() {
+        assertThrows(IOException.class, () -> decode("[]"));
+        assertThrows(IOException.class, () -> decode("{\"readings\":{}}"));
+        assertThrows(IOException.class, () -> decode("{\"readings\":[1]}"));
+
+        StringBuilder tooMany = new StringBuilder("{\"readings\":[");
+        for (int i = 0; i < 11; i++) {
+            tooMany.append(i == 0 ? "" : ",").append("{\"deviceId\":\"ESP-").append(i).append("\",\"temperature\":1}");
+        }
+        assertThrows(IOException.class, () -> decode(tooMany.append("]}").toString()));
+    }
+
+    private List<SensorDataDTO> decode(String json) throws IOException {
+        return decoder.decode("GW-01", json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.iotserver.service.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class SensorBinaryCodecTest {
+
+    private final SensorBinaryCodec codec = new SensorBinaryCodec();
+
+    @Test
+    void roundTripsAllFieldsAndSensorType() throws IOException {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.TEMPERATURE, 28.4);
+        reading.set(SensorReading.HUMIDITY, 65.5);
+        reading.set(SensorReading.SOIL_MOISTURE, 41.25);
+        reading.set(SensorReading.LIGHT_INTENSITY, 12000);
+        reading.set(SensorReading.SOIL_PH, 6.8);
+        reading.setSensorType("DHT22");
+
+        byte[] frame = codec.encode(reading);
+        // version + bitmap + 5 float32 + độ dài + "DHT22"
+        assertEquals(2 + 5 * 4 + 1 + 5, frame.length);
+        assertEquals(SensorBinaryCodec.VERSION_1, frame[0]);
+
+        SensorReading decoded = codec.decode(frame, new SensorReading());
+        assertEquals(28.4, decoded.getTemperature());
+        assertEquals(65.5, decoded.getHumidity());
+        assertEquals(41.25, decoded.getSoilMoisture());
+        assertEquals(12000, decoded.getLightIntensity());
+        assertEquals(6.8, decoded.getSoilPH());
+        assertEquals("DHT22", decoded.getSensorType());
+    }
+
+    @Test
+    void roundTripsPartialReadingWithoutSensorType() throws IOException {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.SOIL_MOISTURE, 33.3);
+
+        byte[] frame = codec.encode(reading);
+        assertArrayEquals(new byte[] { 1, (byte) SensorReading.SOIL_MOISTURE },
+                Arrays.copyOf(frame, 2));
+
+        SensorReading decoded = codec.decode(frame, new SensorReading());
+        assertTrue(decoded.has(SensorReading.SOIL_MOISTURE));
+        assertFalse(decoded.has(SensorReading.TEMPERATURE));
+        assertFalse(decoded.has(SensorReading.SOIL_PH));
+        assertEquals(33.3, decoded.getSoilMoisture());
+        assertNull(decoded.getSensorType());
+    }
+
+    @Test
+    void decodeResetsReusedReading() throws IOException {
+        SensorReading reused = new SensorReading();
+        reused.set(SensorReading.TEMPERATURE, 30);
+        reused.setSensorType("old");
+
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.HUMIDITY, 50);
+        codec.decode(codec.encode(reading), reused);
+
+        assertFalse(reused.has(SensorReading.TEMPERATURE));
+        assertTrue(reused.has(SensorReading.HUMIDITY));
+        assertNull(reused.getSensorType());
+    }
+
+    @Test
+    void nanValueIsTreatedAsMissing() throws IOException {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.TEMPERATURE, Double.NaN);
+        reading.set(SensorReading.HUMIDITY, 70);
+
+        SensorReading decoded = codec.decode(codec.encode(reading), new SensorReading());
+        assertFalse(decoded.has(SensorReading.TEMPERATURE));
+        assertEquals(70, decoded.getHumidity());
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        SensorReading reading = new SensorReading();
+        reading.set(SensorReading.TEMPERATURE, 25);
+        reading.setSensorType("DHT22");
+        byte[] frame = codec.encode(reading);
+
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 1 }, new SensorReading()));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 2, 1, 0, 0, 0, 0 }, new SensorReading()));
+        assertThrows(IOException.class, () -> codec.decode(new byte[] { 1, 0x20 }, new SensorReading()));
+        // Cắt trong giá trị float và trong sensorType
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(frame, 4), new SensorReading()));
+        assertThrows(IOException.class,
+                () -> codec.decode(Arrays.copyOf(frame, frame.length - 1), new SensorReading()));
+    }
+
+    @Test
+    void rejectsSensorTypeLongerThanOneLengthByte() {
+        SensorReading reading = new SensorReading();
+        reading.setSensorType("x".repeat(256));
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(reading));
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.iotserver.service.ingest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class SensorPayloadDecoderTest {
+
+    private final SensorPayloadDecoder decoder = new SensorPayloadDecoder(new ObjectMapper());
+    // Giống READING ThreadLocal của MqttMessageHandler: một instance cho mọi message
+    private final SensorReading reading = new SensorReading();
+
+    @Test
+    void readsNumbersAndNumericStrings() throws IOException {
+        decode("{\"temperature\":28.5,\"humidity\":\"65.5\",\"soilMoisture\":41,\"lightIntensity\":\"12000\","
+                + "\"soilPH\":\"abc\",\"sensorType\":\"DHT22\"}");
+
+        assertEquals(28.5, reading.getTemperature());
+        assertEquals(65.5, reading.getHumidity());
+        assertEquals(41.0, reading.getSoilMoisture());
+        assertEquals(12000.0, reading.getLightIntensity());
+        // Chuỗi không phải số coi như không có
+        assertFalse(reading.has(SensorReading.SOIL_PH));
+        assertEquals("DHT22", reading.getSensorType());
+    }
+
+    @Test
+    void skipsUnknownAndNestedFields() throws IOException {
+        decode("{\"rssi\":-70,\"meta\":{\"temperature\":99,\"list\":[1,{\"humidity\":1}]},\"tags\":[\"a\"],"
+                + "\"temperature\":{\"value\":30},\"humidity\":[50],\"sensorType\":{\"x\":1},\"soilPH\":6.5}");
+
+        assertFalse(reading.has(SensorReading.TEMPERATURE));
+        assertFalse(reading.has(SensorReading.HUMIDITY));
+        assertNull(reading.getSensorType());
+        assertEquals(6.5, reading.getSoilPH());
+    }
+
+    @Test
+    void readsTimestampAsNumberOrNumericString() throws IOException {
+        decode("{\"temperature\":1,\"timestamp\":1718000000000}");
+        assertEquals(1_718_000_000_000L, reading.getDeviceTimestamp());
+
+        decode("{\"temperature\":1,\"timestamp\":\"1718000000001\"}");
+        assertEquals(1_718_000_000_001L, reading.getDeviceTimestamp());
+    }
+
+    @Test
+    void unreadableTimestampFallsBackToZero() throws IOException {
+        decode("{\"temperature\":1,\"timestamp\":\"2026-01-01T00:00:00Z\"}");
+        assertEquals(0, reading.getDeviceTimestamp());
+
+        decode("{\"timestamp\":{\"sec\":1},\"temperature\":2}");
+        assertEquals(0, reading.getDeviceTimestamp());
+        assertEquals(2.0, reading.getTemperature());
+    }
+
+    @Test
+    void resetsReusedReadingBetweenMessages() throws IOException {
+        decode("{\"temperature\":28.5,\"humidity\":60,\"sensorType\":\"DHT22\",\"timestamp\":1718000000000}");
+        SensorReading second = decode("{\"soilMoisture\":40}");
+
+        assertSame(reading, second);
+        assertFalse(second.has(SensorReading.TEMPERATURE));
+        assertFalse(second.has(SensorReading.HUMIDITY));
+        assertTrue(second.has(SensorReading.SOIL_MOISTURE));
+        assertNull(second.getSensorType());
+        assertEquals(0, second.getDeviceTimestamp());
+
+        decode("{}");
+        assertTrue(reading.isEmpty());
+    }
+
+    @Test
+    void rejectsNonObjectPayload() {
+        assertThrows(IOException.class, () -> decode("[1,2]"));
+        assertThrows(IOException.class, () -> decode("{\"temperature\":1"));
+    }
+
+    private SensorReading decode(String json) throws IOException {
+        return decoder.decode(json.getBytes(StandardCharsets.UTF_8), reading);
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.iotserver.service.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.service.ingest.IngestBackpressure;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.exceptions.BadRequestException;
+import com.influxdb.exceptions.InfluxException;
+import com.influxdb.exceptions.UnprocessableEntityException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class JournalReplayerTest {
+
+    private final WriteApiBlocking writeApi = mock(WriteApiBlocking.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<String> written = new ArrayList<>();
+    private JournalReplayer replayer;
+
+    @BeforeEach
+    void setUp() {
+        InfluxDBConfig influxDBConfig = mock(InfluxDBConfig.class);
+        when(influxDBConfig.getBucket()).thenReturn("bucket");
+        when(influxDBConfig.getOrg()).thenReturn("org");
+        replayer = new JournalReplayer(mock(SensorJournal.class), writeApi, influxDBConfig, meterRegistry,
+                mock(IngestBackpressure.class));
+        // Không gọi start(): không chạy thread replay
+        ReflectionTestUtils.setField(replayer, "batchBuffer", ByteBuffer.allocate(64 * 1024));
+        ReflectionTestUtils.setField(replayer, "replayedCounter", Counter.builder("replayed").register(meterRegistry));
+        ReflectionTestUtils.setField(replayer, "rejectedCounter", Counter.builder("rejected").register(meterRegistry));
+        ReflectionTestUtils.setField(replayer, "writeTimer", Timer.builder("write").register(meterRegistry));
+
+        // InfluxDB từ chối cả request nếu có một dòng lỗi
+        doAnswer(invocation -> {
+            String body = invocation.getArgument(3);
+            if (body.contains("bad=400")) {
+                throw mock(BadRequestException.class);
+            }
+            if (body.contains("bad=422")) {
+                throw mock(UnprocessableEntityException.class);
+            }
+            written.addAll(Arrays.asList(body.split("\n")));
+            return null;
+        }).when(writeApi).writeRecord(anyString(), anyString(), any(WritePrecision.class), anyString());
+    }
+
+    @Test
+    void writesWholeBatchInOneRequest() {
+        write("m v=1", "m v=2", "m v=3");
+        assertEquals(List.of("m v=1", "m v=2", "m v=3"), written);
+        assertEquals(3, meterRegistry.get("replayed").counter().count());
+        assertEquals(0, meterRegistry.get("rejected").counter().count());
+    }
+
+    @Test
+    void skipsOnlyRejectedLines() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            lines.add(i == 3 ? "m bad=400" : i == 16 ? "m bad=422" : "m v=" + i);
+        }
+        write(lines.toArray(String[]::new));
+
+        List<String> expected = new ArrayList<>(lines);
+        expected.removeIf(line -> line.contains("bad="));
+        assertEquals(expected, written);
+        assertEquals(18, meterRegistry.get("replayed").counter().count());
+        assertEquals(2, meterRegistry.get("rejected").counter().count());
+    }
+
+    @Test
+    void rejectsSingleBadLine() {
+        write("m bad=422");
+        assertEquals(List.of(), written);
+        assertEquals(1, meterRegistry.get("rejected").counter().count());
+    }
+
+    @Test
+    void transientErrorIsRetriedByCaller() {
+        doAnswer(invocation -> {
+            throw new InfluxException("timeout");
+        }).when(writeApi).writeRecord(anyString(), anyString(), any(WritePrecision.class), anyString());
+        // Lỗi tạm thời ném ra để run() backoff và không commit lô
+        assertThrows(InfluxException.class, () -> write("m v=1", "m bad=400"));
+        assertEquals(0, meterRegistry.get("rejected").counter().count());
+    }
+
+    private void write(String... lines) {
+        ByteBuffer buffer = (ByteBuffer) ReflectionTestUtils.getField(replayer, "batchBuffer");
+        buffer.clear();
+        for (String line : lines) {
+            buffer.put(line.getBytes(StandardCharsets.UTF_8)).put((byte) '\n');
+        }
+        SensorJournal.Batch batch = new SensorJournal.Batch(lines.length, new SensorJournal.Position(0, 0), 0);
+        ReflectionTestUtils.invokeMethod(replayer, "write", batch);
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.iotserver.service.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.iotserver.dto.SensorDataDTO;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+
+/**
+ * So sánh với {@code Point.toLineProtocol()}, dựng Point giống
+ * SensorDataService.toPoint.
+ */
+class LineProtocolWriterTest {
+
+    private static final Instant TIME = Instant.ofEpochMilli(1_700_000_000_123L);
+
+    private final LineProtocolWriter writer = new LineProtocolWriter();
+
+    @Test
+    void matchesPointForFullReading() {
+        assertSameAsPoint(SensorDataDTO.builder().deviceId("ESP-1").sensorType("DHT22").farmId(3L).zoneId(4L)
+                .temperature(28.4).humidity(65.5).soilMoisture(41.25).lightIntensity(12000.0).soilPH(6.8)
+                .timestamp(TIME).build());
+    }
+
+    @Test
+    void escapesTagValuesLikePoint() {
+        assertSameAsPoint(SensorDataDTO.builder().deviceId("ESP 1,a=b").sensorType("DHT 22\nx\\y\"ờ😀")
+                .farmId(1L).temperature(20.0).timestamp(TIME).build());
+    }
+
+    @Test
+    void omitsMissingAndEmptyTagsLikePoint() {
+        assertSameAsPoint(SensorDataDTO.builder().temperature(20.0).timestamp(TIME).build());
+        assertSameAsPoint(SensorDataDTO.builder().deviceId("").sensorType("").humidity(50.0).build());
+    }
+
+    @Test
+    void skipsNaNAndInfiniteFields() {
+        assertSameAsPoint(SensorDataDTO.builder().deviceId("ESP-1").temperature(Double.NaN)
+                .humidity(Double.POSITIVE_INFINITY).soilPH(7.0).timestamp(TIME).build());
+
+        SensorDataDTO onlyNaN = SensorDataDTO.builder().deviceId("ESP-1").temperature(Double.NaN).build();
+        assertNull(writer.encode(onlyNaN));
+        assertEquals("", toPoint(onlyNaN).toLineProtocol());
+    }
+
+    @Test
+    void writesDoublesWithoutRounding() {
+        assertSameAsPoint(SensorDataDTO.builder().deviceId("ESP-1").temperature(0.1 + 0.2).humidity(1e-7)
+                .soilPH(-0.0).soilMoisture(-12.000001).lightIntensity(1.5e13).timestamp(TIME).build());
+    }
+
+    @Test
+    void matchesPointForRandomSensorValues() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            double scale = Math.pow(10, random.nextInt(7));
+            double value = Math.round((random.nextDouble() * 2 - 1) * Math.pow(10, random.nextInt(10)) * scale)
+                    / scale;
+            assertSameAsPoint(SensorDataDTO.builder().deviceId("ESP-1").temperature(value)
+                    .humidity(random.nextDouble() * 100).build());
+        }
+    }
+
+    private void assertSameAsPoint(SensorDataDTO data) {
+        assertEquals(toPoint(data).toLineProtocol(), encode(data));
+    }
+
+    private String encode(SensorDataDTO data) {
+        ByteBuffer line = writer.encode(data);
+        return line != null ? StandardCharsets.UTF_8.decode(line).toString() : null;
+    }
+
+    private static Point toPoint(SensorDataDTO data) {
+        Point point = Point.measurement("sensor_data")
+                .addTag("device_id", data.getDeviceId())
+                .addTag("sensor_type", data.getSensorType() != null ? data.getSensorType() : "UNKNOWN")
+                .addTag("farm_id", String.valueOf(data.getFarmId()))
+                .addTag("zone_id", data.getZoneId() != null ? String.valueOf(data.getZoneId()) : SensorDataDTO.NO_ZONE)
+                .time(data.getTimestamp(), WritePrecision.MS);
+        if (data.getTemperature() != null)
+            point.addField("temperature", data.getTemperature());
+        if (data.getHumidity() != null)
+            point.addField("humidity", data.getHumidity());
+        if (data.getSoilMoisture() != null)
+            point.addField("soil_moisture", data.getSoilMoisture());
+        if (data.getLightIntensity() != null)
+            point.addField("light_intensity", data.getLightIntensity());
+        if (data.getSoilPH() != null)
+            point.addField("soilPH", data.getSoilPH());
+        return point;
+    }
+}
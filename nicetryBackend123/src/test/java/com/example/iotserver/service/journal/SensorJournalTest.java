@@ -0,0 +1,209 @@
+package com.example.iotserver.service.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Journal thật trên thư mục tạm. Segment nhỏ nhất là 1 MB; bản ghi 50 000 bytes
+ * (cộng 16 bytes header) nên mỗi segment chứa đúng 20 bản ghi.
+ */
+class SensorJournalTest {
+
+    private static final int RECORD_BYTES = 50_000;
+    private static final int RECORDS_PER_SEGMENT = 20;
+
+    @TempDir
+    Path dir;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @Test
+    void readsBackAppendedRecordsAndCommits() throws IOException {
+        SensorJournal journal = open(64);
+        append(journal, 0, 3);
+        assertTrue(journal.hasPending());
+
+        ByteBuffer into = ByteBuffer.allocate(1024 * 1024);
+        SensorJournal.Batch batch = journal.readBatch(100, into);
+        assertEquals(3, batch.records());
+        assertEquals(List.of(0, 1, 2), ids(into));
+        assertTrue(batch.oldestAppendMillis() > 0);
+
+        // Chưa commit thì đọc lại từ đầu
+        into.clear();
+        assertEquals(3, journal.readBatch(100, into).records());
+
+        journal.commit(batch.end());
+        assertFalse(journal.hasPending());
+        into.clear();
+        assertTrue(journal.readBatch(100, into).isEmpty());
+    }
+
+    @Test
+    void readBatchStopsAtMaxRecords() throws IOException {
+        SensorJournal journal = open(64);
+        append(journal, 0, 5);
+
+        ByteBuffer into = ByteBuffer.allocate(1024 * 1024);
+        SensorJournal.Batch batch = journal.readBatch(2, into);
+        assertEquals(List.of(0, 1), ids(into));
+        journal.commit(batch.end());
+
+        into.clear();
+        journal.readBatch(100, into);
+        assertEquals(List.of(2, 3, 4), ids(into));
+    }
+
+    @Test
+    void reopenContinuesFromCheckpointAndLastRecord() throws IOException {
+        SensorJournal journal = open(64);
+        append(journal, 0, 4);
+        ByteBuffer into = ByteBuffer.allocate(1024 * 1024);
+        journal.commit(journal.readBatch(1, into).end());
+        journal.close();
+
+        // Khởi động lại: scanLimit tìm cuối dữ liệu, checkpoint giữ vị trí đọc
+        SensorJournal reopened = open(64);
+        append(reopened, 4, 2);
+        into.clear();
+        reopened.readBatch(100, into);
+        assertEquals(List.of(1, 2, 3, 4, 5), ids(into));
+    }
+
+    @Test
+    void rollsToNewSegmentWhenFull() throws IOException {
+        SensorJournal journal = open(64);
+        append(journal, 0, RECORDS_PER_SEGMENT + 5);
+        assertEquals(2, segmentFiles().size());
+
+        ByteBuffer into = ByteBuffer.allocate(4 * 1024 * 1024);
+        SensorJournal.Batch batch = journal.readBatch(100, into);
+        assertEquals(range(0, RECORDS_PER_SEGMENT + 5), ids(into));
+
+        // Segment đầu đã replay xong thì bị xóa
+        journal.commit(batch.end());
+        assertEquals(1, segmentFiles().size());
+    }
+
+    @Test
+    void corruptRecordSkipsRestOfSegment() throws IOException {
+        SensorJournal journal = open(64);
+        append(journal, 0, RECORDS_PER_SEGMENT + 2);
+        journal.close();
+
+        // Hỏng payload của bản ghi thứ 3 trong segment đầu
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+            long offset = 2L * (16 + RECORD_BYTES) + 16 + 100;
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0xff);
+        }
+
+        SensorJournal reopened = open(64);
+        ByteBuffer into = ByteBuffer.allocate(4 * 1024 * 1024);
+        reopened.readBatch(100, into);
+        List<Integer> expected = new ArrayList<>(range(0, 2));
+        expected.addAll(range(RECORDS_PER_SEGMENT, RECORDS_PER_SEGMENT + 2));
+        assertEquals(expected, ids(into));
+    }
+
+    @Test
+    void dropsOldestSegmentAndMovesReadPositionPastIt() throws IOException {
+        // Tối đa 2 segment
+        SensorJournal journal = open(2);
+        append(journal, 0, 2 * RECORDS_PER_SEGMENT + 1);
+
+        assertEquals(2, segmentFiles().size());
+        // Chưa replay gì: mất cả segment 1
+        assertEquals(1024 * 1024, meterRegistry.get("ingest.journal.dropped.bytes").counter().count());
+        assertEquals("2 0", Files.readString(dir.resolve("checkpoint")));
+
+        ByteBuffer into = ByteBuffer.allocate(4 * 1024 * 1024);
+        journal.readBatch(100, into);
+        assertEquals(range(RECORDS_PER_SEGMENT, 2 * RECORDS_PER_SEGMENT + 1), ids(into));
+    }
+
+    @Test
+    void readBatchSkipsMissingSegment() throws IOException {
+        SensorJournal journal = open(64);
+        append(journal, 0, 2 * RECORDS_PER_SEGMENT + 3);
+        journal.close();
+        List<Path> files = segmentFiles();
+        assertEquals(3, files.size());
+        Files.delete(files.get(1));
+
+        SensorJournal reopened = open(64);
+        ByteBuffer into = ByteBuffer.allocate(4 * 1024 * 1024);
+        reopened.readBatch(100, into);
+        List<Integer> expected = new ArrayList<>(range(0, RECORDS_PER_SEGMENT));
+        expected.addAll(range(2 * RECORDS_PER_SEGMENT, 2 * RECORDS_PER_SEGMENT + 3));
+        assertEquals(expected, ids(into));
+    }
+
+    private SensorJournal open(long maxDiskMb) throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        SensorJournal journal = new SensorJournal(meterRegistry);
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "directory", dir.toString());
+        ReflectionTestUtils.setField(journal, "segmentSizeMb", 1);
+        ReflectionTestUtils.setField(journal, "maxDiskMb", maxDiskMb);
+        journal.open();
+        return journal;
+    }
+
+    // Bản ghi "<id> xxx...", dài đúng RECORD_BYTES
+    private static void append(SensorJournal journal, int firstId, int count) {
+        for (int id = firstId; id < firstId + count; id++) {
+            byte[] record = new byte[RECORD_BYTES];
+            Arrays.fill(record, (byte) 'x');
+            byte[] prefix = (id + " ").getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(prefix, 0, record, 0, prefix.length);
+            journal.append(ByteBuffer.wrap(record));
+        }
+    }
+
+    private static List<Integer> ids(ByteBuffer into) {
+        List<Integer> ids = new ArrayList<>();
+        String text = new String(into.array(), 0, into.position(), StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty()) {
+                assertEquals(RECORD_BYTES, line.length());
+                ids.add(Integer.parseInt(line.substring(0, line.indexOf(' '))));
+            }
+        }
+        return ids;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+}
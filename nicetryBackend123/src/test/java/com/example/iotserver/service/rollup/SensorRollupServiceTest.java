@@ -0,0 +1,101 @@
+package com.example.iotserver.service.rollup;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.iotserver.config.InfluxDBConfig;
+import com.example.iotserver.service.journal.SensorJournal;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.QueryApi;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class SensorRollupServiceTest {
+
+    private final List<String> queries = new ArrayList<>();
+    private SensorRollupService service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        InfluxDBClient client = mock(InfluxDBClient.class);
+        QueryApi queryApi = mock(QueryApi.class);
+        when(client.getQueryApi()).thenReturn(queryApi);
+        when(queryApi.query(anyString(), anyString())).thenAnswer(invocation -> {
+            queries.add(invocation.getArgument(0));
+            return List.of();
+        });
+        InfluxDBConfig config = mock(InfluxDBConfig.class);
+        when(config.getBucket()).thenReturn("iot");
+        when(config.getOrg()).thenReturn("org");
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        when(redis.opsForValue()).thenReturn(mock(ValueOperations.class));
+
+        service = new SensorRollupService(client, config, redis, mock(SensorJournal.class),
+                new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "latenessMinutes", 5L);
+        ReflectionTestUtils.setField(service, "settleSeconds", 0L);
+        ReflectionTestUtils.setField(service, "maxChunkHours", 6L);
+        service.init();
+    }
+
+    @Test
+    void rerollsWindowsTouchedByLateWriteAndCascades() {
+        Instant now = Instant.now();
+        Instant from = floor(now.minus(Duration.ofHours(3)), Duration.ofHours(1));
+        Instant to = floor(now.minus(Duration.ofMinutes(30)), Duration.ofMinutes(15));
+        service.compact(RollupTier.MINUTE, from, to);
+        service.compact(RollupTier.QUARTER_HOUR, from, to);
+        queries.clear();
+
+        Instant late = now.minus(Duration.ofMinutes(100));
+        service.recordWrite(late);
+        // Lần đầu chỉ gom, lần sau mới tính lại (dữ liệu đã settle)
+        service.rollup();
+        assertFalse(ranFrom(floor(late, Duration.ofMinutes(1)), "sensor_data\""));
+        service.rollup();
+
+        assertTrue(ranFrom(floor(late, Duration.ofMinutes(1)), "sensor_data\""));
+        // Mức 15m tổng hợp lại từ mức 1m, không đọc lại dữ liệu gốc
+        assertTrue(ranFrom(floor(late, Duration.ofMinutes(15)), "sensor_data_1m\""));
+    }
+
+    @Test
+    void ignoresRecentWrites() {
+        Instant now = Instant.now();
+        service.compact(RollupTier.MINUTE, now.minus(Duration.ofHours(2)), now.minus(Duration.ofMinutes(30)));
+        ReflectionTestUtils.setField(service, "settleSeconds", 30L);
+        queries.clear();
+
+        service.recordWrite(now);
+        service.rollup();
+        service.rollup();
+
+        assertFalse(queries.stream().anyMatch(q -> q.contains("range(start: " + floor(now, Duration.ofMinutes(1)))));
+    }
+
+    private boolean ranFrom(Instant start, String measurement) {
+        return queries.stream().anyMatch(q -> q.contains("range(start: " + start + ",")
+                && q.contains("r._measurement == \"" + measurement.replace("\"", "") + "\""));
+    }
+
+    private static Instant floor(Instant time, Duration step) {
+        long ms = step.toMillis();
+        return Instant.ofEpochMilli(Math.floorDiv(time.toEpochMilli(), ms) * ms);
+    }
+}
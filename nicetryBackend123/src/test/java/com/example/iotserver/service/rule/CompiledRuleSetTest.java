@@ -0,0 +1,84 @@
+package com.example.iotserver.service.rule;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.iotserver.entity.Farm;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleExecutionLog.ExecutionStatus;
+import com.example.iotserver.repository.RuleRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CompiledRuleSetTest {
+
+    private final RuleRepository ruleRepository = mock(RuleRepository.class);
+    private final List<Rule> enabled = new ArrayList<>();
+    private CompiledRuleSet ruleSet;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+        when(transactionTemplate.execute(any())).thenAnswer(
+                invocation -> ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null));
+        when(ruleRepository.findAllEnabledRulesWithConditions()).thenReturn(enabled);
+        ruleSet = new CompiledRuleSet(ruleRepository, transactionTemplate, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(ruleSet, "defaultMaxDataAgeMinutes", 15L);
+        ReflectionTestUtils.setField(ruleSet, "skippedLogIntervalMs", 60_000L);
+    }
+
+    @Test
+    void indexesRulesOfSameFarmControllingSameDevice() {
+        enabled.add(rule(1L, 1L, "PUMP-1"));
+        enabled.add(rule(2L, 1L, "PUMP-1", "FAN-1"));
+        enabled.add(rule(3L, 1L, "FAN-1"));
+        // Farm khác, cùng deviceId: không ảnh hưởng thứ tự priority của farm 1
+        enabled.add(rule(4L, 2L, "PUMP-1"));
+        ruleSet.init();
+
+        CompiledRuleSet.TriggerIndex index = ruleSet.index();
+        assertEquals(Set.of(2L), index.actionPeers().get(1L));
+        assertEquals(Set.of(1L, 3L), index.actionPeers().get(2L));
+        assertEquals(Set.of(2L), index.actionPeers().get(3L));
+        assertNull(index.actionPeers().get(4L));
+    }
+
+    @Test
+    void logsSkippedOnlyWhenOutcomeChangesOrIntervalPassed() {
+        ruleSet.init();
+        assertTrue(ruleSet.shouldLog(1L, ExecutionStatus.SKIPPED, 0));
+        assertFalse(ruleSet.shouldLog(1L, ExecutionStatus.SKIPPED, 1_000));
+        assertTrue(ruleSet.shouldLog(1L, ExecutionStatus.SUCCESS, 2_000));
+        assertTrue(ruleSet.shouldLog(1L, ExecutionStatus.SKIPPED, 3_000));
+        assertFalse(ruleSet.shouldLog(1L, ExecutionStatus.SKIPPED, 62_999));
+        assertTrue(ruleSet.shouldLog(1L, ExecutionStatus.SKIPPED, 63_000));
+        assertTrue(ruleSet.shouldLog(1L, ExecutionStatus.FAILED, 64_000));
+        assertTrue(ruleSet.shouldLog(1L, ExecutionStatus.FAILED, 65_000));
+    }
+
+    static Rule rule(Long id, Long farmId, String... actionDevices) {
+        Farm farm = new Farm();
+        farm.setId(farmId);
+        List<Rule.RuleAction> actions = new ArrayList<>();
+        for (String deviceId : actionDevices) {
+            actions.add(new Rule.RuleAction(Rule.ActionType.TURN_ON_DEVICE, deviceId, null, null));
+        }
+        return Rule.builder().id(id).name("rule-" + id).farm(farm).priority(0).actions(actions).build();
+    }
+}
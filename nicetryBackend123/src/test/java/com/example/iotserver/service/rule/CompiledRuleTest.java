@@ -0,0 +1,252 @@
+package com.example.iotserver.service.rule;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.iotserver.dto.DeviceSnapshot;
+import com.example.iotserver.dto.SensorDataDTO;
+import com.example.iotserver.dto.WeatherDTO;
+import com.example.iotserver.entity.Farm;
+import com.example.iotserver.entity.Rule;
+import com.example.iotserver.entity.RuleCondition;
+import com.example.iotserver.entity.RuleCondition.ConditionType;
+import com.example.iotserver.entity.RuleCondition.LogicalOperator;
+import com.example.iotserver.enums.DeviceStatus;
+
+/**
+ * So sánh {@link CompiledRule#matches} với cách RuleEngineService cũ kết hợp
+ * điều kiện: kiểm tra mọi điều kiện theo orderIndex rồi gộp trái sang phải,
+ * operator của điều kiện trước quyết định AND/OR; điều kiện lỗi là SAI.
+ */
+class CompiledRuleTest {
+
+    private static final Instant NOW = Instant.parse("2026-01-01T05:00:00Z");
+
+    @Test
+    void matchesBaselineForEveryAndOrCombination() {
+        for (int n = 1; n <= 4; n++) {
+            for (int values = 0; values < (1 << n); values++) {
+                for (int operators = 0; operators < (1 << (n - 1)); operators++) {
+                    TestContext ctx = new TestContext();
+                    List<RuleCondition> conditions = new ArrayList<>();
+                    List<Boolean> met = new ArrayList<>();
+                    List<LogicalOperator> ops = new ArrayList<>();
+                    for (int i = 0; i < n; i++) {
+                        boolean value = (values & (1 << i)) != 0;
+                        LogicalOperator op = (operators & (1 << i)) != 0 ? LogicalOperator.OR : LogicalOperator.AND;
+                        ctx.status("D-" + i, value ? DeviceStatus.ONLINE : DeviceStatus.OFFLINE);
+                        conditions.add(status("D-" + i, op, i));
+                        met.add(value);
+                        ops.add(op);
+                    }
+                    CompiledRule rule = compile(conditions);
+                    String label = "values=" + met + " operators=" + ops;
+                    assertEquals(baseline(met, ops), rule.matches(ctx, null), label);
+                    assertEquals(baseline(met, ops), rule.matches(ctx, new HashMap<>()), label);
+                }
+            }
+        }
+    }
+
+    @Test
+    void andWithFalseResultSkipsCondition() {
+        TestContext ctx = new TestContext();
+        ctx.status("A", DeviceStatus.OFFLINE);
+        ctx.status("B", DeviceStatus.ONLINE);
+        ctx.status("C", DeviceStatus.ONLINE);
+        // (A AND B) OR C
+        CompiledRule rule = compile(List.of(status("A", LogicalOperator.AND, 0),
+                status("B", LogicalOperator.OR, 1), status("C", LogicalOperator.AND, 2)));
+
+        assertTrue(rule.matches(ctx, null));
+        assertEquals(List.of("A", "C"), ctx.evaluated);
+    }
+
+    @Test
+    void orWithTrueResultSkipsCondition() {
+        TestContext ctx = new TestContext();
+        ctx.status("A", DeviceStatus.ONLINE);
+        ctx.status("B", DeviceStatus.OFFLINE);
+        ctx.status("C", DeviceStatus.OFFLINE);
+        // (A OR B) AND C
+        CompiledRule rule = compile(List.of(status("A", LogicalOperator.OR, 0),
+                status("B", LogicalOperator.AND, 1), status("C", LogicalOperator.AND, 2)));
+
+        assertFalse(rule.matches(ctx, null));
+        assertEquals(List.of("A", "C"), ctx.evaluated);
+    }
+
+    @Test
+    void skippedConditionWritesNoDetails() {
+        TestContext ctx = new TestContext();
+        ctx.status("A", DeviceStatus.OFFLINE);
+        ctx.status("B", DeviceStatus.ONLINE);
+        CompiledRule rule = compile(List.of(status("A", LogicalOperator.AND, 0), status("B", LogicalOperator.AND, 1)));
+
+        Map<String, Object> details = new HashMap<>();
+        assertFalse(rule.matches(ctx, details));
+        assertEquals(Map.of("device_A_status", "OFFLINE", "device_A_expected_status", "ONLINE"), details);
+    }
+
+    @Test
+    void evaluatesConditionsInOrderIndexOrder() {
+        TestContext ctx = new TestContext();
+        ctx.status("A", DeviceStatus.ONLINE);
+        ctx.status("B", DeviceStatus.OFFLINE);
+        // Theo orderIndex: B OR A -> ĐÚNG; theo thứ tự trong list: A AND B -> SAI
+        CompiledRule rule = compile(List.of(status("A", LogicalOperator.AND, 1), status("B", LogicalOperator.OR, 0)));
+
+        assertTrue(rule.matches(ctx, null));
+        assertEquals(List.of("B", "A"), ctx.evaluated);
+    }
+
+    @Test
+    void ruleWithoutConditionsNeverMatches() {
+        assertFalse(compile(List.of()).matches(new TestContext(), null));
+    }
+
+    @Test
+    void invalidConditionsAreFalse() {
+        List<RuleCondition> invalid = List.of(
+                RuleCondition.builder().type(ConditionType.SENSOR_VALUE).field("temperature")
+                        .operator(RuleCondition.Operator.GREATER_THAN).value("30").build(),
+                RuleCondition.builder().type(ConditionType.SENSOR_VALUE).deviceId("S-1").field("co2")
+                        .operator(RuleCondition.Operator.GREATER_THAN).value("30").build(),
+                RuleCondition.builder().type(ConditionType.SENSOR_VALUE).deviceId("S-1").field("temperature")
+                        .operator(RuleCondition.Operator.GREATER_THAN).value("abc").build(),
+                RuleCondition.builder().type(ConditionType.TIME_RANGE).value("25:00-26:00").build(),
+                RuleCondition.builder().type(ConditionType.TIME_RANGE).value("sáng").build(),
+                RuleCondition.builder().type(ConditionType.DEVICE_STATUS).value("ONLINE").build(),
+                RuleCondition.builder().type(ConditionType.WEATHER).field("snow")
+                        .operator(RuleCondition.Operator.GREATER_THAN).value("1").build(),
+                RuleCondition.builder().type(ConditionType.WEATHER).field("rain")
+                        .operator(RuleCondition.Operator.GREATER_THAN).build());
+
+        TestContext ctx = new TestContext();
+        ctx.status("OK", DeviceStatus.ONLINE);
+        ctx.latest.put("S-1", SensorDataDTO.builder().deviceId("S-1").temperature(35.0).timestamp(NOW).build());
+        for (RuleCondition condition : invalid) {
+            String label = condition.getType() + " " + condition.getField() + " " + condition.getValue();
+            CompiledRule alone = compile(List.of(copy(condition, LogicalOperator.AND, 0)));
+            assertInstanceOf(CompiledRule.InvalidCondition.class, alone.getConditions().get(0), label);
+            assertFalse(alone.matches(ctx, null), label);
+            assertFalse(alone.matches(ctx, new HashMap<>()), label);
+
+            // Giống điều kiện SAI khi kết hợp
+            assertTrue(compile(List.of(copy(condition, LogicalOperator.OR, 0), status("OK", LogicalOperator.AND, 1)))
+                    .matches(ctx, null), label);
+            assertFalse(compile(List.of(status("OK", LogicalOperator.AND, 0), copy(condition, LogicalOperator.AND, 1)))
+                    .matches(ctx, null), label);
+        }
+    }
+
+    @Test
+    void sensorFreshnessUsesTimeOfConditionField() {
+        TestContext ctx = new TestContext();
+        // Nhiệt độ vừa gửi, độ ẩm đất từ reading 30 phút trước (timestamp là của nhiệt độ)
+        ctx.latest.put("S-1", SensorDataDTO.builder().deviceId("S-1").timestamp(NOW)
+                .temperature(35.0).soilMoisture(20.0)
+                .fieldTimes(Map.of("soil_moisture", NOW.minusSeconds(30 * 60)))
+                .build());
+
+        assertTrue(compile(List.of(sensor("temperature", null))).matches(ctx, null));
+        assertFalse(compile(List.of(sensor("soil_moisture", null))).matches(ctx, null));
+        assertFalse(compile(List.of(sensor("soilMoisture", 29))).matches(ctx, null));
+        assertTrue(compile(List.of(sensor("soilMoisture", 31))).matches(ctx, null));
+        // Field cũ không làm điều kiện của field mới sai theo
+        assertTrue(compile(List.of(copy(sensor("soil_moisture", null), LogicalOperator.OR, 0),
+                copy(sensor("temperature", null), LogicalOperator.AND, 1))).matches(ctx, null));
+    }
+
+    private static RuleCondition sensor(String field, Integer maxDataAgeMinutes) {
+        return RuleCondition.builder().type(ConditionType.SENSOR_VALUE).deviceId("S-1").field(field)
+                .operator(RuleCondition.Operator.GREATER_THAN).value("10").maxDataAgeMinutes(maxDataAgeMinutes)
+                .build();
+    }
+
+    // Cách kết hợp của RuleEngineService.evaluateConditions trước khi biên dịch
+    private static boolean baseline(List<Boolean> met, List<LogicalOperator> operators) {
+        boolean result = true;
+        LogicalOperator next = LogicalOperator.AND;
+        for (int i = 0; i < met.size(); i++) {
+            if (i == 0) {
+                result = met.get(i);
+            } else if (next == LogicalOperator.AND) {
+                result = result && met.get(i);
+            } else {
+                result = result || met.get(i);
+            }
+            next = operators.get(i);
+        }
+        return result;
+    }
+
+    private static RuleCondition status(String deviceId, LogicalOperator next, int orderIndex) {
+        return RuleCondition.builder().type(ConditionType.DEVICE_STATUS).deviceId(deviceId).value("online")
+                .logicalOperator(next).orderIndex(orderIndex).build();
+    }
+
+    private static RuleCondition copy(RuleCondition condition, LogicalOperator next, int orderIndex) {
+        return RuleCondition.builder().type(condition.getType()).deviceId(condition.getDeviceId())
+                .field(condition.getField()).operator(condition.getOperator()).value(condition.getValue())
+                .maxDataAgeMinutes(condition.getMaxDataAgeMinutes())
+                .logicalOperator(next).orderIndex(orderIndex).build();
+    }
+
+    static CompiledRule compile(List<RuleCondition> conditions) {
+        Farm farm = new Farm();
+        farm.setId(1L);
+        Rule rule = Rule.builder().id(1L).name("rule").farm(farm).priority(0)
+                .conditions(new ArrayList<>(conditions)).build();
+        return CompiledRule.compile(rule, 15);
+    }
+
+    static final class TestContext implements CompiledRule.EvalContext {
+
+        final Map<String, DeviceSnapshot> devices = new HashMap<>();
+        final Map<String, SensorDataDTO> latest = new HashMap<>();
+        final List<String> evaluated = new ArrayList<>();
+
+        void status(String deviceId, DeviceStatus status) {
+            devices.put(deviceId, DeviceSnapshot.builder().deviceId(deviceId).status(status).build());
+        }
+
+        @Override
+        public SensorDataDTO latest(String deviceId) {
+            evaluated.add(deviceId);
+            return latest.get(deviceId);
+        }
+
+        @Override
+        public DeviceSnapshot device(String deviceId) {
+            evaluated.add(deviceId);
+            return devices.get(deviceId);
+        }
+
+        @Override
+        public WeatherDTO weather(Long farmId) {
+            return null;
+        }
+
+        @Override
+        public Instant now() {
+            return NOW;
+        }
+
+        @Override
+        public LocalTime localTime() {
+            return LocalTime.NOON;
+        }
+    }
+}
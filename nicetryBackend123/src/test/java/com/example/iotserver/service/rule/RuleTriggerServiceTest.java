@@ -0,0 +1,82 @@
+package com.example.iotserver.service.rule;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.iotserver.event.DeviceStatusChangedEvent;
+import com.example.iotserver.event.RuleChangedEvent;
+import com.example.iotserver.service.RuleEngineService;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RuleTriggerServiceTest {
+
+    private final CompiledRuleSet ruleSet = mock(CompiledRuleSet.class);
+    private final RuleEngineService ruleEngineService = mock(RuleEngineService.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private RuleTriggerService triggerService;
+
+    @BeforeEach
+    void setUp() {
+        triggerService = new RuleTriggerService(ruleSet, ruleEngineService, meterRegistry);
+        ReflectionTestUtils.setField(triggerService, "enabled", true);
+        // Không để tick chạy trong lúc test
+        ReflectionTestUtils.setField(triggerService, "debounceMs", 60_000L);
+        ReflectionTestUtils.setField(triggerService, "tickMs", 60_000L);
+        triggerService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        triggerService.shutdown();
+    }
+
+    @Test
+    void enqueuesRulesControllingSameDevices() {
+        when(ruleSet.index()).thenReturn(new CompiledRuleSet.TriggerIndex(Map.of(), Map.of(), Set.of(), Set.of(),
+                Map.of(1L, Set.of(2L, 3L), 2L, Set.of(1L), 3L, Set.of(1L))));
+
+        triggerService.onRuleChanged(RuleChangedEvent.saved(1L));
+
+        assertEquals(3, meterRegistry.get("rule.trigger.pending").gauge().value());
+    }
+
+    @Test
+    void staleOfflineEnqueuesStatusRules() {
+        when(ruleSet.index()).thenReturn(new CompiledRuleSet.TriggerIndex(Map.of(), Map.of("PUMP-1", Set.of(7L)),
+                Set.of(), Set.of(), Map.of()));
+
+        triggerService.onDeviceStatusChanged(DeviceStatusChangedEvent.offline("PUMP-1"));
+
+        assertEquals(1, meterRegistry.get("rule.trigger.pending").gauge().value());
+    }
+
+    @Test
+    void requeuesRulesDeferredByEngine() {
+        when(ruleSet.index()).thenReturn(CompiledRuleSet.TriggerIndex.EMPTY);
+        // Farm đang chạy lô khác ở lần đầu, chạy được ở lần sau
+        when(ruleEngineService.executeRules(anyCollection())).thenReturn(List.of(5L), List.of());
+        ReflectionTestUtils.setField(triggerService, "debounceMs", 0L);
+
+        triggerService.onRuleChanged(RuleChangedEvent.saved(5L));
+        ReflectionTestUtils.invokeMethod(triggerService, "runDue");
+        assertEquals(1, meterRegistry.get("rule.trigger.pending").gauge().value());
+
+        ReflectionTestUtils.invokeMethod(triggerService, "runDue");
+        assertEquals(0, meterRegistry.get("rule.trigger.pending").gauge().value());
+        verify(ruleEngineService, times(2)).executeRules(List.of(5L));
+    }
+}